@@ -17,6 +17,7 @@
 package ste.ptp;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
 import javax.usb.UsbClaimException;
 import javax.usb.UsbConst;
@@ -25,6 +26,7 @@ import javax.usb.UsbDevice;
 import javax.usb.UsbEndpoint;
 import javax.usb.UsbException;
 import javax.usb.UsbInterface;
+import javax.usb.UsbIrp;
 import javax.usb.UsbPipe;
 import javax.usb.event.UsbPipeDataEvent;
 import javax.usb.event.UsbPipeErrorEvent;
@@ -76,16 +78,29 @@ public class BaselineInitiator extends NameFactory {
     final static boolean DEBUG = false;
     final static boolean TRACE = false;
 
+    // zero length packet
+    private static final byte[] ZLP = new byte[0];
+
+    // at max usb data rate, 128K ~= 0.11 seconds
+    // typically it's more time than that
+    private static final int STREAM_CHUNK_LEN = 128 * 1024;
+
     protected UsbDevice device;
     protected UsbInterface iface;
     protected UsbEndpoint in;
     protected UsbEndpoint out;
     protected UsbEndpoint intr;
     protected int inMaxPS;
+    protected int outMaxPS;
 
     protected Session session;
     protected DeviceInfo info;
 
+    /**
+     * Transfer buffers leased by transactions
+     */
+    protected BufferArena arena = new BufferArena(false);
+
     /**
      * Constructs a class driver object, if the device supports operations
      * according to Annex D of the PTP specification.
@@ -116,6 +131,7 @@ public class BaselineInitiator extends NameFactory {
                         inMaxPS = ep.getUsbEndpointDescriptor().wMaxPacketSize();
                         in = ep;
                     } else {
+                        outMaxPS = ep.getUsbEndpointDescriptor().wMaxPacketSize();
                         out = ep;
                     }
                 } else if (USBUtils.isInterruptType(type) && isInput) {
@@ -152,6 +168,20 @@ public class BaselineInitiator extends NameFactory {
         }
     }
 
+    /**
+     * Constructs an initiator not bound to any USB device, for example to
+     * simulate a device in tests. Subclasses shall provide the transport
+     * overriding {@link #send(byte[])} and the <code>receive</code> methods;
+     * the session is not open yet.
+     *
+     * @param maxPacketSize max packet size of the simulated bulk endpoints
+     */
+    protected BaselineInitiator(int maxPacketSize) {
+        session = new Session();
+        session.setFactory(this);
+        inMaxPS = outMaxPS = maxPacketSize;
+    }
+
     /**
      * @return the device
      */
@@ -159,6 +189,13 @@ public class BaselineInitiator extends NameFactory {
         return device;
     }
 
+    /**
+     * @return the arena transfer buffers are leased from
+     */
+    public BufferArena getBufferArena() {
+        return arena;
+    }
+
     /**
      * Returns the last cached copy of the device info, or returns a newly
      * cached copy.
@@ -185,6 +222,13 @@ public class BaselineInitiator extends NameFactory {
      * channels are halted.
      */
     public void reset() throws PTPException {
+        if (device == null) {
+            //
+            // nothing to reset if the device is simulated
+            //
+            session.close();
+            return;
+        }
         UsbControlIrp irp = device.createUsbControlIrp(
                 (byte) (UsbConst.REQUESTTYPE_DIRECTION_OUT
                 | UsbConst.REQUESTTYPE_TYPE_CLASS
@@ -273,7 +317,9 @@ public class BaselineInitiator extends NameFactory {
         }
 
         try {
-            iface.release();
+            if (iface != null) {
+                iface.release();
+            }
         } catch (UsbException x) {
             throw new PTPException("Unable to close the USB device", x);
         }
@@ -288,6 +334,40 @@ public class BaselineInitiator extends NameFactory {
         }
     }
 
+    /**
+     * Issues a GetObjectInfo command; the strings of the returned info are
+     * decoded on first access.
+     *
+     * @param handle the object handle
+     *
+     * @return the object info
+     *
+     * @throws PTPException if the device does not return the info
+     */
+    public ObjectInfo getObjectInfo(int handle) throws PTPException {
+        ObjectInfo data = new ObjectInfo(handle, this, true);
+
+        int ret = transactCode1(Command.GetObjectInfo, data, handle);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to read the object info", ret);
+        }
+        return data;
+    }
+
+    /**
+     * Issues a GetThumb command; see {@link ThumbnailCache} to avoid
+     * transferring the same thumbnail again and again.
+     *
+     * @param handle the object handle
+     *
+     * @return the thumbnail, as returned by the device (usually JPEG)
+     *
+     * @throws PTPException if the device does not return the thumbnail
+     */
+    public byte[] getThumb(int handle) throws PTPException {
+        return thumb(Command.GetThumb, handle);
+    }
+
     ///////////////////////////////////////////////////////////////////
     // mandatory for all responders:  generating events
     /**
@@ -323,6 +403,27 @@ public class BaselineInitiator extends NameFactory {
     }
 
     // ------------------------------------------------------- Protected methods
+
+    /**
+     * Reads a thumbnail with the given command, which takes the object
+     * handle as its only parameter
+     *
+     * @param code the command code
+     * @param handle the object handle
+     *
+     * @return the thumbnail
+     *
+     * @throws PTPException if the device does not return the thumbnail
+     */
+    protected byte[] thumb(int code, int handle) throws PTPException {
+        Data data = new Data(this);
+
+        int ret = transactCode1(code, data, handle);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to read the thumbnail", ret);
+        }
+        return Arrays.copyOfRange(data.getData(), Data.HDR_LEN, data.getLength());
+    }
     ///////////////////////////////////////////////////////////////////
     /**
      * Performs a PTP transaction, passing zero command parameters.
@@ -335,8 +436,7 @@ public class BaselineInitiator extends NameFactory {
     protected Response transact0(int code, Data data)
             throws PTPException {
         synchronized (session) {
-            Command command = new Command(code, session);
-            return transactUnsync(command, data);
+            return transactUnsync(0, code, data, 0, 0, 0, 0, 0).copy();
         }
     }
 
@@ -352,8 +452,7 @@ public class BaselineInitiator extends NameFactory {
     protected Response transact1(int code, Data data, int p1)
             throws PTPException {
         synchronized (session) {
-            Command command = new Command(code, session, p1);
-            return transactUnsync(command, data);
+            return transactUnsync(1, code, data, p1, 0, 0, 0, 0).copy();
         }
     }
 
@@ -370,8 +469,7 @@ public class BaselineInitiator extends NameFactory {
     protected Response transact2(int code, Data data, int p1, int p2)
             throws PTPException {
         synchronized (session) {
-            Command command = new Command(code, session, p1, p2);
-            return transactUnsync(command, data);
+            return transactUnsync(2, code, data, p1, p2, 0, 0, 0).copy();
         }
     }
 
@@ -389,12 +487,163 @@ public class BaselineInitiator extends NameFactory {
     protected Response transact3(int code, Data data, int p1, int p2, int p3)
             throws PTPException {
         synchronized (session) {
-            Command command = new Command(code, session, p1, p2, p3);
-            return transactUnsync(command, data);
+            return transactUnsync(3, code, data, p1, p2, p3, 0, 0).copy();
         }
     }
 
+    /**
+     * Performs a PTP transaction, passing zero command parameters, and returns
+     * just the response code. Unlike {@link #transact0(int, Data)} it does not
+     * allocate anything, which is what polling loops want.
+     *
+     * @param code the command code
+     * @param data data to be sent or received; or null
+     * @return the response code
+     */
+    protected int transactCode0(int code, Data data)
+            throws PTPException {
+        synchronized (session) {
+            return transactUnsync(0, code, data, 0, 0, 0, 0, 0).getCode();
+        }
+    }
+
+    /**
+     * Performs a PTP transaction, passing one command parameter, and returns
+     * just the response code.
+     *
+     * @param code the command code
+     * @param data data to be sent or received; or null
+     * @param p1 the first positional parameter
+     * @return the response code
+     */
+    protected int transactCode1(int code, Data data, int p1)
+            throws PTPException {
+        synchronized (session) {
+            return transactUnsync(1, code, data, p1, 0, 0, 0, 0).getCode();
+        }
+    }
+
+    /**
+     * Performs a PTP transaction, passing two command parameters, and returns
+     * just the response code.
+     *
+     * @param code the command code
+     * @param data data to be sent or received; or null
+     * @param p1 the first positional parameter
+     * @param p2 the second positional parameter
+     * @return the response code
+     */
+    protected int transactCode2(int code, Data data, int p1, int p2)
+            throws PTPException {
+        synchronized (session) {
+            return transactUnsync(2, code, data, p1, p2, 0, 0, 0).getCode();
+        }
+    }
+
+    /**
+     * Performs a PTP transaction, passing three command parameters, and
+     * returns just the response code.
+     *
+     * @param code the command code
+     * @param data data to be sent or received; or null
+     * @param p1 the first positional parameter
+     * @param p2 the second positional parameter
+     * @param p3 the third positional parameter
+     * @return the response code
+     */
+    protected int transactCode3(int code, Data data, int p1, int p2, int p3)
+            throws PTPException {
+        synchronized (session) {
+            return transactUnsync(3, code, data, p1, p2, p3, 0, 0).getCode();
+        }
+    }
+
+    /**
+     * Performs a PTP transaction, passing four command parameters, and
+     * returns just the response code.
+     *
+     * @param code the command code
+     * @param data data to be sent or received; or null
+     * @param p1 the first positional parameter
+     * @param p2 the second positional parameter
+     * @param p3 the third positional parameter
+     * @param p4 the fourth positional parameter
+     * @return the response code
+     */
+    protected int transactCode4(int code, Data data, int p1, int p2, int p3, int p4)
+            throws PTPException {
+        synchronized (session) {
+            return transactUnsync(4, code, data, p1, p2, p3, p4, 0).getCode();
+        }
+    }
+
+    /**
+     * Sends a whole buffer to the bulk out endpoint.
+     *
+     * @param buf the data to send
+     *
+     * @throws UsbException in case of USB errors
+     */
+    protected void send(byte[] buf) throws UsbException {
+        pipe(out).syncSubmit(buf);
+    }
+
+    /**
+     * Reads from the bulk in endpoint into the whole given buffer.
+     *
+     * @param buf the buffer to fill
+     *
+     * @return the number of bytes read
+     *
+     * @throws UsbException in case of USB errors
+     */
+    protected int receive(byte[] buf) throws UsbException {
+        return pipe(in).syncSubmit(buf);
+    }
+
+    /**
+     * Reads from the bulk in endpoint into a portion of the given buffer.
+     *
+     * @param buf the buffer to fill
+     * @param offset where to start in the buffer
+     * @param len the maximum number of bytes to read
+     *
+     * @return the number of bytes read
+     *
+     * @throws UsbException in case of USB errors
+     */
+    protected int receive(byte[] buf, int offset, int len) throws UsbException {
+        UsbPipe pIn = pipe(in);
+        UsbIrp irp = pIn.createUsbIrp();
+        irp.setData(buf, offset, len);
+        pIn.syncSubmit(irp);
+
+        return irp.getActualLength();
+    }
+
     // --------------------------------------------------------- Private methods
+
+    private UsbPipe pipe(UsbEndpoint ep) throws UsbException {
+        UsbPipe pipe = ep.getUsbPipe();
+        if (!pipe.isOpen()) {
+            pipe.open();
+        }
+        return pipe;
+    }
+
+    //
+    // Performs a transaction with the command and the response reused by the
+    // session; caller is synchronized on session
+    //
+    private Response transactUnsync(int nparams, int code, Data data,
+                                    int p1, int p2, int p3, int p4, int p5)
+            throws PTPException {
+        Command command = session.command.set(
+            code, session.getNextXID(), nparams, p1, p2, p3, p4, p5
+        );
+        return transactUnsync(command, data, session.response);
+    }
+
     // like getDeviceStatus(),
     // but clears stalled endpoints before returning
     // (except when exceptions are thrown)
@@ -534,6 +783,14 @@ public class BaselineInitiator extends NameFactory {
     // - on PTPException, device (and session!) has been reset
     private Response transactUnsync(Command command, Data data)
             throws PTPException {
+        return transactUnsync(command, data, new Response(this));
+    }
+
+    //
+    // the response is read into the given one
+    //
+    private Response transactUnsync(Command command, Data data, Response response)
+            throws PTPException {
         if (!"command".equals(command.getBlockTypeName(command.getBlockType()))) {
             throw new IllegalArgumentException(command.toString());
         }
@@ -559,24 +816,19 @@ public class BaselineInitiator extends NameFactory {
         }
 
         // ok, then we'll really talk to the device
-        Response response;
         boolean abort = true;
 
-        UsbPipe pOut = out.getUsbPipe();
-        UsbPipe pIn = out.getUsbPipe();
         try {
-            pOut.open(); pIn.open();
-
             // issue command
             // rejected commands will stall both EPs
             if (TRACE) {
                 System.err.println(command.toString());
             }
-            pOut.syncSubmit(command.data);
+            send(command.data);
 
             // may need to terminate request with zero length packet
-            if ((command.length % out.getUsbEndpointDescriptor().wMaxPacketSize()) == 0) {
-                pOut.syncSubmit(new byte[0]);
+            if ((command.length % outMaxPS) == 0) {
+                send(ZLP);
             }
 
             // data exchanged?
@@ -607,7 +859,7 @@ public class BaselineInitiator extends NameFactory {
 
                         for (;;) {
                             // write data or terminating packet
-                            pOut.syncSubmit(fd.data);
+                            send(fd.data);
                             if (len != fd.data.length) {
                                 break;
                             }
@@ -620,16 +872,50 @@ public class BaselineInitiator extends NameFactory {
 
                     } else {
                         // write data and maybe terminating packet
-                        pOut.syncSubmit(data.data);
-                        if ((data.length % out.getUsbEndpointDescriptor().wMaxPacketSize()) == 0) {
-                            pOut.syncSubmit(new byte[0]);
+                        send(data.data);
+                        if ((data.length % outMaxPS) == 0) {
+                            send(ZLP);
                         }
                     }
 
                     // read data?
                 } else {
-                    byte buf1[] = new byte[inMaxPS];
-                    int len = pIn.syncSubmit(buf1);
+                    //
+                    // Data objects that come with their own buffer are
+                    // filled in place; otherwise the first packet goes in
+                    // a leased buffer
+                    //
+                    byte buf1[] = data.data;
+                    boolean leased = (buf1 == null || buf1.length < inMaxPS);
+                    if (leased) {
+                        buf1 = arena.lease(inMaxPS);
+                    }
+                    int len = receive(buf1);
+
+                    //
+                    // the responder may skip the data phase and respond
+                    // straight away, usually with an error (e.g. EOS
+                    // cameras when a viewfinder frame is not ready yet);
+                    // the data is left as it was; block type and XID are
+                    // read from the packet, so that data packets are not
+                    // copied
+                    //
+                    if (len >= Data.HDR_LEN && len <= response.data.length
+                            && "response".equals(Container.getBlockTypeName(Buffer.getU16(buf1, 4)))
+                            && Buffer.getS32(buf1, 8) == command.getXID()) {
+                        System.arraycopy(buf1, 0, response.data, 0, len);
+                        response.length = len;
+                        response.offset = 0;
+                        if (leased) {
+                            arena.release(buf1);
+                        }
+                        if (TRACE) {
+                            System.err.println(response.toString());
+                        }
+
+                        abort = false;
+                        return response;
+                    }
 
                     // Get the first bulk packet(s), check header for length
                     data.data = buf1;
@@ -651,20 +937,48 @@ public class BaselineInitiator extends NameFactory {
                         OutputStreamData fd = (OutputStreamData) data;
 
                         fd.write(buf1, Data.HDR_LEN, len - Data.HDR_LEN);
-                        if (len == inMaxPS && expected != inMaxPS) {
-                            // at max usb data rate, 128K ~= 0.11 seconds
-                            // typically it's more time than that
-                            buf1 = new byte[128 * 1024];
-                            do {
-                                len = pIn.syncSubmit(buf1);
-                                fd.write(buf1, 0, len);
-                            } while (len == buf1.length);
+                        if (leased) {
+                            //
+                            // the stream has the bytes: the leased packet
+                            // goes back to the arena, just the header is kept
+                            //
+                            data.data = Arrays.copyOf(buf1, Data.HDR_LEN);
+                            data.length = Data.HDR_LEN;
+                        }
+                        if (len == buf1.length && expected != len) {
+                            byte chunk[] = arena.lease(STREAM_CHUNK_LEN);
+                            try {
+                                do {
+                                    len = receive(chunk);
+                                    fd.write(chunk, 0, len);
+                                } while (len == chunk.length);
+                            } finally {
+                                arena.release(chunk);
+                            }
+                        }
+                    } else if (len == buf1.length && expected > len) {
+                        if (buf1.length < expected) {
+                            byte grown[] = new byte[expected];
+                            System.arraycopy(buf1, 0, grown, 0, len);
+                            data.data = grown;
+                        }
+
+                        //
+                        // the rest of the data follows what we already have
+                        //
+                        data.length += receive(data.data, len, expected - len);
+                    }
+
+                    //
+                    // the first packet buffer goes back to the arena unless
+                    // it is now part of the data
+                    //
+                    if (leased) {
+                        if (data.data == buf1) {
+                            arena.forget(buf1);
+                        } else {
+                            arena.release(buf1);
                         }
-                    } else if (len == inMaxPS && expected != inMaxPS) {
-                        buf1 = new byte[expected];
-                        System.arraycopy(data.data, 0, buf1, 0, len);
-                        data.data = buf1;
-                        data.length += pIn.syncSubmit(buf1); //  ????
                     }
 
                     // if ((expected % inMaxPS) == 0)
@@ -676,15 +990,16 @@ public class BaselineInitiator extends NameFactory {
 
             // (short) read the response
             // this won't stall anything
-            byte buf[] = new byte[Response.MAX_LEN];
-            int len = pIn.syncSubmit(buf);
+            byte buf[] = response.data;
+            int len = receive(buf);
 
             // ZLP terminated previous data?
             if (len == 0) {
-                len = pIn.syncSubmit(buf);
+                len = receive(buf);
             }
 
-            response = new Response(buf, len, this);
+            response.length = len;
+            response.offset = 0;
             if (TRACE) {
                 System.err.println(response.toString());
             }
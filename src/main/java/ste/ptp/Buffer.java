@@ -17,6 +17,10 @@
 
 package ste.ptp;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 /**
  * A Buffer handles marshaling/unmarshaling rules applicable to PTP
@@ -30,6 +34,12 @@ package ste.ptp;
  * One hundred twenty-eight bit integers are not currently supported.
  * These buffers are not to be used concurrently.
  *
+ * <p> Multi-byte values are read and written through little-endian
+ * {@link VarHandle} views of the backing array, and integer arrays are
+ * decoded in bulk through a little-endian {@link ByteBuffer} view, so
+ * large arrays such as object handle lists are not assembled one byte
+ * at a time.
+ *
  * <p> Strings representing times (<em>YYYYMMDDThhmmss[.s]{,Z,{+,-}hhmm}</em>)
  * are not currently transformed to Java-oriented representations.
  *
@@ -43,6 +53,18 @@ public class Buffer
     protected int  length;
     protected int  offset;
 
+    // little-endian views of a byte array
+    private static final VarHandle S16 = MethodHandles.byteArrayViewVarHandle (
+	short [].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle S32 = MethodHandles.byteArrayViewVarHandle (
+	int [].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle S64 = MethodHandles.byteArrayViewVarHandle (
+	long [].class, ByteOrder.LITTLE_ENDIAN);
+
+    // wrapper of data [] used for bulk decoding; data may be replaced
+    // at any time, so it is checked (and rebuilt) on each use
+    private ByteBuffer leView;
+
     // package private
     Buffer (byte buf [])
     {
@@ -124,28 +146,20 @@ public class Buffer
     /** Unmarshals a signed 16 bit integer from a fixed buffer offset. */
     protected final int getS16 (int index)
     {
-	int retval;
-
-	retval = 0xff & data [index++];
-	retval |= data [index] << 8;
-	return retval;
+	return (short) S16.get (data, index);
     }
     
     /** Unmarshals an unsigned 16 bit integer from a fixed buffer offset. */
     protected final int getU16 (int index)
     {
-	int retval;
-
-	retval = 0xff & data [index++];
-	retval |= 0xff00 & (data [index] << 8);
-	return retval;
+	return 0xffff & (short) S16.get (data, index);
     }
     
     /** Marshals a 16 bit integer (signed or unsigned) */
     protected final void put16 (int value)
     {
-	data [offset++] = (byte) value;
-	data [offset++] = (byte) (value >> 8);
+	S16.set (data, offset, (short) value);
+	offset += 2;
     }
 
     /** Unmarshals the next signed 16 bit integer */
@@ -169,8 +183,10 @@ public class Buffer
     {
 	int len = /* unsigned */ nextS32 ();
 	int retval [] = new int [len];
-	for (int i = 0; i < len; i++)
-	    retval [i] = nextS16 ();
+
+	checkArray (len, 2);
+	for (int i = 0; i < len; i++, offset += 2)
+	    retval [i] = (short) S16.get (data, offset);
 	return retval;
     }
 
@@ -179,8 +195,10 @@ public class Buffer
     {
 	int len = /* unsigned */ nextS32 ();
 	int retval [] = new int [len];
-	for (int i = 0; i < len; i++)
-	    retval [i] = nextU16 ();
+
+	checkArray (len, 2);
+	for (int i = 0; i < len; i++, offset += 2)
+	    retval [i] = 0xffff & (short) S16.get (data, offset);
 	return retval;
     }
 
@@ -188,23 +206,14 @@ public class Buffer
     /** Unmarshals a signed 32 bit integer from a fixed buffer offset. */
     protected final int getS32 (int index)
     {
-	int retval;
-
-	retval  = (0xff & data [index++]) ;
-	retval |= (0xff & data [index++]) << 8;
-	retval |= (0xff & data [index++]) << 16;
-	retval |=         data [index  ]  << 24;
-
-	return retval;
+	return (int) S32.get (data, index);
     }
 
     /** Marshals a 32 bit integer (signed or unsigned) */
     protected final void put32 (int value)
     {
-	data [offset++] = (byte) value;
-	data [offset++] = (byte) (value >> 8);
-	data [offset++] = (byte) (value >> 16);
-	data [offset++] = (byte) (value >> 24);
+	S32.set (data, offset, value);
+	offset += 4;
     }
 
     /** Unmarshals the next signed 32 bit integer */
@@ -220,9 +229,10 @@ public class Buffer
     {
 	int len = /* unsigned */ nextS32 ();
 	int retval [] = new int [len];
-	for (int i = 0; i < len; i++) {
-	    retval [i] = nextS32 ();
-	}
+
+	checkArray (len, 4);
+	view (offset).asIntBuffer ().get (retval);
+	offset += 4 * len;
 	return retval;
     }
 
@@ -231,17 +241,14 @@ public class Buffer
     /** Unmarshals a signed 64 bit integer from a fixed buffer offset */
     protected final long getS64 (int index)
     {
-	long retval = 0xffffffff & getS32 (index);
-
-	retval |= (getS32 (index + 4) << 32);
-	return retval;
+	return (long) S64.get (data, index);
     }
 
     /** Marshals a 64 bit integer (signed or unsigned) */
     protected final void put64 (long value)
     {
-	put32 ((int) value);
-	put32 ((int) (value >> 32));
+	S64.set (data, offset, value);
+	offset += 8;
     }
 
     /** Unmarshals the next signed 64 bit integer */
@@ -257,11 +264,59 @@ public class Buffer
     {
 	int len = /* unsigned */ nextS32 ();
 	long retval [] = new long [len];
-	for (int i = 0; i < len; i++)
-	    retval [i] = nextS64 ();
+
+	checkArray (len, 8);
+	view (offset).asLongBuffer ().get (retval);
+	offset += 8 * len;
 	return retval;
     }
 
+    /**
+     * Returns a little-endian view of the backing array, positioned at
+     * the given index and limited to the whole array.
+     */
+    protected final ByteBuffer view (int index)
+    {
+	if (leView == null || leView.array () != data)
+	    leView = ByteBuffer.wrap (data).order (ByteOrder.LITTLE_ENDIAN);
+	leView.limit (data.length).position (index);
+	return leView;
+    }
+
+    /**
+     * Unmarshals an unsigned 16 bit integer from an offset of any byte
+     * array, e.g. a raw packet not wrapped in a buffer yet.
+     */
+    public static int getU16 (byte buf [], int index)
+    {
+	return 0xffff & (short) S16.get (buf, index);
+    }
+
+    /**
+     * Unmarshals a signed 32 bit integer from an offset of any byte array.
+     */
+    public static int getS32 (byte buf [], int index)
+    {
+	return (int) S32.get (buf, index);
+    }
+
+    /**
+     * Unmarshals a signed 64 bit integer from an offset of any byte array.
+     */
+    public static long getS64 (byte buf [], int index)
+    {
+	return (long) S64.get (buf, index);
+    }
+
+    // checks that len elements of the given size follow the offset,
+    // failing like the element by element decoding would do
+    private void checkArray (int len, int size)
+    {
+	if (offset + (long) len * size > data.length)
+	    throw new ArrayIndexOutOfBoundsException (
+		"array of " + len + " elements exceeds the buffer");
+    }
+
     // Java doesn't yet support 128 bit integers,
     // needed to support primitives like these:
 
@@ -310,17 +365,15 @@ public class Buffer
     protected String nextString ()
     {
 	int		len = nextU8 ();
-	StringBuffer	str;
+	String		retval;
 
 	if (len == 0)
 	    return null;
 
-	str = new StringBuffer (len);
-	for (int i = 0; i < len; i++)
-	    str.append ((char) nextU16 ());
 	// drop terminal null
-	str.setLength (len - 1);
-	return str.toString ();
+	retval = StringCodec.DEFAULT.decodeUTF16LE (data, offset, len - 1);
+	offset += 2 * len;
+	return retval;
     }
 
     public void dump() {
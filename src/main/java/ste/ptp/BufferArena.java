@@ -0,0 +1,250 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A small pool of transfer buffers owned by an initiator. Transactions lease
+ * the buffers they need (bulk packets, streaming chunks, ...) and return them
+ * when done, so that polling events or downloading thousands of objects does
+ * not allocate a new buffer for every round trip.
+ *
+ * <p> Buffers are pooled by exact size, because USB pipes use the whole array
+ * as the transfer length; only a few distinct sizes are used by an initiator.
+ * Byte arrays are always on the heap, since that is what javax.usb accepts;
+ * {@link ByteBuffer} leases, used for channel I/O, come from off-heap slabs if
+ * the arena has been created as <i>direct</i>.
+ *
+ * <p> The arena keeps a few counters: the number of leases, how many of them
+ * had to allocate a new buffer (misses) and the maximum number of bytes
+ * leased at the same time (high-water mark).
+ *
+ * @author ste
+ */
+public class BufferArena {
+
+    /**
+     * Maximum number of distinct buffer sizes pooled
+     */
+    private static final int MAX_SIZES = 8;
+
+    /**
+     * Maximum number of buffers of the same size kept in the pool
+     */
+    private static final int MAX_POOLED = 4;
+
+    private final boolean direct;
+
+    private final int[]        sizes   = new int[MAX_SIZES];
+    private final byte[][][]   arrays  = new byte[MAX_SIZES][MAX_POOLED][];
+    private final int[]        narrays = new int[MAX_SIZES];
+    private final ByteBuffer[][] buffers = new ByteBuffer[MAX_SIZES][MAX_POOLED];
+    private final int[]        nbuffers = new int[MAX_SIZES];
+    private int nsizes;
+
+    private long leases, misses;
+    private long leased, highWater;
+
+    /**
+     * Creates a new arena
+     *
+     * @param direct true if ByteBuffer leases shall be allocated off-heap
+     */
+    public BufferArena(boolean direct) {
+        this.direct = direct;
+    }
+
+    /**
+     * @return true if ByteBuffer leases are allocated off-heap
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Leases a byte array of exactly the given size; the content of the
+     * array is undefined.
+     *
+     * @param size the size of the array
+     *
+     * @return the leased array
+     */
+    public synchronized byte[] lease(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size can not be lesser than 0");
+        }
+        byte[] buf = null;
+
+        int i = indexOf(size);
+        if (i >= 0 && narrays[i] > 0) {
+            buf = arrays[i][--narrays[i]];
+            arrays[i][narrays[i]] = null;
+        }
+        if (buf == null) {
+            ++misses;
+            buf = new byte[size];
+        }
+        leased(size);
+
+        return buf;
+    }
+
+    /**
+     * Returns a leased array to the arena. The caller must not use the
+     * array any more after this call.
+     *
+     * @param buf the array - MAY BE NULL
+     */
+    public synchronized void release(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        leased -= buf.length;
+
+        int i = slot(buf.length);
+        if (i >= 0 && narrays[i] < MAX_POOLED) {
+            arrays[i][narrays[i]++] = buf;
+        }
+    }
+
+    /**
+     * Tells the arena a leased array will not be returned, for example
+     * because it has been handed over to the caller of a transaction.
+     *
+     * @param buf the array - MAY BE NULL
+     */
+    public synchronized void forget(byte[] buf) {
+        if (buf != null) {
+            leased -= buf.length;
+        }
+    }
+
+    /**
+     * Leases a ByteBuffer with exactly the given capacity, cleared; the
+     * buffer is direct if the arena is.
+     *
+     * @param size the capacity of the buffer
+     *
+     * @return the leased buffer
+     */
+    public synchronized ByteBuffer leaseBuffer(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("size can not be lesser than 0");
+        }
+        ByteBuffer buf = null;
+
+        int i = indexOf(size);
+        if (i >= 0 && nbuffers[i] > 0) {
+            buf = buffers[i][--nbuffers[i]];
+            buffers[i][nbuffers[i]] = null;
+            buf.clear();
+        }
+        if (buf == null) {
+            ++misses;
+            buf = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+        }
+        leased(size);
+
+        return buf;
+    }
+
+    /**
+     * Returns a leased ByteBuffer to the arena.
+     *
+     * @param buf the buffer - MAY BE NULL
+     */
+    public synchronized void release(ByteBuffer buf) {
+        if (buf == null) {
+            return;
+        }
+        leased -= buf.capacity();
+
+        int i = slot(buf.capacity());
+        if (i >= 0 && nbuffers[i] < MAX_POOLED) {
+            buffers[i][nbuffers[i]++] = buf;
+        }
+    }
+
+    /**
+     * @return the number of leases served so far
+     */
+    public synchronized long getLeases() {
+        return leases;
+    }
+
+    /**
+     * @return the number of leases that required a new allocation
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of bytes currently leased
+     */
+    public synchronized long getLeasedBytes() {
+        return leased;
+    }
+
+    /**
+     * @return the maximum number of bytes leased at the same time
+     */
+    public synchronized long getHighWaterMark() {
+        return highWater;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+            "BufferArena[leases: %d, misses: %d, leased: %d, high-water: %d%s]",
+            leases, misses, leased, highWater, direct ? ", direct" : ""
+        );
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void leased(int size) {
+        ++leases;
+        leased += size;
+        if (leased > highWater) {
+            highWater = leased;
+        }
+    }
+
+    private int indexOf(int size) {
+        for (int i=0; i<nsizes; ++i) {
+            if (sizes[i] == size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    //
+    // Returns the pool slot for the given size, creating it if there is still
+    // room for a new size; -1 means the buffer shall not be pooled.
+    //
+    private int slot(int size) {
+        int i = indexOf(size);
+        if (i < 0 && nsizes < MAX_SIZES) {
+            i = nsizes++;
+            sizes[i] = size;
+        }
+        return i;
+    }
+}
@@ -0,0 +1,222 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.function.IntFunction;
+
+/**
+ * Maps codes to their printable names with an int keyed open addressing
+ * table, so that names can be looked up at high rates (e.g. when logging
+ * events) without scanning anything.
+ *
+ * <p> Registries are filled once, when they are created, from the constants
+ * declared by a class, and never change afterwards, so that they can be
+ * shared by any number of threads. The standard PTP ones are available as
+ * {@link #OPERATIONS}, {@link #RESPONSES}, {@link #EVENTS},
+ * {@link #FORMATS} and {@link #PROPERTIES} and keep the names given by the
+ * classes defining the codes. If the same code is registered more than once,
+ * the first name wins.
+ *
+ * @author ste
+ */
+public final class CodeRegistry {
+
+    /**
+     * Standard and vendor operation codes
+     */
+    public static final CodeRegistry OPERATIONS =
+        fromNames(Command.class, Command::_getOpcodeString);
+
+    /**
+     * Response codes
+     */
+    public static final CodeRegistry RESPONSES =
+        fromNames(Response.class, Response::_getResponseString);
+
+    /**
+     * Event codes
+     */
+    public static final CodeRegistry EVENTS =
+        fromNames(Event.class, Event::_getEventString);
+
+    /**
+     * Object format codes
+     */
+    public static final CodeRegistry FORMATS =
+        fromNames(ObjectInfo.class, ObjectInfo::_getFormatString);
+
+    /**
+     * Device property codes
+     */
+    public static final CodeRegistry PROPERTIES =
+        fromNames(DevicePropDesc.class, DevicePropDesc::_getPropertyName);
+
+    private int[] codes;
+    private String[] names;
+    private int size;
+
+    private CodeRegistry() {
+        codes = new int[16];
+        names = new String[16];
+    }
+
+    /**
+     * Creates a registry with the <code>public static final int</code>
+     * constants of the given class whose names start with the given prefix;
+     * the name registered for a code is the name of its constant.
+     *
+     * @param c the class declaring the constants - NOT NULL
+     * @param prefix prefix of the constants to register - NOT NULL
+     * @param strip true to remove the prefix from the registered names
+     *
+     * @return the new registry
+     */
+    public static CodeRegistry fromConstants(Class<?> c, String prefix, boolean strip) {
+        CodeRegistry registry = new CodeRegistry();
+
+        for (Field f: c.getDeclaredFields()) {
+            String name = f.getName();
+            if (isIntConstant(f) && name.startsWith(prefix)) {
+                registry.register(
+                    intValue(f), strip ? name.substring(prefix.length()) : name
+                );
+            }
+        }
+
+        return registry;
+    }
+
+    /**
+     * Creates a registry with the values of the <code>public static final
+     * int</code> constants of the given class, named by the given function;
+     * codes for which the function returns just the hex value of the code
+     * (see {@link Container#getCodeString}) are not registered.
+     *
+     * @param c the class declaring the constants - NOT NULL
+     * @param names the function giving the name of a code - NOT NULL
+     *
+     * @return the new registry
+     */
+    public static CodeRegistry fromNames(Class<?> c, IntFunction<String> names) {
+        CodeRegistry registry = new CodeRegistry();
+
+        for (Field f: c.getDeclaredFields()) {
+            if (isIntConstant(f)) {
+                int code = intValue(f);
+                String name = names.apply(code);
+                if (name != null && !name.equals(Integer.toHexString(code))) {
+                    registry.register(code, name);
+                }
+            }
+        }
+
+        return registry;
+    }
+
+    /**
+     * @param code the code
+     *
+     * @return the name of the given code or null if not registered
+     */
+    public String get(int code) {
+        for (int i = slot(code, codes.length); names[i] != null; i = (i + 1) & (codes.length - 1)) {
+            if (codes[i] == code) {
+                return names[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param code the code
+     * @param unknown what to return if the code is not registered
+     *
+     * @return the name of the given code or <code>unknown</code>
+     */
+    public String get(int code, String unknown) {
+        String name = get(code);
+        return (name != null) ? name : unknown;
+    }
+
+    /**
+     * @return the number of registered codes
+     */
+    public int size() {
+        return size;
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    //
+    // the first name registered for a code wins
+    //
+    private void register(int code, String name) {
+        if (2 * (size + 1) > codes.length) {
+            rehash();
+        }
+        int i = slot(code, codes.length);
+        while (names[i] != null) {
+            if (codes[i] == code) {
+                return;
+            }
+            i = (i + 1) & (codes.length - 1);
+        }
+        codes[i] = code;
+        names[i] = name;
+        ++size;
+    }
+
+    private static boolean isIntConstant(Field f) {
+        int m = f.getModifiers();
+        return Modifier.isPublic(m) && Modifier.isStatic(m) && Modifier.isFinal(m)
+            && f.getType() == int.class;
+    }
+
+    private static int intValue(Field f) {
+        try {
+            return f.getInt(null);
+        } catch (IllegalAccessException x) {
+            //
+            // public constants are always accessible
+            //
+            throw new IllegalStateException(x);
+        }
+    }
+
+    private static int slot(int code, int length) {
+        return ((code * 0x9E3779B1) >>> 16) & (length - 1);
+    }
+
+    private void rehash() {
+        int[] newCodes = new int[2 * codes.length];
+        String[] newNames = new String[2 * codes.length];
+        for (int j = 0; j < codes.length; ++j) {
+            if (names[j] != null) {
+                int i = slot(codes[j], newCodes.length);
+                while (newNames[i] != null) {
+                    i = (i + 1) & (newCodes.length - 1);
+                }
+                newCodes[i] = codes[j];
+                newNames[i] = names[j];
+            }
+        }
+        codes = newCodes;
+        names = newNames;
+    }
+}
@@ -0,0 +1,207 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of 16 bit PTP codes (operations, events, properties,
+ * formats) with constant time lookups, used to index what a device
+ * supports.
+ *
+ * <p> PTP codes are grouped in pages of 4096 codes by their top four bits:
+ * the standard operations are in page 0x1000, the vendor ones in page
+ * 0x9000, properties in 0x5000 and 0xD000 and so on. A page holding enough
+ * codes is indexed by a bitset (512 bytes); the few codes of sparse pages
+ * go in a small open addressing hash table instead.
+ *
+ * @author ste
+ */
+public final class CodeSet {
+
+    /**
+     * The empty set
+     */
+    public static final CodeSet EMPTY = new CodeSet(new int[0]);
+
+    //
+    // pages with at least this number of codes are indexed by a bitset
+    //
+    private static final int DENSE = 16;
+
+    private static final int PAGES = 16;
+    private static final int PAGE_WORDS = 4096 / 64;
+
+    private final long[][] pages = new long[PAGES][];
+    private final int[] sparse;
+    private final int[] codes;
+
+    /**
+     * Creates a set with the given codes; only the lower 16 bits of each
+     * code are considered, duplicates are ignored.
+     *
+     * @param codes the codes - NOT NULL
+     */
+    public CodeSet(int[] codes) {
+        if (codes == null) {
+            throw new IllegalArgumentException("codes can not be null");
+        }
+
+        int[] sorted = new int[codes.length];
+        for (int i = 0; i < codes.length; ++i) {
+            sorted[i] = codes[i] & 0xFFFF;
+        }
+        Arrays.sort(sorted);
+
+        int n = 0;
+        for (int i = 0; i < sorted.length; ++i) {
+            if (n == 0 || sorted[n - 1] != sorted[i]) {
+                sorted[n++] = sorted[i];
+            }
+        }
+        this.codes = Arrays.copyOf(sorted, n);
+
+        int[] count = new int[PAGES];
+        for (int code: this.codes) {
+            ++count[code >>> 12];
+        }
+
+        int nsparse = 0;
+        for (int page = 0; page < PAGES; ++page) {
+            if (count[page] >= DENSE) {
+                pages[page] = new long[PAGE_WORDS];
+            } else {
+                nsparse += count[page];
+            }
+        }
+
+        sparse = new int[tableSize(nsparse)];
+        Arrays.fill(sparse, -1);
+        for (int code: this.codes) {
+            long[] bits = pages[code >>> 12];
+            if (bits != null) {
+                bits[(code & 0xFFF) >>> 6] |= 1L << code;
+            } else {
+                int i = hash(code);
+                while (sparse[i] >= 0) {
+                    i = (i + 1) & (sparse.length - 1);
+                }
+                sparse[i] = code;
+            }
+        }
+    }
+
+    /**
+     * @param code the code to look for
+     *
+     * @return true if the code is in the set
+     */
+    public boolean contains(int code) {
+        if ((code & ~0xFFFF) != 0) {
+            return false;
+        }
+        long[] bits = pages[code >>> 12];
+        if (bits != null) {
+            return (bits[(code & 0xFFF) >>> 6] & (1L << code)) != 0;
+        }
+
+        for (int i = hash(code); sparse[i] >= 0; i = (i + 1) & (sparse.length - 1)) {
+            if (sparse[i] == code) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param codes the codes to look for
+     *
+     * @return true if all given codes are in the set
+     */
+    public boolean containsAll(int... codes) {
+        for (int code: codes) {
+            if (!contains(code)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the given codes that are not in the set, in the given order;
+     * for example the operations a planned sequence of commands needs but
+     * the device does not support.
+     *
+     * @param codes the codes to look for
+     *
+     * @return the missing codes, possibly an empty array
+     */
+    public int[] missing(int... codes) {
+        int[] missing = new int[codes.length];
+        int n = 0;
+        for (int code: codes) {
+            if (!contains(code)) {
+                missing[n++] = code;
+            }
+        }
+        return Arrays.copyOf(missing, n);
+    }
+
+    /**
+     * @return the number of codes in the set
+     */
+    public int size() {
+        return codes.length;
+    }
+
+    /**
+     * @return the codes in the set, sorted
+     */
+    public int[] toArray() {
+        return codes.clone();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < codes.length; ++i) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            sb.append(String.format("0x%04x", codes[i]));
+        }
+        return sb.append(']').toString();
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    //
+    // a power of two at least twice the number of codes, so that there is
+    // always an empty slot terminating the probes
+    //
+    private static int tableSize(int n) {
+        int size = 2;
+        while (size < 2 * n) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    private int hash(int code) {
+        return ((code * 0x9E3779B1) >>> 16) & (sparse.length - 1);
+    }
+}
@@ -33,11 +33,71 @@ package ste.ptp;
  */
 public class Command extends ParamVector {
 
+    //
+    // buffers of a reusable command, one for each number of parameters,
+    // since the whole buffer is sent to the device; null if not reusable
+    //
+    private final byte[][] frames;
+
     private Command(int nparams, int code, Session s) {
         super(new byte[HDR_LEN + (4 * nparams)], s.getFactory());
+        frames = null;
         putHeader(data.length, 1 /*OperationCode*/, code, s.getNextXID());
     }
 
+    /**
+     * This creates a reusable command, to be (re)written with
+     * {@link #set(int, int, int, int, int, int, int, int)} before each
+     * transaction. It is owned by the session.
+     *
+     * @param s session this command is associated with
+     */
+    Command(Session s) {
+        super(new byte[HDR_LEN], s.getFactory());
+        frames = new byte[MAX_PARAMS + 1][];
+        for (int i = 0; i <= MAX_PARAMS; ++i) {
+            frames[i] = new byte[HDR_LEN + (4 * i)];
+        }
+    }
+
+    /**
+     * Rewrites in place header and parameters of a reusable command; unused
+     * parameters are ignored.
+     *
+     * @param code as defined in section 10, table 18
+     * @param xid the transaction id
+     * @param nparams number of parameters (0 to 5)
+     * @param param1 first operation parameter
+     * @param param2 second operation parameter
+     * @param param3 third operation parameter
+     * @param param4 fourth operation parameter
+     * @param param5 fifth operation parameter
+     *
+     * @return this command
+     *
+     * @throws IllegalStateException if this command is not reusable
+     */
+    Command set(int code, int xid, int nparams,
+                int param1, int param2, int param3, int param4, int param5) {
+        if (frames == null) {
+            throw new IllegalStateException("not a reusable command");
+        }
+        if (nparams < 0 || nparams > MAX_PARAMS) {
+            throw new IllegalArgumentException("nparams must be between 0 and " + MAX_PARAMS);
+        }
+        data = frames[nparams];
+        length = data.length;
+        offset = 0;
+        putHeader(length, 1 /*OperationCode*/, code, xid);
+        if (nparams > 0) put32(param1);
+        if (nparams > 1) put32(param2);
+        if (nparams > 2) put32(param3);
+        if (nparams > 3) put32(param4);
+        if (nparams > 4) put32(param5);
+
+        return this;
+    }
+
     /**
      * This creates a zero-parameter command.
      * @param code as defined in section 10, table 18
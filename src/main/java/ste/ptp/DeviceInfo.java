@@ -24,6 +24,11 @@ import java.io.PrintStream;
  * DeviceInfo describes device functionality such supported image formats,
  * operations, events, and device properties.
  *
+ * <p> Supported codes are indexed by {@link CodeSet}s when the dataset is
+ * parsed, so that the <code>supports*</code> checks (done for example on
+ * every transaction) take constant time; the sets can also be retrieved as
+ * a whole to check in advance a sequence of commands.
+ *
  * @version $Id: DeviceInfo.java,v 1.8 2001/04/12 23:13:00 dbrownell Exp $
  * @author David Brownell
  */
@@ -49,6 +54,9 @@ public class DeviceInfo extends Data
     String	deviceVersion;
     String	serialNumber;
 
+    private CodeSet	operations, events, properties;
+    private CodeSet	captureFormatSet, imageFormatSet;
+
     // FIXME add formal vendor hooks, which we'd consult for string
     // mappings ... we don't have any here.
 
@@ -59,49 +67,75 @@ public class DeviceInfo extends Data
 
     // input -- we can't know buffer size yet
     DeviceInfo (NameFactory f)
-	{ super (true, null, 0, f); }
-
-    
-    private boolean supports (int supported [], int code)
     {
-	for (int i = 0; i < supported.length; i++) {
-	    if (code == supported [i])
-		return true;
-	}
-	return false;
+	super (true, null, 0, f);
+	operations = events = properties = CodeSet.EMPTY;
+	captureFormatSet = imageFormatSet = CodeSet.EMPTY;
     }
 
-
+    
     /** Returns true iff the device supports this operation */
     public boolean supportsOperation (int opCode)
     {
-	return supports (operationsSupported, opCode);
+	return operations.contains (opCode);
     }
 
     /** Returns true iff the device supports this event */
     public boolean supportsEvent (int eventCode)
     {
-	return supports (eventsSupported, eventCode);
+	return events.contains (eventCode);
     }
 
     /** Returns true iff the device supports this property */
     public boolean supportsProperty (int propCode)
     {
-	return supports (propertiesSupported, propCode);
+	return properties.contains (propCode);
     }
 
     /** Returns true iff the device supports this capture format */
     public boolean supportsCaptureFormat (int formatCode)
     {
-	return supports (captureFormats, formatCode);
+	return captureFormatSet.contains (formatCode);
     }
 
     /** Returns true iff the device supports this image format */
     public boolean supportsImageFormat (int formatCode)
     {
-	return supports (imageFormats, formatCode);
+	return imageFormatSet.contains (formatCode);
     }
 
+    /** Returns the operations supported by the device */
+    public CodeSet getSupportedOperations ()
+	{ return operations; }
+
+    /** Returns the events supported by the device */
+    public CodeSet getSupportedEvents ()
+	{ return events; }
+
+    /** Returns the properties supported by the device */
+    public CodeSet getSupportedProperties ()
+	{ return properties; }
+
+    /** Returns the capture formats supported by the device */
+    public CodeSet getSupportedCaptureFormats ()
+	{ return captureFormatSet; }
+
+    /** Returns the image formats supported by the device */
+    public CodeSet getSupportedImageFormats ()
+	{ return imageFormatSet; }
+
+    /** Returns the manufacturer of the device, or null */
+    public String getManufacturer ()
+	{ return manufacturer; }
+
+    /** Returns the model of the device, or null */
+    public String getModel ()
+	{ return model; }
+
+    /** Returns the serial number of the device, or null */
+    public String getSerialNumber ()
+	{ return serialNumber; }
+
 
     // fit names to standard length lines
     private int addString (PrintStream out, int last, String s)
@@ -142,6 +176,12 @@ public class DeviceInfo extends Data
 
 	 deviceVersion = nextString ();
 	 serialNumber = nextString ();
+
+	 operations = new CodeSet (operationsSupported);
+	 events = new CodeSet (eventsSupported);
+	 properties = new CodeSet (propertiesSupported);
+	 captureFormatSet = new CodeSet (captureFormats);
+	 imageFormatSet = new CodeSet (imageFormats);
     }
 
     void lines (PrintStream out)
@@ -18,6 +18,7 @@
 package ste.ptp;
 
 import java.io.PrintStream;
+import java.util.Arrays;
 import java.util.Vector;
 
 
@@ -32,6 +33,13 @@ import java.util.Vector;
  * The 64 bit integral types are supported, but not the 128 bit ones;
  * unsigned 64 bit values may not print as intended.
  *
+ * <p> Integer values, ranges and enumerations are also available as
+ * primitives ({@link #getLongValue}, {@link Range#getMin},
+ * {@link #getLongEnumeration}, ...), which is what UIs polling properties
+ * and validating values should use: objects are created only by the
+ * legacy accessors. {@link #isAllowed} checks a value against the range or
+ * the enumeration, the latter with a binary search.
+ *
  * @version $Id: DevicePropDesc.java,v 1.7 2001/04/12 23:13:00 dbrownell Exp $
  * @author David Brownell
  */
@@ -45,6 +53,11 @@ public class DevicePropDesc extends Data
     int			formType;
     Object		constraints;
 
+    // integer values, if isScalar (dataType)
+    private long	defaultScalar, currentScalar;
+    private long	enumeration [], sortedEnumeration [];
+    private int		intEnumeration [];
+
     public DevicePropDesc (NameFactory f) { super (f); }
 
     void parse ()
@@ -57,8 +70,16 @@ public class DevicePropDesc extends Data
 	writable = nextU8 () != 0;
 
 	// FIXME use factories, as vendor hooks
-	factoryDefault = DevicePropValue.get (dataType, this);
-	currentValue = DevicePropValue.get (dataType, this);
+	factoryDefault = currentValue = constraints = null;
+	enumeration = sortedEnumeration = null;
+	intEnumeration = null;
+	if (isScalar ()) {
+	    defaultScalar = DevicePropValue.nextScalar (dataType, this);
+	    currentScalar = DevicePropValue.nextScalar (dataType, this);
+	} else {
+	    factoryDefault = DevicePropValue.get (dataType, this);
+	    currentValue = DevicePropValue.get (dataType, this);
+	}
 
 	formType = nextU8 ();
 	switch (formType) {
@@ -86,7 +107,7 @@ public class DevicePropDesc extends Data
 
 	out.print (factory.getPropertyName (propertyCode));
 	out.print (" = ");
-	out.print (currentValue);
+	out.print (getValue ());
 	if (!writable)
 	    out.print (", read-only");
 	out.print (", ");
@@ -105,7 +126,7 @@ public class DevicePropDesc extends Data
 		};
 		break;
 	    case 2:  {
-		Vector	v = (Vector) constraints;
+		Vector	v = getEnumeration ();
 		out.print (" { ");
 		for (int i = 0; i < v.size (); i++) {
 		    if (i != 0)
@@ -122,7 +143,7 @@ public class DevicePropDesc extends Data
 	}
 
 	out.print (", default ");
-	out.println (factoryDefault);
+	out.println (getDefault ());
     }
 
     /** Returns true if the property is writable */
@@ -131,11 +152,96 @@ public class DevicePropDesc extends Data
 
     /** Returns the current value (treat as immutable!) */
     public Object getValue ()
-	{ return currentValue; }
+    {
+	if (currentValue == null && isScalar ())
+	    currentValue = DevicePropValue.box (dataType, currentScalar);
+	return currentValue;
+    }
 
     /** Returns the factory default value (treat as immutable!) */
     public Object getDefault ()
-	{ return factoryDefault; }
+    {
+	if (factoryDefault == null && isScalar ())
+	    factoryDefault = DevicePropValue.box (dataType, defaultScalar);
+	return factoryDefault;
+    }
+
+    /** Returns the property code */
+    public int getPropertyCode ()
+	{ return propertyCode; }
+
+    /** Returns the datatype code of the values */
+    public int getDataType ()
+	{ return dataType; }
+
+    /**
+     * Returns the current value of an integer property
+     *
+     * @throws IllegalStateException if the property is not an integer
+     */
+    public long getLongValue ()
+    {
+	checkScalar ();
+	return currentScalar;
+    }
+
+    /**
+     * Returns the current value of an integer property as int
+     *
+     * @throws IllegalStateException if the property is not an integer
+     */
+    public int getIntValue ()
+	{ return (int) getLongValue (); }
+
+    /**
+     * Returns the factory default value of an integer property
+     *
+     * @throws IllegalStateException if the property is not an integer
+     */
+    public long getLongDefault ()
+    {
+	checkScalar ();
+	return defaultScalar;
+    }
+
+    /**
+     * Returns the factory default value of an integer property as int
+     *
+     * @throws IllegalStateException if the property is not an integer
+     */
+    public int getIntDefault ()
+	{ return (int) getLongDefault (); }
+
+    /**
+     * Returns true if the given value is allowed by the range or the
+     * enumeration of this integer property; any value is allowed if there
+     * are no constraints.
+     *
+     * @param value the value to check
+     *
+     * @throws IllegalStateException if the property is not an integer
+     */
+    public boolean isAllowed (long value)
+    {
+	checkScalar ();
+	switch (formType) {
+	    case 1:
+		return ((Range) constraints).contains (value);
+	    case 2:
+		return Arrays.binarySearch (sortedEnumeration, value) >= 0;
+	}
+	return true;
+    }
+
+    private boolean isScalar ()
+	{ return DevicePropValue.isScalar (dataType); }
+
+    private void checkScalar ()
+    {
+	if (!isScalar ())
+	    throw new IllegalStateException ("not an integer property ("
+		+ DevicePropValue.getTypeName (dataType) + ")");
+    }
 
 
     // code values, per 13.3.5 table 26
@@ -256,23 +362,67 @@ public class DevicePropDesc extends Data
      */
     public static final class Range
     {
-	private Object	min, max, step;
+	private final int	dataType;
+	private Object		min, max, step;
+	private long		lmin, lmax, lstep;
 
 	Range (int dataType, DevicePropDesc desc)
 	{
-	    min = DevicePropValue.get (dataType, desc);
-	    max = DevicePropValue.get (dataType, desc);
-	    step = DevicePropValue.get (dataType, desc);
+	    this.dataType = dataType;
+	    if (DevicePropValue.isScalar (dataType)) {
+		lmin = DevicePropValue.nextScalar (dataType, desc);
+		lmax = DevicePropValue.nextScalar (dataType, desc);
+		lstep = DevicePropValue.nextScalar (dataType, desc);
+	    } else {
+		min = DevicePropValue.get (dataType, desc);
+		max = DevicePropValue.get (dataType, desc);
+		step = DevicePropValue.get (dataType, desc);
+	    }
 	}
 
 	/** Returns the maximum value of this range */
-	public Object getMaximum () { return max; }
+	public Object getMaximum ()
+	{
+	    if (max == null)
+		max = DevicePropValue.box (dataType, lmax);
+	    return max;
+	}
 
 	/** Returns the minimum value of this range */
-	public Object getMinimum () { return min; }
+	public Object getMinimum ()
+	{
+	    if (min == null)
+		min = DevicePropValue.box (dataType, lmin);
+	    return min;
+	}
 
 	/** Returns the increment of values in this range */
-	public Object getIncrement () { return step; }
+	public Object getIncrement ()
+	{
+	    if (step == null)
+		step = DevicePropValue.box (dataType, lstep);
+	    return step;
+	}
+
+	/** Returns the minimum value of an integer range */
+	public long getMin () { return lmin; }
+
+	/** Returns the maximum value of an integer range */
+	public long getMax () { return lmax; }
+
+	/** Returns the increment of an integer range */
+	public long getStep () { return lstep; }
+
+	/**
+	 * Returns true if the value is in this integer range and is a
+	 * multiple of the increment from the minimum
+	 */
+	public boolean contains (long value)
+	{
+	    if (value < lmin || value > lmax)
+		return false;
+	    return lstep <= 0 || ((value - lmin) % lstep) == 0;
+	}
     }
 
     /** Returns any range constraints for this property's value, or null */
@@ -284,10 +434,22 @@ public class DevicePropDesc extends Data
     }
 
 
-    private Vector parseEnumeration ()
+    // integer enumerations are kept as primitives, the Vector is created
+    // only if requested
+    private Vector<Object> parseEnumeration ()
     {
 	int	len = nextU16 ();
-	Vector	retval = new Vector (len);
+
+	if (isScalar ()) {
+	    enumeration = new long [len];
+	    for (int i = 0; i < len; i++)
+		enumeration [i] = DevicePropValue.nextScalar (dataType, this);
+	    sortedEnumeration = enumeration.clone ();
+	    Arrays.sort (sortedEnumeration);
+	    return null;
+	}
+
+	Vector<Object>	retval = new Vector<> (len);
 
 	while (len-- > 0)
 	    retval.addElement (DevicePropValue.get (dataType, this));
@@ -298,8 +460,42 @@ public class DevicePropDesc extends Data
     /** Returns any enumerated options for this property's value, or null */
     public Vector getEnumeration ()
     {
-	if (formType == 2)
-	    return (Vector) constraints;
-	return null;
+	if (formType != 2)
+	    return null;
+	if (constraints == null) {
+	    Vector<Object>	v = new Vector<> (enumeration.length);
+
+	    for (int i = 0; i < enumeration.length; i++)
+		v.addElement (DevicePropValue.box (dataType, enumeration [i]));
+	    constraints = v;
+	}
+	return (Vector) constraints;
+    }
+
+    /**
+     * Returns the enumerated options of an integer property, in the order
+     * given by the device (treat as immutable!), or null
+     */
+    public long [] getLongEnumeration ()
+    {
+	return (formType == 2) ? enumeration : null;
+    }
+
+    /**
+     * Returns the enumerated options of an integer property as int, in the
+     * order given by the device (treat as immutable!), or null
+     */
+    public int [] getIntEnumeration ()
+    {
+	if (formType != 2 || enumeration == null)
+	    return null;
+	if (intEnumeration == null) {
+	    int	values [] = new int [enumeration.length];
+
+	    for (int i = 0; i < values.length; i++)
+		values [i] = (int) enumeration [i];
+	    intEnumeration = values;
+	}
+	return intEnumeration;
     }
 }
@@ -26,6 +26,10 @@ import java.io.PrintStream;
  * CORBA "Any", pairing a typecode and value, except that
  * the typecode is known in advance so it's never marshaled.
  *
+ * <p> Integer values up to 64 bits are kept as primitives and can be read
+ * with {@link #getInt} and {@link #getLong}; they are boxed only if
+ * {@link #getValue} is called.
+ *
  * @see DevicePropDesc
  *
  * @version $Id: DevicePropValue.java,v 1.4 2001/04/12 23:13:00 dbrownell Exp $
@@ -35,6 +39,7 @@ public class DevicePropValue extends Data
 {
     int			typecode;
     Object		value;
+    long		scalar;
 
     DevicePropValue (int tc, NameFactory f)
 	{ super (f); typecode = tc; }
@@ -48,15 +53,48 @@ public class DevicePropValue extends Data
 	// FIXME:  marshal value into the buffer.
     }
 
+    /** Returns the value; integers are boxed as Integer or Long */
     public Object getValue ()
-	{ return value; }
+    {
+	if (value == null && isScalar (typecode))
+	    value = box (typecode, scalar);
+	return value;
+    }
+
+    /**
+     * Returns an integer value as int; u32 values above 0x7fffffff are
+     * returned as negative numbers, 64 bit values are truncated.
+     *
+     * @throws IllegalStateException if the value is not an integer
+     */
+    public int getInt ()
+	{ return (int) getLong (); }
+
+    /**
+     * Returns an integer value as long; u32 values are never negative.
+     *
+     * @throws IllegalStateException if the value is not an integer
+     */
+    public long getLong ()
+    {
+	if (!isScalar (typecode))
+	    throw new IllegalStateException (
+		"not an integer value (" + getTypeName (typecode) + ")");
+	return scalar;
+    }
     
     public int getTypeCode ()
 	{ return typecode; }
 
     void parse ()
     {
-	value = get (typecode, this);
+	super.parse ();
+
+	value = null;
+	if (isScalar (typecode))
+	    scalar = nextScalar (typecode, this);
+	else
+	    value = get (typecode, this);
     }
 
     void dump (PrintStream out)
@@ -64,7 +102,7 @@ public class DevicePropValue extends Data
 	out.print ("Type: ");
 	out.print (getTypeName (typecode));
 	out.print (", Value: ");
-	out.println (value.toString ());
+	out.println (getValue ().toString ());
     }
 
     public String getCodeName (int code)
@@ -72,29 +110,49 @@ public class DevicePropValue extends Data
 	return getTypeName (code);
     }
 
-    static Object get (int code, Buffer buf)
-    {
-	Object		value;
+    /** Returns true if the datatype is an integer up to 64 bits */
+    static boolean isScalar (int code)
+	{ return code >= s8 && code <= u64; }
 
+    /** Unmarshals an integer up to 64 bits without boxing it */
+    static long nextScalar (int code, Buffer buf)
+    {
 	switch (code) {
 	    case s8:
-		return new Integer (buf.nextS8 ());
+		return buf.nextS8 ();
 	    case u8:
-		return new Integer (buf.nextU8 ());
+		return buf.nextU8 ();
 	    case s16:
-		return new Integer (buf.nextS16 ());
+		return buf.nextS16 ();
 	    case u16:
-		return new Integer (buf.nextU16 ());
+		return buf.nextU16 ();
 	    case s32:
-		return new Integer (buf.nextS32 ());
+		return buf.nextS32 ();
 	    case u32:
-		return new Long (0x0ffFFffFFL & buf.nextS32 ());
+		return 0x0ffFFffFFL & buf.nextS32 ();
 	    case s64:
-		return new Long (buf.nextS64 ());
+		return buf.nextS64 ();
 	    case u64:
 		// FIXME: unsigned masquerading as signed ...
-		return new Long (buf.nextS64 ());
+		return buf.nextS64 ();
+	}
+	throw new IllegalArgumentException ();
+    }
+
+    /** Boxes an integer the way {@link #get} returns it */
+    static Object box (int code, long value)
+    {
+	if (code == u32 || code == s64 || code == u64)
+	    return Long.valueOf (value);
+	return Integer.valueOf ((int) value);
+    }
+
+    static Object get (int code, Buffer buf)
+    {
+	if (isScalar (code))
+	    return box (code, nextScalar (code, buf));
 
+	switch (code) {
 	    // case s128: case u128:
 
 	    case s8array:
@@ -0,0 +1,152 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.util.Arrays;
+
+/**
+ * A histogram of latencies (in nanoseconds) with logarithmic buckets: each
+ * power of two is split in 16 buckets, so that percentiles are accurate
+ * within about 6% whatever the magnitude, in a fixed amount of memory and
+ * without allocating when recording.
+ *
+ * @author ste
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+
+    private final long[] counts = new long[64 * SUB];
+    private long count, sum;
+    private long min = Long.MAX_VALUE, max;
+
+    /**
+     * Records a latency
+     *
+     * @param nanos the latency in nanoseconds; negative values count as 0
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        ++counts[bucket(nanos)];
+        ++count;
+        sum += nanos;
+        min = Math.min(min, nanos);
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * @return the number of recorded latencies
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return the lowest recorded latency, 0 if none
+     */
+    public synchronized long getMin() {
+        return (count == 0) ? 0 : min;
+    }
+
+    /**
+     * @return the highest recorded latency, 0 if none
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return the average latency, 0 if none
+     */
+    public synchronized long getMean() {
+        return (count == 0) ? 0 : sum / count;
+    }
+
+    /**
+     * @param percentile the percentile (0-100)
+     *
+     * @return the latency below or at which the given percentage of the
+     *         recorded latencies is (the upper bound of its bucket, within
+     *         min and max); 0 if none
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in 0-100");
+        }
+        if (count == 0) {
+            return 0;
+        }
+        if (percentile == 0) {
+            return min;
+        }
+
+        long rank = Math.max(1, (long)Math.ceil(percentile * count / 100));
+        long seen = 0;
+        for (int i = 0; i < counts.length; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(min, Math.min(max, upperBound(i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forgets all recorded latencies
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = sum = max = 0;
+        min = Long.MAX_VALUE;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(
+            "count: %d, min: %.3f ms, p50: %.3f ms, p90: %.3f ms, p99: %.3f ms, max: %.3f ms",
+            count, getMin()/1e6, getPercentile(50)/1e6, getPercentile(90)/1e6,
+            getPercentile(99)/1e6, max/1e6
+        );
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    //
+    // values below SUB have a bucket each; above, the bucket is given by
+    // the position of the highest bit and the SUB_BITS bits following it
+    //
+    private static int bucket(long value) {
+        if (value < SUB) {
+            return (int)value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int shift = msb - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) + (int)((value >>> shift) & (SUB - 1));
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long base = ((long)(SUB + (bucket & (SUB - 1)))) << shift;
+        return base + (1L << shift) - 1;
+    }
+}
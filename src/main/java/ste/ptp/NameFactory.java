@@ -20,7 +20,8 @@ package ste.ptp;
 /**
  * Supports use of objects using vendor extension codes.
  * The base class produces names only for standard PTP 
- * operations, responses, properties, events, and formats.
+ * operations, responses, properties, events, and formats,
+ * looking them up in the {@link CodeRegistry}.
  *
  * @version $Id: NameFactory.java,v 1.1 2001/04/12 23:13:00 dbrownell Exp $
  */
@@ -65,7 +66,7 @@ public class NameFactory
      */
     // bits 14:12 = 001
     public String getOpcodeString (int code)
-	{ return Command._getOpcodeString (code); }
+	{ return name (CodeRegistry.OPERATIONS, code); }
 
     /**
      * Maps response codes to string names.
@@ -74,7 +75,7 @@ public class NameFactory
      */
     // bits 14:12 = 010
     public String getResponseString (int code)
-	{ return Response._getResponseString (code); }
+	{ return name (CodeRegistry.RESPONSES, code); }
 
     /**
      * Maps object format codes to string names.
@@ -83,7 +84,7 @@ public class NameFactory
      */
     // bits 14:12 = 011
     public String getFormatString (int code)
-	{ return ObjectInfo._getFormatString (code); }
+	{ return name (CodeRegistry.FORMATS, code); }
 
     /**
      * Maps event codes to string names.
@@ -92,7 +93,7 @@ public class NameFactory
      */
     // bits 14:12 = 100
     public String getEventString (int code)
-	{ return Event._getEventString (code); }
+	{ return name (CodeRegistry.EVENTS, code); }
     
     /**
      * Maps property codes to string names.
@@ -101,8 +102,15 @@ public class NameFactory
      */
     // bits 14:12 = 101
     public String getPropertyName (int code)
-	{ return DevicePropDesc._getPropertyName (code); }
+	{ return name (CodeRegistry.PROPERTIES, code); }
 
+
+    private static String name (CodeRegistry registry, int code)
+    {
+	String	name = registry.get (code);
+
+	return (name != null) ? name : Container.getCodeString (code);
+    }
     
     // FIXME:  hooks for vendor-specific filesystem types.
 }
@@ -20,6 +20,7 @@ package ste.ptp;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.net.URLConnection;
+import java.util.Arrays;
 
 
 /**
@@ -31,6 +32,12 @@ import java.net.URLConnection;
  * devices could also support proprietary formats except for use
  * with thumbnail images.
  *
+ * <p> Objects info can be parsed eagerly, decoding all fields as soon as
+ * the data is received, or lazily: the raw dataset is then kept and each
+ * field is decoded when its getter is called, strings only the first time
+ * they are requested. Lazy parsing is cheaper when only a few fields (for
+ * example size and format) are needed for many objects.
+ *
  * @version $Id: ObjectInfo.java,v 1.13 2001/04/12 23:13:00 dbrownell Exp $
  * @author David Brownell
  */
@@ -62,7 +69,48 @@ public class ObjectInfo extends Data
 
     int		handle;
 
-    ObjectInfo (int h, NameFactory f) { super (f); handle = h; }
+    // fixed offsets of the fields, up to the first string
+    private static final int STORAGE_ID = HDR_LEN;
+    private static final int OBJECT_FORMAT = HDR_LEN + 4;
+    private static final int PROTECTION = HDR_LEN + 6;
+    private static final int COMPRESSED_SIZE = HDR_LEN + 8;
+    private static final int THUMB_FORMAT = HDR_LEN + 12;
+    private static final int THUMB_SIZE = HDR_LEN + 14;
+    private static final int THUMB_WIDTH = HDR_LEN + 18;
+    private static final int THUMB_HEIGHT = HDR_LEN + 22;
+    private static final int IMAGE_WIDTH = HDR_LEN + 26;
+    private static final int IMAGE_HEIGHT = HDR_LEN + 30;
+    private static final int BIT_DEPTH = HDR_LEN + 34;
+    private static final int PARENT = HDR_LEN + 38;
+    private static final int ASSOCIATION_TYPE = HDR_LEN + 42;
+    private static final int ASSOCIATION_DESC = HDR_LEN + 44;
+    private static final int SEQUENCE = HDR_LEN + 48;
+    private static final int STRINGS = HDR_LEN + 52;
+
+    // strings in order of appearance
+    private static final int FILENAME = 0;
+    private static final int CAPTURE_DATE = 1;
+    private static final int MODIFICATION_DATE = 2;
+    private static final int KEYWORDS = 3;
+
+    private final boolean	lazy;
+    private int			decoded;	// bit mask of decoded strings
+
+    ObjectInfo (int h, NameFactory f) { this (h, f, false); }
+
+    /**
+     * Creates an object info to be received from the device.
+     *
+     * @param h the object handle
+     * @param f the factory of names
+     * @param lazy true if fields shall be decoded on first access
+     */
+    ObjectInfo (int h, NameFactory f, boolean lazy)
+    {
+	super (f);
+	handle = h;
+	this.lazy = lazy;
+    }
 
     /**
      * Construct an ObjectInfo data packet using the object at the other
@@ -77,6 +125,7 @@ public class ObjectInfo extends Data
     public ObjectInfo (URLConnection conn, DeviceInfo devInfo, NameFactory f)
     {
 	super (false, new byte [1024], f);
+	lazy = false;
 
 	String		type = conn.getContentType ();
 
@@ -204,6 +253,15 @@ public class ObjectInfo extends Data
     {
 	super.parse ();
 
+	if (lazy) {
+	    // keep just the dataset; it may have been read in a larger buffer
+	    if (data.length > length)
+		data = Arrays.copyOf (data, length);
+	    decoded = 0;
+	    filename = captureDate = modificationDate = keywords = null;
+	    return;
+	}
+
 	storageId = nextS32 ();
 	objectFormatCode = nextU16 ();
 	protectionStatus = nextU16 ();
@@ -229,33 +287,153 @@ public class ObjectInfo extends Data
 	keywords = nextString ();
     }
 
+    /** Returns the handle of the object. */
+    public int getHandle ()
+	{ return handle; }
+
+    /** Returns the storage the object is in. */
+    public int getStorageId ()
+	{ return lazy ? getS32 (STORAGE_ID) : storageId; }
+
+    /** Returns the object format code. */
+    public int getObjectFormatCode ()
+	{ return lazy ? getU16 (OBJECT_FORMAT) : objectFormatCode; }
+
+    /** Returns the protection status: 0 r/w, 1 r/o. */
+    public int getProtectionStatus ()
+	{ return lazy ? getU16 (PROTECTION) : protectionStatus; }
+
+    /** Returns the size of the object (unsigned). */
+    public int getObjectCompressedSize ()
+	{ return lazy ? getS32 (COMPRESSED_SIZE) : objectCompressedSize; }
+
+    /** Returns the format of the thumbnail. */
+    public int getThumbFormat ()
+	{ return lazy ? getU16 (THUMB_FORMAT) : thumbFormat; }
+
+    /** Returns the size of the thumbnail (unsigned). */
+    public int getThumbCompressedSize ()
+	{ return lazy ? getS32 (THUMB_SIZE) : thumbCompressedSize; }
+
+    /** Returns the width of the thumbnail. */
+    public int getThumbPixWidth ()
+	{ return lazy ? getS32 (THUMB_WIDTH) : thumbPixWidth; }
+
+    /** Returns the height of the thumbnail. */
+    public int getThumbPixHeight ()
+	{ return lazy ? getS32 (THUMB_HEIGHT) : thumbPixHeight; }
+
+    /** Returns the width of the image. */
+    public int getImagePixWidth ()
+	{ return lazy ? getS32 (IMAGE_WIDTH) : imagePixWidth; }
+
+    /** Returns the height of the image. */
+    public int getImagePixHeight ()
+	{ return lazy ? getS32 (IMAGE_HEIGHT) : imagePixHeight; }
+
+    /** Returns the bit depth of the image. */
+    public int getImageBitDepth ()
+	{ return lazy ? getS32 (BIT_DEPTH) : imageBitDepth; }
+
+    /** Returns the handle of the parent object. */
+    public int getParentObject ()
+	{ return lazy ? getS32 (PARENT) : parentObject; }
+
+    /** Returns the association type. */
+    public int getAssociationType ()
+	{ return lazy ? getU16 (ASSOCIATION_TYPE) : associationType; }
+
+    /** Returns the association description. */
+    public int getAssociationDesc ()
+	{ return lazy ? getS32 (ASSOCIATION_DESC) : associationDesc; }
+
+    /** Returns the sequence number in ordered associations. */
+    public int getSequenceNumber ()
+	{ return lazy ? getS32 (SEQUENCE) : sequenceNumber; }
+
+    /** Returns the file name (sans path), or null. */
+    public String getFilename ()
+    {
+	if (lazy && (decoded & (1 << FILENAME)) == 0) {
+	    filename = stringAt (FILENAME);
+	    decoded |= 1 << FILENAME;
+	}
+	return filename;
+    }
+
+    /** Returns the capture date (DateTime string), or null. */
+    public String getCaptureDate ()
+    {
+	if (lazy && (decoded & (1 << CAPTURE_DATE)) == 0) {
+	    captureDate = stringAt (CAPTURE_DATE);
+	    decoded |= 1 << CAPTURE_DATE;
+	}
+	return captureDate;
+    }
+
+    /** Returns the modification date (DateTime string), or null. */
+    public String getModificationDate ()
+    {
+	if (lazy && (decoded & (1 << MODIFICATION_DATE)) == 0) {
+	    modificationDate = stringAt (MODIFICATION_DATE);
+	    decoded |= 1 << MODIFICATION_DATE;
+	}
+	return modificationDate;
+    }
+
+    /** Returns the keywords, or null. */
+    public String getKeywords ()
+    {
+	if (lazy && (decoded & (1 << KEYWORDS)) == 0) {
+	    keywords = stringAt (KEYWORDS);
+	    decoded |= 1 << KEYWORDS;
+	}
+	return keywords;
+    }
+
+    // decodes the i-th string of the dataset
+    private String stringAt (int i)
+    {
+	int	index = STRINGS;
+
+	while (i-- > 0)
+	    index += 1 + 2 * getU8 (index);
+
+	int	len = getU8 (index);
+
+	if (len == 0)
+	    return null;
+	// drop terminal null
+	return StringCodec.DEFAULT.decodeUTF16LE (data, index + 1, len - 1);
+    }
+
     void line (PrintStream out)
     {
-	if (filename != null) {
+	if (getFilename () != null) {
 	    // out.print ("Name: ");
-	    out.print (filename);
+	    out.print (getFilename ());
 	    out.print ("; ");
 	}
-	if (objectFormatCode == Association) {
+	if (getObjectFormatCode () == Association) {
 	    String		associationString;
 
-	    associationString = associationString (associationType);
+	    associationString = associationString (getAssociationType ());
 	    if (associationString != null)
 		out.print (associationString);
 	} else {
-	    out.print (objectCompressedSize);
+	    out.print (getObjectCompressedSize ());
 	    out.print (" bytes, ");
-	    out.print (factory.getFormatString (objectFormatCode));
-	    if (thumbFormat != 0) {
-		if (imagePixWidth != 0 && imagePixHeight != 0) {
+	    out.print (factory.getFormatString (getObjectFormatCode ()));
+	    if (getThumbFormat () != 0) {
+		if (getImagePixWidth () != 0 && getImagePixHeight () != 0) {
 		    out.print (" ");
-		    out.print (imagePixWidth);
+		    out.print (getImagePixWidth ());
 		    out.print ("x");
-		    out.print (imagePixHeight);
+		    out.print (getImagePixHeight ());
 		}
-		if (imageBitDepth != 0) {
+		if (getImageBitDepth () != 0) {
 		    out.print (", ");
-		    out.print (imageBitDepth);
+		    out.print (getImageBitDepth ());
 		    out.print (" bits");
 		}
 	    }
@@ -268,82 +446,82 @@ public class ObjectInfo extends Data
 	super.dump (out);
 	out.println ("ObjectInfo:");
 
-	if (storageId != 0) {
+	if (getStorageId () != 0) {
 	    out.print ("StorageID: 0x");
-	    out.print (Integer.toHexString (storageId));
-	    switch (protectionStatus) {
+	    out.print (Integer.toHexString (getStorageId ()));
+	    switch (getProtectionStatus ()) {
 		case 0:	out.println (", unprotected"); break;
 		case 1:	out.println (", read-only"); break;
 		default:
 		    out.print (", reserved protectionStatus 0x");
-		    out.println (Integer.toHexString (protectionStatus));
+		    out.println (Integer.toHexString (getProtectionStatus ()));
 		    break;
 	    }
 	}
 
-	if (parentObject != 0)
-	    out.println ("Parent: 0x" + Integer.toHexString (parentObject));
-	if (filename != null)
-	    out.println ("Filename " + filename);
-	if (sequenceNumber != 0) {
+	if (getParentObject () != 0)
+	    out.println ("Parent: 0x" + Integer.toHexString (getParentObject ()));
+	if (getFilename () != null)
+	    out.println ("Filename " + getFilename ());
+	if (getSequenceNumber () != 0) {
 	    out.print ("Sequence = ");
-	    out.print (sequenceNumber);
+	    out.print (getSequenceNumber ());
 	}
 
 	// images must have thumbnails, except for sendObjectInfo
-	if (thumbFormat != 0) {
+	if (getThumbFormat () != 0) {
 	    out.print ("Image format: ");
-	    out.print (factory.getFormatString (objectFormatCode));
+	    out.print (factory.getFormatString (getObjectFormatCode ()));
 	    out.print (", size ");
-	    out.print (objectCompressedSize);
+	    out.print (getObjectCompressedSize ());
 	    out.print (", width ");
-	    out.print (imagePixWidth);
+	    out.print (getImagePixWidth ());
 	    out.print (", height ");
-	    out.print (imagePixHeight);
+	    out.print (getImagePixHeight ());
 	    out.print (", depth ");
-	    out.println (imageBitDepth);
+	    out.println (getImageBitDepth ());
 
 	    out.print ("Thumbnail format: ");
-	    out.print (factory.getFormatString (thumbFormat));
+	    out.print (factory.getFormatString (getThumbFormat ()));
 	    out.print (", size ");
-	    out.print (thumbCompressedSize);
+	    out.print (getThumbCompressedSize ());
 	    out.print (", width ");
-	    out.print (thumbPixWidth);
+	    out.print (getThumbPixWidth ());
 	    out.print (", height ");
-	    out.print (thumbPixHeight);
+	    out.print (getThumbPixHeight ());
 	    out.print (", depth ");
-	    out.println (imageBitDepth);
+	    out.println (getImageBitDepth ());
 	} else {
 	    out.print ("Object format: ");
-	    out.print (factory.getFormatString (objectFormatCode));
+	    out.print (factory.getFormatString (getObjectFormatCode ()));
 	    out.print (", size ");
-	    out.println (objectCompressedSize);
+	    out.println (getObjectCompressedSize ());
 
-	    if (objectFormatCode == Association) {
+	    if (getObjectFormatCode () == Association) {
 		String		associationString;
 
-		associationString = associationString (associationType);
+		associationString = associationString (getAssociationType ());
 		if (associationString != null) {
 		    out.print ("Association type: ");
 		    out.print (associationString);
-		    if (associationDesc != 0) {
+		    if (getAssociationDesc () != 0) {
 			// for albums:  reserved for future use
 			// for time sequences:  playback delta (millisec)
 			// for 2DPanorama:  row count
 			out.print (", desc 0x");
-			out.print (Integer.toHexString (associationDesc));
+			out.print (Integer.toHexString (getAssociationDesc ()));
 		    }
 		    out.println ();
 		}
 	    }
 	}
 
-	if (captureDate != null)
-	    out.println ("capture date: " + captureDate);
-	if (modificationDate != null)
-	    out.println ("modification date: " + modificationDate);
-	if (keywords != null)
-	    out.println ("keywords: " + keywords);
+	if (getCaptureDate () != null)
+	    out.println ("capture date: " + getCaptureDate ());
+	if (getModificationDate () != null)
+	    out.println ("modification date: " + getModificationDate ());
+	if (getKeywords () != null)
+	    out.println ("keywords: " + getKeywords ());
     }
 
 
@@ -428,7 +606,7 @@ public class ObjectInfo extends Data
      */
     public boolean isImage ()
     {
-	return (objectFormatCode & 0xf800) == 0x3800;
+	return (getObjectFormatCode () & 0xf800) == 0x3800;
     }
 
     /**
@@ -436,7 +614,7 @@ public class ObjectInfo extends Data
      */
     public boolean isVideo ()
     {
-	switch (objectFormatCode) {
+	switch (getObjectFormatCode ()) {
 	case AVI:
 	case MPEG:
 	case ASF:
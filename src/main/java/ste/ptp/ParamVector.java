@@ -58,6 +58,8 @@ public class ParamVector extends Container
     // allegedly some responses could have five params
     static final int MAX_LEN = 32;
 
+    static final int MAX_PARAMS = (MAX_LEN - MIN_LEN) / 4;
+
 
     // NOTE:  params in the spec are numbered from one, not zero
     int getParam (int i)
@@ -34,6 +34,25 @@ public class Response extends ParamVector
     Response (byte buf [], int len, NameFactory f)
 	{ super (buf, len, f); }
 
+    /**
+     * This creates an empty response, to be reused by a session to read
+     * the responses of its transactions.
+     */
+    Response (NameFactory f)
+	{ super (new byte [MAX_LEN], 0, f); }
+
+    /**
+     * Returns a copy of this response which does not share its buffer,
+     * so that it stays valid when this response is reused.
+     */
+    public Response copy ()
+    {
+	byte buf [] = new byte [length];
+
+	System.arraycopy (data, 0, buf, 0, length);
+	return new Response (buf, length, factory);
+    }
+
 
     /** ResponseCode: */
     public static final int Undefined = 0x2000;
@@ -31,9 +31,18 @@ class Session
     private boolean	active;
     private NameFactory	factory;
 
+    // reused by every transaction of this session
+    final Command	command = new Command (this);
+    final Response	response = new Response ((NameFactory) null);
+
     Session () { }
 
-    void setFactory (NameFactory f) { factory = f; }
+    void setFactory (NameFactory f)
+    {
+	factory = f;
+	command.factory = f;
+	response.factory = f;
+    }
     NameFactory getFactory () { return factory; }
 
     int getNextXID ()
@@ -0,0 +1,193 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Decodes the strings found in PTP data: UCS-2 (UTF-16LE) strings of standard
+ * datasets and PTP/IP packets, and the 8-bit strings of vendor extensions such
+ * as Canon EOS events.
+ *
+ * <p> Strings are decoded in bulk by the JDK. A codec can also intern what it
+ * decodes in a small, bounded cache: file names, folder names, dates and
+ * property names repeat a lot when listing objects or polling events, so
+ * that the same instance is returned instead of decoding a new string. The
+ * cache is direct-mapped: a slot is selected by the hash of the encoded bytes
+ * and a new string simply replaces the one in its slot. Lookups compare the
+ * encoded bytes with the cached string, so a hit does not allocate anything.
+ * Strings longer than a given limit are never cached.
+ *
+ * <p> A codec can be shared by multiple threads; the counters of cache hits
+ * and misses are not synchronized and are therefore approximate.
+ *
+ * @author ste
+ */
+public class StringCodec {
+
+    /**
+     * Default number of slots of the intern cache
+     */
+    public static final int DEFAULT_SLOTS = 512;
+
+    /**
+     * Default max length of the strings kept in the intern cache
+     */
+    public static final int DEFAULT_MAX_INTERNED = 64;
+
+    /**
+     * The codec used by the parsers of this library
+     */
+    public static final StringCodec DEFAULT =
+        new StringCodec(DEFAULT_SLOTS, DEFAULT_MAX_INTERNED);
+
+    private final String[] cache;
+    private final int mask;
+    private final int maxInterned;
+
+    private long hits, misses;
+
+    /**
+     * Creates a codec without intern cache
+     */
+    public StringCodec() {
+        cache = null;
+        mask = 0;
+        maxInterned = -1;
+    }
+
+    /**
+     * Creates a codec with an intern cache of the given size
+     *
+     * @param slots number of cached strings, rounded up to a power of 2
+     * @param maxInterned strings longer than this are not cached
+     */
+    public StringCodec(int slots, int maxInterned) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("slots must be greater than 0");
+        }
+        int size = Integer.highestOneBit(slots);
+        if (size < slots) {
+            size <<= 1;
+        }
+        cache = new String[size];
+        mask = size - 1;
+        this.maxInterned = maxInterned;
+    }
+
+    /**
+     * Decodes <code>nchars</code> UTF-16LE characters starting at
+     * <code>offset</code>; no terminator is expected.
+     *
+     * @param buf the encoded string
+     * @param offset offset of the first character
+     * @param nchars number of characters
+     *
+     * @return the decoded string
+     */
+    public String decodeUTF16LE(byte[] buf, int offset, int nchars) {
+        if (nchars <= maxInterned) {
+            int hash = 0;
+            for (int i = 0, j = offset; i < nchars; ++i, j += 2) {
+                hash = 31 * hash + utf16(buf, j);
+            }
+            String s = cache[slot(hash)];
+            if (s != null && s.length() == nchars && sameUTF16LE(s, buf, offset)) {
+                ++hits;
+                return s;
+            }
+            ++misses;
+            return cache[slot(hash)] = new String(buf, offset, 2 * nchars, StandardCharsets.UTF_16LE);
+        }
+
+        return new String(buf, offset, 2 * nchars, StandardCharsets.UTF_16LE);
+    }
+
+    /**
+     * Decodes <code>len</code> 8-bit (ISO-8859-1) characters starting at
+     * <code>offset</code>; no terminator is expected.
+     *
+     * @param buf the encoded string
+     * @param offset offset of the first character
+     * @param len number of characters
+     *
+     * @return the decoded string
+     */
+    public String decodeASCII(byte[] buf, int offset, int len) {
+        if (len <= maxInterned) {
+            int hash = 0;
+            for (int i = offset; i < offset + len; ++i) {
+                hash = 31 * hash + (buf[i] & 0xff);
+            }
+            String s = cache[slot(hash)];
+            if (s != null && s.length() == len && sameASCII(s, buf, offset)) {
+                ++hits;
+                return s;
+            }
+            ++misses;
+            return cache[slot(hash)] = new String(buf, offset, len, StandardCharsets.ISO_8859_1);
+        }
+
+        return new String(buf, offset, len, StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the number of strings found in the intern cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of cacheable strings not found in the intern cache
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    //
+    // the hash of the encoded bytes is the same as String.hashCode() of the
+    // decoded string; spread it as HashMap does
+    //
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static int utf16(byte[] buf, int i) {
+        return (buf[i] & 0xff) | ((buf[i + 1] & 0xff) << 8);
+    }
+
+    private static boolean sameUTF16LE(String s, byte[] buf, int offset) {
+        for (int i = 0, j = offset; i < s.length(); ++i, j += 2) {
+            if (s.charAt(i) != utf16(buf, j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean sameASCII(String s, byte[] buf, int offset) {
+        for (int i = 0; i < s.length(); ++i) {
+            if (s.charAt(i) != (buf[offset + i] & 0xff)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,420 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serves the thumbnails of the objects of a device from memory or from disk
+ * when possible, so that a thumbnail requested again and again (e.g. by a
+ * browsing UI) is transferred only once.
+ *
+ * <p> Thumbnails are read with {@link BaselineInitiator#getThumb(int)}
+ * (EosGetThumbEx on EOS cameras) and kept in memory in least recently used
+ * order, up to the given number of bytes. If a directory is given, the
+ * thumbnails evicted from memory are written there and read back when
+ * requested again, also by later sessions: the files are named after the
+ * serial number of the device and the handle, size and capture date of the
+ * object, so that a different object with the same handle is never
+ * mistaken for a cached one. Looking up the disk requires the object info
+ * (GetObjectInfo, much smaller than a thumbnail), unless it is given by the
+ * caller with {@link #get(int, ObjectInfo)}.
+ *
+ * <p> The cache can be used by any number of threads; concurrent requests
+ * of the same thumbnail are served by a single transfer.
+ *
+ * @author ste
+ */
+public class ThumbnailCache {
+
+    /**
+     * Default size of the memory cache in bytes
+     */
+    public static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+    private static final String SUFFIX = ".thumb";
+
+    private final BaselineInitiator initiator;
+    private final long maxBytes;
+    private final File dir;
+
+    //
+    // access ordered, guarded by itself
+    //
+    private final LinkedHashMap<Integer, Entry> memory = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    private final ConcurrentHashMap<Integer, CompletableFuture<Entry>> loading =
+        new ConcurrentHashMap<>();
+
+    //
+    // metrics, updated by any thread
+    //
+    private final AtomicLong requests = new AtomicLong(), memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong(), coalesced = new AtomicLong();
+    private final AtomicLong transfers = new AtomicLong(), spilled = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong(), bytesTransferred = new AtomicLong();
+
+    /**
+     * Creates a memory only cache of the default size
+     *
+     * @param initiator the device - NOT NULL
+     */
+    public ThumbnailCache(BaselineInitiator initiator) {
+        this(initiator, DEFAULT_MAX_BYTES, null);
+    }
+
+    /**
+     * @param initiator the device - NOT NULL
+     * @param maxBytes the size of the memory cache in bytes
+     * @param dir where thumbnails evicted from memory are kept; null for no
+     *        disk cache
+     */
+    public ThumbnailCache(BaselineInitiator initiator, long maxBytes, File dir) {
+        if (initiator == null) {
+            throw new IllegalArgumentException("initiator can not be null");
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("maxBytes can not be negative");
+        }
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("unable to create " + dir);
+        }
+        this.initiator = initiator;
+        this.maxBytes = maxBytes;
+        this.dir = dir;
+    }
+
+    /**
+     * Returns the thumbnail of the given object, reading the object info if
+     * needed to look up the disk cache
+     *
+     * @param handle the object handle
+     *
+     * @return the thumbnail; callers must not modify it
+     *
+     * @throws PTPException if the thumbnail is not cached and can not be
+     *         read from the device
+     */
+    public byte[] get(int handle) throws PTPException {
+        return get(handle, null);
+    }
+
+    /**
+     * Returns the thumbnail of the given object
+     *
+     * @param handle the object handle
+     * @param info the info of the object, if already known; null otherwise
+     *
+     * @return the thumbnail; callers must not modify it
+     *
+     * @throws PTPException if the thumbnail is not cached and can not be
+     *         read from the device
+     */
+    public byte[] get(int handle, ObjectInfo info) throws PTPException {
+        requests.incrementAndGet();
+
+        Entry e;
+        synchronized (memory) {
+            e = memory.get(handle);
+        }
+        if (e != null) {
+            memoryHits.incrementAndGet();
+            bytesSaved.addAndGet(e.thumb.length);
+            return e.thumb;
+        }
+
+        CompletableFuture<Entry> f = new CompletableFuture<>();
+        CompletableFuture<Entry> other = loading.putIfAbsent(handle, f);
+        if (other != null) {
+            try {
+                e = other.get();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                throw new PTPException("interrupted while waiting for the thumbnail", x);
+            } catch (ExecutionException x) {
+                Throwable cause = x.getCause();
+                if (cause instanceof PTPException) {
+                    throw (PTPException)cause;
+                }
+                throw new PTPException("unable to read the thumbnail", cause);
+            }
+            coalesced.incrementAndGet();
+            bytesSaved.addAndGet(e.thumb.length);
+            return e.thumb;
+        }
+
+        try {
+            //
+            // the thumbnail may have been loaded since the memory was
+            // looked up
+            //
+            synchronized (memory) {
+                e = memory.get(handle);
+            }
+            if (e != null) {
+                memoryHits.incrementAndGet();
+                bytesSaved.addAndGet(e.thumb.length);
+            } else {
+                e = load(handle, info);
+            }
+            f.complete(e);
+        } catch (PTPException | RuntimeException x) {
+            f.completeExceptionally(x);
+            throw x;
+        } finally {
+            loading.remove(handle, f);
+        }
+
+        return e.thumb;
+    }
+
+    /**
+     * Forgets the thumbnail of the given object, e.g. because the object has
+     * been deleted; the disk copy, if any, is left, as it can not be
+     * mistaken for the thumbnail of another object.
+     *
+     * @param handle the object handle
+     */
+    public void remove(int handle) {
+        synchronized (memory) {
+            Entry e = memory.remove(handle);
+            if (e != null) {
+                bytes -= e.thumb.length;
+            }
+        }
+    }
+
+    /**
+     * Forgets all thumbnails in memory, e.g. because a new session has been
+     * opened and the handles are no longer valid
+     */
+    public void clear() {
+        synchronized (memory) {
+            memory.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return the number of thumbnails requested
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of thumbnails served from memory
+     */
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    /**
+     * @return the number of thumbnails served from disk
+     */
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    /**
+     * @return the number of requests served by the transfer of a concurrent
+     *         request of the same thumbnail
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of thumbnails transferred from the device
+     */
+    public long getTransfers() {
+        return transfers.get();
+    }
+
+    /**
+     * @return the ratio of requests served without a transfer (0-1)
+     */
+    public double getHitRatio() {
+        long r = requests.get();
+        long hits = memoryHits.get() + diskHits.get() + coalesced.get();
+        return (r == 0) ? 0 : (double)hits / r;
+    }
+
+    /**
+     * @return the bytes that have not been transferred thanks to the cache
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * @return the bytes transferred from the device
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred.get();
+    }
+
+    /**
+     * @return the number of thumbnails written to disk
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * @return the bytes of the thumbnails in memory
+     */
+    public long getMemoryBytes() {
+        synchronized (memory) {
+            return bytes;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "requests: %d, hit ratio: %.1f%%, memory hits: %d, disk hits: %d, coalesced: %d, transfers: %d, bytes saved: %d",
+            requests.get(), 100 * getHitRatio(), memoryHits.get(), diskHits.get(),
+            coalesced.get(), transfers.get(), bytesSaved.get()
+        );
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private Entry load(int handle, ObjectInfo info) throws PTPException {
+        File file = null;
+        if (dir != null) {
+            if (info == null) {
+                info = initiator.getObjectInfo(handle);
+            }
+            file = new File(dir, fileName(handle, info));
+            byte[] thumb = read(file);
+            if (thumb != null) {
+                diskHits.incrementAndGet();
+                bytesSaved.addAndGet(thumb.length);
+                return put(handle, new Entry(thumb, file, true));
+            }
+        }
+
+        byte[] thumb = initiator.getThumb(handle);
+        transfers.incrementAndGet();
+        bytesTransferred.addAndGet(thumb.length);
+
+        return put(handle, new Entry(thumb, file, false));
+    }
+
+    private Entry put(int handle, Entry e) {
+        List<Entry> evicted = new ArrayList<>();
+        synchronized (memory) {
+            Entry old = memory.put(handle, e);
+            if (old != null) {
+                bytes -= old.thumb.length;
+            }
+            bytes += e.thumb.length;
+
+            Iterator<Entry> i = memory.values().iterator();
+            while (bytes > maxBytes && i.hasNext()) {
+                Entry lru = i.next();
+                i.remove();
+                bytes -= lru.thumb.length;
+                if (lru.file != null && !lru.onDisk) {
+                    evicted.add(lru);
+                }
+            }
+        }
+
+        //
+        // thumbnails are written outside the lock, so that the other
+        // requests are not slowed down by the disk
+        //
+        for (Entry lru: evicted) {
+            spill(lru);
+        }
+
+        return e;
+    }
+
+    private void spill(Entry e) {
+        try {
+            File tmp = new File(e.file.getPath() + ".tmp");
+            Files.write(tmp.toPath(), e.thumb);
+            Files.move(
+                tmp.toPath(), e.file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE
+            );
+            e.onDisk = true;
+            spilled.incrementAndGet();
+        } catch (IOException x) {
+            //
+            // the disk cache is just an optimization: the thumbnail will be
+            // transferred again
+            //
+        }
+    }
+
+    private static byte[] read(File file) {
+        try {
+            return file.isFile() ? Files.readAllBytes(file.toPath()) : null;
+        } catch (IOException x) {
+            return null;
+        }
+    }
+
+    private String fileName(int handle, ObjectInfo info) {
+        DeviceInfo device = initiator.info;
+        String serial = (device != null) ? device.getSerialNumber() : null;
+
+        return sanitize((serial != null) ? serial : "unknown")
+             + String.format("-%08x-%d-", handle, info.getObjectCompressedSize() & 0xFFFFFFFFL)
+             + sanitize(String.valueOf(info.getCaptureDate()))
+             + SUFFIX;
+    }
+
+    private static String sanitize(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); ++i) {
+            char c = s.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) && c < 0x80 ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    private static final class Entry {
+        final byte[] thumb;
+        final File file;
+        volatile boolean onDisk;
+
+        Entry(byte[] thumb, File file, boolean onDisk) {
+            this.thumb = thumb;
+            this.file = file;
+            this.onDisk = onDisk;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import ste.ptp.StringCodec;
+
+/**
+ * A reusable view of 8-bit characters in a byte array, used to pass strings
+ * found in the event data to visitors without decoding them.
+ *
+ * @author ste
+ */
+final class AsciiSequence implements CharSequence {
+
+    private byte[] buf;
+    private int offset;
+    private int length;
+
+    AsciiSequence set(byte[] buf, int offset, int length) {
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+
+        return this;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int i) {
+        if (i < 0 || i >= length) {
+            throw new IndexOutOfBoundsException("index " + i + " out of range (0-" + length + ")");
+        }
+        return (char)(buf[offset + i] & 0xff);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("invalid range " + start + "-" + end);
+        }
+        return new AsciiSequence().set(buf, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return StringCodec.DEFAULT.decodeASCII(buf, offset, length);
+    }
+}
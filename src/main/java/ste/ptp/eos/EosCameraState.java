@@ -0,0 +1,336 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The current values of the properties of an EOS camera, folded from the
+ * EosEventPropValueChanged events, so that they can be read (for example by
+ * a UI refreshing many times a second) without talking to the camera.
+ *
+ * <p> The values are kept in an immutable {@link Snapshot}, replaced (copy on
+ * write) every time a property changes: reading is lock free and a snapshot
+ * never changes once taken. Each change increases the version of the state;
+ * each property remembers the version it last changed at, so that a reader
+ * can cheaply find out what changed since its last look.
+ *
+ * <p> Picture style properties are not tracked, as they are not single
+ * values.
+ *
+ * <p> The state also keeps the values each property can be set to, as
+ * given by EosEventAvailListChanged, so that a value can be checked (or
+ * snapped to the nearest allowed one) before sending it to the camera.
+ * Only properties in the EOS range 0xD100-0xD1FF are considered.
+ *
+ * @author ste
+ */
+public class EosCameraState implements EosEventVisitor {
+
+    private static final int FIRST_PROPERTY = 0xD100;
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+
+    //
+    // sorted allowed values indexed by the lower byte of the property
+    //
+    private final AtomicReferenceArray<int[]> allowed =
+        new AtomicReferenceArray<>(0x100);
+
+    /**
+     * @return the current snapshot of the state
+     */
+    public Snapshot snapshot() {
+        return snapshot;
+    }
+
+    /**
+     * @return the current version
+     */
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * @param property the property code
+     * @param unknown what to return if the value of the property is not known
+     *
+     * @return the current value of the given property
+     */
+    public int get(int property, int unknown) {
+        return snapshot.get(property, unknown);
+    }
+
+    /**
+     * @param version a version
+     *
+     * @return true if any property changed after the given version
+     */
+    public boolean hasChangedSince(long version) {
+        return snapshot.version > version;
+    }
+
+    /**
+     * Sets the value of a property; if the value actually changes, a new
+     * snapshot with a new version is published.
+     *
+     * @param property the property code (not 0)
+     * @param value the new value
+     */
+    public synchronized void set(int property, int value) {
+        if (property == 0) {
+            throw new IllegalArgumentException("property can not be 0");
+        }
+        Snapshot s = snapshot;
+        int i = s.slot(property);
+        if (s.keys[i] == property && s.values[i] == value) {
+            return;
+        }
+        snapshot = s.with(property, value);
+    }
+
+    /**
+     * @param property the property code
+     *
+     * @return the values the given property can be set to, sorted, or null
+     *         if not known
+     */
+    public int[] getAllowedValues(int property) {
+        int[] values = allowedValues(property);
+        return (values == null) ? null : values.clone();
+    }
+
+    /**
+     * @param property the property code
+     * @param value a value
+     *
+     * @return true if the given property can be set to the given value or
+     *         the allowed values are not known
+     */
+    public boolean isAllowed(int property, int value) {
+        int[] values = allowedValues(property);
+        return (values == null) || Arrays.binarySearch(values, value) >= 0;
+    }
+
+    /**
+     * Returns the allowed value nearest to the given one, the lower one if
+     * two are equally near. EOS encodes aperture, shutter speed, ISO and
+     * exposure compensation with codes ordered as the values they stand
+     * for, so the nearest code is the nearest setting.
+     *
+     * @param property the property code
+     * @param value a value
+     *
+     * @return the nearest allowed value, or the given value if the allowed
+     *         values are not known
+     */
+    public int nearestAllowed(int property, int value) {
+        int[] values = allowedValues(property);
+        if (values == null || values.length == 0) {
+            return value;
+        }
+
+        int i = Arrays.binarySearch(values, value);
+        if (i >= 0) {
+            return value;
+        }
+        i = -i - 1;
+        if (i == 0) {
+            return values[0];
+        }
+        if (i == values.length) {
+            return values[i - 1];
+        }
+        long below = (long)value - values[i - 1], above = (long)values[i] - value;
+
+        return (above < below) ? values[i] : values[i - 1];
+    }
+
+    @Override
+    public void onPropValueChanged(int property, int value) {
+        //
+        // a malformed record must not abort the rest of the batch
+        //
+        if (property != 0) {
+            set(property, value);
+        }
+    }
+
+    @Override
+    public void onAvailListChanged(int property, int[] values, int count) {
+        if ((property & ~0xFF) != FIRST_PROPERTY) {
+            return;
+        }
+        int[] sorted = Arrays.copyOf(values, count);
+        Arrays.sort(sorted);
+
+        allowed.set(property & 0xFF, sorted);
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private int[] allowedValues(int property) {
+        return ((property & ~0xFF) == FIRST_PROPERTY)
+             ? allowed.get(property & 0xFF)
+             : null;
+    }
+
+    /**
+     * An immutable view of the camera state at a given version
+     */
+    public static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(new int[16], new int[16], new long[16], 0, 0);
+
+        private final int[] keys;
+        private final int[] values;
+        private final long[] versions;
+        private final int size;
+        private final long version;
+
+        private Snapshot(int[] keys, int[] values, long[] versions, int size, long version) {
+            this.keys = keys;
+            this.values = values;
+            this.versions = versions;
+            this.size = size;
+            this.version = version;
+        }
+
+        /**
+         * @return the version of this snapshot
+         */
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * @return the number of known properties
+         */
+        public int size() {
+            return size;
+        }
+
+        /**
+         * @param property the property code
+         *
+         * @return true if the value of the given property is known
+         */
+        public boolean contains(int property) {
+            return property != 0 && keys[slot(property)] == property;
+        }
+
+        /**
+         * @param property the property code
+         * @param unknown what to return if the value of the property is not known
+         *
+         * @return the value of the given property
+         */
+        public int get(int property, int unknown) {
+            int i = slot(property);
+            return (property != 0 && keys[i] == property) ? values[i] : unknown;
+        }
+
+        /**
+         * @param property the property code
+         *
+         * @return the version the given property last changed at, 0 if the
+         *         property is not known
+         */
+        public long getVersion(int property) {
+            int i = slot(property);
+            return (property != 0 && keys[i] == property) ? versions[i] : 0;
+        }
+
+        /**
+         * @return the known properties, sorted
+         */
+        public int[] getProperties() {
+            return changedSince(0);
+        }
+
+        /**
+         * @param version a version
+         *
+         * @return the properties changed after the given version, sorted
+         */
+        public int[] changedSince(long version) {
+            if (version >= this.version) {
+                return new int[0];
+            }
+            int[] changed = new int[size];
+            int n = 0;
+            for (int i = 0; i < keys.length; ++i) {
+                if (keys[i] != 0 && versions[i] > version) {
+                    changed[n++] = keys[i];
+                }
+            }
+            Arrays.sort(changed, 0, n);
+
+            return (n == changed.length) ? changed : Arrays.copyOf(changed, n);
+        }
+
+        // ----------------------------------------------------- Private methods
+
+        //
+        // the slot of the given property, or the empty slot where it would
+        // go; the table is never more than half full
+        //
+        private int slot(int property) {
+            int mask = keys.length - 1;
+            int i = ((property * 0x9E3779B1) >>> 16) & mask;
+            while (keys[i] != 0 && keys[i] != property) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private Snapshot with(int property, int value) {
+            long newVersion = version + 1;
+
+            if (keys[slot(property)] != property && 2 * (size + 1) > keys.length) {
+                //
+                // grow
+                //
+                Snapshot s = new Snapshot(
+                    new int[2 * keys.length], new int[2 * keys.length],
+                    new long[2 * keys.length], size, version
+                );
+                for (int j = 0; j < keys.length; ++j) {
+                    if (keys[j] != 0) {
+                        int i = s.slot(keys[j]);
+                        s.keys[i] = keys[j];
+                        s.values[i] = values[j];
+                        s.versions[i] = versions[j];
+                    }
+                }
+                return s.with(property, value);
+            }
+
+            int[] newKeys = keys.clone();
+            int[] newValues = values.clone();
+            long[] newVersions = versions.clone();
+            int i = slot(property);
+            int newSize = (keys[i] == property) ? size : size + 1;
+            newKeys[i] = property;
+            newValues[i] = value;
+            newVersions[i] = newVersion;
+
+            return new Snapshot(newKeys, newValues, newVersions, newSize, newVersion);
+        }
+    }
+}
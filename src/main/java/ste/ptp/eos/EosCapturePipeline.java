@@ -0,0 +1,417 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ste.ptp.Data;
+import ste.ptp.LatencyHistogram;
+import ste.ptp.PTPException;
+
+/**
+ * Takes bursts of pictures with a tethered EOS camera, overlapping the
+ * download of the pictures already taken with the next releases.
+ *
+ * <p> All USB traffic happens in the thread calling
+ * {@link #burst(int, long, TimeUnit)}, which runs a simple loop: when a
+ * release is due the shutter is released; otherwise the new objects
+ * notified by the camera (EosEventObjectAddedEx) are queued as soon as they
+ * are seen and the queue is drained one chunk (EosGetPartialObject) at a
+ * time, so that a release never waits for more than a chunk. Each object
+ * is written to an {@link EosObjectSink} and acknowledged with
+ * EosTransferComplete as soon as it is complete, so that the camera can
+ * free its buffer.
+ *
+ * <p> For each object the time from the release of the shutter to the last
+ * byte written to the sink is recorded in a {@link LatencyHistogram}.
+ * The objects of a shot (e.g. the RAW and the JPEG of a RAW+JPEG picture)
+ * share their folder and base name: the first object of a shot is
+ * associated to the oldest release that has no objects yet and the others
+ * to the same release. A burst ends when each release produced
+ * {@link #setObjectsPerShot(int)} objects (one by default, so it must be
+ * set to 2 for RAW+JPEG, otherwise the last JPEG may be left on the
+ * camera). A more detailed breakdown of the latency can be obtained with
+ * {@link #setTrace(EosCaptureTrace)}.
+ *
+ * @author ste
+ */
+public class EosCapturePipeline implements EosEventVisitor {
+
+    /**
+     * Default size of the partial object reads
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    //
+    // association objects (folders) are notified too, but there is nothing
+    // to download
+    //
+    private static final int ASSOCIATION = 0x3001;
+
+    private final EosInitiator camera;
+    private final EosObjectSink sink;
+    private final int chunkSize;
+    private final Data chunk;
+
+    private long pollInterval = TimeUnit.MILLISECONDS.toNanos(10);
+    private long objectTimeout = TimeUnit.SECONDS.toNanos(30);
+    private int objectsPerShot = 1;
+
+    private final ArrayDeque<PendingObject> queue = new ArrayDeque<>();
+    private final List<Shot> shots = new ArrayList<>();
+    private final ArrayDeque<Shot> pendingShots = new ArrayDeque<>();
+    private boolean draining;
+    private EosCaptureTrace trace;
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private volatile long frames, bytes;
+    private volatile long elapsed, burstFrames;
+
+    /**
+     * @param camera the camera - NOT NULL
+     * @param sink where objects are written - NOT NULL
+     */
+    public EosCapturePipeline(EosInitiator camera, EosObjectSink sink) {
+        this(camera, sink, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param camera the camera - NOT NULL
+     * @param sink where objects are written - NOT NULL
+     * @param chunkSize size of the partial object reads
+     */
+    public EosCapturePipeline(EosInitiator camera, EosObjectSink sink, int chunkSize) {
+        if (camera == null) {
+            throw new IllegalArgumentException("camera can not be null");
+        }
+        if (sink == null) {
+            throw new IllegalArgumentException("sink can not be null");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        this.camera = camera;
+        this.sink = sink;
+        this.chunkSize = chunkSize;
+        this.chunk = new Data(true, new byte[12 + chunkSize], camera);
+    }
+
+    /**
+     * @param interval how often the camera is polled for new objects
+     * @param unit the unit of interval - NOT NULL
+     */
+    public void setPollInterval(long interval, TimeUnit unit) {
+        pollInterval = unit.toNanos(interval);
+    }
+
+    /**
+     * @param timeout how long to wait for the objects of the last releases
+     * @param unit the unit of timeout - NOT NULL
+     */
+    public void setObjectTimeout(long timeout, TimeUnit unit) {
+        objectTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param objectsPerShot how many objects each release creates (e.g. 2
+     *        for RAW+JPEG)
+     */
+    public void setObjectsPerShot(int objectsPerShot) {
+        if (objectsPerShot <= 0) {
+            throw new IllegalArgumentException("objectsPerShot must be greater than 0");
+        }
+        this.objectsPerShot = objectsPerShot;
+    }
+
+    /**
+     * @param trace where to trace the phases of the captures; null (the
+     *        default) for no tracing
+     */
+    public void setTrace(EosCaptureTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Takes the given number of shots, one every <code>interval</code> (or
+     * as soon as possible after), and downloads all the objects they create.
+     * It returns when all objects have been written to the sink.
+     *
+     * @param shots the number of shots
+     * @param interval the interval between releases (0 for as fast as
+     *        possible)
+     * @param unit the unit of interval - NOT NULL
+     *
+     * @throws PTPException in case of errors or if the objects do not arrive
+     *         within the object timeout
+     * @throws IOException if the sink fails
+     */
+    public void burst(int shots, long interval, TimeUnit unit)
+    throws PTPException, IOException {
+        long intervalNanos = unit.toNanos(interval);
+
+        camera.setRemoteMode(1);
+        camera.setEventMode(1);
+
+        //
+        // the camera's event poller would steal the objects notifications
+        //
+        EosEventPoller poller = camera.getEventPoller();
+        boolean paused = poller.isRunning() && !poller.isPaused();
+        if (paused) {
+            poller.pause();
+        }
+        try {
+            shoot(shots, intervalNanos);
+        } finally {
+            if (paused) {
+                poller.resume();
+            }
+        }
+    }
+
+    /**
+     * @return the shutter to sink latencies of the downloaded objects
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * @return the number of objects downloaded
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of bytes downloaded
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return the number of objects downloaded per minute in the last burst
+     */
+    public double getFramesPerMinute() {
+        return (elapsed <= 0) ? 0 : burstFrames * 60e9 / elapsed;
+    }
+
+    @Override
+    public void onObjectAdded(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {
+        if (draining || format == ASSOCIATION) {
+            return;
+        }
+
+        Shot shot = shotOf(parentId, name);
+        queue.add(new PendingObject(objectId, name.toString(), size, shot.released));
+        if (trace != null) {
+            trace.objectAdded(objectId, size, shot.released, System.nanoTime());
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void shoot(int count, long intervalNanos)
+    throws PTPException, IOException {
+        //
+        // objects created before the burst are not ours
+        //
+        draining = true;
+        try {
+            camera.getEvents(this);
+        } finally {
+            draining = false;
+        }
+        queue.clear();
+        shots.clear();
+        pendingShots.clear();
+
+        long start = System.nanoTime(), startFrames = frames;
+        long nextRelease = start, lastPoll = start, lastProgress = start;
+        int released = 0;
+        PendingObject current = null;
+        long offset = 0;
+
+        for (;;) {
+            long now = System.nanoTime();
+
+            if (released < count && now >= nextRelease) {
+                camera.remoteRelease();
+                Shot shot = new Shot(now);
+                shots.add(shot);
+                pendingShots.add(shot);
+                if (trace != null) {
+                    trace.release(now);
+                }
+                ++released;
+                nextRelease = now + intervalNanos;
+                lastProgress = now;
+                continue;
+            }
+
+            boolean idle = (current == null && queue.isEmpty());
+            if (idle || now - lastPoll >= pollInterval) {
+                if (camera.getEvents(this) > 0) {
+                    lastProgress = now;
+                }
+                lastPoll = now;
+                idle = (current == null && queue.isEmpty());
+            }
+
+            if (current == null && !queue.isEmpty()) {
+                current = queue.poll();
+                offset = 0;
+                sink.begin(current.objectId, current.name, current.size);
+            }
+
+            if (current != null) {
+                if (offset < current.size) {
+                    long requested = System.nanoTime();
+                    int len = camera.getObjectChunk(
+                        current.objectId, offset, current.size, chunkSize, chunk
+                    );
+                    if (trace != null) {
+                        trace.chunk(current.objectId, len, requested, System.nanoTime());
+                    }
+                    sink.write(chunk.getData(), 12, len);
+                    offset += len;
+                    bytes += len;
+                }
+                if (offset >= current.size) {
+                    sink.end(current.objectId);
+                    long written = System.nanoTime();
+                    camera.transferComplete(current.objectId);
+                    latency.record(written - current.released);
+                    if (trace != null) {
+                        trace.written(current.objectId, written);
+                        trace.transferComplete(current.objectId, System.nanoTime());
+                    }
+                    ++frames;
+                    current = null;
+                }
+                lastProgress = System.nanoTime();
+                continue;
+            }
+
+            if (idle && released == count && pendingShots.isEmpty()) {
+                //
+                // all releases produced their objects and there is nothing
+                // left to download
+                //
+                break;
+            }
+            if (now - lastProgress > objectTimeout) {
+                int missing = 0;
+                for (Shot shot: pendingShots) {
+                    missing += objectsPerShot - shot.objects;
+                }
+                throw new PTPException(String.format(
+                    "%d objects not received in %d ms",
+                    missing, TimeUnit.NANOSECONDS.toMillis(objectTimeout)
+                ));
+            }
+
+            //
+            // nothing to do until the next release or poll
+            //
+            long wait = lastPoll + pollInterval - now;
+            if (released < count) {
+                wait = Math.min(wait, nextRelease - now);
+            }
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+
+        elapsed = System.nanoTime() - start;
+        burstFrames = frames - startFrames;
+    }
+
+    //
+    // the objects of a shot share folder and base name; an object of an
+    // unknown shot belongs to the oldest release without objects, or to the
+    // last release if there is none (the camera created more objects than
+    // expected)
+    //
+    private Shot shotOf(int parentId, CharSequence name) {
+        String key = parentId + "/" + baseName(name);
+
+        Shot shot = null;
+        for (int i = shots.size() - 1; i >= 0 && shot == null; --i) {
+            if (key.equals(shots.get(i).key)) {
+                shot = shots.get(i);
+            }
+        }
+        if (shot == null) {
+            for (Shot s: pendingShots) {
+                if (s.key == null) {
+                    shot = s;
+                    shot.key = key;
+                    break;
+                }
+            }
+        }
+        if (shot == null) {
+            shot = shots.isEmpty() ? new Shot(System.nanoTime()) : shots.get(shots.size() - 1);
+        }
+
+        if (++shot.objects >= objectsPerShot) {
+            pendingShots.remove(shot);
+        }
+
+        return shot;
+    }
+
+    private static String baseName(CharSequence name) {
+        String s = name.toString();
+        int dot = s.lastIndexOf('.');
+
+        return (dot < 0) ? s : s.substring(0, dot);
+    }
+
+    private static final class Shot {
+        final long released;
+        String key;
+        int objects;
+
+        Shot(long released) {
+            this.released = released;
+        }
+    }
+
+    private static final class PendingObject {
+        final int objectId;
+        final String name;
+        final long size;
+        final long released;
+
+        PendingObject(int objectId, String name, long size, long released) {
+            this.objectId = objectId;
+            this.name = name;
+            this.size = size;
+            this.released = released;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ste.ptp.LatencyHistogram;
+import ste.ptp.PTPException;
+
+/**
+ * Releases the shutter at precise times, for timelapses and long (bulb)
+ * exposures. Shots are planned against {@link System#nanoTime()} at fixed
+ * offsets from the start, so that errors do not accumulate over thousands
+ * of frames (a late shot does not delay the following ones); the thread
+ * sleeps until shortly before each deadline and then spins, which keeps the
+ * error within microseconds instead of the milliseconds of a sleep.
+ *
+ * <p> Bulb exposures are opened with EosBulbStart and closed with
+ * EosBulbEnd after the given duration, which can change from shot to shot
+ * along a linear ramp (e.g. for day to night timelapses).
+ *
+ * <p> While shooting, the event poller of the camera, if running, is paused
+ * and the events are drained by the scheduler itself, only when the next
+ * deadline is far enough, so that a poll never delays a release.
+ *
+ * <p> The difference between the planned and the actual time of each
+ * release is recorded in {@link #getTimingError()}, the one of the end of
+ * each bulb exposure in {@link #getExposureError()}.
+ *
+ * @author ste
+ */
+public class EosCaptureScheduler {
+
+    /**
+     * Default time spent spinning before each deadline, in nanoseconds
+     */
+    public static final long DEFAULT_SPIN = TimeUnit.MILLISECONDS.toNanos(2);
+
+    //
+    // events are drained at most this often, and only if the next deadline
+    // is farther than twice the longest drain seen so far (initially this
+    // estimate)
+    //
+    private static final long DRAIN_PERIOD = TimeUnit.MILLISECONDS.toNanos(20);
+    private static final long DRAIN_ESTIMATE = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final EosEventVisitor IGNORE = new EosEventVisitor() {};
+
+    private final EosInitiator camera;
+
+    private long spin = DEFAULT_SPIN;
+    private boolean drainEvents = true;
+    private EosEventVisitor visitor = IGNORE;
+
+    private final LatencyHistogram timingError = new LatencyHistogram();
+    private final LatencyHistogram exposureError = new LatencyHistogram();
+
+    private volatile boolean cancelled;
+    private volatile long shots, late, drains;
+    private long maxDrain, lastDrain;
+
+    /**
+     * @param camera the camera - NOT NULL
+     */
+    public EosCaptureScheduler(EosInitiator camera) {
+        if (camera == null) {
+            throw new IllegalArgumentException("camera can not be null");
+        }
+        this.camera = camera;
+    }
+
+    /**
+     * @param spin how long to spin before each deadline
+     * @param unit the unit of spin - NOT NULL
+     */
+    public void setSpin(long spin, TimeUnit unit) {
+        if (spin < 0) {
+            throw new IllegalArgumentException("spin can not be negative");
+        }
+        this.spin = unit.toNanos(spin);
+    }
+
+    /**
+     * @param drainEvents true to drain the events between shots (default)
+     */
+    public void setDrainEvents(boolean drainEvents) {
+        this.drainEvents = drainEvents;
+    }
+
+    /**
+     * @param visitor the visitor receiving the events drained between shots
+     *        (they always update the camera state) - NOT NULL
+     */
+    public void setEventVisitor(EosEventVisitor visitor) {
+        if (visitor == null) {
+            throw new IllegalArgumentException("visitor can not be null");
+        }
+        this.visitor = visitor;
+    }
+
+    /**
+     * Takes the given number of shots, one every interval, starting now
+     *
+     * @param shots the number of shots
+     * @param interval the time between two shots
+     * @param unit the unit of interval - NOT NULL
+     *
+     * @throws PTPException in case of errors
+     */
+    public void timelapse(int shots, long interval, TimeUnit unit)
+    throws PTPException {
+        run(shots, interval, 0, 0, unit);
+    }
+
+    /**
+     * Takes the given number of bulb exposures, one every interval,
+     * starting now
+     *
+     * @param shots the number of shots
+     * @param exposure the exposure time - shorter than the interval
+     * @param interval the time between the start of two shots
+     * @param unit the unit of exposure and interval - NOT NULL
+     *
+     * @throws PTPException in case of errors
+     */
+    public void bulb(int shots, long exposure, long interval, TimeUnit unit)
+    throws PTPException {
+        run(shots, interval, exposure, exposure, unit);
+    }
+
+    /**
+     * Takes the given number of bulb exposures, one every interval,
+     * starting now, with the exposure time changing linearly from the first
+     * to the last shot
+     *
+     * @param shots the number of shots
+     * @param from the exposure time of the first shot
+     * @param to the exposure time of the last shot
+     * @param interval the time between the start of two shots - longer
+     *        than the exposures
+     * @param unit the unit of the times - NOT NULL
+     *
+     * @throws PTPException in case of errors
+     */
+    public void ramp(int shots, long from, long to, long interval, TimeUnit unit)
+    throws PTPException {
+        run(shots, interval, from, to, unit);
+    }
+
+    /**
+     * Stops the running sequence after the current shot; a bulb exposure in
+     * progress is completed.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @return the error of each release in nanoseconds
+     */
+    public LatencyHistogram getTimingError() {
+        return timingError;
+    }
+
+    /**
+     * @return the error of the end of each bulb exposure in nanoseconds
+     */
+    public LatencyHistogram getExposureError() {
+        return exposureError;
+    }
+
+    /**
+     * @return the number of shots taken
+     */
+    public long getShots() {
+        return shots;
+    }
+
+    /**
+     * @return the number of shots released more than the spin time late
+     */
+    public long getLate() {
+        return late;
+    }
+
+    /**
+     * @return how many times the events have been drained between shots
+     */
+    public long getDrains() {
+        return drains;
+    }
+
+    /**
+     * @param shot the shot, from 0
+     * @param shots the number of shots
+     * @param from the exposure of the first shot
+     * @param to the exposure of the last shot
+     *
+     * @return the exposure of the given shot of a linear ramp
+     */
+    static long exposure(int shot, int shots, long from, long to) {
+        return (shots <= 1) ? from : from + (to - from) * shot / (shots - 1);
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void run(int shots, long interval, long from, long to, TimeUnit unit)
+    throws PTPException {
+        if (shots <= 0) {
+            throw new IllegalArgumentException("shots must be greater than 0");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be greater than 0");
+        }
+        if (from < 0 || to < 0) {
+            throw new IllegalArgumentException("exposure can not be negative");
+        }
+        if (Math.max(from, to) >= interval) {
+            throw new IllegalArgumentException("exposure must be shorter than the interval");
+        }
+        interval = unit.toNanos(interval);
+        from = unit.toNanos(from);
+        to = unit.toNanos(to);
+
+        cancelled = false;
+        if (!camera.isArmed()) {
+            camera.arm();
+        }
+
+        EosEventPoller poller = camera.getEventPoller();
+        boolean paused = poller.isRunning() && !poller.isPaused();
+        if (paused) {
+            poller.pause();
+        }
+        try {
+            maxDrain = DRAIN_ESTIMATE;
+            lastDrain = System.nanoTime();
+            long start = lastDrain;
+            for (int i = 0; i < shots && !cancelled; ++i) {
+                long deadline = start + i * interval;
+                long exposure = exposure(i, shots, from, to);
+
+                waitUntil(deadline);
+                long t = System.nanoTime();
+                if (exposure > 0) {
+                    camera.bulbStart();
+                } else {
+                    camera.trigger();
+                }
+                error(timingError, t - deadline);
+                ++this.shots;
+
+                if (exposure > 0) {
+                    //
+                    // the exposure lasts from the actual release; the
+                    // shutter is closed even if draining the events fails
+                    //
+                    long end = t + exposure;
+                    try {
+                        waitUntil(end);
+                    } finally {
+                        exposureError.record(System.nanoTime() - end);
+                        camera.bulbEnd();
+                    }
+                }
+            }
+        } finally {
+            if (paused) {
+                poller.resume();
+            }
+        }
+    }
+
+    private void error(LatencyHistogram h, long error) {
+        h.record(error);
+        if (error > spin) {
+            ++late;
+        }
+    }
+
+    //
+    // sleeps (or drains the events) until the spin phase, then spins
+    //
+    private void waitUntil(long deadline) throws PTPException {
+        for (;;) {
+            long now = System.nanoTime();
+            long left = deadline - now;
+            if (left <= spin) {
+                break;
+            }
+            if (drainEvents) {
+                if (now - lastDrain >= DRAIN_PERIOD && left > 2 * maxDrain + spin) {
+                    camera.getEvents(visitor);
+                    lastDrain = System.nanoTime();
+                    maxDrain = Math.max(maxDrain, lastDrain - now);
+                    ++drains;
+                    continue;
+                }
+                LockSupport.parkNanos(Math.min(left - spin, DRAIN_PERIOD));
+            } else {
+                LockSupport.parkNanos(left - spin);
+            }
+        }
+        while (System.nanoTime() - deadline < 0) {
+            Thread.onSpinWait();
+        }
+    }
+}
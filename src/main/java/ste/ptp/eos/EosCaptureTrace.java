@@ -0,0 +1,371 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import ste.ptp.LatencyHistogram;
+
+/**
+ * Traces where the time goes between the release of the shutter and the
+ * object being on disk. The capture loops (e.g. {@link EosCapturePipeline})
+ * report each phase of a capture as it happens: the release, the
+ * notification of the new object (EosEventObjectAddedEx), each chunk read
+ * with EosGetPartialObject, EosTransferComplete and the end of the write to
+ * the sink. The capture loop tells the release each object belongs to.
+ *
+ * <p> For each object the following are recorded in
+ * {@link LatencyHistogram}s: the time from the release to the notification,
+ * from the notification to the first chunk received, from the release to
+ * the end of the write and the transfer time per MiB, from which
+ * {@link #getThroughput(double)} is computed.
+ *
+ * <p> Phases are also kept in a ring of the given capacity, overwriting the
+ * oldest ones when full, that can be saved with {@link #dump(OutputStream)}
+ * for offline analysis. The dump is big endian: the magic number
+ * <code>0x454F5354</code> ("EOST"), the version (16 bits), the number of
+ * records (32 bits) and then the records, of {@link #RECORD_SIZE} bytes
+ * each, oldest first:
+ *
+ * <pre>
+ * phase     8 bits  (RELEASE, OBJECT_ADDED, CHUNK, TRANSFER_COMPLETE, WRITTEN)
+ * object   32 bits  (0 for RELEASE)
+ * time     64 bits  (nanoseconds since the first record)
+ * value    64 bits  (RELEASE: shot number, OBJECT_ADDED: object size,
+ *                    CHUNK: chunk length, WRITTEN: the bytes read,
+ *                    otherwise 0)
+ * </pre>
+ *
+ * No memory is allocated while tracing. The methods can be called by
+ * different threads (e.g. the download thread of {@link EosFocusStack}).
+ *
+ * @author ste
+ */
+public class EosCaptureTrace {
+
+    //
+    // the phases of a capture, as written in the dumps
+    //
+    public static final int RELEASE = 1;
+    public static final int OBJECT_ADDED = 2;
+    public static final int CHUNK = 3;
+    public static final int TRANSFER_COMPLETE = 4;
+    public static final int WRITTEN = 5;
+
+    /**
+     * Magic number of the dumps
+     */
+    public static final int MAGIC = 0x454F5354;
+
+    /**
+     * Version of the dumps
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Size in bytes of a record of the dumps
+     */
+    public static final int RECORD_SIZE = 1 + 4 + 8 + 8;
+
+    /**
+     * Default number of phases kept
+     */
+    public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+    //
+    // objects being downloaded; when full the oldest entries are forgotten
+    //
+    private static final int OBJECTS = 32;
+    private static final long MIB = 1024 * 1024;
+
+    private final byte[] phases;
+    private final int[] objects;
+    private final long[] times, values;
+    private long next;
+
+    private long shots;
+
+    private final int[] oid = new int[OBJECTS];
+    private final long[] released = new long[OBJECTS], added = new long[OBJECTS];
+    private final long[] transferStart = new long[OBJECTS], firstByte = new long[OBJECTS];
+    private final long[] lastByte = new long[OBJECTS], bytes = new long[OBJECTS];
+    private final boolean[] used = new boolean[OBJECTS];
+    private int nextSlot;
+
+    private final LatencyHistogram releaseToEvent = new LatencyHistogram();
+    private final LatencyHistogram eventToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram shutterToDisk = new LatencyHistogram();
+    private final LatencyHistogram transferPerMiB = new LatencyHistogram();
+
+    public EosCaptureTrace() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many phases to keep for {@link #dump(OutputStream)}
+     */
+    public EosCaptureTrace(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+        phases = new byte[capacity];
+        objects = new int[capacity];
+        times = new long[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * The shutter has been released
+     *
+     * @param time when, as given by <code>System.nanoTime()</code>
+     */
+    public synchronized void release(long time) {
+        record(RELEASE, 0, time, ++shots);
+    }
+
+    /**
+     * The camera notified a new object
+     *
+     * @param objectId the object handle
+     * @param size the size of the object
+     * @param release when the shutter that created the object was released,
+     *        0 if not known
+     * @param time when, as given by <code>System.nanoTime()</code>
+     */
+    public synchronized void objectAdded(int objectId, long size, long release, long time) {
+        int i = slot(objectId, true);
+        released[i] = release;
+        added[i] = time;
+        transferStart[i] = firstByte[i] = lastByte[i] = bytes[i] = 0;
+        if (release != 0) {
+            releaseToEvent.record(time - release);
+        }
+        record(OBJECT_ADDED, objectId, time, size);
+    }
+
+    /**
+     * A chunk of an object has been read
+     *
+     * @param objectId the object handle
+     * @param length the length of the chunk
+     * @param start when the chunk was requested
+     * @param end when the chunk was received
+     */
+    public synchronized void chunk(int objectId, int length, long start, long end) {
+        int i = slot(objectId, false);
+        if (i >= 0) {
+            if (transferStart[i] == 0) {
+                transferStart[i] = start;
+                firstByte[i] = end;
+                eventToFirstByte.record(end - added[i]);
+            }
+            lastByte[i] = end;
+            bytes[i] += length;
+        }
+        record(CHUNK, objectId, end, length);
+    }
+
+    /**
+     * EosTransferComplete has been sent for an object
+     *
+     * @param objectId the object handle
+     * @param time when, as given by <code>System.nanoTime()</code>
+     */
+    public synchronized void transferComplete(int objectId, long time) {
+        record(TRANSFER_COMPLETE, objectId, time, 0);
+    }
+
+    /**
+     * An object has been completely written to the sink; this ends the
+     * trace of the object
+     *
+     * @param objectId the object handle
+     * @param time when, as given by <code>System.nanoTime()</code>
+     */
+    public synchronized void written(int objectId, long time) {
+        int i = slot(objectId, false);
+        if (i < 0) {
+            record(WRITTEN, objectId, time, 0);
+            return;
+        }
+        if (released[i] != 0) {
+            shutterToDisk.record(time - released[i]);
+        }
+        if (bytes[i] > 0) {
+            transferPerMiB.record((long)((lastByte[i] - transferStart[i]) * ((double)MIB / bytes[i])));
+        }
+        used[i] = false;
+        record(WRITTEN, objectId, time, bytes[i]);
+    }
+
+    /**
+     * @return the times from the release to the notification of the object
+     */
+    public LatencyHistogram getReleaseToEvent() {
+        return releaseToEvent;
+    }
+
+    /**
+     * @return the times from the notification of the object to the first
+     *         chunk received
+     */
+    public LatencyHistogram getEventToFirstByte() {
+        return eventToFirstByte;
+    }
+
+    /**
+     * @return the times from the release to the end of the write to the sink
+     */
+    public LatencyHistogram getShutterToDisk() {
+        return shutterToDisk;
+    }
+
+    /**
+     * @return the times taken to transfer a MiB, from the request of the
+     *         first chunk of each object to the last chunk received
+     */
+    public LatencyHistogram getTransferTimePerMiB() {
+        return transferPerMiB;
+    }
+
+    /**
+     * @param percentile the percentile (0-100)
+     *
+     * @return the transfer throughput in bytes per second that the given
+     *         percentage of the objects did not exceed (e.g. 50 for the
+     *         median, 10 for a slow transfer); 0 if nothing has been
+     *         transferred
+     */
+    public double getThroughput(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be in 0-100");
+        }
+        long perMiB = transferPerMiB.getPercentile(100 - percentile);
+        return (perMiB <= 0) ? 0 : MIB * 1e9 / perMiB;
+    }
+
+    /**
+     * @return the number of phases recorded so far
+     */
+    public synchronized long getRecords() {
+        return next;
+    }
+
+    /**
+     * @return the number of phases overwritten because the ring was full
+     */
+    public synchronized long getDropped() {
+        return Math.max(0, next - phases.length);
+    }
+
+    /**
+     * Writes the phases in the ring, oldest first, in the format described
+     * above.
+     *
+     * @param out where to write the dump - NOT NULL
+     *
+     * @throws IOException in case of errors
+     */
+    public synchronized void dump(OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("out can not be null");
+        }
+        int n = (int)Math.min(next, phases.length);
+        long first = next - n;
+
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeShort(VERSION);
+        data.writeInt(n);
+        long base = (n > 0) ? times[(int)(first % phases.length)] : 0;
+        for (long r = first; r < next; ++r) {
+            int i = (int)(r % phases.length);
+            data.writeByte(phases[i]);
+            data.writeInt(objects[i]);
+            data.writeLong(times[i] - base);
+            data.writeLong(values[i]);
+        }
+        data.flush();
+    }
+
+    /**
+     * Forgets everything recorded so far
+     */
+    public synchronized void reset() {
+        next = shots = 0;
+        Arrays.fill(used, false);
+        releaseToEvent.reset();
+        eventToFirstByte.reset();
+        shutterToDisk.reset();
+        transferPerMiB.reset();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "release to event: %.3f/%.3f ms, event to first byte: %.3f/%.3f ms, shutter to disk: %.3f/%.3f ms, throughput: %.1f MiB/s (p50/p99)",
+            releaseToEvent.getPercentile(50)/1e6, releaseToEvent.getPercentile(99)/1e6,
+            eventToFirstByte.getPercentile(50)/1e6, eventToFirstByte.getPercentile(99)/1e6,
+            shutterToDisk.getPercentile(50)/1e6, shutterToDisk.getPercentile(99)/1e6,
+            getThroughput(50) / MIB
+        );
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void record(int phase, int objectId, long time, long value) {
+        int i = (int)(next++ % phases.length);
+        phases[i] = (byte)phase;
+        objects[i] = objectId;
+        times[i] = time;
+        values[i] = value;
+    }
+
+    //
+    // the slot of the given object, -1 if not traced; a new one is taken
+    // if create is true, replacing the oldest one if there are no free
+    // slots
+    //
+    private int slot(int objectId, boolean create) {
+        for (int i = 0; i < OBJECTS; ++i) {
+            if (used[i] && oid[i] == objectId) {
+                return i;
+            }
+        }
+        if (!create) {
+            return -1;
+        }
+        for (int i = 0; i < OBJECTS; ++i) {
+            int s = (nextSlot + i) % OBJECTS;
+            if (!used[s]) {
+                nextSlot = (s + 1) % OBJECTS;
+                return take(s, objectId);
+            }
+        }
+        int s = nextSlot;
+        nextSlot = (s + 1) % OBJECTS;
+        return take(s, objectId);
+    }
+
+    private int take(int slot, int objectId) {
+        used[slot] = true;
+        oid[slot] = objectId;
+        return slot;
+    }
+}
@@ -0,0 +1,82 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Writes each object in its own file, named after the object, in a given
+ * directory. Names that are not plain file names (e.g. containing path
+ * separators or <code>..</code>) are rejected, so that an object can not be
+ * written outside the directory.
+ *
+ * @author ste
+ */
+public class EosDirectorySink implements EosObjectSink {
+
+    private final File dir;
+    private FileOutputStream out;
+
+    /**
+     * @param dir the directory - NOT NULL
+     */
+    public EosDirectorySink(File dir) {
+        if (dir == null) {
+            throw new IllegalArgumentException("dir can not be null");
+        }
+        this.dir = dir;
+    }
+
+    @Override
+    public void begin(int objectId, String name, long size) throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        if (!isPlainName(name)) {
+            throw new IOException("invalid object name: " + name);
+        }
+        out = new FileOutputStream(new File(dir, name));
+    }
+
+    @Override
+    public void write(byte[] buf, int offset, int length) throws IOException {
+        out.write(buf, offset, length);
+    }
+
+    @Override
+    public void end(int objectId) throws IOException {
+        try {
+            out.close();
+        } finally {
+            out = null;
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static boolean isPlainName(String name) {
+        return (name != null)
+            && !name.isEmpty()
+            && !name.contains("..")
+            && (name.indexOf('/') < 0)
+            && (name.indexOf('\\') < 0)
+            && (name.indexOf(File.separatorChar) < 0)
+            && (name.indexOf(0) < 0);
+    }
+}
@@ -0,0 +1,151 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A visitor turning the visited events into a list of {@link EosEvent},
+ * with the same parameters the list based API has always given.
+ *
+ * @author ste
+ */
+public class EosEventCollector implements EosEventVisitor, EosEventConstants {
+
+    private final List<EosEvent> events = new ArrayList<>();
+
+    /**
+     * @return the events collected so far
+     */
+    public List<EosEvent> getEvents() {
+        return events;
+    }
+
+    @Override
+    public void onPropValueChanged(int property, int value) {
+        EosEvent e = add(EosEventPropValueChanged);
+        e.setParam(1, property);
+        e.setParam(2, value);
+    }
+
+    @Override
+    public void onPictureStyleChanged(
+        int property, boolean monochrome, int contrast, int sharpness,
+        int saturation, int colorTone
+    ) {
+        EosEvent e = add(EosEventPropValueChanged);
+        e.setParam(1, property);
+        e.setParam(2, (monochrome) ? Boolean.TRUE : Boolean.FALSE);
+        e.setParam(3, contrast);
+        e.setParam(4, sharpness);
+        e.setParam(5, saturation);
+        e.setParam(6, colorTone);
+    }
+
+    @Override
+    public void onAvailListChanged(int property, int[] values, int count) {
+        EosEvent e = add(EosEventAvailListChanged);
+        e.setParam(1, property);
+        e.setParam(2, Arrays.copyOf(values, count));
+    }
+
+    @Override
+    public void onObjectAdded(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {
+        objectAdded(EosEventObjectAddedEx, objectId, storageId, format, size, parentId, name);
+    }
+
+    @Override
+    public void onObjectAdded64(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {
+        objectAdded(EosEventObjectAddedEx64, objectId, storageId, format, size, parentId, name);
+    }
+
+    @Override
+    public void onObjectRemoved(int objectId) {
+        add(EosEventObjectRemoved).setParam(1, objectId);
+    }
+
+    @Override
+    public void onStorageStatusChanged(int storageId, int status) {
+        EosEvent e = add(EosEventStorageStatusChanged);
+        e.setParam(1, storageId);
+        e.setParam(2, status);
+    }
+
+    @Override
+    public void onBulbExposureTime(int seconds) {
+        add(EosEventBulbExposureTime).setParam(1, seconds);
+    }
+
+    @Override
+    public void onAfResult(int result) {
+        add(EosEventAfResult).setParam(1, result);
+    }
+
+    @Override
+    public void onCameraStatus(int status) {
+        add(EosEventCameraStatusChanged).setParam(1, status);
+    }
+
+    @Override
+    public void onShutdownTimerUpdated() {
+        add(EosEventShutdownTimerUpdated);
+    }
+
+    @Override
+    public void onWillSoonShutdown() {
+        add(EosEventWillSoonShutdown);
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private EosEvent add(int code) {
+        EosEvent e = new EosEvent();
+        e.setCode(code);
+        events.add(e);
+
+        return e;
+    }
+
+    //
+    // the size is an Integer as it has always been, unless it does not fit
+    // in an int (objects larger than 2GB), in which case it is a Long
+    //
+    private void objectAdded(
+        int code, int objectId, int storageId, int format, long size,
+        int parentId, CharSequence name
+    ) {
+        EosEvent e = add(code);
+        e.setParam(1, objectId);
+        e.setParam(2, storageId);
+        e.setParam(3, parentId);
+        e.setParam(4, format);
+        if (size == (int)size) {
+            e.setParam(5, (int)size);
+        } else {
+            e.setParam(5, Long.valueOf(size));
+        }
+        e.setParam(6, name.toString());
+    }
+}
@@ -49,6 +49,7 @@ public interface EosEventConstants {
     public static final int EosEventRecordingTime           = 0xC195;
     public static final int EosEventRequestObjectTransferTS = 0xC1A2;
     public static final int EosEventAfResult                = 0xC1A3;
+    public static final int EosEventObjectAddedEx64         = 0xC1A7;
 
     /*
      * Properties
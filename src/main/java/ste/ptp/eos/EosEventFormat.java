@@ -16,7 +16,7 @@
  */
 package ste.ptp.eos;
 
-import java.lang.reflect.Field;
+import ste.ptp.CodeRegistry;
 
 /**
  * This class formats an EosEvent to a string
@@ -24,6 +24,17 @@ import java.lang.reflect.Field;
  * @author stefano fornari
  */
 public class EosEventFormat implements EosEventConstants {
+
+    //
+    // names of the EosEventConstants, looked up once
+    //
+    private static final CodeRegistry EVENTS =
+        CodeRegistry.fromConstants(EosEventConstants.class, "EosEvent", false);
+    private static final CodeRegistry PROPERTIES =
+        CodeRegistry.fromConstants(EosEventConstants.class, "EosProp", true);
+    private static final CodeRegistry IMAGE_FORMATS =
+        CodeRegistry.fromConstants(EosEventConstants.class, "ImageFormat", true);
+
     public static String format(EosEvent e) {
         StringBuilder sb = new StringBuilder();
 
@@ -59,7 +70,7 @@ public class EosEventFormat implements EosEventConstants {
                     sb.append(e.getIntParam(2));
                 }
             }
-        } else if (eventCode == EosEventObjectAddedEx) {
+        } else if (eventCode == EosEventObjectAddedEx || eventCode == EosEventObjectAddedEx64) {
             sb.append(formatEosEventObjectAddedEx(e));
         }
         sb.append(" ]");
@@ -75,23 +86,7 @@ public class EosEventFormat implements EosEventConstants {
      * @return the printable name of the given event
      */
     public static String getEventName(int code) {
-        Field[] fields = EosEventConstants.class.getDeclaredFields();
-
-        for (Field f: fields) {
-            String name = f.getName();
-            if (name.startsWith("EosEvent")) {
-                try {
-                    if (f.getInt(null) == code) {
-                        return name;
-                    }
-                } catch (Exception e) {
-                    //
-                    // Nothing to do
-                    //
-                }
-            }
-        }
-        return "Unknown";
+        return EVENTS.get(code, "Unknown");
     }
 
     /**
@@ -102,7 +97,7 @@ public class EosEventFormat implements EosEventConstants {
      * @return the printable name of the given property
      */
     public static String getPropertyName(int code) {
-        return getCodeName("EosProp", code);
+        return PROPERTIES.get(code, "Unknown");
     }
 
     /**
@@ -113,7 +108,7 @@ public class EosEventFormat implements EosEventConstants {
      * @return the printable name of the given image format
      */
     public static String getImageFormatName(int code) {
-        return getCodeName("ImageFormat", code);
+        return IMAGE_FORMATS.get(code, "Unknown");
     }
 
     /**
@@ -176,41 +171,11 @@ public class EosEventFormat implements EosEventConstants {
         return String.format(
             "Filename: %s, Size(bytes): %d, ObjectID: 0x%08X, StorageID: 0x%08X, ParentID: 0x%08X, Format: %s",
             event.getStringParam(6),
-            event.getIntParam(5),
+            ((Number)event.getParam(5)).longValue(),
             event.getIntParam(1),
             event.getIntParam(2),
             event.getIntParam(3),
             getImageFormatName(event.getIntParam(4))
         );
     }
-
-    /**
-     * Looks up and returns the name of the code give if there is a constant
-     * field in EosEventConstants which starts with the given prefix
-     *
-     * @param prefix the field name prefix
-     * @param code image format code
-     *
-     * @return the printable name of the given code
-     */
-    private static String getCodeName(String prefix, int code) {
-        Field[] fields = EosEventConstants.class.getDeclaredFields();
-
-        for (Field f: fields) {
-            String name = f.getName();
-            if (name.startsWith(prefix)) {
-                try {
-                    if (f.getInt(null) == code) {
-                        return name.substring(prefix.length());
-                    }
-                } catch (Exception e) {
-                    //
-                    // Nothing to do
-                    //
-                }
-            }
-        }
-        return "Unknown";
-    }
-            
 }
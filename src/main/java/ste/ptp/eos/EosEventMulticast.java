@@ -0,0 +1,189 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.Arrays;
+
+/**
+ * Notifies the visited events to an array of visitors, in order; null
+ * entries are skipped. A slot can be set for the duration of a poll with
+ * {@link #set(int, EosEventVisitor)} and visitors can be added and removed
+ * while events are notified: the array is copied on add and remove, so that
+ * notifying the events does not allocate.
+ *
+ * @author ste
+ */
+final class EosEventMulticast implements EosEventVisitor {
+
+    private volatile EosEventVisitor[] targets;
+
+    /**
+     * @param targets the initial visitors; null entries are allowed
+     */
+    EosEventMulticast(EosEventVisitor... targets) {
+        this.targets = targets.clone();
+    }
+
+    /**
+     * @param i the slot
+     * @param target the visitor to notify in the given slot, null for none
+     */
+    void set(int i, EosEventVisitor target) {
+        targets[i] = target;
+    }
+
+    /**
+     * @param target the visitor to add at the end - NOT NULL
+     */
+    synchronized void add(EosEventVisitor target) {
+        EosEventVisitor[] t = Arrays.copyOf(targets, targets.length + 1);
+        t[targets.length] = target;
+        targets = t;
+    }
+
+    /**
+     * @param target the visitor to remove
+     */
+    synchronized void remove(EosEventVisitor target) {
+        for (int i = 0; i < targets.length; ++i) {
+            if (targets[i] == target) {
+                EosEventVisitor[] t = new EosEventVisitor[targets.length - 1];
+                System.arraycopy(targets, 0, t, 0, i);
+                System.arraycopy(targets, i + 1, t, i, t.length - i);
+                targets = t;
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void onPropValueChanged(int property, int value) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onPropValueChanged(property, value);
+            }
+        }
+    }
+
+    @Override
+    public void onPictureStyleChanged(
+        int property, boolean monochrome, int contrast, int sharpness,
+        int saturation, int colorTone
+    ) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onPictureStyleChanged(property, monochrome, contrast, sharpness, saturation, colorTone);
+            }
+        }
+    }
+
+    @Override
+    public void onAvailListChanged(int property, int[] values, int count) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onAvailListChanged(property, values, count);
+            }
+        }
+    }
+
+    @Override
+    public void onObjectAdded(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onObjectAdded(objectId, storageId, format, size, parentId, name);
+            }
+        }
+    }
+
+    @Override
+    public void onObjectAdded64(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onObjectAdded64(objectId, storageId, format, size, parentId, name);
+            }
+        }
+    }
+
+    @Override
+    public void onObjectRemoved(int objectId) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onObjectRemoved(objectId);
+            }
+        }
+    }
+
+    @Override
+    public void onStorageStatusChanged(int storageId, int status) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onStorageStatusChanged(storageId, status);
+            }
+        }
+    }
+
+    @Override
+    public void onBulbExposureTime(int seconds) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onBulbExposureTime(seconds);
+            }
+        }
+    }
+
+    @Override
+    public void onAfResult(int result) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onAfResult(result);
+            }
+        }
+    }
+
+    @Override
+    public void onCameraStatus(int status) {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onCameraStatus(status);
+            }
+        }
+    }
+
+    @Override
+    public void onShutdownTimerUpdated() {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onShutdownTimerUpdated();
+            }
+        }
+    }
+
+    @Override
+    public void onWillSoonShutdown() {
+        for (EosEventVisitor t: targets) {
+            if (t != null) {
+                t.onWillSoonShutdown();
+            }
+        }
+    }
+}
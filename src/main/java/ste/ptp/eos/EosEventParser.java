@@ -17,8 +17,12 @@
 
 package ste.ptp.eos;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
 import ste.ptp.PTPException;
 import ste.ptp.PTPUnsupportedException;
 
@@ -33,26 +37,130 @@ import ste.ptp.PTPUnsupportedException;
  * which always goes in the third field. The empty record consists of the size
  * field and four byte empty field, which is always zero.
  *
+ * The parser works directly on the bytes of the event data (for example the
+ * buffer of the Data received from the camera), without copying them; a
+ * parser created on a stream first reads the whole stream. After each
+ * record the parser moves to the next one according to the record length,
+ * regardless of how much of the record has been decoded.
+ *
  * @author stefano fornari
  */
 public class EosEventParser implements EosEventConstants {
 
+    private static final VarHandle S16 =
+        MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle S32 =
+        MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Decodes the parameters of an event, positioned after the event code,
+     * and notifies it
+     */
+    @FunctionalInterface
+    private interface Decoder {
+        void decode(EosEventParser parser, EosEventVisitor visitor)
+        throws IOException;
+    }
+
+    //
+    // EOS events are all in 0xC1xx: decoders are indexed by the lower byte
+    // of the code; codes without decoder are skipped
+    //
+    private static final int FIRST_EVENT = 0xC100;
+
+    //
+    // form type of the EosEventAvailListChanged lists of values
+    //
+    private static final int FORM_ENUMERATION = 3;
+    private static final Decoder[] DECODERS = new Decoder[0x100];
+
+    static {
+        decoder(EosEventPropValueChanged, EosEventParser::parsePropValueChangedParameters);
+        decoder(EosEventShutdownTimerUpdated, (p, v) -> v.onShutdownTimerUpdated());
+        decoder(EosEventWillSoonShutdown, (p, v) -> v.onWillSoonShutdown());
+        decoder(EosEventCameraStatusChanged, (p, v) -> v.onCameraStatus(p.getNextS32()));
+        decoder(EosEventObjectAddedEx, EosEventParser::parseEosEventObjectAddedEx);
+        decoder(EosEventObjectAddedEx64, EosEventParser::parseEosEventObjectAddedEx64);
+        decoder(EosEventObjectRemoved, (p, v) -> v.onObjectRemoved(p.getNextS32()));
+        decoder(EosEventStorageStatusChanged, EosEventParser::parseEosEventStorageStatusChanged);
+        decoder(EosEventBulbExposureTime, (p, v) -> v.onBulbExposureTime(p.getNextS32()));
+        decoder(EosEventAfResult, (p, v) -> v.onAfResult(p.getNextS32()));
+        decoder(EosEventAvailListChanged, EosEventParser::parseEosEventAvailListChanged);
+    }
+
     /**
-     * The stream data are read from
+     * The event data
      */
-    private InputStream is;
+    private byte[] buf;
 
     /**
-     * Creates a new parser to parse the given input stream
+     * Position of the next byte to parse
+     */
+    private int pos;
+
+    /**
+     * End of the event data (exclusive)
+     */
+    private int limit;
+
+    /**
+     * Skipped events by the lower byte of their code
+     */
+    private final long[] skipped = new long[0x100];
+
+    /**
+     * All skipped events
+     */
+    private long skippedTotal;
+
+    /**
+     * End of the record being decoded
+     */
+    private int recordEnd;
+
+    /**
+     * Values of the last AvailListChanged event
+     */
+    private int[] availValues = new int[64];
+
+    /**
+     * View of the last string read
+     */
+    private final AsciiSequence ascii = new AsciiSequence();
+
+    /**
+     * Creates a new parser to parse the given input stream; the stream is
+     * read until its end when the parser is created.
      * 
-     * @param is
+     * @param is the stream
+     *
+     * @throws IllegalArgumentException if the stream is null or can not be read
      */
     public EosEventParser(InputStream is) {
         if (is == null) {
             throw new IllegalArgumentException("The input stream cannot be null");
         }
-        
-        this.is = is;
+
+        try {
+            buf = is.readAllBytes();
+        } catch (IOException x) {
+            throw new IllegalArgumentException("The input stream cannot be read", x);
+        }
+        pos = 0;
+        limit = recordEnd = buf.length;
+    }
+
+    /**
+     * Creates a new parser to parse the events in the given portion of a
+     * buffer; the buffer is not copied, therefore it must not change while
+     * parsing.
+     *
+     * @param buf the buffer - NOT NULL
+     * @param offset where the event data start
+     * @param length the length of the event data
+     */
+    public EosEventParser(byte[] buf, int offset, int length) {
+        reset(buf, offset, length);
     }
 
     /**
@@ -63,15 +171,31 @@ public class EosEventParser implements EosEventConstants {
      * open), false otherwise.
      */
     public boolean hasEvents() {
-        try {
-            if (is.available() <= 0) {
-                return false;
-            }
-        } catch (IOException e) {
-            return false;
+        return pos < limit;
+    }
+
+    /**
+     * Starts parsing the events in the given portion of a buffer, so that
+     * the same parser can be used for every poll.
+     *
+     * @param buf the buffer - NOT NULL
+     * @param offset where the event data start
+     * @param length the length of the event data
+     */
+    public void reset(byte[] buf, int offset, int length) {
+        if (buf == null) {
+            throw new IllegalArgumentException("The buffer cannot be null");
+        }
+        if (offset < 0 || length < 0 || offset + length > buf.length) {
+            throw new IllegalArgumentException(
+                String.format("invalid range %d+%d for a buffer of %d bytes", offset, length, buf.length)
+            );
         }
 
-        return true;
+        this.buf = buf;
+        this.pos = offset;
+        this.limit = offset + length;
+        this.recordEnd = limit;
     }
 
     /**
@@ -82,50 +206,129 @@ public class EosEventParser implements EosEventConstants {
      * @throws PTPException in case of errors
      */
     public EosEvent getNextEvent() throws PTPException {
-        EosEvent event = new EosEvent();
+        EosEventCollector collector = new EosEventCollector();
+
+        if (!visitNextEvent(collector)) {
+            throw new PTPUnsupportedException("Unsupported event");
+        }
 
+        return collector.getEvents().get(0);
+    }
+
+    /**
+     * Parses the next event and notifies it to the given visitor. Events
+     * that are not supported are skipped (and counted, see
+     * {@link #getSkipped(int)}) without notifying the visitor.
+     *
+     * @param visitor the visitor - NOT NULL
+     *
+     * @return true if the event has been notified, false if it has been
+     *         skipped
+     *
+     * @throws PTPException in case of errors
+     */
+    public boolean visitNextEvent(EosEventVisitor visitor) throws PTPException {
+        int start = pos;
+        int len = 0;
+        recordEnd = limit;
         try {
-            int len = getNextS32(); // len
+            len = getNextS32(); // len
             if (len < 0x8) {
-                throw new PTPUnsupportedException("Unsupported event (size<8 ???)");
+                //
+                // size<8 ??? just move past the length
+                //
+                ++skippedTotal;
+                return false;
             }
-            event.setCode(getNextS32());
 
-            parseParameters(event, len-8);
+            int code = getNextS32();
+            Decoder decoder = ((code & ~0xFF) == FIRST_EVENT)
+                            ? DECODERS[code & 0xFF]
+                            : null;
+            if (decoder == null) {
+                if (code != 0) {
+                    //
+                    // 0 is the empty record terminating the events
+                    //
+                    ++skippedTotal;
+                    if ((code & ~0xFF) == FIRST_EVENT) {
+                        ++skipped[code & 0xFF];
+                    }
+                }
+                return false;
+            }
+
+            //
+            // decoders can not read past the end of the record
+            //
+            recordEnd = Math.min(start + len, limit);
+            long skippedBefore = skippedTotal;
+            decoder.decode(this, visitor);
+
+            //
+            // a decoder may skip a record it can not make sense of
+            //
+            return skippedTotal == skippedBefore;
         } catch (IOException e) {
             throw new PTPException("Error reading event stream", e);
+        } finally {
+            //
+            // move to the next record, if the length makes sense
+            //
+            if (len >= 0x8 && len <= limit - start) {
+                pos = start + len;
+            }
+            recordEnd = limit;
         }
-
-        return event;
     }
 
+    /**
+     * Parses all remaining events and notifies them to the given visitor,
+     * skipping the unsupported ones.
+     *
+     * @param visitor the visitor - NOT NULL
+     *
+     * @return the number of events parsed, including the skipped ones (but
+     *         not the empty record terminating the events)
+     *
+     * @throws PTPException in case of errors
+     */
+    public int accept(EosEventVisitor visitor) throws PTPException {
+        long skippedBefore = skippedTotal;
+        int notified = 0;
+        while (hasEvents()) {
+            if (visitNextEvent(visitor)) {
+                ++notified;
+            }
+        }
 
-    // --------------------------------------------------------- Private methods
+        return notified + (int)(skippedTotal - skippedBefore);
+    }
 
-    private void parseParameters(EosEvent event, int len)
-    throws PTPException, IOException {
-        int code = event.getCode();
-        
-        if (code == EosEventPropValueChanged) {
-            parsePropValueChangedParameters(event);
-        } else if (code == EosEventShutdownTimerUpdated) {
-            //
-            // No parameters
-            //
-        } else if (code == EosEventCameraStatusChanged) {
-             event.setParam(1, getNextS32());
-        } else if (code == EosEventObjectAddedEx) {
-             parseEosEventObjectAddedEx(event);
-        } else{
-            is.skip(len);
-            throw new PTPUnsupportedException("Unsupported event");
-        }
+    /**
+     * @param code an event code
+     *
+     * @return how many events with the given code have been skipped by
+     *         this parser because not supported
+     */
+    public long getSkipped(int code) {
+        return ((code & ~0xFF) == FIRST_EVENT) ? skipped[code & 0xFF] : 0;
     }
 
-    private void parsePropValueChangedParameters(EosEvent event)
+    /**
+     * @return how many events have been skipped by this parser, including
+     *         malformed records and codes out of the EOS event range
+     */
+    public long getSkippedTotal() {
+        return skippedTotal;
+    }
+
+
+    // --------------------------------------------------------- Private methods
+
+    private void parsePropValueChangedParameters(EosEventVisitor visitor)
     throws IOException {
-        int property = getNextS32();
-        event.setParam(1, property);  // property changed
+        int property = getNextS32();  // property changed
 
         if ((property >= EosPropPictureStyleStandard) &&
             (property <= EosPropPictureStyleUserSet3)) {
@@ -138,101 +341,188 @@ public class EosEventParser implements EosEventConstants {
                 //
                 monochrome = (getNextS32() == EosPropPictureStyleUserTypeMonochrome);
             }
-            event.setParam(2, (monochrome) ? Boolean.TRUE : Boolean.FALSE);
-            event.setParam(3, getNextS32()); // contrast
-            event.setParam(4, getNextS32()); // sharpness
+            int contrast = getNextS32();
+            int sharpness = getNextS32();
+            int p5, p6;
             if (monochrome) {
                 getNextS32();
                 getNextS32();
-                event.setParam(5, getNextS32()); // filter effect
-                event.setParam(6, getNextS32()); // toning effect
+                p5 = getNextS32(); // filter effect
+                p6 = getNextS32(); // toning effect
             } else {
-                event.setParam(5, getNextS32()); // saturation
-                event.setParam(6, getNextS32()); // color tone
+                p5 = getNextS32(); // saturation
+                p6 = getNextS32(); // color tone
                 getNextS32();
                 getNextS32();
             }
+            visitor.onPictureStyleChanged(property, monochrome, contrast, sharpness, p5, p6);
         } else {
             //
             // default
             //
-            event.setParam(2, getNextS32());
+            visitor.onPropValueChanged(property, getNextS32());
         }
         
     }
 
-    private void parseEosEventObjectAddedEx(EosEvent event)
+    private void parseEosEventObjectAddedEx(EosEventVisitor visitor)
     throws IOException {
-        event.setParam(1, getNextS32()  );  // object id
-        event.setParam(2, getNextS32()  );  // storage id
-        event.setParam(4, getNextS16()  );  // format
-        is.skip(10);
-        event.setParam(5, getNextS32()  );  // size 
-        event.setParam(3, getNextS32()  );  // parent object id
-        is.skip(4);  // unknown
-        event.setParam(6, getNextString()); // file name
-        is.skip(4);
+        int objectId = getNextS32();
+        int storageId = getNextS32();
+        int format = getNextS16();
+        skip(10);
+        int size = getNextS32();
+        int parentId = getNextS32();
+        skip(4);  // unknown
+        CharSequence name = getNextAscii(); // file name
+        skip(4);
+
+        visitor.onObjectAdded(
+            objectId, storageId, format, size & 0xFFFFFFFFL, parentId, name
+        );
+    }
+
+    //
+    // as EosEventObjectAddedEx, but with a 64 bit size (e.g. long movies),
+    // which shifts what follows by 4 bytes
+    //
+    private void parseEosEventObjectAddedEx64(EosEventVisitor visitor)
+    throws IOException {
+        int objectId = getNextS32();
+        int storageId = getNextS32();
+        int format = getNextS16();
+        skip(10);
+        long size = getNextS64();
+        int parentId = getNextS32();
+        skip(4);  // unknown
+        CharSequence name = getNextAscii(); // file name
+        skip(4);
+
+        visitor.onObjectAdded64(objectId, storageId, format, size, parentId, name);
+    }
+
+    //
+    // property, form type, count and the values, each in 4 bytes whatever
+    // the data type of the property; the values are given as they are, so
+    // that they match the ones of EosEventPropValueChanged. Only
+    // enumerations (form type 3) are known, other forms are skipped; image
+    // format lists have variable size values and are skipped as well
+    //
+    private void parseEosEventAvailListChanged(EosEventVisitor visitor)
+    throws IOException {
+        int property = getNextS32();
+        int form = getNextS32();
+        int count = getNextS32();
+
+        if ((form != FORM_ENUMERATION)
+        || ((property >= EosPropImageFormat) && (property <= EosPropImageFormatExtHD))) {
+            ++skippedTotal;
+            ++skipped[EosEventAvailListChanged & 0xFF];
+            return;
+        }
+
+        count = Math.max(0, Math.min(count, (recordEnd - pos) / 4));
+        if (availValues.length < count) {
+            availValues = new int[count];
+        }
+        for (int i = 0; i < count; ++i) {
+            availValues[i] = getNextS32();
+        }
+
+        visitor.onAvailListChanged(property, availValues, count);
+    }
+
+    private void parseEosEventStorageStatusChanged(EosEventVisitor visitor)
+    throws IOException {
+        int storageId = getNextS32();
+        visitor.onStorageStatusChanged(storageId, getNextS32());
     }
 
     /**
-     * Reads and return the next signed 32 bit integer read from the input
-     * stream.
+     * Reads and return the next signed 32 bit integer
      *
-     * @return the next signed 32 bit integer in the stream
+     * @return the next signed 32 bit integer
      *
-     * @throws IOException in case of IO errors
+     * @throws IOException if there are not enough data
      */
-    private  final int getNextS32() throws IOException {
-	int retval;
+    private final int getNextS32() throws IOException {
+        check(4);
+        int retval = (int)S32.get(buf, pos);
+        pos += 4;
 
-	retval  = (0xff & is.read()) ;
-	retval |= (0xff & is.read()) << 8;
-	retval |= (0xff & is.read()) << 16;
-	retval |=         is.read()  << 24;
+        return retval;
+    }
 
-	return retval;
+    /**
+     * Reads and return the next 64 bit integer
+     *
+     * @return the next 64 bit integer
+     *
+     * @throws IOException if there are not enough data
+     */
+    private final long getNextS64() throws IOException {
+        check(8);
+        long retval = ((int)S32.get(buf, pos) & 0xFFFFFFFFL)
+                    | ((long)(int)S32.get(buf, pos + 4) << 32);
+        pos += 8;
+
+        return retval;
     }
 
     /**
-     * Reads and return the next signed 16 bit integer read from the input
-     * stream.
+     * Reads and return the next 16 bit integer, zero-extended (as the name
+     * says it has always been used for unsigned values).
      *
-     * @return the next signed 16 bit integer in the stream
+     * @return the next 16 bit integer
      *
-     * @throws IOException in case of IO errors
+     * @throws IOException if there are not enough data
      */
     private final int getNextS16() throws IOException {
-	int retval;
+        check(2);
+        int retval = 0xffff & (short)S16.get(buf, pos);
+        pos += 2;
 
-	retval  = (0xff & is.read()) ;
-	retval |= (0xff & is.read()) << 8;
-
-	return retval;
+        return retval;
     }
 
     /**
-     * Reads and return the next string read from the input stream. Strings are
-     * zero (32 bit) terminated string
+     * Reads the next string, without decoding it. Strings are zero (32 bit)
+     * terminated 8-bit strings.
      *
-     * @return the next string in the stream
+     * @return a view of the string, valid until the next call
      *
-     * @throws IOException in case of IO errors
+     * @throws IOException if the string is not terminated
      */
-    private final String getNextString() throws IOException {
-        StringBuilder retval = new StringBuilder();
-
-        char c = 0;
-        while ((c = (char)is.read()) != 0) {
-            retval.append(c);
+    private final CharSequence getNextAscii() throws IOException {
+        int end = pos;
+        while (end < recordEnd && buf[end] != 0) {
+            ++end;
         }
+        if (end == recordEnd) {
+            throw new EOFException("string not terminated (eof)");
+        }
+
+        CharSequence retval = ascii.set(buf, pos, end - pos);
 
         //
-        // At this point we read the string and one zero. We need to read the
-        // remaining 3 zeros
+        // skip the string and the 4 zeros terminating it
         //
-        is.skip(3);
+        pos = Math.min(end + 4, recordEnd);
+
+        return retval;
+    }
 
-        return retval.toString();
+    private static void decoder(int code, Decoder decoder) {
+        DECODERS[code - FIRST_EVENT] = decoder;
     }
 
+    private void skip(int n) {
+        pos = Math.min(pos + n, limit);
+    }
+
+    private void check(int n) throws EOFException {
+        if (pos + n > recordEnd) {
+            throw new EOFException("event data truncated");
+        }
+    }
 }
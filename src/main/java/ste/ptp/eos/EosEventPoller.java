@@ -0,0 +1,343 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import ste.ptp.PTPException;
+
+/**
+ * Polls the events of an EOS camera in a background thread and notifies
+ * them to the registered listeners.
+ *
+ * <p> The event mode is set once, when polling starts (and again after an
+ * error); then the camera is polled with an adaptive interval: after a poll
+ * returning events, or while a capture is in progress (see
+ * {@link #pollFastFor(long, TimeUnit)}), the next poll happens after the
+ * minimum interval; every poll returning no events doubles the interval, up
+ * to the maximum one. This way new objects are detected quickly while the
+ * camera is in use, without wasting USB round trips when it is idle.
+ *
+ * <p> Listeners are invoked in the polling thread; they should return
+ * quickly, as the next poll does not start until they return.
+ *
+ * @author ste
+ */
+public class EosEventPoller {
+
+    /**
+     * Default minimum poll interval in milliseconds
+     */
+    public static final long DEFAULT_MIN_INTERVAL = 20;
+
+    /**
+     * Default maximum poll interval in milliseconds
+     */
+    public static final long DEFAULT_MAX_INTERVAL = 1000;
+
+    private final EosInitiator initiator;
+    private final long minInterval, maxInterval;  // nanoseconds
+
+    private final EosEventMulticast listeners = new EosEventMulticast();
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private volatile boolean running;
+    private boolean wakeUp;
+    private boolean paused, polling;
+
+    private volatile long interval;
+    private volatile long fastUntil;
+
+    //
+    // metrics (written by the polling thread only)
+    //
+    private volatile long polls, emptyPolls, events, errors;
+    private volatile long startTime;
+    private volatile Exception lastError;
+
+    /**
+     * Creates a poller with the default intervals
+     *
+     * @param initiator the camera to poll - NOT NULL
+     */
+    public EosEventPoller(EosInitiator initiator) {
+        this(initiator, DEFAULT_MIN_INTERVAL, DEFAULT_MAX_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a poller with the given intervals
+     *
+     * @param initiator the camera to poll - NOT NULL
+     * @param minInterval the interval after activity
+     * @param maxInterval the interval when the camera is idle
+     * @param unit the unit of the intervals - NOT NULL
+     */
+    public EosEventPoller(EosInitiator initiator, long minInterval, long maxInterval, TimeUnit unit) {
+        if (initiator == null) {
+            throw new IllegalArgumentException("initiator can not be null");
+        }
+        if (minInterval <= 0 || maxInterval < minInterval) {
+            throw new IllegalArgumentException(
+                String.format("invalid intervals (min: %d, max: %d)", minInterval, maxInterval)
+            );
+        }
+
+        this.initiator = initiator;
+        this.minInterval = unit.toNanos(minInterval);
+        this.maxInterval = unit.toNanos(maxInterval);
+        this.interval = this.minInterval;
+        this.fastUntil = System.nanoTime();
+    }
+
+    /**
+     * @param listener the listener to add - NOT NULL
+     */
+    public void addListener(EosEventVisitor listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener can not be null");
+        }
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener the listener to remove
+     */
+    public void removeListener(EosEventVisitor listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Starts polling in a new daemon thread
+     *
+     * @throws IllegalStateException if the poller is already running
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("poller already running");
+            }
+            running = true;
+            startTime = System.nanoTime();
+            interval = minInterval;
+
+            thread = new Thread(this::poll, "eos-event-poller");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops polling and waits for the polling thread to terminate; it does
+     * nothing if the poller is not running. It must not be called by a
+     * listener.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+            t = thread;
+            thread = null;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Suspends polling, e.g. while another component drains the events in
+     * step with time critical commands, and waits for the poll in progress,
+     * if any, to complete: once this method returns the poller does not
+     * use the camera until {@link #resume()}.
+     */
+    public void pause() {
+        synchronized (lock) {
+            paused = true;
+            while (polling && Thread.currentThread() != thread) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException x) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Resumes polling suspended by {@link #pause()}, starting with a poll as
+     * soon as possible
+     */
+    public void resume() {
+        synchronized (lock) {
+            paused = false;
+            wakeUp = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @return true if polling is suspended by {@link #pause()}
+     */
+    public boolean isPaused() {
+        synchronized (lock) {
+            return paused;
+        }
+    }
+
+    /**
+     * @return true if the poller is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Polls at the minimum interval for the given time, starting with a
+     * poll as soon as possible; for example while a capture is in progress.
+     *
+     * @param duration for how long
+     * @param unit the unit of duration - NOT NULL
+     */
+    public void pollFastFor(long duration, TimeUnit unit) {
+        synchronized (lock) {
+            fastUntil = System.nanoTime() + unit.toNanos(duration);
+            interval = minInterval;
+            wakeUp = true;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * @param unit the unit of the returned value - NOT NULL
+     *
+     * @return the current poll interval
+     */
+    public long getInterval(TimeUnit unit) {
+        return unit.convert(interval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of polls done so far
+     */
+    public long getPolls() {
+        return polls;
+    }
+
+    /**
+     * @return the number of polls that returned no events
+     */
+    public long getEmptyPolls() {
+        return emptyPolls;
+    }
+
+    /**
+     * @return the number of events received so far
+     */
+    public long getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the number of failed polls
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the error of the last failed poll, null if none
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return the average number of polls per second since the poller has
+     *         been started
+     */
+    public double getPollRate() {
+        long elapsed = System.nanoTime() - startTime;
+        return (startTime == 0 || elapsed <= 0)
+             ? 0
+             : polls * 1e9 / elapsed;
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void poll() {
+        boolean eventMode = false;
+
+        while (running) {
+            synchronized (lock) {
+                while (running && paused) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException x) {
+                        running = false;
+                    }
+                }
+                if (!running) {
+                    break;
+                }
+                polling = true;
+            }
+            try {
+                if (!eventMode) {
+                    initiator.setEventMode(1);
+                    eventMode = true;
+                }
+                int n = initiator.getEvents(listeners);
+
+                ++polls;
+                events += n;
+                if (n == 0) {
+                    ++emptyPolls;
+                }
+                interval = (n > 0 || fastUntil - System.nanoTime() > 0)
+                         ? minInterval
+                         : Math.min(2 * interval, maxInterval);
+            } catch (PTPException | RuntimeException x) {
+                //
+                // the camera may have been reset: set the event mode again
+                // at the next poll, which happens after the max interval
+                //
+                ++errors;
+                lastError = x;
+                eventMode = false;
+                interval = maxInterval;
+            }
+
+            synchronized (lock) {
+                polling = false;
+                lock.notifyAll();
+                try {
+                    if (running && !wakeUp) {
+                        TimeUnit.NANOSECONDS.timedWait(lock, interval);
+                    }
+                } catch (InterruptedException x) {
+                    running = false;
+                }
+                wakeUp = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+/**
+ * Receives the EOS events decoded by {@link EosEventParser} as they are
+ * parsed, with primitive parameters and without creating any object per
+ * event. All methods do nothing by default, so that implementations need to
+ * override only the events they are interested in.
+ *
+ * <p> Callbacks are invoked on the thread parsing the events; values passed
+ * as <code>CharSequence</code> refer to the event data and are valid only
+ * until the callback returns (use <code>toString()</code> to keep them).
+ *
+ * @author ste
+ */
+public interface EosEventVisitor {
+
+    /**
+     * A property changed (EosEventPropValueChanged); picture style
+     * properties are notified with {@link #onPictureStyleChanged}.
+     *
+     * @param property the property code
+     * @param value the new value
+     */
+    default void onPropValueChanged(int property, int value) {}
+
+    /**
+     * A picture style property changed (EosEventPropValueChanged). For
+     * monochrome styles <code>saturation</code> and <code>colorTone</code>
+     * are the filter and toning effects.
+     *
+     * @param property the property code
+     * @param monochrome true if it is a monochrome style
+     * @param contrast contrast
+     * @param sharpness sharpness
+     * @param saturation saturation or filter effect
+     * @param colorTone color tone or toning effect
+     */
+    default void onPictureStyleChanged(
+        int property, boolean monochrome, int contrast, int sharpness,
+        int saturation, int colorTone
+    ) {}
+
+    /**
+     * The values a property can be set to changed (EosEventAvailListChanged),
+     * for example because the shooting mode changed.
+     *
+     * @param property the property code
+     * @param values the allowed values, in the order given by the camera;
+     *        valid only during the call
+     * @param count the number of allowed values in <code>values</code>
+     */
+    default void onAvailListChanged(int property, int[] values, int count) {}
+
+    /**
+     * A new object has been created on the camera (EosEventObjectAddedEx)
+     *
+     * @param objectId the object handle
+     * @param storageId the storage the object is in
+     * @param format the object format
+     * @param size the object size in bytes
+     * @param parentId the handle of the parent object
+     * @param name the file name; valid only during the call
+     */
+    default void onObjectAdded(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {}
+
+    /**
+     * A new object, whose size may exceed 4GB, has been created on the
+     * camera (EosEventObjectAddedEx64); unless overridden it is notified as
+     * any other new object with {@link #onObjectAdded}.
+     *
+     * @param objectId the object handle
+     * @param storageId the storage the object is in
+     * @param format the object format
+     * @param size the object size in bytes
+     * @param parentId the handle of the parent object
+     * @param name the file name; valid only during the call
+     */
+    default void onObjectAdded64(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {
+        onObjectAdded(objectId, storageId, format, size, parentId, name);
+    }
+
+    /**
+     * An object has been deleted from the camera (EosEventObjectRemoved)
+     *
+     * @param objectId the object handle
+     */
+    default void onObjectRemoved(int objectId) {}
+
+    /**
+     * The status of a storage changed (EosEventStorageStatusChanged), e.g.
+     * a card has been inserted or removed
+     *
+     * @param storageId the storage
+     * @param status the new status, as given by the camera
+     */
+    default void onStorageStatusChanged(int storageId, int status) {}
+
+    /**
+     * Progress of a bulb exposure (EosEventBulbExposureTime)
+     *
+     * @param seconds the elapsed exposure time in seconds
+     */
+    default void onBulbExposureTime(int seconds) {}
+
+    /**
+     * Autofocus completed (EosEventAfResult)
+     *
+     * @param result the result, as given by the camera
+     */
+    default void onAfResult(int result) {}
+
+    /**
+     * The camera status changed (EosEventCameraStatusChanged)
+     *
+     * @param status the new status
+     */
+    default void onCameraStatus(int status) {}
+
+    /**
+     * The shutdown timer has been updated (EosEventShutdownTimerUpdated)
+     */
+    default void onShutdownTimerUpdated() {}
+
+    /**
+     * The camera is going to power off soon (EosEventWillSoonShutdown)
+     */
+    default void onWillSoonShutdown() {}
+}
@@ -0,0 +1,444 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import ste.ptp.Data;
+import ste.ptp.LatencyHistogram;
+import ste.ptp.PTPException;
+
+/**
+ * Shoots focus stacks: for each frame the focus is moved by a number of
+ * lens steps (EosDriveLens), then the shutter is released and, once the
+ * camera notifies the new object, the next frame starts while the object
+ * is downloaded by a separate thread.
+ *
+ * <p> The end of each lens movement is detected with the EosEventAfResult
+ * event, polling the camera at a short interval rather than sleeping for a
+ * fixed time; if the event does not come within the lens timeout the
+ * sequence goes on anyway and the timeout is counted (see
+ * {@link #getLensTimeouts()}), as not all lenses report it.
+ *
+ * <p> The time taken by each phase is recorded: lens movement, release,
+ * capture (from the release to the object notification) and download, as
+ * well as the total time of the stack. Downloads share the USB connection
+ * with the sequence, one chunk at a time, so smaller chunks delay the
+ * sequence less. The phases of each capture can also be traced with
+ * {@link #setTrace(EosCaptureTrace)}.
+ *
+ * @author ste
+ */
+public class EosFocusStack implements EosEventVisitor {
+
+    /**
+     * Default size of the partial object reads
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    private static final int ASSOCIATION = 0x3001;
+
+    private final EosInitiator camera;
+    private final EosObjectSink sink;
+    private final int chunkSize;
+
+    private int step = EosInitiator.DRIVE_LENS_FAR_1;
+    private int stepsPerFrame = 1;
+    private boolean liveView = true;
+    private long pollInterval = TimeUnit.MILLISECONDS.toNanos(5);
+    private long lensTimeout = TimeUnit.SECONDS.toNanos(2);
+    private long objectTimeout = TimeUnit.SECONDS.toNanos(30);
+
+    private final LatencyHistogram lens = new LatencyHistogram();
+    private final LatencyHistogram release = new LatencyHistogram();
+    private final LatencyHistogram capture = new LatencyHistogram();
+    private final LatencyHistogram download = new LatencyHistogram();
+
+    private volatile long frames, downloaded, lensTimeouts, totalTime;
+
+    //
+    // set by the events while waiting
+    //
+    private boolean lensDone;
+    private int added;
+    private long released;
+
+    private final BlockingQueue<PendingObject> queue = new LinkedBlockingQueue<>();
+    private volatile Exception downloadError;
+    private volatile EosCaptureTrace trace;
+
+    /**
+     * @param camera the camera - NOT NULL
+     * @param sink where the frames are written - NOT NULL
+     */
+    public EosFocusStack(EosInitiator camera, EosObjectSink sink) {
+        this(camera, sink, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param camera the camera - NOT NULL
+     * @param sink where the frames are written - NOT NULL
+     * @param chunkSize size of the partial object reads
+     */
+    public EosFocusStack(EosInitiator camera, EosObjectSink sink, int chunkSize) {
+        if (camera == null) {
+            throw new IllegalArgumentException("camera can not be null");
+        }
+        if (sink == null) {
+            throw new IllegalArgumentException("sink can not be null");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        this.camera = camera;
+        this.sink = sink;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param step the lens step (one of the <code>DRIVE_LENS_</code> steps
+     *        of {@link EosInitiator}); the default is the smallest step
+     *        towards infinity
+     * @param stepsPerFrame how many steps between two frames
+     */
+    public void setStep(int step, int stepsPerFrame) {
+        if (stepsPerFrame <= 0) {
+            throw new IllegalArgumentException("stepsPerFrame must be greater than 0");
+        }
+        this.step = step;
+        this.stepsPerFrame = stepsPerFrame;
+    }
+
+    /**
+     * @param liveView true (default) to turn the live view, required to
+     *        drive the lens, on for the stack and off at the end; false if
+     *        it is already on
+     */
+    public void setLiveView(boolean liveView) {
+        this.liveView = liveView;
+    }
+
+    /**
+     * @param interval how often the camera is polled for events while
+     *        waiting for the lens or a new object
+     * @param unit the unit of interval - NOT NULL
+     */
+    public void setPollInterval(long interval, TimeUnit unit) {
+        pollInterval = unit.toNanos(interval);
+    }
+
+    /**
+     * @param timeout how long to wait for the end of a lens movement
+     * @param unit the unit of timeout - NOT NULL
+     */
+    public void setLensTimeout(long timeout, TimeUnit unit) {
+        lensTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param timeout how long to wait for the object of a release
+     * @param unit the unit of timeout - NOT NULL
+     */
+    public void setObjectTimeout(long timeout, TimeUnit unit) {
+        objectTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * @param trace where to trace the phases of the captures; null (the
+     *        default) for no tracing
+     */
+    public void setTrace(EosCaptureTrace trace) {
+        this.trace = trace;
+    }
+
+    /**
+     * Shoots a stack of the given number of frames, moving the focus before
+     * each frame but the first one, and returns when all frames have been
+     * written to the sink.
+     *
+     * @param frames the number of frames
+     *
+     * @throws PTPException in case of errors or if an object does not
+     *         arrive within the object timeout
+     * @throws IOException if the sink fails
+     */
+    public void run(int frames) throws PTPException, IOException {
+        if (frames <= 0) {
+            throw new IllegalArgumentException("frames must be greater than 0");
+        }
+
+        long start = System.nanoTime();
+        this.frames = this.downloaded = this.lensTimeouts = 0;
+        downloadError = null;
+        queue.clear();
+
+        if (!camera.isArmed()) {
+            camera.arm();
+        }
+        EosEventPoller poller = camera.getEventPoller();
+        boolean paused = poller.isRunning() && !poller.isPaused();
+        if (paused) {
+            poller.pause();
+        }
+        if (liveView) {
+            camera.initiateViewFinder();
+        }
+
+        Thread downloader = new Thread(this::download, "eos-focus-stack-download");
+        downloader.setDaemon(true);
+        downloader.start();
+        try {
+            //
+            // objects the camera may still have to notify are not part of
+            // the stack
+            //
+            added = -1;
+            camera.getEvents(this);
+
+            for (int i = 0; i < frames && downloadError == null; ++i) {
+                if (i > 0) {
+                    for (int s = 0; s < stepsPerFrame; ++s) {
+                        moveLens();
+                    }
+                }
+                shoot();
+                ++this.frames;
+            }
+        } finally {
+            queue.add(PendingObject.END);
+            try {
+                downloader.join();
+            } catch (InterruptedException x) {
+                downloader.interrupt();
+                Thread.currentThread().interrupt();
+            }
+            try {
+                if (liveView) {
+                    camera.terminateViewFinder();
+                }
+            } finally {
+                if (paused) {
+                    poller.resume();
+                }
+            }
+        }
+        totalTime = System.nanoTime() - start;
+
+        checkDownload();
+    }
+
+    /**
+     * @return the time taken by each lens movement, until the camera
+     *         notified its end
+     */
+    public LatencyHistogram getLensTime() {
+        return lens;
+    }
+
+    /**
+     * @return the time taken by each release
+     */
+    public LatencyHistogram getReleaseTime() {
+        return release;
+    }
+
+    /**
+     * @return the time from each release to the notification of the object
+     */
+    public LatencyHistogram getCaptureTime() {
+        return capture;
+    }
+
+    /**
+     * @return the time taken by each download
+     */
+    public LatencyHistogram getDownloadTime() {
+        return download;
+    }
+
+    /**
+     * @param unit the unit of the returned value - NOT NULL
+     *
+     * @return the total time of the last stack, from the start to the last
+     *         byte written
+     */
+    public long getTotalTime(TimeUnit unit) {
+        return unit.convert(totalTime, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of frames shot in the last stack
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of objects downloaded in the last stack
+     */
+    public long getDownloaded() {
+        return downloaded;
+    }
+
+    /**
+     * @return how many lens movements have not been notified in time
+     */
+    public long getLensTimeouts() {
+        return lensTimeouts;
+    }
+
+    // ------------------------------------------------------ EosEventVisitor
+
+    @Override
+    public void onAfResult(int result) {
+        lensDone = true;
+    }
+
+    @Override
+    public void onObjectAdded(
+        int objectId, int storageId, int format, long size, int parentId,
+        CharSequence name
+    ) {
+        if (format == ASSOCIATION || added < 0) {
+            return;
+        }
+        queue.add(new PendingObject(objectId, name.toString(), size));
+        ++added;
+        if (trace != null) {
+            trace.objectAdded(objectId, size, released, System.nanoTime());
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void moveLens() throws PTPException, IOException {
+        long start = System.nanoTime();
+        lensDone = false;
+        camera.driveLens(step);
+        if (!waitFor(() -> lensDone, lensTimeout)) {
+            ++lensTimeouts;
+        }
+        lens.record(System.nanoTime() - start);
+    }
+
+    private void shoot() throws PTPException, IOException {
+        added = 0;
+        long start = released = System.nanoTime();
+        camera.trigger();
+        long end = System.nanoTime();
+        release.record(end - start);
+        if (trace != null) {
+            trace.release(start);
+        }
+
+        if (!waitFor(() -> added > 0, objectTimeout)) {
+            throw new PTPException(String.format(
+                "frame %d not received in %d ms", frames + 1,
+                TimeUnit.NANOSECONDS.toMillis(objectTimeout)
+            ));
+        }
+        capture.record(System.nanoTime() - end);
+    }
+
+    //
+    // polls the events until the condition holds or the timeout expires; a
+    // failed download is rethrown instead of being reported as a timeout
+    //
+    private boolean waitFor(BooleanSupplier condition, long timeout)
+    throws PTPException, IOException {
+        long deadline = System.nanoTime() + timeout;
+        for (;;) {
+            camera.getEvents(this);
+            if (condition.getAsBoolean()) {
+                return true;
+            }
+            checkDownload();
+            if (System.nanoTime() - deadline >= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(pollInterval);
+        }
+    }
+
+    private void checkDownload() throws PTPException, IOException {
+        if (downloadError instanceof PTPException) {
+            throw (PTPException)downloadError;
+        } else if (downloadError instanceof IOException) {
+            throw (IOException)downloadError;
+        } else if (downloadError != null) {
+            throw new PTPException("download failed", downloadError);
+        }
+    }
+
+    private void download() {
+        Data chunk = new Data(true, new byte[12 + chunkSize], camera);
+        EosCaptureTrace trace = this.trace;
+        try {
+            for (;;) {
+                PendingObject o = queue.take();
+                if (o == PendingObject.END) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                sink.begin(o.objectId, o.name, o.size);
+                long offset = 0;
+                while (offset < o.size) {
+                    long requested = System.nanoTime();
+                    int len = camera.getObjectChunk(o.objectId, offset, o.size, chunkSize, chunk);
+                    if (trace != null) {
+                        trace.chunk(o.objectId, len, requested, System.nanoTime());
+                    }
+                    sink.write(chunk.getData(), 12, len);
+                    offset += len;
+                }
+                sink.end(o.objectId);
+                if (trace != null) {
+                    trace.written(o.objectId, System.nanoTime());
+                }
+                camera.transferComplete(o.objectId);
+                if (trace != null) {
+                    trace.transferComplete(o.objectId, System.nanoTime());
+                }
+                download.record(System.nanoTime() - start);
+                ++downloaded;
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (PTPException | IOException | RuntimeException x) {
+            downloadError = x;
+        }
+    }
+
+    private static final class PendingObject {
+        static final PendingObject END = new PendingObject(0, null, 0);
+
+        final int objectId;
+        final String name;
+        final long size;
+
+        PendingObject(int objectId, String name, long size) {
+            this.objectId = objectId;
+            this.name = name;
+            this.size = size;
+        }
+    }
+}
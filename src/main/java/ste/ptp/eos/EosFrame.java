@@ -0,0 +1,105 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import ste.ptp.Data;
+import ste.ptp.NameFactory;
+
+/**
+ * A live view frame: the JPEG image is a slice of the buffer the frame has
+ * been received in, so that it does not need to be copied. Frames are owned
+ * by an {@link EosFrameRing} and reused; the content of a frame is valid
+ * only until it is given back to the ring.
+ *
+ * @author ste
+ */
+public final class EosFrame {
+
+    final Data container;
+
+    int offset, length;
+    long sequence, timestamp, latency;
+
+    int refs;  // readers holding the frame, guarded by the ring
+
+    EosFrame(int capacity, NameFactory factory) {
+        container = new Data(true, new byte[capacity], factory);
+    }
+
+    /**
+     * @return the buffer holding the image; it may hold other data too
+     */
+    public byte[] getData() {
+        return container.getData();
+    }
+
+    /**
+     * @return where the image starts in {@link #getData()}
+     */
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return the length of the image in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * @return a read only view of the image, without copying it
+     */
+    public ByteBuffer getImage() {
+        return ByteBuffer.wrap(getData(), offset, length).slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the image to the given stream
+     *
+     * @param out the stream - NOT NULL
+     *
+     * @throws IOException if the stream can not be written
+     */
+    public void writeImage(OutputStream out) throws IOException {
+        out.write(getData(), offset, length);
+    }
+
+    /**
+     * @return the sequence number of the frame, starting from 1
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return when the frame has been received ({@link System#nanoTime()})
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return how long the camera took to deliver the frame, in nanoseconds
+     */
+    public long getLatency() {
+        return latency;
+    }
+}
@@ -0,0 +1,214 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import ste.ptp.NameFactory;
+
+/**
+ * A fixed set of reusable live view frames passed from the thread reading
+ * them from the camera to a consumer. Frames go around in a cycle: the
+ * producer claims a free frame, fills it and publishes it; the consumer
+ * takes the published frames, oldest first, and releases them when done.
+ *
+ * <p> The producer never waits: if no frame is free, the oldest published
+ * frame not yet taken is dropped and reused, so that a slow consumer sees
+ * fewer, but recent, frames. No objects are created after construction.
+ *
+ * <p> A taken frame can be shared by more readers with
+ * {@link #retain(EosFrame, int)}: it goes back to the free frames when
+ * released as many times as it has been taken and retained.
+ *
+ * @author ste
+ */
+public final class EosFrameRing {
+
+    private final EosFrame[] free;
+    private int nfree;
+
+    private final EosFrame[] queue;
+    private int head, count;
+
+    private long published, dropped;
+
+    /**
+     * @param frames the number of frames - at least 2
+     * @param capacity the initial size of the frame buffers; a frame
+     *        grows if the camera sends a larger one
+     * @param factory the name factory of the frames (usually the camera)
+     */
+    public EosFrameRing(int frames, int capacity, NameFactory factory) {
+        if (frames < 2) {
+            throw new IllegalArgumentException("frames must be at least 2");
+        }
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be greater than 0");
+        }
+
+        free = new EosFrame[frames];
+        queue = new EosFrame[frames];
+        for (int i = 0; i < frames; ++i) {
+            free[nfree++] = new EosFrame(capacity, factory);
+        }
+    }
+
+    /**
+     * Returns a frame to fill, dropping the oldest published one if no
+     * frame is free
+     *
+     * @return the frame or null if all frames are held by the consumer
+     */
+    public synchronized EosFrame claim() {
+        if (nfree > 0) {
+            return free[--nfree];
+        }
+        if (count > 0) {
+            EosFrame frame = queue[head];
+            queue[head] = null;
+            head = (head + 1) % queue.length;
+            --count;
+            ++dropped;
+            return frame;
+        }
+        return null;
+    }
+
+    /**
+     * Makes a claimed frame available to the consumer
+     *
+     * @param frame the frame
+     */
+    public synchronized void publish(EosFrame frame) {
+        queue[(head + count) % queue.length] = frame;
+        ++count;
+        ++published;
+        notifyAll();
+    }
+
+    /**
+     * Gives back a claimed frame without publishing it (e.g. the camera had
+     * no new frame)
+     *
+     * @param frame the frame
+     */
+    public synchronized void abandon(EosFrame frame) {
+        free[nfree++] = frame;
+    }
+
+    /**
+     * @return the oldest published frame or null if none
+     */
+    public synchronized EosFrame poll() {
+        if (count == 0) {
+            return null;
+        }
+        EosFrame frame = queue[head];
+        queue[head] = null;
+        head = (head + 1) % queue.length;
+        --count;
+        frame.refs = 1;
+        return frame;
+    }
+
+    /**
+     * Waits for a published frame
+     *
+     * @param timeout how long to wait at most
+     * @param unit the unit of timeout - NOT NULL
+     *
+     * @return the oldest published frame or null if none was published in
+     *         time
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized EosFrame take(long timeout, TimeUnit unit)
+    throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (count == 0) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return poll();
+    }
+
+    /**
+     * Adds readers to a taken frame, so that it is not reused until each of
+     * them has released it
+     *
+     * @param frame a taken frame
+     * @param readers the number of readers to add
+     */
+    public synchronized void retain(EosFrame frame, int readers) {
+        if (frame.refs <= 0) {
+            throw new IllegalStateException("frame not taken");
+        }
+        frame.refs += readers;
+    }
+
+    /**
+     * Gives back a frame taken by the consumer (or one of its readers); the
+     * frame is reused once released by all readers
+     *
+     * @param frame the frame
+     */
+    public synchronized void release(EosFrame frame) {
+        if (frame.refs <= 0) {
+            throw new IllegalStateException("frame not taken");
+        }
+        if (--frame.refs == 0) {
+            free[nfree++] = frame;
+        }
+    }
+
+    /**
+     * @return the number of frames of the ring
+     */
+    public int getFrames() {
+        return free.length;
+    }
+
+    /**
+     * @return the number of frames neither published nor taken
+     */
+    public synchronized int getFree() {
+        return nfree;
+    }
+
+    /**
+     * @return the number of frames published so far
+     */
+    public synchronized long getPublished() {
+        return published;
+    }
+
+    /**
+     * @return the number of published frames dropped before being taken
+     */
+    public synchronized long getDropped() {
+        return dropped;
+    }
+
+    /**
+     * @return the number of published frames waiting to be taken
+     */
+    public synchronized int size() {
+        return count;
+    }
+}
@@ -16,14 +16,18 @@
 //
 package ste.ptp.eos;
 
-import java.io.ByteArrayInputStream;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import javax.usb.UsbDevice;
 import ste.ptp.BaselineInitiator;
+import ste.ptp.Buffer;
 import ste.ptp.Command;
 import ste.ptp.Data;
 import ste.ptp.DevicePropDesc;
+import ste.ptp.LatencyHistogram;
 import ste.ptp.PTPException;
 import ste.ptp.PTPUnsupportedException;
 import ste.ptp.Response;
@@ -40,12 +44,105 @@ import ste.ptp.Response;
  */
 public class EosInitiator extends BaselineInitiator {
 
+    /**
+     * Response to EosGetViewFinderData when there is no new frame yet
+     */
+    public static final int VIEWFINDER_NOT_READY = 0xA102;
+
+    /**
+     * Focus steps for {@link #driveLens(int)}, from the smallest to the
+     * largest, towards the nearest focus distance or towards infinity
+     */
+    public static final int DRIVE_LENS_NEAR_1 = 0x0001;
+    public static final int DRIVE_LENS_NEAR_2 = 0x0002;
+    public static final int DRIVE_LENS_NEAR_3 = 0x0003;
+    public static final int DRIVE_LENS_FAR_1  = 0x8001;
+    public static final int DRIVE_LENS_FAR_2  = 0x8002;
+    public static final int DRIVE_LENS_FAR_3  = 0x8003;
+
+    /**
+     * For how long (in milliseconds) the event poller polls fast after a
+     * capture
+     */
+    private static final long CAPTURE_FAST_POLL = 5000;
+
+    /**
+     * Drains the events received when arming
+     */
+    private static final EosEventVisitor IGNORE = new EosEventVisitor() {};
+
+    /**
+     * Offset of the 64 bit compressed size in an EosGetObjectInfo64 data
+     * container: it follows the storage id, the format and the protection
+     * status, as in ObjectInfo
+     */
+    private static final int OBJECT_INFO64_SIZE = 12 + 8;
+
+    /**
+     * Receives the events at each poll
+     */
+    private final Data eventData;
+
+    /**
+     * Parses the events at each poll; it also serializes the polls
+     */
+    private final EosEventParser eventParser = new EosEventParser(new byte[0], 0, 0);
+
+    /**
+     * Property values folded from the received events
+     */
+    private final EosCameraState state = new EosCameraState();
+
+    /**
+     * Notifies the received events to the state and then to the visitor
+     * of the current poll
+     */
+    private final EosEventMulticast multicast = new EosEventMulticast(state, null);
+
+    /**
+     * The background event poller, created on demand
+     */
+    private EosEventPoller poller;
+
+    /**
+     * The keep-alive, created on demand
+     */
+    private EosKeepAlive keepAlive;
+
+    /**
+     * True once remote mode and event mode have been set by {@link #arm()}
+     */
+    private volatile boolean armed;
+
+    /**
+     * True while the shutter button is kept half pressed by
+     * {@link #preFocus()}
+     */
+    private volatile boolean focused;
+
+    /**
+     * Time from the issue of a trigger to the response of the camera
+     */
+    private final LatencyHistogram triggerLatency = new LatencyHistogram();
+
     /**
      * This is essentially a class driver, following Annex D of
      * the PTP specification.
      */
     public EosInitiator(UsbDevice dev) throws PTPException {
         super(dev);
+        eventData = new Data(true, new byte[inMaxPS], this);
+    }
+
+    /**
+     * Constructs an initiator not bound to any USB device, to simulate a
+     * camera (see {@link BaselineInitiator#BaselineInitiator(int)}).
+     *
+     * @param maxPacketSize max packet size of the simulated bulk endpoints
+     */
+    protected EosInitiator(int maxPacketSize) {
+        super(maxPacketSize);
+        eventData = new Data(true, new byte[inMaxPS], this);
     }
 
     /**
@@ -58,7 +155,7 @@ public class EosInitiator extends BaselineInitiator {
      */
     public int getDevicePropDesc(int propcode, DevicePropDesc desc)
             throws PTPException {
-        return transact1(Command.GetDevicePropDesc, desc, propcode).getCode();
+        return transactCode1(Command.GetDevicePropDesc, desc, propcode);
     }
 
     /**
@@ -71,41 +168,193 @@ public class EosInitiator extends BaselineInitiator {
      */
     public List<EosEvent> checkEvents()
             throws PTPException {
-        int ret = transact1(Command.EosSetEventMode, null, 1).getCode();
+        EosEventCollector collector = new EosEventCollector();
+
+        checkEvents(collector);
+
+        return collector.getEvents();
+    }
+
+    /**
+     * Checks if there is any event available and notifies the available
+     * events to the given visitor as they are parsed. The buffer receiving
+     * the events and the parser are reused, so that polling does not create
+     * objects once the buffer is large enough.
+     *
+     * @param visitor the visitor - NOT NULL
+     *
+     * @return the number of events received
+     *
+     * @throws PTPException in case of errors
+     */
+    public int checkEvents(EosEventVisitor visitor)
+            throws PTPException {
+        if (visitor == null) {
+            throw new IllegalArgumentException("visitor can not be null");
+        }
+
+        synchronized (eventParser) {
+            setEventMode(1);
+
+            return getEvents(visitor);
+        }
+    }
+
+    /**
+     * Sets the event mode of the camera; the camera reports events with
+     * {@link #getEvents(EosEventVisitor)} only in mode 1.
+     *
+     * @param mode the event mode
+     *
+     * @throws PTPException in case of errors
+     */
+    public void setEventMode(int mode) throws PTPException {
+        int ret = transactCode1(Command.EosSetEventMode, null, mode);
         if (ret != Response.OK) {
             throw new PTPException("Error reading events", ret);
         }
+    }
 
-        Data data = new Data(this);
-        Response res = transact0(Command.EosGetEvent, data);
-        if (res.getCode() != Response.OK) {
-            throw new PTPException(String.format("Failed getting events from the camera (%1$04X)", res.getCode()));
+    /**
+     * Reads the available events and notifies them to the given visitor,
+     * as {@link #checkEvents(EosEventVisitor)} does, but without setting the
+     * event mode first; use it when the event mode has already been set.
+     * The events also update the camera state (see {@link #getCameraState()})
+     * before reaching the visitor.
+     *
+     * @param visitor the visitor - NOT NULL
+     *
+     * @return the number of events received
+     *
+     * @throws PTPException in case of errors
+     */
+    public int getEvents(EosEventVisitor visitor)
+            throws PTPException {
+        if (visitor == null) {
+            throw new IllegalArgumentException("visitor can not be null");
         }
 
-        //System.out.println("Event data:");
-        //data.dump();
-
-        //
-        // We need to discard the initial 12 USB header bytes
-        //
-        byte[] buf = new byte[data.getLength() - 12];
-        System.arraycopy(data.getData(), 12, buf, 0, buf.length);
+        synchronized (eventParser) {
+            int ret = transactCode0(Command.EosGetEvent, eventData);
+            if (ret != Response.OK) {
+                throw new PTPException(String.format("Failed getting events from the camera (%1$04X)", ret));
+            }
 
-        EosEventParser parser = new EosEventParser(new ByteArrayInputStream(buf));
+            //System.out.println("Event data:");
+            //eventData.dump();
 
-        ArrayList<EosEvent> events = new ArrayList<EosEvent>();
-        while (parser.hasEvents()) {
+            //
+            // Events are parsed in place, skipping the initial 12 USB header bytes
+            //
+            eventParser.reset(
+                eventData.getData(), 12, eventData.getLength() - 12
+            );
+            multicast.set(1, visitor);
             try {
-                events.add(parser.getNextEvent());
-            } catch (PTPUnsupportedException e) {
-                //
-                // TODO: log this information?
-                //
-                //System.err.println("Skipping unsupported event");
+                return eventParser.accept(multicast);
+            } finally {
+                multicast.set(1, null);
             }
         }
+    }
+
+    /**
+     * Returns the state of the camera, as folded from the events received so
+     * far (by any poll, including the event poller's ones).
+     *
+     * @return the camera state
+     */
+    public EosCameraState getCameraState() {
+        return state;
+    }
+
+    /**
+     * Checks locally, without talking to the camera, if a property can be
+     * set to the given value, as announced by the camera with
+     * EosEventAvailListChanged
+     *
+     * @param property the property code
+     * @param value the value
+     *
+     * @return true if the value is allowed or the allowed values are not
+     *         known yet
+     */
+    public boolean isAllowed(int property, int value) {
+        return state.isAllowed(property, value);
+    }
+
+    /**
+     * @param property the property code
+     * @param value the value
+     *
+     * @return the allowed value nearest to the given one (see
+     *         {@link EosCameraState#nearestAllowed(int, int)})
+     */
+    public int nearestAllowed(int property, int value) {
+        return state.nearestAllowed(property, value);
+    }
+
+    /**
+     * Returns the background poller of this initiator, creating it (not
+     * started) the first time.
+     *
+     * @return the event poller
+     */
+    public synchronized EosEventPoller getEventPoller() {
+        if (poller == null) {
+            poller = new EosEventPoller(this);
+        }
+        return poller;
+    }
+
+    /**
+     * Returns the keep-alive of this initiator, creating it (not started)
+     * the first time.
+     *
+     * @return the keep-alive
+     */
+    public synchronized EosKeepAlive getKeepAlive() {
+        if (keepAlive == null) {
+            keepAlive = new EosKeepAlive(this);
+        }
+        return keepAlive;
+    }
 
-        return events;
+    /**
+     * Stops the keep-alive and the event poller, if any, then closes the
+     * session and releases the device.
+     *
+     * @throws PTPException
+     */
+    @Override
+    public void close() throws PTPException {
+        EosEventPoller p;
+        EosKeepAlive k;
+        synchronized (this) {
+            p = poller;
+            k = keepAlive;
+        }
+        if (k != null) {
+            k.stop();
+        }
+        if (p != null) {
+            p.stop();
+        }
+        armed = focused = false;
+        super.close();
+    }
+
+    /**
+     * @param code an event code
+     *
+     * @return how many events with the given code have been received by
+     *         {@link #checkEvents(EosEventVisitor)} and skipped because not
+     *         supported
+     */
+    public long getSkippedEvents(int code) {
+        synchronized (eventParser) {
+            return eventParser.getSkipped(code);
+        }
     }
 
     /**
@@ -127,24 +376,215 @@ public class EosInitiator extends BaselineInitiator {
     public void initiateCapture(int storageId, int formatCode)
             throws PTPException {
         //
-        // Special initialization for EOS cameras
+        // Special initialization for EOS cameras; it is done once, following
+        // captures just release the shutter
         //
-        if (!info.supportsOperation(Command.EosRemoteRelease)) {
+        if (!armed) {
+            arm();
+        }
+
+        trigger();
+    }
+
+    /**
+     * Prepares the camera for low latency captures: sets remote mode and
+     * event mode and drains the pending events (the camera state is
+     * updated). Once armed, {@link #trigger()} issues just the release.
+     * Arming an armed camera does it again.
+     *
+     * @throws PTPException if the camera does not support EOS capture or
+     *         can not be armed
+     */
+    public void arm() throws PTPException {
+        if (!supports(Command.EosRemoteRelease)) {
             throw new PTPException("The camera does not support EOS capture");
         }
 
-        int ret = transact1(Command.EosSetRemoteMode, null, 1).getCode();
+        armed = false;
+        setRemoteMode(1);
+        synchronized (eventParser) {
+            setEventMode(1);
+            getEvents(IGNORE);
+        }
+        armed = true;
+    }
+
+    /**
+     * Lets the shutter button go, if half pressed, and takes the camera
+     * out of remote mode. It does nothing if the camera is not armed.
+     *
+     * @throws PTPException in case of errors
+     */
+    public void disarm() throws PTPException {
+        if (!armed) {
+            return;
+        }
+        cancelFocus();
+        setRemoteMode(0);
+    }
+
+    /**
+     * @return true if the camera is armed (see {@link #arm()})
+     */
+    public boolean isArmed() {
+        return armed;
+    }
+
+    /**
+     * Focuses in advance, so that the next {@link #trigger()} does not
+     * wait for the autofocus: the shutter button is half pressed with
+     * EosRemoteReleaseOn and kept pressed until the trigger or
+     * {@link #cancelFocus()}. Cameras not supporting it are asked to focus
+     * with EosDoAF instead.
+     *
+     * @throws PTPException if the camera is not armed or fails to focus
+     */
+    public void preFocus() throws PTPException {
+        checkArmed();
+
+        if (supports(Command.EosRemoeReleaseOn)) {
+            if (!focused) {
+                int ret = transactCode2(Command.EosRemoeReleaseOn, null, 1, 0);
+                if (ret != Response.OK) {
+                    throw new PTPException("Unable to focus", ret);
+                }
+                focused = true;
+            }
+        } else {
+            int ret = transactCode0(Command.EosDoAF, null);
+            if (ret != Response.OK) {
+                throw new PTPException("Unable to focus", ret);
+            }
+        }
+    }
+
+    /**
+     * Moves the focus of the lens by one step (EosDriveLens); the command
+     * returns before the lens stops, which the camera notifies with
+     * EosEventAfResult. The live view must be on.
+     *
+     * @param step one of the <code>DRIVE_LENS_</code> steps
+     *
+     * @throws PTPException in case of errors
+     */
+    public void driveLens(int step) throws PTPException {
+        int ret = transactCode1(Command.EosDriveLens, null, step);
         if (ret != Response.OK) {
-            throw new PTPException("Unale to set remote mode", ret);
+            throw new PTPException("Unable to drive the lens", ret);
         }
+    }
 
-        //
-        // TODO: cover the case where initialization has already been done
-        //
+    /**
+     * Lets the shutter button go if half pressed by {@link #preFocus()}
+     *
+     * @throws PTPException in case of errors
+     */
+    public void cancelFocus() throws PTPException {
+        if (focused) {
+            focused = false;
+            buttonOff(1);
+        }
+    }
 
-        checkEvents();
+    /**
+     * Releases the shutter of an armed camera, issuing nothing but the
+     * release: EosRemoteRelease or, if the camera has been focused with
+     * {@link #preFocus()}, the full press of the shutter button (the button
+     * is then let go). The time taken by the camera to accept the release
+     * is recorded in {@link #getTriggerLatency()}.
+     *
+     * @throws PTPException if the camera is not armed or does not release
+     */
+    public void trigger() throws PTPException {
+        checkArmed();
+
+        long start = System.nanoTime();
+        if (focused) {
+            int ret = transactCode2(Command.EosRemoeReleaseOn, null, 2, 0);
+            triggerLatency.record(System.nanoTime() - start);
+            if (ret != Response.OK) {
+                throw new PTPException("Canon EOS Capture failed to release", ret);
+            }
+            focused = false;
+            buttonOff(2);
+            buttonOff(1);
+            pollFast();
+        } else {
+            try {
+                remoteRelease();
+            } finally {
+                triggerLatency.record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Opens the shutter of an armed camera for a bulb exposure, which lasts
+     * until {@link #bulbEnd()}; the camera must be in bulb mode.
+     *
+     * @throws PTPException if the camera is not armed or does not open the
+     *         shutter
+     */
+    public void bulbStart() throws PTPException {
+        checkArmed();
+
+        long start = System.nanoTime();
+        int ret = transactCode0(Command.EosBulbStart, null);
+        triggerLatency.record(System.nanoTime() - start);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to start the bulb exposure", ret);
+        }
+    }
+
+    /**
+     * Closes the shutter opened by {@link #bulbStart()}
+     *
+     * @throws PTPException in case of errors
+     */
+    public void bulbEnd() throws PTPException {
+        int ret = transactCode0(Command.EosBulbEnd, null);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to end the bulb exposure", ret);
+        }
+        pollFast();
+    }
 
-        ret = transact0(Command.EosRemoteRelease, null).getCode();
+    /**
+     * @return the latencies of the triggers so far, from the issue of the
+     *         release to the response of the camera
+     */
+    public LatencyHistogram getTriggerLatency() {
+        return triggerLatency;
+    }
+
+    /**
+     * Sets the remote mode of the camera; mode 1 is required to release
+     * the shutter remotely. Any other mode disarms the camera.
+     *
+     * @param mode the remote mode
+     *
+     * @throws PTPException in case of errors
+     */
+    public void setRemoteMode(int mode) throws PTPException {
+        if (mode != 1) {
+            armed = false;
+        }
+        int ret = transactCode1(Command.EosSetRemoteMode, null, mode);
+        if (ret != Response.OK) {
+            throw new PTPException("Unale to set remote mode", ret);
+        }
+    }
+
+    /**
+     * Releases the shutter, without any of the preparation done by
+     * {@link #initiateCapture(int, int)}: remote mode and event mode shall
+     * have been set already. This is what repeated captures (e.g. a burst)
+     * should use.
+     *
+     * @throws PTPException if the camera does not release
+     */
+    public void remoteRelease() throws PTPException {
+        int ret = transactCode0(Command.EosRemoteRelease, null);
         if (ret != Response.OK) {
             String msg = "Canon EOS Capture failed to release: Unknown error "
                     + ret
@@ -157,6 +597,57 @@ public class EosInitiator extends BaselineInitiator {
 
             throw new PTPException(msg, ret);
         }
+
+        pollFast();
+    }
+
+    /**
+     * Starts the live view; frames are then read with
+     * {@link #getViewFinderData(Data)}
+     *
+     * @throws PTPException in case of errors
+     */
+    public void initiateViewFinder() throws PTPException {
+        int ret = transactCode0(Command.EosInitiateViewFinder, null);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to start the live view", ret);
+        }
+    }
+
+    /**
+     * Stops the live view
+     *
+     * @throws PTPException in case of errors
+     */
+    public void terminateViewFinder() throws PTPException {
+        int ret = transactCode0(Command.EosTerminateViewFinder, null);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to stop the live view", ret);
+        }
+    }
+
+    /**
+     * Reads the current live view frame into the given data, reusing its
+     * buffer if large enough; the frame is a sequence of records, one of
+     * them holding the JPEG image (see {@link EosLiveView}).
+     *
+     * @param data the data receiving the frame - NOT NULL
+     *
+     * @return true if a frame has been read, false if the camera has no
+     *         new frame yet
+     *
+     * @throws PTPException in case of errors
+     */
+    public boolean getViewFinderData(Data data) throws PTPException {
+        int ret = transactCode1(Command.EosGetViewFinderData, data, 0x00100000);
+        if (ret == VIEWFINDER_NOT_READY) {
+            return false;
+        }
+        if (ret != Response.OK) {
+            throw new PTPException("Error reading live view data", ret);
+        }
+
+        return true;
     }
 
     /**
@@ -171,21 +662,243 @@ public class EosInitiator extends BaselineInitiator {
      */
     public void getPartialObject(int oid, int offset, int size, Data data)
     throws PTPException {
-        Response ret =
-            transact3(Command.EosGetPartialObject, data, oid, offset, size);
+        int ret =
+            transactCode3(Command.EosGetPartialObject, data, oid, offset, size);
 
-        if (ret.getCode() != Response.OK) {
-            throw new PTPException("Error reading new object", ret.getCode());
+        if (ret != Response.OK) {
+            throw new PTPException("Error reading new object", ret);
         }
     }
 
+    /**
+     * Retrieves a chunk of the object identified by the given object id,
+     * starting at a 64 bit offset, so that objects larger than 4GB (e.g.
+     * long movies) can be read (EosGetPartialObject64 or
+     * EosGetPartialObjectEX64, whichever is supported).
+     *
+     * @param oid object id
+     * @param offset the offset to start from
+     * @param size the number of bytes to transfer
+     * @param data the Data object receiving the object
+     *
+     * @throws PTPUnsupportedException if the camera does not support 64
+     *         bit partial reads
+     * @throws PTPException in case of errors
+     */
+    public void getPartialObject64(int oid, long offset, int size, Data data)
+    throws PTPException {
+        int code = Command.EosGetPartialObject64;
+        if (!supports(code)) {
+            code = Command.EosGetPartialObjectEX64;
+            if (!supports(code)) {
+                throw new PTPUnsupportedException(
+                    "The camera does not support 64 bit partial reads"
+                );
+            }
+        }
+
+        int ret = transactCode4(
+            code, data, oid, (int)offset, (int)(offset >>> 32), size
+        );
+
+        if (ret != Response.OK) {
+            throw new PTPException("Error reading new object", ret);
+        }
+    }
+
+    /**
+     * Returns the size of the given object as reported by
+     * EosGetObjectInfo64, which gives the compressed size in 64 bits.
+     *
+     * @param oid object id
+     *
+     * @return the size of the object in bytes
+     *
+     * @throws PTPException in case of errors
+     */
+    public long getObjectSize64(int oid) throws PTPException {
+        Data info = new Data(true, new byte[inMaxPS], this);
+
+        int ret = transactCode1(Command.EosGetObjectInfo64, info, oid);
+        if (ret != Response.OK) {
+            throw new PTPException("Error reading object info", ret);
+        }
+        if (info.getLength() < OBJECT_INFO64_SIZE + 8) {
+            throw new PTPException(
+                String.format("object info too short (%d bytes)", info.getLength())
+            );
+        }
+
+        return Buffer.getS64(info.getData(), OBJECT_INFO64_SIZE);
+    }
+
+    /**
+     * Reads the chunk of an object of the given size that starts at the
+     * given offset, of at most <code>chunkSize</code> bytes; the bytes read
+     * start at offset 12 of the buffer of <code>data</code>. Objects larger
+     * than 4GB are read with {@link #getPartialObject64(int, long, int, Data)};
+     * smaller objects are read with EosGetPartialObject if the 64 bit reads
+     * are not supported.
+     *
+     * @param oid object id
+     * @param offset the offset to start from
+     * @param size the size of the object
+     * @param chunkSize the maximum number of bytes to read
+     * @param data the Data object receiving the chunk
+     *
+     * @return the number of bytes read, 0 if offset is at the end of the
+     *         object
+     *
+     * @throws PTPException in case of errors or if the camera sends no data
+     *         before the end of the object
+     */
+    public int getObjectChunk(int oid, long offset, long size, int chunkSize, Data data)
+    throws PTPException {
+        int len = (int)Math.min(chunkSize, size - offset);
+        if (len <= 0) {
+            return 0;
+        }
+
+        if ((size > 0xFFFFFFFFL)
+            || supports(Command.EosGetPartialObject64)
+            || supports(Command.EosGetPartialObjectEX64)) {
+            getPartialObject64(oid, offset, len, data);
+        } else {
+            getPartialObject(oid, (int)offset, len, data);
+        }
+
+        int n = data.getLength() - 12;
+        if (n <= 0) {
+            throw new PTPException(String.format(
+                "object 0x%08x truncated at %d of %d bytes", oid, offset, size
+            ));
+        }
+
+        return n;
+    }
+
+    /**
+     * Downloads a whole object, of any size, straight into the given
+     * channel at its current position, one chunk at a time through the
+     * same buffer (see {@link #getObjectChunk(int, long, long, int, Data)}).
+     *
+     * @param oid object id
+     * @param size the size of the object; if negative it is read with
+     *        {@link #getObjectSize64(int)}
+     * @param channel the channel receiving the object - NOT NULL
+     * @param chunkSize the size of the partial reads
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException if the channel can not be written
+     * @throws PTPException in case of errors or if the camera sends less
+     *         than the object size
+     */
+    public long getObject64(int oid, long size, WritableByteChannel channel, int chunkSize)
+    throws IOException, PTPException {
+        if (channel == null) {
+            throw new IllegalArgumentException("channel can not be null");
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("chunkSize must be greater than 0");
+        }
+        if (size < 0) {
+            size = getObjectSize64(oid);
+        }
+
+        Data chunk = new Data(true, new byte[12 + chunkSize], this);
+        ByteBuffer bb = ByteBuffer.wrap(chunk.getData());
+
+        long offset = 0;
+        while (offset < size) {
+            int n = getObjectChunk(oid, offset, size, chunkSize, chunk);
+
+            //
+            // the data buffer may have been replaced by a larger one
+            //
+            if (bb.array() != chunk.getData()) {
+                bb = ByteBuffer.wrap(chunk.getData());
+            }
+            bb.limit(12 + n).position(12);
+            while (bb.hasRemaining()) {
+                channel.write(bb);
+            }
+            offset += n;
+        }
+
+        return offset;
+    }
+
+    /**
+     * Restarts the auto power off timer of the camera (EosKeepDeviceOn); see
+     * {@link #getKeepAlive()} to do it only when needed.
+     *
+     * @throws PTPException if the camera does not accept the command
+     */
+    public void keepDeviceOn() throws PTPException {
+        int ret = transactCode0(Command.EosKeepDeviceOn, null);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to keep the device on", ret);
+        }
+    }
+
+    /**
+     * Reads the thumbnail of an object with EosGetThumbEx, if supported,
+     * otherwise with GetThumb.
+     *
+     * @param handle the object handle
+     *
+     * @return the thumbnail
+     *
+     * @throws PTPException if the camera does not return the thumbnail
+     */
+    @Override
+    public byte[] getThumb(int handle) throws PTPException {
+        return thumb(
+            supports(Command.EosGetThumbEx) ? Command.EosGetThumbEx : Command.GetThumb,
+            handle
+        );
+    }
+
     public void transferComplete(int oid)
     throws PTPException {
-        Response ret =
-            transact1(Command.EosTransferComplete, null, oid);
+        int ret =
+            transactCode1(Command.EosTransferComplete, null, oid);
+
+        if (ret != Response.OK) {
+            throw new PTPException("Error reading new object", ret);
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
 
-        if (ret.getCode() != Response.OK) {
-            throw new PTPException("Error reading new object", ret.getCode());
+    private boolean supports(int operation) {
+        return (info == null) || info.supportsOperation(operation);
+    }
+
+    private void checkArmed() throws PTPException {
+        if (!armed) {
+            throw new PTPException("camera not armed");
+        }
+    }
+
+    private void buttonOff(int button) throws PTPException {
+        int ret = transactCode1(Command.EosRemoeReleaseOff, null, button);
+        if (ret != Response.OK) {
+            throw new PTPException("Unable to release the shutter button", ret);
+        }
+    }
+
+    //
+    // the new object(s) will be notified soon
+    //
+    private void pollFast() {
+        EosEventPoller p;
+        synchronized (this) {
+            p = poller;
+        }
+        if (p != null) {
+            p.pollFastFor(CAPTURE_FAST_POLL, TimeUnit.MILLISECONDS);
         }
     }
 }
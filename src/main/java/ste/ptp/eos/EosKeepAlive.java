@@ -0,0 +1,242 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import ste.ptp.PTPException;
+
+/**
+ * Keeps an EOS camera from powering off while tethered, so that the session
+ * does not have to be opened again (which takes a reset, GetDeviceInfo and
+ * OpenSession), sending EosKeepDeviceOn from a background thread only when
+ * needed.
+ *
+ * <p> The camera restarts its auto power off timer when it is used and
+ * notifies it with EosEventShutdownTimerUpdated; a keep-alive is then
+ * scheduled after the given interval, which must be shorter than the auto
+ * power off delay of the camera, and postponed again by every further
+ * notification. If the camera notifies that it is going to power off soon
+ * (EosEventWillSoonShutdown), a keep-alive is sent at once and, if
+ * accepted, counted as an avoided reconnect (see
+ * {@link #getAvoidedShutdowns()}). Events are received from the event
+ * poller of the camera, which must be running for the keep-alive to react
+ * to them; without events, a keep-alive is sent at every interval.
+ *
+ * <p> A keep-alive is a transaction like any other, therefore it is sent
+ * between the transactions of the other threads, never in the middle of
+ * one.
+ *
+ * @author ste
+ */
+public class EosKeepAlive implements EosEventVisitor {
+
+    /**
+     * Default interval in seconds, below the shortest auto power off delay
+     * of EOS cameras
+     */
+    public static final long DEFAULT_INTERVAL = 20;
+
+    private final EosInitiator initiator;
+    private final long interval;  // nanoseconds
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private volatile boolean running;
+    private long deadline;
+    private boolean urgent;
+
+    //
+    // metrics
+    //
+    private volatile long keepAlives, warnings, avoided, postponed, errors;
+    private volatile Exception lastError;
+
+    /**
+     * Creates a keep-alive with the default interval
+     *
+     * @param initiator the camera - NOT NULL
+     */
+    public EosKeepAlive(EosInitiator initiator) {
+        this(initiator, DEFAULT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @param initiator the camera - NOT NULL
+     * @param interval the interval of the keep-alives when the camera is
+     *        not used
+     * @param unit the unit of interval - NOT NULL
+     */
+    public EosKeepAlive(EosInitiator initiator, long interval, TimeUnit unit) {
+        if (initiator == null) {
+            throw new IllegalArgumentException("initiator can not be null");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("interval must be greater than 0");
+        }
+        this.initiator = initiator;
+        this.interval = unit.toNanos(interval);
+    }
+
+    /**
+     * Starts listening to the events of the camera and sending keep-alives
+     * in a new daemon thread
+     *
+     * @throws IllegalStateException if the keep-alive is already running
+     */
+    public void start() {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("keep-alive already running");
+            }
+            running = true;
+            urgent = false;
+            deadline = System.nanoTime() + interval;
+
+            initiator.getEventPoller().addListener(this);
+            thread = new Thread(this::run, "eos-keep-alive");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops sending keep-alives and waits for the thread to terminate; it
+     * does nothing if the keep-alive is not running.
+     */
+    public void stop() {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+            t = thread;
+            thread = null;
+        }
+        initiator.getEventPoller().removeListener(this);
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * @return true if the keep-alive is running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the number of keep-alives sent
+     */
+    public long getKeepAlives() {
+        return keepAlives;
+    }
+
+    /**
+     * @return the number of shutdown warnings received
+     */
+    public long getWarnings() {
+        return warnings;
+    }
+
+    /**
+     * @return the number of shutdown warnings answered in time by a
+     *         keep-alive, i.e. the number of reconnects avoided
+     */
+    public long getAvoidedShutdowns() {
+        return avoided;
+    }
+
+    /**
+     * @return how many times a keep-alive has been postponed because the
+     *         camera was in use
+     */
+    public long getPostponed() {
+        return postponed;
+    }
+
+    /**
+     * @return the number of keep-alives failed
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the error of the last failed keep-alive, null if none
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    // ------------------------------------------------------ EosEventVisitor
+
+    @Override
+    public void onShutdownTimerUpdated() {
+        synchronized (lock) {
+            deadline = System.nanoTime() + interval;
+            ++postponed;
+        }
+    }
+
+    @Override
+    public void onWillSoonShutdown() {
+        synchronized (lock) {
+            ++warnings;
+            urgent = true;
+            lock.notifyAll();
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void run() {
+        while (running) {
+            boolean warned;
+            synchronized (lock) {
+                long wait;
+                while (running && !urgent && (wait = deadline - System.nanoTime()) > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(lock, wait);
+                    } catch (InterruptedException x) {
+                        running = false;
+                    }
+                }
+                if (!running) {
+                    break;
+                }
+                warned = urgent;
+                urgent = false;
+                deadline = System.nanoTime() + interval;
+            }
+
+            try {
+                initiator.keepDeviceOn();
+                ++keepAlives;
+                if (warned) {
+                    ++avoided;
+                }
+            } catch (PTPException | RuntimeException x) {
+                ++errors;
+                lastError = x;
+            }
+        }
+    }
+}
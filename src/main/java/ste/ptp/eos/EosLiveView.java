@@ -0,0 +1,316 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ste.ptp.Buffer;
+import ste.ptp.LatencyHistogram;
+import ste.ptp.PTPException;
+
+/**
+ * Streams the live view of an EOS camera: a background thread reads the
+ * viewfinder frames (EosGetViewFinderData) in a tight loop straight into
+ * the frames of an {@link EosFrameRing}, where the JPEG image is located
+ * without copying it. Consumers take the frames from the ring; as the ring
+ * drops the oldest frames when full, a slow consumer never stalls the USB
+ * loop. Once the frame buffers are large enough, streaming does not create
+ * any object.
+ *
+ * <p> A viewfinder frame is a sequence of records, each made of a 32 bit
+ * length (including the 8 bytes of length and type), a 32 bit type and the
+ * payload; the image is the payload of type 1. If there is no such record,
+ * as with some older models, the image is looked for by its start of image
+ * marker.
+ *
+ * @author ste
+ */
+public class EosLiveView {
+
+    /**
+     * Default number of frames in the ring
+     */
+    public static final int DEFAULT_FRAMES = 4;
+
+    /**
+     * Default initial size of the frame buffers
+     */
+    public static final int DEFAULT_FRAME_SIZE = 512 * 1024;
+
+    //
+    // how long to wait when the camera has no new frame or after an error
+    //
+    private static final long NOT_READY_PAUSE = TimeUnit.MILLISECONDS.toNanos(5);
+    private static final long ERROR_PAUSE = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static final int RECORD_IMAGE = 1;
+
+    private final EosInitiator camera;
+    private final EosFrameRing ring;
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private final Object lock = new Object();
+    private Thread thread;
+    private volatile boolean running;
+
+    //
+    // metrics (written by the streaming thread only)
+    //
+    private volatile long frames, notReady, stalls, errors;
+    private volatile long startTime, stopTime;
+    private volatile Exception lastError;
+
+    /**
+     * Creates a live view with the default ring
+     *
+     * @param camera the camera - NOT NULL
+     */
+    public EosLiveView(EosInitiator camera) {
+        this(camera, DEFAULT_FRAMES, DEFAULT_FRAME_SIZE);
+    }
+
+    /**
+     * @param camera the camera - NOT NULL
+     * @param frames the number of frames in the ring - at least 2
+     * @param frameSize the initial size of the frame buffers
+     */
+    public EosLiveView(EosInitiator camera, int frames, int frameSize) {
+        if (camera == null) {
+            throw new IllegalArgumentException("camera can not be null");
+        }
+        this.camera = camera;
+        this.ring = new EosFrameRing(frames, frameSize, camera);
+    }
+
+    /**
+     * Starts the live view on the camera and the streaming thread
+     *
+     * @throws PTPException if the live view can not be started
+     * @throws IllegalStateException if already streaming
+     */
+    public void start() throws PTPException {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("live view already running");
+            }
+            camera.initiateViewFinder();
+
+            running = true;
+            startTime = System.nanoTime();
+            stopTime = 0;
+            thread = new Thread(this::stream, "eos-live-view");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the streaming thread, waiting for it to terminate, and the live
+     * view on the camera; it does nothing if not streaming.
+     *
+     * @throws PTPException if the live view can not be stopped
+     */
+    public void stop() throws PTPException {
+        Thread t;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        stopTime = System.nanoTime();
+        camera.terminateViewFinder();
+    }
+
+    /**
+     * @return true if streaming
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @return the ring the frames are published to
+     */
+    public EosFrameRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @return the number of frames received so far
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * @return the number of frames dropped because not taken in time
+     */
+    public long getDropped() {
+        return ring.getDropped();
+    }
+
+    /**
+     * @return how many times the camera had no new frame
+     */
+    public long getNotReady() {
+        return notReady;
+    }
+
+    /**
+     * @return how many times no frame could be read because all frames were
+     *         held by the consumer
+     */
+    public long getStalls() {
+        return stalls;
+    }
+
+    /**
+     * @return the number of failed reads
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    /**
+     * @return the error of the last failed read, null if none
+     */
+    public Exception getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return the average number of frames per second received since the
+     *         live view has been started
+     */
+    public double getFps() {
+        long end = (stopTime != 0) ? stopTime : System.nanoTime();
+        long elapsed = end - startTime;
+        return (startTime == 0 || elapsed <= 0)
+             ? 0
+             : frames * 1e9 / elapsed;
+    }
+
+    /**
+     * @return the time taken by the camera to deliver each frame
+     */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Locates the image in a viewfinder frame as received from the camera
+     * and sets offset and length of the frame accordingly
+     *
+     * @param frame the frame
+     *
+     * @return true if the frame holds an image
+     */
+    static boolean locateImage(EosFrame frame) {
+        byte[] buf = frame.getData();
+        int end = Math.min(frame.container.getLength(), buf.length);
+
+        int pos = 12;
+        while (pos + 8 <= end) {
+            int len = Buffer.getS32(buf, pos);
+            if (len < 8 || len > end - pos) {
+                break;
+            }
+            if (Buffer.getS32(buf, pos + 4) == RECORD_IMAGE) {
+                frame.offset = pos + 8;
+                frame.length = len - 8;
+                return true;
+            }
+            pos += len;
+        }
+
+        //
+        // no image record: look for the start of image marker
+        //
+        for (pos = 12; pos + 1 < end; ++pos) {
+            if (buf[pos] == (byte)0xFF && buf[pos + 1] == (byte)0xD8) {
+                frame.offset = pos;
+                frame.length = end - pos;
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads one frame from the camera into the ring
+     *
+     * @return true if a frame has been published
+     *
+     * @throws PTPException in case of errors
+     */
+    boolean step() throws PTPException {
+        EosFrame frame = ring.claim();
+        if (frame == null) {
+            ++stalls;
+            return false;
+        }
+
+        boolean published = false;
+        try {
+            long start = System.nanoTime();
+            if (camera.getViewFinderData(frame.container) && locateImage(frame)) {
+                long now = System.nanoTime();
+                frame.timestamp = now;
+                frame.latency = now - start;
+                frame.sequence = ++frames;
+                latency.record(frame.latency);
+                ring.publish(frame);
+                published = true;
+            } else {
+                ++notReady;
+            }
+        } finally {
+            if (!published) {
+                ring.abandon(frame);
+            }
+        }
+
+        return published;
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void stream() {
+        while (running) {
+            try {
+                if (!step()) {
+                    LockSupport.parkNanos(NOT_READY_PAUSE);
+                }
+            } catch (PTPException | RuntimeException x) {
+                ++errors;
+                lastError = x;
+                LockSupport.parkNanos(ERROR_PAUSE);
+            }
+        }
+    }
+}
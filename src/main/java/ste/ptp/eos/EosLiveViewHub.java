@@ -0,0 +1,365 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import ste.ptp.PTPException;
+
+/**
+ * Shares the frames of a single {@link EosLiveView} among any number of
+ * subscribers (e.g. a focus UI, a recorder and a remote monitor) without
+ * copying them: each frame is handed to all subscribers and goes back to
+ * the ring when the last of them releases it.
+ *
+ * <p> Each subscriber has room for just one pending frame: if a new frame
+ * arrives before the pending one is taken, the pending one is skipped, so
+ * that a slow subscriber sees fewer, but recent, frames and never slows
+ * down the camera or the other subscribers. Subscribers hold frames of the
+ * ring (the one pending and the one taken), so the ring must have at least
+ * two frames per subscriber plus two, or the camera would not be read
+ * while subscribers hold them; subscribers beyond that are rejected (see
+ * {@link #getMaxSubscribers()}).
+ *
+ * @author ste
+ */
+public class EosLiveViewHub {
+
+    private static final Subscriber[] NONE = new Subscriber[0];
+
+    private final EosLiveView live;
+    private final EosFrameRing ring;
+
+    private final Object lock = new Object();
+    private volatile Subscriber[] subscribers = NONE;
+    private Thread thread;
+    private volatile boolean running;
+
+    private volatile long lastSequence;
+
+    /**
+     * @param live the live view to share - NOT NULL
+     */
+    public EosLiveViewHub(EosLiveView live) {
+        if (live == null) {
+            throw new IllegalArgumentException("live can not be null");
+        }
+        this.live = live;
+        this.ring = live.getRing();
+    }
+
+    /**
+     * Starts the live view, if not running yet, and the thread handing out
+     * the frames
+     *
+     * @throws PTPException if the live view can not be started
+     * @throws IllegalStateException if the hub is already running
+     */
+    public void start() throws PTPException {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("hub already running");
+            }
+            if (!live.isRunning()) {
+                live.start();
+            }
+            running = true;
+            thread = new Thread(this::dispatch, "eos-live-view-hub");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops handing out frames and the live view; subscribers waiting for a
+     * frame get none.
+     *
+     * @throws PTPException if the live view can not be stopped
+     */
+    public void stop() throws PTPException {
+        Thread t;
+        synchronized (lock) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+        if (t != null && t != Thread.currentThread()) {
+            try {
+                t.join();
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        live.stop();
+    }
+
+    /**
+     * @return true if handing out frames
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * @param name a name identifying the subscriber in metrics
+     *
+     * @return a new subscriber receiving the frames from now on
+     *
+     * @throws IllegalStateException if the ring can not serve one more
+     *         subscriber
+     */
+    public Subscriber subscribe(String name) {
+        Subscriber s = new Subscriber(name);
+        synchronized (lock) {
+            if (subscribers.length >= getMaxSubscribers()) {
+                throw new IllegalStateException(String.format(
+                    "a ring of %d frames can not serve more than %d subscribers",
+                    ring.getFrames(), getMaxSubscribers()
+                ));
+            }
+            Subscriber[] list = Arrays.copyOf(subscribers, subscribers.length + 1);
+            list[list.length - 1] = s;
+            subscribers = list;
+        }
+        return s;
+    }
+
+    /**
+     * Removes the given subscriber, releasing its pending frame
+     *
+     * @param subscriber the subscriber
+     */
+    public void unsubscribe(Subscriber subscriber) {
+        synchronized (lock) {
+            List<Subscriber> list = new ArrayList<>(Arrays.asList(subscribers));
+            if (!list.remove(subscriber)) {
+                return;
+            }
+            subscribers = list.toArray(NONE);
+        }
+        subscriber.close();
+    }
+
+    /**
+     * @return how many subscribers the ring of the live view can serve
+     *         without stalling the camera
+     */
+    public int getMaxSubscribers() {
+        return (ring.getFrames() - 2) / 2;
+    }
+
+    /**
+     * @return the current subscribers
+     */
+    public List<Subscriber> getSubscribers() {
+        return Arrays.asList(subscribers.clone());
+    }
+
+    /**
+     * @return the live view shared by this hub
+     */
+    public EosLiveView getLiveView() {
+        return live;
+    }
+
+    /**
+     * @return the sequence number of the last frame handed out
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Hands out the next frame of the ring, if any, to all subscribers
+     *
+     * @param timeout how long to wait for a frame
+     * @param unit the unit of timeout - NOT NULL
+     *
+     * @return true if a frame has been handed out
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    boolean dispatch(long timeout, TimeUnit unit) throws InterruptedException {
+        EosFrame frame = ring.take(timeout, unit);
+        if (frame == null) {
+            return false;
+        }
+
+        Subscriber[] list = subscribers;
+        ring.retain(frame, list.length);
+        lastSequence = frame.sequence;
+        for (Subscriber s: list) {
+            s.offer(frame);
+        }
+        ring.release(frame);
+
+        return true;
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void dispatch() {
+        try {
+            while (running) {
+                dispatch(100, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException x) {
+            running = false;
+        }
+        synchronized (lock) {
+            for (Subscriber s: subscribers) {
+                s.wakeUp();
+            }
+        }
+    }
+
+    // ----------------------------------------------------------- Subscriber
+
+    /**
+     * A reader of the shared frames. Frames taken with
+     * {@link #take(long, TimeUnit)} are read only and must be given back
+     * with {@link #release(EosFrame)}.
+     */
+    public final class Subscriber {
+
+        private final String name;
+
+        private EosFrame pending;
+        private boolean closed;
+
+        private volatile long delivered, skipped, lastTaken;
+        private volatile long age;
+
+        private Subscriber(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Waits for the next frame
+         *
+         * @param timeout how long to wait at most
+         * @param unit the unit of timeout - NOT NULL
+         *
+         * @return the most recent frame not seen yet or null if none came
+         *         in time or the subscriber has been removed
+         *
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public synchronized EosFrame take(long timeout, TimeUnit unit)
+        throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (pending == null && !closed && running) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            EosFrame frame = pending;
+            pending = null;
+            if (frame != null) {
+                ++delivered;
+                lastTaken = frame.sequence;
+                age = System.nanoTime() - frame.timestamp;
+            }
+            return frame;
+        }
+
+        /**
+         * Gives back a frame obtained with {@link #take(long, TimeUnit)}
+         *
+         * @param frame the frame
+         */
+        public void release(EosFrame frame) {
+            ring.release(frame);
+        }
+
+        /**
+         * @return the name of the subscriber
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of frames taken
+         */
+        public long getDelivered() {
+            return delivered;
+        }
+
+        /**
+         * @return the number of frames skipped because a newer one arrived
+         *         before they were taken
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return how many frames the last taken frame was behind the last
+         *         frame handed out by the hub
+         */
+        public long getLag() {
+            return (lastTaken == 0) ? 0 : Math.max(0, lastSequence - lastTaken);
+        }
+
+        /**
+         * @return how old (in nanoseconds) the last taken frame was when
+         *         taken
+         */
+        public long getAge() {
+            return age;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                "%s: delivered %d, skipped %d, lag %d frames, age %.1f ms",
+                name, delivered, skipped, getLag(), age / 1e6
+            );
+        }
+
+        private synchronized void offer(EosFrame frame) {
+            if (closed) {
+                ring.release(frame);
+                return;
+            }
+            if (pending != null) {
+                ring.release(pending);
+                ++skipped;
+            }
+            pending = frame;
+            notifyAll();
+        }
+
+        private synchronized void close() {
+            closed = true;
+            if (pending != null) {
+                ring.release(pending);
+                pending = null;
+            }
+            notifyAll();
+        }
+
+        private synchronized void wakeUp() {
+            notifyAll();
+        }
+    }
+}
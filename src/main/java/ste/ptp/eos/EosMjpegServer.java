@@ -0,0 +1,168 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the live view shared by an {@link EosLiveViewHub} as a MJPEG
+ * stream (multipart/x-mixed-replace), which browsers and most video tools
+ * can show. Every client is a subscriber of the hub served by its own
+ * thread, so a slow client just skips frames; clients beyond the
+ * subscribers the hub can serve get 503 (Service Unavailable).
+ *
+ * @author ste
+ */
+public class EosMjpegServer {
+
+    /**
+     * Separates the frames of the stream
+     */
+    public static final String BOUNDARY = "eosframe";
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    private final EosLiveViewHub hub;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicInteger clients = new AtomicInteger();
+
+    private volatile boolean running;
+
+    /**
+     * Creates a server serving the live view at <code>/</code>; use port 0
+     * to pick a free port (see {@link #getAddress()})
+     *
+     * @param hub the hub - NOT NULL
+     * @param address the address to listen on - NOT NULL
+     *
+     * @throws IOException if the server can not be created
+     */
+    public EosMjpegServer(EosLiveViewHub hub, InetSocketAddress address)
+    throws IOException {
+        if (hub == null) {
+            throw new IllegalArgumentException("hub can not be null");
+        }
+        if (address == null) {
+            throw new IllegalArgumentException("address can not be null");
+        }
+        this.hub = hub;
+
+        final AtomicInteger n = new AtomicInteger();
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "eos-mjpeg-client-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        server = HttpServer.create(address, 0);
+        server.createContext("/", this::stream);
+        server.setExecutor(executor);
+    }
+
+    /**
+     * Starts accepting clients; the hub is not started
+     */
+    public void start() {
+        running = true;
+        server.start();
+    }
+
+    /**
+     * Disconnects the clients and stops the server
+     */
+    public void stop() {
+        running = false;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return the address the server listens on
+     */
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    /**
+     * @return the number of clients connected
+     */
+    public int getClients() {
+        return clients.get();
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void stream(HttpExchange exchange) throws IOException {
+        EosLiveViewHub.Subscriber subscriber;
+        try {
+            subscriber = hub.subscribe("mjpeg " + exchange.getRemoteAddress());
+        } catch (IllegalStateException x) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        clients.incrementAndGet();
+        try {
+            exchange.getResponseHeaders().set(
+                "Content-Type", "multipart/x-mixed-replace; boundary=" + BOUNDARY
+            );
+            exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+            exchange.sendResponseHeaders(200, 0);
+
+            OutputStream out = exchange.getResponseBody();
+            while (running) {
+                EosFrame frame = subscriber.take(1, TimeUnit.SECONDS);
+                if (frame == null) {
+                    if (!hub.isRunning()) {
+                        break;
+                    }
+                    continue;
+                }
+                try {
+                    out.write(String.format(
+                        "--%s\r\nContent-Type: image/jpeg\r\nContent-Length: %d\r\n\r\n",
+                        BOUNDARY, frame.getLength()
+                    ).getBytes(StandardCharsets.US_ASCII));
+                    frame.writeImage(out);
+                    out.write(CRLF);
+                } finally {
+                    subscriber.release(frame);
+                }
+                out.flush();
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        } catch (IOException x) {
+            //
+            // the client went away
+            //
+        } finally {
+            hub.unsubscribe(subscriber);
+            clients.decrementAndGet();
+            exchange.close();
+        }
+    }
+}
@@ -0,0 +1,426 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.List;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.LockSupport;
+import ste.ptp.LatencyHistogram;
+import ste.ptp.PTPException;
+
+/**
+ * Releases the shutters of a group of EOS cameras (e.g. a multi-angle rig)
+ * as close together as possible.
+ *
+ * <p> Releasing the cameras one after another adds up the time each camera
+ * takes to accept the release. Here instead each camera has a dedicated
+ * thread, started and armed by {@link #start()}, which does nothing but
+ * {@link EosInitiator#trigger()}: at each {@link #fire()} the threads are
+ * let go through a barrier and then wait, sleeping and finally spinning,
+ * until a common instant set a short lead time ahead (see
+ * {@link #setLead(long, TimeUnit)}), so that the releases are submitted
+ * together whatever the wake up time of each thread.
+ *
+ * <p> For each round the time each release has been submitted and answered
+ * by each camera is recorded; the skew of a round is the difference between
+ * the latest and the earliest camera. Submit and response skews are kept in
+ * {@link LatencyHistogram}s and the details of the last round are given by
+ * {@link #getLastRound()}.
+ *
+ * @author ste
+ */
+public class EosMultiTrigger {
+
+    /**
+     * Default lead time in microseconds
+     */
+    public static final long DEFAULT_LEAD = 1000;
+
+    //
+    // the release threads sleep until this time before the release instant
+    // and then spin
+    //
+    private static final long SPIN = TimeUnit.MICROSECONDS.toNanos(200);
+
+    private final EosInitiator[] cameras;
+    private final long[] submitted, answered;
+    private final PTPException[] errors;
+
+    private final Object lock = new Object();
+    private Thread[] threads;
+    private volatile boolean running;
+    private CyclicBarrier start, done;
+
+    private volatile long lead = TimeUnit.MICROSECONDS.toNanos(DEFAULT_LEAD);
+    private volatile long timeout = TimeUnit.SECONDS.toNanos(10);
+    private volatile long target;
+
+    private final LatencyHistogram submitSkew = new LatencyHistogram();
+    private final LatencyHistogram responseSkew = new LatencyHistogram();
+    private volatile long rounds;
+    private volatile Round lastRound;
+
+    /**
+     * @param cameras the cameras to release together - NOT NULL, NOT EMPTY
+     */
+    public EosMultiTrigger(List<? extends EosInitiator> cameras) {
+        if (cameras == null) {
+            throw new IllegalArgumentException("cameras can not be null");
+        }
+        if (cameras.isEmpty()) {
+            throw new IllegalArgumentException("cameras can not be empty");
+        }
+        if (cameras.contains(null)) {
+            throw new IllegalArgumentException("cameras can not contain null");
+        }
+        this.cameras = cameras.toArray(new EosInitiator[cameras.size()]);
+        submitted = new long[this.cameras.length];
+        answered = new long[this.cameras.length];
+        errors = new PTPException[this.cameras.length];
+    }
+
+    /**
+     * @param lead how far ahead the release instant is set, enough for
+     *        all threads to wake up
+     * @param unit the unit of lead - NOT NULL
+     */
+    public void setLead(long lead, TimeUnit unit) {
+        this.lead = unit.toNanos(lead);
+    }
+
+    /**
+     * @param timeout how long to wait for all cameras to answer a release
+     * @param unit the unit of timeout - NOT NULL
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * Arms the cameras, each in its own thread so that the setup of the
+     * rig does not take the sum of the setups, and starts the release
+     * threads.
+     *
+     * @throws PTPException if a camera can not be armed
+     * @throws IllegalStateException if already started
+     */
+    public void start() throws PTPException {
+        synchronized (lock) {
+            if (running) {
+                throw new IllegalStateException("multi trigger already running");
+            }
+            start = new CyclicBarrier(cameras.length + 1);
+            done = new CyclicBarrier(cameras.length + 1);
+            running = true;
+
+            threads = new Thread[cameras.length];
+            for (int i = 0; i < cameras.length; ++i) {
+                final int camera = i;
+                final CyclicBarrier s = start, d = done;
+                threads[i] = new Thread(() -> release(camera, s, d), "eos-multi-trigger-" + i);
+                threads[i].setDaemon(true);
+                threads[i].start();
+            }
+        }
+
+        //
+        // the first round of the threads arms the cameras
+        //
+        round();
+        for (int i = 0; i < errors.length; ++i) {
+            if (errors[i] != null) {
+                stop();
+                throw new PTPException(
+                    String.format("camera %d can not be armed", i), errors[i], errors[i].getErrorCode()
+                );
+            }
+        }
+    }
+
+    /**
+     * Stops the release threads; the cameras are left armed. It waits up to
+     * the timeout for the threads to end: the thread of a camera that does
+     * not answer is left behind and ends as soon as the camera answers.
+     */
+    public void stop() {
+        Thread[] t;
+        CyclicBarrier b;
+        synchronized (lock) {
+            if (!running) {
+                return;
+            }
+            running = false;
+            t = threads;
+            b = start;
+            threads = null;
+        }
+        b.reset();
+        long deadline = System.nanoTime() + timeout;
+        for (Thread thread: t) {
+            thread.interrupt();
+        }
+        for (Thread thread: t) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0) {
+                break;
+            }
+            try {
+                TimeUnit.NANOSECONDS.timedJoin(thread, left);
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return true if the release threads are running
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Releases all cameras together and waits for all of them to answer
+     *
+     * @return the timings of the round
+     *
+     * @throws PTPException if a camera did not release (the first error is
+     *         given, the others are in the returned round) or did not
+     *         answer in time
+     * @throws IllegalStateException if not started
+     */
+    public Round fire() throws PTPException {
+        if (!running) {
+            throw new IllegalStateException("multi trigger not running");
+        }
+        target = System.nanoTime() + lead;
+        round();
+
+        Round r = new Round(target, submitted, answered, errors);
+        lastRound = r;
+        ++rounds;
+        submitSkew.record(r.getSubmitSkew());
+        responseSkew.record(r.getResponseSkew());
+
+        for (int i = 0; i < errors.length; ++i) {
+            if (errors[i] != null) {
+                throw new PTPException(
+                    String.format("camera %d did not release", i), errors[i], errors[i].getErrorCode()
+                );
+            }
+        }
+        return r;
+    }
+
+    /**
+     * @return the skews between the earliest and the latest release
+     *         submitted in each round
+     */
+    public LatencyHistogram getSubmitSkew() {
+        return submitSkew;
+    }
+
+    /**
+     * @return the skews between the earliest and the latest release
+     *         answered in each round
+     */
+    public LatencyHistogram getResponseSkew() {
+        return responseSkew;
+    }
+
+    /**
+     * @return the number of rounds fired
+     */
+    public long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return the last round fired, null if none
+     */
+    public Round getLastRound() {
+        return lastRound;
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    //
+    // lets the threads go and waits for them to complete the round
+    //
+    private void round() throws PTPException {
+        try {
+            start.await(timeout, TimeUnit.NANOSECONDS);
+            done.await(timeout, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | BrokenBarrierException x) {
+            stop();
+            throw new PTPException("cameras did not answer in time", x);
+        } catch (InterruptedException x) {
+            stop();
+            Thread.currentThread().interrupt();
+            throw new PTPException("interrupted while releasing", x);
+        }
+    }
+
+    //
+    // the barriers are given rather than read from the fields, so that a
+    // thread left behind by stop() never joins the rounds of a new start
+    //
+    private void release(int i, CyclicBarrier start, CyclicBarrier done) {
+        EosInitiator camera = cameras[i];
+        boolean armed = false;
+
+        while (running) {
+            try {
+                start.await();
+            } catch (InterruptedException | BrokenBarrierException x) {
+                return;
+            }
+            errors[i] = null;
+
+            try {
+                if (!armed) {
+                    if (!camera.isArmed()) {
+                        camera.arm();
+                    }
+                    armed = true;
+                } else {
+                    long t = target, left;
+                    while ((left = t - System.nanoTime()) > SPIN) {
+                        LockSupport.parkNanos(left - SPIN);
+                    }
+                    while (System.nanoTime() - t < 0) {
+                        Thread.onSpinWait();
+                    }
+                    submitted[i] = System.nanoTime();
+                    camera.trigger();
+                    answered[i] = System.nanoTime();
+                }
+            } catch (PTPException | RuntimeException x) {
+                errors[i] = (x instanceof PTPException)
+                          ? (PTPException)x : new PTPException(x.getMessage(), x);
+                answered[i] = System.nanoTime();
+            }
+
+            try {
+                done.await();
+            } catch (InterruptedException | BrokenBarrierException x) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * The timings of a round, relative to the release instant
+     */
+    public static final class Round {
+
+        private final long[] submitted, answered;
+        private final PTPException[] errors;
+
+        private Round(long target, long[] submitted, long[] answered, PTPException[] errors) {
+            this.submitted = new long[submitted.length];
+            this.answered = new long[answered.length];
+            for (int i = 0; i < submitted.length; ++i) {
+                this.submitted[i] = submitted[i] - target;
+                this.answered[i] = answered[i] - target;
+            }
+            this.errors = errors.clone();
+        }
+
+        /**
+         * @return the number of cameras
+         */
+        public int size() {
+            return submitted.length;
+        }
+
+        /**
+         * @param camera the index of the camera
+         *
+         * @return when the release has been submitted to the given camera,
+         *         in nanoseconds from the release instant
+         */
+        public long getSubmitted(int camera) {
+            return submitted[camera];
+        }
+
+        /**
+         * @param camera the index of the camera
+         *
+         * @return when the given camera answered the release, in
+         *         nanoseconds from the release instant
+         */
+        public long getAnswered(int camera) {
+            return answered[camera];
+        }
+
+        /**
+         * @param camera the index of the camera
+         *
+         * @return the error of the given camera, null if it released
+         */
+        public PTPException getError(int camera) {
+            return errors[camera];
+        }
+
+        /**
+         * @return the time between the earliest and the latest release
+         *         submitted
+         */
+        public long getSubmitSkew() {
+            return skew(submitted);
+        }
+
+        /**
+         * @return the time between the earliest and the latest release
+         *         answered
+         */
+        public long getResponseSkew() {
+            return skew(answered);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format(
+                "submit skew: %.3f ms, response skew: %.3f ms",
+                getSubmitSkew() / 1e6, getResponseSkew() / 1e6
+            ));
+            for (int i = 0; i < submitted.length; ++i) {
+                sb.append(String.format(
+                    "%n  camera %d: submitted %+.3f ms, answered %+.3f ms%s",
+                    i, submitted[i] / 1e6, answered[i] / 1e6,
+                    (errors[i] != null) ? " (" + errors[i].getMessage() + ")" : ""
+                ));
+            }
+            return sb.toString();
+        }
+
+        private static long skew(long[] times) {
+            long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+            for (long t: times) {
+                min = Math.min(min, t);
+                max = Math.max(max, t);
+            }
+            return max - min;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.IOException;
+
+/**
+ * Receives the content of the objects downloaded from the camera, for
+ * example by {@link EosCapturePipeline}. For each object {@link #begin} is
+ * called first, then {@link #write} once per chunk, in order, and finally
+ * {@link #end}.
+ *
+ * @author ste
+ */
+public interface EosObjectSink {
+
+    /**
+     * A new object is going to be written
+     *
+     * @param objectId the object handle
+     * @param name the file name of the object
+     * @param size the size of the object in bytes
+     *
+     * @throws IOException in case of errors
+     */
+    void begin(int objectId, String name, long size) throws IOException;
+
+    /**
+     * The next chunk of the current object; the buffer can be reused once
+     * the method returns.
+     *
+     * @param buf the buffer with the data
+     * @param offset where the data start
+     * @param length the length of the data
+     *
+     * @throws IOException in case of errors
+     */
+    void write(byte[] buf, int offset, int length) throws IOException;
+
+    /**
+     * The current object has been completely written
+     *
+     * @param objectId the object handle
+     *
+     * @throws IOException in case of errors
+     */
+    void end(int objectId) throws IOException;
+}
@@ -19,9 +19,11 @@ package ste.ptp.ip;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import ste.ptp.Command;
 import ste.ptp.OpenSessionOperation;
 import ste.ptp.Operation;
+import ste.ptp.StringCodec;
 
 /**
  *
@@ -31,6 +33,11 @@ public class PacketInputStream extends InputStream {
 
     private final InputStream source;
 
+    //
+    // encoded characters of the string being read
+    //
+    private byte[] scratch = new byte[64];
+
     public PacketInputStream(InputStream source) {
         if (source == null) {
             throw new IllegalArgumentException("source can not be null");
@@ -163,13 +170,18 @@ public class PacketInputStream extends InputStream {
     }
 
     public String readString() throws IOException {
-        StringBuilder sb = new StringBuilder();
+        int len = 0;
 
         int c = 0;
         do {
-            c = read() | (read()<<8);
+            int lo = read(), hi = read();
+            c = lo | (hi<<8);
             if (c > 0) {
-                sb.append((char)c);
+                if (len == scratch.length) {
+                    scratch = Arrays.copyOf(scratch, 2*len);
+                }
+                scratch[len++] = (byte)lo;
+                scratch[len++] = (byte)hi;
             }
         } while (c > 0);
 
@@ -177,7 +189,7 @@ public class PacketInputStream extends InputStream {
             throw new IOException("string not terminated (eof)");
         }
 
-        return sb.toString();
+        return StringCodec.DEFAULT.decodeUTF16LE(scratch, 0, len/2);
     }
 
     public String readVersion() throws IOException {
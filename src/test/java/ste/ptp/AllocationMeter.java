@@ -0,0 +1,84 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the heap allocated by the current thread while running an action
+ * over and over, after warming it up. Used by the tests checking that the
+ * steady state of a loop does not allocate.
+ *
+ * @author ste
+ */
+public final class AllocationMeter {
+
+    public static final int WARMUP = 20000;
+    public static final int ITERATIONS = 1000;
+    public static final int ROUNDS = 5;
+
+    private static final com.sun.management.ThreadMXBean MX =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public interface Action {
+        //
+        // no assertions here, they would allocate
+        //
+        void run() throws Exception;
+    }
+
+    private AllocationMeter() {
+    }
+
+    /**
+     * Runs <code>action</code> WARMUP times, then ROUNDS rounds of ITERATIONS
+     * times each and returns the bytes allocated by the best round, net of
+     * what reading the counter allocates itself. The JVM may allocate now and
+     * then (e.g. compiling), so one clean round is enough.
+     *
+     * @param action the action to measure - NOT NULL
+     *
+     * @return the bytes allocated by the best round
+     *
+     * @throws Exception if the action fails
+     */
+    public static long allocated(Action action) throws Exception {
+        if (action == null) {
+            throw new IllegalArgumentException("action can not be null");
+        }
+
+        for (int i=0; i<WARMUP; ++i) {
+            action.run();
+        }
+
+        long id = Thread.currentThread().getId();
+
+        long before = MX.getThreadAllocatedBytes(id);
+        long empty = MX.getThreadAllocatedBytes(id) - before;
+
+        long allocated = Long.MAX_VALUE;
+        for (int round=0; round<ROUNDS && allocated > 0; ++round) {
+            before = MX.getThreadAllocatedBytes(id);
+            for (int i=0; i<ITERATIONS; ++i) {
+                action.run();
+            }
+            allocated = Math.min(allocated, MX.getThreadAllocatedBytes(id) - before - empty);
+        }
+
+        return allocated;
+    }
+}
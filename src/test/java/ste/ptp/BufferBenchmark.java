@@ -0,0 +1,103 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+/**
+ * Microbenchmark of the decoding of a large GetObjectHandles response,
+ * comparing the byte by byte unmarshaling Buffer used to do with the bulk
+ * little-endian decoding. It is not part of the test suite; run it with:
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes ste.ptp.BufferBenchmark [handles]
+ * </pre>
+ *
+ * @author ste
+ */
+public class BufferBenchmark {
+
+    private static final int HANDLES = 30000;
+    private static final int ROUNDS = 2000;
+
+    public static void main(String[] args) {
+        int handles = (args.length > 0) ? Integer.parseInt(args[0]) : HANDLES;
+
+        Buffer b = new Buffer(new byte[4 + 4*handles]);
+        b.put32(handles);
+        for (int i=0; i<handles; ++i) {
+            b.put32(0x91900000 + i);
+        }
+
+        long sink = 0;
+        for (int warmup=0; warmup<3; ++warmup) {
+            sink += legacy(b, ROUNDS);
+            sink += bulk(b, ROUNDS);
+        }
+
+        long start = System.nanoTime();
+        sink += legacy(b, ROUNDS);
+        long legacy = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        sink += bulk(b, ROUNDS);
+        long bulk = System.nanoTime() - start;
+
+        System.out.println(String.format(
+            "%d handles - byte by byte: %,d ns/op, bulk: %,d ns/op, speedup %.1fx (%d)",
+            handles, legacy/ROUNDS, bulk/ROUNDS, (double)legacy/bulk, sink & 1
+        ));
+    }
+
+    private static long bulk(Buffer b, int rounds) {
+        long sum = 0;
+        for (int r=0; r<rounds; ++r) {
+            b.offset = 0;
+            int[] a = b.nextS32Array();
+            sum += a[a.length-1];
+        }
+        return sum;
+    }
+
+    //
+    // The way Buffer decoded arrays before the little-endian views
+    //
+    private static long legacy(Buffer b, int rounds) {
+        long sum = 0;
+        for (int r=0; r<rounds; ++r) {
+            byte[] data = b.data;
+            int offset = 0;
+            int len = s32(data, offset); offset += 4;
+            int[] a = new int[len];
+            for (int i = 0; i < len; i++) {
+                a[i] = s32(data, offset); offset += 4;
+            }
+            sum += a[a.length-1];
+        }
+        return sum;
+    }
+
+    private static int s32(byte[] data, int index) {
+        int retval;
+
+        retval  = (0xff & data [index++]) ;
+        retval |= (0xff & data [index++]) << 8;
+        retval |= (0xff & data [index++]) << 16;
+        retval |=         data [index  ]  << 24;
+
+        return retval;
+    }
+}
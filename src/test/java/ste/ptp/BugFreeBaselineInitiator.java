@@ -0,0 +1,216 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.io.ByteArrayOutputStream;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeBaselineInitiator {
+
+    @Test
+    public void reused_command_is_rewritten_in_place() {
+        Session s = new Session();
+        Command c = s.command;
+
+        c.set(Command.EosSetEventMode, 10, 1, 1, 0, 0, 0, 0);
+        then(c.getLength()).isEqualTo(16);
+        then(c.getCode()).isEqualTo(Command.EosSetEventMode);
+        then(c.getXID()).isEqualTo(10);
+        then(c.getParam1()).isEqualTo(1);
+
+        byte[] one = c.getData();
+        c.set(Command.EosGetPartialObject, 11, 3, 5, 6, 7, 0, 0);
+        then(c.getLength()).isEqualTo(24);
+        then(c.getNumParams()).isEqualTo(3);
+        then(c.getXID()).isEqualTo(11);
+        then(new int[] {c.getParam1(), c.getParam2(), c.getParam3()}).containsExactly(5, 6, 7);
+
+        c.set(Command.EosGetEvent, 12, 1, 2, 0, 0, 0, 0);
+        then(c.getData()).isSameAs(one);
+        then(c.getParam1()).isEqualTo(2);
+    }
+
+    @Test
+    public void transact_returns_a_detached_response() throws Exception {
+        SimulatedDevice d = new SimulatedDevice();
+        d.openSession();
+
+        Response r1 = d.transact1(Command.EosSetEventMode, null, 1);
+        Response r2 = d.transact0(Command.EosKeepDeviceOn, null);
+
+        then(r1.getCode()).isEqualTo(Response.OK);
+        then(r1.getXID()).isEqualTo(1);
+        then(r2.getXID()).isEqualTo(2);
+        then(r1.getData()).isNotSameAs(r2.getData());
+        then(d.lastCode).isEqualTo(Command.EosKeepDeviceOn);
+    }
+
+    @Test
+    public void steady_state_transactions_do_not_allocate() throws Exception {
+        SimulatedDevice d = new SimulatedDevice();
+        d.openSession();
+
+        Data events = new Data(true, new byte[512], d);
+        long allocated = AllocationMeter.allocated(() -> poll(d, events));
+
+        then(allocated).isZero();
+        then(events.getLength()).isEqualTo(Data.HDR_LEN + 8);
+        then(d.getBufferArena().getLeases()).isZero();
+    }
+
+    @Test
+    public void a_response_instead_of_data_is_returned() throws Exception {
+        SimulatedDevice d = new SimulatedDevice();
+        d.openSession();
+
+        Data events = new Data(true, new byte[512], d);
+        int length = events.length;
+
+        d.busy = true;
+        then(d.transactCode0(Command.EosGetEvent, events)).isEqualTo(Response.DeviceBusy);
+        then(events.length).isEqualTo(length);
+        then(d.getBufferArena().getLeases()).isZero();
+
+        d.busy = false;
+        then(d.transactCode0(Command.EosGetEvent, events)).isEqualTo(Response.OK);
+        then(events.getLength()).isEqualTo(Data.HDR_LEN + 8);
+    }
+
+    @Test
+    public void streamed_objects_give_the_first_packet_back() throws Exception {
+        SimulatedDevice d = new SimulatedDevice();
+        d.openSession();
+
+        for (int i=0; i<3; ++i) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            OutputStreamData data = new OutputStreamData(out, d);
+
+            then(d.transactCode1(Command.GetObject, data, 1)).isEqualTo(Response.OK);
+            then(out.size()).isEqualTo(d.objectSize);
+            then(out.toByteArray()[0]).isEqualTo((byte)Data.HDR_LEN);
+            then(data.getLength()).isEqualTo(Data.HDR_LEN + d.objectSize);
+        }
+
+        //
+        // the first packet buffer and the chunk buffer are reused
+        //
+        then(d.getBufferArena().getLeases()).isEqualTo(6);
+        then(d.getBufferArena().getMisses()).isEqualTo(2);
+        then(d.getBufferArena().getLeasedBytes()).isZero();
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    //
+    // no assertions here, they would allocate
+    //
+    private void poll(SimulatedDevice d, Data events) throws PTPException {
+        if (d.transactCode1(Command.EosSetEventMode, null, 1) != Response.OK
+         || d.transactCode0(Command.EosGetEvent, events) != Response.OK) {
+            throw new PTPException("poll failed");
+        }
+    }
+
+    //
+    // A device answering OK to everything; EosGetEvent returns just the
+    // terminating event record, or DeviceBusy with no data if busy;
+    // GetObject returns objectSize bytes, packet after packet
+    //
+    private static class SimulatedDevice extends BaselineInitiator {
+
+        private final byte[] dataPacket = new byte[Data.HDR_LEN + 8];
+        private final byte[] responsePacket = new byte[Response.HDR_LEN];
+        private byte[] dataPhase;
+        private int dataPos;
+        boolean busy;
+        int objectSize = 1000;
+
+        int lastCode;
+
+        SimulatedDevice() {
+            super(512);
+        }
+
+        @Override
+        protected void send(byte[] buf) {
+            if (buf.length == 0 || Buffer.getU16(buf, 4) != 1 /* command */) {
+                return;
+            }
+            lastCode = Buffer.getU16(buf, 6);
+            int xid = Buffer.getS32(buf, 8);
+
+            dataPhase = null;
+            dataPos = 0;
+            if (lastCode == Command.EosGetEvent && !busy) {
+                header(dataPacket, 2, lastCode, xid);
+                put32(dataPacket, 12, 8);
+                put32(dataPacket, 16, 0);
+                dataPhase = dataPacket;
+            } else if (lastCode == Command.GetObject) {
+                dataPhase = new byte[Data.HDR_LEN + objectSize];
+                header(dataPhase, 2, lastCode, xid);
+                for (int i=Data.HDR_LEN; i<dataPhase.length; ++i) {
+                    dataPhase[i] = (byte)i;
+                }
+            }
+            header(
+                responsePacket, 3,
+                (lastCode == Command.EosGetEvent && busy) ? Response.DeviceBusy : Response.OK,
+                xid
+            );
+        }
+
+        @Override
+        protected int receive(byte[] buf) {
+            if (dataPhase == null) {
+                System.arraycopy(responsePacket, 0, buf, 0, responsePacket.length);
+                return responsePacket.length;
+            }
+
+            int len = Math.min(buf.length, dataPhase.length - dataPos);
+            System.arraycopy(dataPhase, dataPos, buf, 0, len);
+            dataPos += len;
+            if (dataPos == dataPhase.length) {
+                dataPhase = null;
+            }
+
+            return len;
+        }
+
+        @Override
+        protected int receive(byte[] buf, int offset, int len) {
+            return 0;
+        }
+
+        private static void header(byte[] packet, int type, int code, int xid) {
+            put32(packet, 0, packet.length);
+            packet[4] = (byte)type; packet[5] = 0;
+            packet[6] = (byte)code; packet[7] = (byte)(code >> 8);
+            put32(packet, 8, xid);
+        }
+
+        private static void put32(byte[] buf, int i, int value) {
+            buf[i] = (byte)value; buf[i+1] = (byte)(value >> 8);
+            buf[i+2] = (byte)(value >> 16); buf[i+3] = (byte)(value >> 24);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeBuffer {
+
+    @Test
+    public void get_little_endian_values() {
+        Buffer b = new Buffer(new byte[] {
+            (byte)0x01, (byte)0x80, (byte)0xFE, (byte)0xFF,
+            (byte)0x0A, (byte)0x0B, (byte)0x0C, (byte)0x8D
+        });
+
+        then(b.getS8(1)).isEqualTo(-128);
+        then(b.getU8(1)).isEqualTo(0x80);
+        then(b.getS16(0)).isEqualTo((short)0x8001);
+        then(b.getU16(0)).isEqualTo(0x8001);
+        then(b.getS16(2)).isEqualTo(-2);
+        then(b.getU16(2)).isEqualTo(0xFFFE);
+        then(b.getS32(0)).isEqualTo(0xFFFE8001);
+        then(b.getS32(4)).isEqualTo(0x8D0C0B0A);
+        then(b.getS64(0)).isEqualTo(0x8D0C0B0AFFFE8001L);
+
+        //
+        // the same from a plain array
+        //
+        byte[] raw = b.getData();
+        then(Buffer.getU16(raw, 2)).isEqualTo(0xFFFE);
+        then(Buffer.getS32(raw, 4)).isEqualTo(0x8D0C0B0A);
+        then(Buffer.getS64(raw, 0)).isEqualTo(0x8D0C0B0AFFFE8001L);
+    }
+
+    @Test
+    public void put_and_next_round_trip() {
+        Buffer b = new Buffer(new byte[15]);
+
+        b.put8(0xAB);
+        b.put16(0xBEEF);
+        b.put32(0xCAFEBABE);
+        b.put64(0x0123456789ABCDEFL);
+        then(b.offset).isEqualTo(15);
+
+        b.offset = 0;
+        then(b.nextU8()).isEqualTo(0xAB);
+        then(b.nextU16()).isEqualTo(0xBEEF);
+        then(b.nextS32()).isEqualTo(0xCAFEBABE);
+        then(b.nextS64()).isEqualTo(0x0123456789ABCDEFL);
+        then(b.offset).isEqualTo(15);
+    }
+
+    @Test
+    public void next_arrays() {
+        Buffer b = new Buffer(new byte[4 + 3*2 + 4 + 2*4 + 4 + 2*8 + 4 + 2*2]);
+
+        b.put32(3); b.put16(0x0001); b.put16(0x9101); b.put16(0xFFFF);
+        b.put32(2); b.put32(-1); b.put32(0x00010002);
+        b.put32(2); b.put64(-2L); b.put64(0x7FFFFFFFFFFFFFFFL);
+        b.put32(2); b.put16(0x8000); b.put16(0x7FFF);
+
+        b.offset = 0;
+        then(b.nextU16Array()).containsExactly(0x0001, 0x9101, 0xFFFF);
+        then(b.nextS32Array()).containsExactly(-1, 0x00010002);
+        then(b.nextS64Array()).containsExactly(-2L, 0x7FFFFFFFFFFFFFFFL);
+        then(b.nextS16Array()).containsExactly(-32768, 32767);
+        then(b.offset).isEqualTo(b.data.length);
+    }
+
+    @Test
+    public void next_array_at_any_offset() {
+        Buffer b = new Buffer(new byte[1 + 4 + 4*4]);
+
+        b.put8(0);
+        b.put32(4);
+        for (int i=0; i<4; ++i) {
+            b.put32(0x1000 + i);
+        }
+
+        b.offset = 1;
+        then(b.nextS32Array()).containsExactly(0x1000, 0x1001, 0x1002, 0x1003);
+    }
+
+    @Test
+    public void next_array_after_data_replaced() {
+        Buffer b = new Buffer(new byte[8]);
+
+        b.put32(1); b.put32(1);
+        b.offset = 0;
+        then(b.nextS32Array()).containsExactly(1);
+
+        b.data = new byte[8];
+        b.offset = 0;
+        b.put32(1); b.put32(2);
+        b.offset = 0;
+        then(b.nextS32Array()).containsExactly(2);
+    }
+
+    @Test
+    public void next_array_too_long() {
+        Buffer b = new Buffer(new byte[8]);
+
+        b.put32(2); b.put32(1);
+        b.offset = 0;
+        try {
+            b.nextS32Array();
+            fail("array size not checked");
+        } catch (ArrayIndexOutOfBoundsException x) {
+            then(x).hasMessageContaining("2 elements");
+        }
+    }
+}
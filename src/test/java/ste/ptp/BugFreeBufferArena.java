@@ -0,0 +1,113 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.nio.ByteBuffer;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeBufferArena {
+
+    @Test
+    public void lease_exact_size() {
+        BufferArena a = new BufferArena(false);
+
+        then(a.lease(512)).hasSize(512);
+        then(a.lease(0)).hasSize(0);
+        then(a.leaseBuffer(64).capacity()).isEqualTo(64);
+
+        try {
+            a.lease(-1);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("size can not be lesser than 0");
+        }
+    }
+
+    @Test
+    public void released_arrays_are_reused() {
+        BufferArena a = new BufferArena(false);
+
+        byte[] b1 = a.lease(512);
+        a.release(b1);
+        then(a.lease(512)).isSameAs(b1);
+        then(a.lease(512)).isNotSameAs(b1);
+        then(a.lease(1024)).isNotSameAs(b1);
+
+        then(a.getLeases()).isEqualTo(4);
+        then(a.getMisses()).isEqualTo(3);
+    }
+
+    @Test
+    public void released_buffers_are_reused_and_cleared() {
+        BufferArena a = new BufferArena(true);
+
+        ByteBuffer b1 = a.leaseBuffer(128);
+        then(b1.isDirect()).isTrue();
+        b1.putInt(1).flip();
+        a.release(b1);
+
+        ByteBuffer b2 = a.leaseBuffer(128);
+        then(b2).isSameAs(b1);
+        then(b2.position()).isZero();
+        then(b2.limit()).isEqualTo(128);
+
+        then(new BufferArena(false).leaseBuffer(8).isDirect()).isFalse();
+    }
+
+    @Test
+    public void high_water_mark() {
+        BufferArena a = new BufferArena(false);
+
+        byte[] b1 = a.lease(100), b2 = a.lease(200);
+        then(a.getLeasedBytes()).isEqualTo(300);
+        a.release(b1); a.release(b2);
+        then(a.getLeasedBytes()).isZero();
+
+        a.release(a.lease(50));
+        then(a.getHighWaterMark()).isEqualTo(300);
+
+        byte[] b3 = a.lease(200);
+        a.forget(b3);
+        then(a.getLeasedBytes()).isZero();
+        then(a.lease(200)).isNotSameAs(b3);
+    }
+
+    @Test
+    public void pool_is_bounded() {
+        BufferArena a = new BufferArena(false);
+
+        byte[][] bufs = new byte[10][];
+        for (int i=0; i<bufs.length; ++i) {
+            bufs[i] = a.lease(16);
+        }
+        for (byte[] b: bufs) {
+            a.release(b);
+        }
+
+        long misses = a.getMisses();
+        for (int i=0; i<bufs.length; ++i) {
+            a.lease(16);
+        }
+        then(a.getMisses() - misses).isEqualTo(6);
+    }
+}
@@ -0,0 +1,73 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeCodeRegistry {
+
+    public static class Constants {
+        public static final int TestOne = 0x9001;
+        public static final int TestTwo = 0x9002;
+        public static final int TestAgain = 0x9001;
+        public static final int Other = 0x9003;
+        public static final long TestLong = 0x9004;
+        static final int TestHidden = 0x9005;
+    }
+
+    @Test
+    public void from_constants() {
+        CodeRegistry r = CodeRegistry.fromConstants(Constants.class, "Test", false);
+
+        then(r.size()).isEqualTo(2);
+        then(r.get(0x9001)).isEqualTo("TestOne");
+        then(r.get(0x9002)).isEqualTo("TestTwo");
+        then(r.get(0x9003)).isNull();
+        then(r.get(0x9004)).isNull();
+        then(r.get(0x9005)).isNull();
+        then(r.get(0x9003, "Unknown")).isEqualTo("Unknown");
+
+        r = CodeRegistry.fromConstants(Constants.class, "Test", true);
+        then(r.get(0x9002)).isEqualTo("Two");
+    }
+
+    @Test
+    public void standard_names_are_preserved() {
+        then(CodeRegistry.OPERATIONS.get(Command.OpenSession)).isEqualTo("OpenSession");
+        then(CodeRegistry.OPERATIONS.get(Command.EosTransferComplete)).isEqualTo("EosGetTransferComplete");
+        then(CodeRegistry.OPERATIONS.get(Command.EosGetViewFinderData)).isEqualTo("EosgetViewFinderData");
+        then(CodeRegistry.RESPONSES.get(Response.OK)).isEqualTo("OK");
+        then(CodeRegistry.EVENTS.get(Event.ObjectAdded)).isEqualTo("ObjectAdded");
+        then(CodeRegistry.FORMATS.get(ObjectInfo.EXIF_JPEG)).isEqualTo(ObjectInfo._getFormatString(ObjectInfo.EXIF_JPEG));
+        then(CodeRegistry.PROPERTIES.get(DevicePropDesc.BatteryLevel)).isEqualTo("BatteryLevel");
+        then(CodeRegistry.OPERATIONS.get(0x1FFF)).isNull();
+    }
+
+    @Test
+    public void name_factory_delegates_to_registry() {
+        NameFactory f = new NameFactory();
+
+        then(f.getOpcodeString(Command.EosTransferComplete)).isEqualTo("EosGetTransferComplete");
+        then(f.getPropertyName(DevicePropDesc.Artist)).isEqualTo("Artist");
+        then(f.getOpcodeString(0x1FFF)).isEqualTo("1fff");
+    }
+}
@@ -0,0 +1,87 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeCodeSet {
+
+    @Test
+    public void dense_and_sparse_codes() {
+        int[] codes = new int[40];
+        for (int i=0; i<20; ++i) {
+            codes[i] = 0x1001 + i;            // dense standard page
+            codes[20+i] = 0x9101 + 3*i;       // dense vendor page
+        }
+        codes[39] = 0x5001;                   // sparse
+        codes[38] = 0xD1A0;                   // sparse
+
+        CodeSet s = new CodeSet(codes);
+
+        then(s.contains(0x1001)).isTrue();
+        then(s.contains(0x1012)).isTrue();
+        then(s.contains(0x1015)).isFalse();
+        then(s.contains(0x9101)).isTrue();
+        then(s.contains(0x9104)).isTrue();
+        then(s.contains(0x9102)).isFalse();
+        then(s.contains(0x5001)).isTrue();
+        then(s.contains(0xD1A0)).isTrue();
+        then(s.contains(0x5002)).isFalse();
+        then(s.contains(0x11001)).isFalse();
+        then(s.contains(-1)).isFalse();
+        then(s.size()).isEqualTo(40);
+    }
+
+    @Test
+    public void duplicates_and_order() {
+        CodeSet s = new CodeSet(new int[] {0x9116, 0x1002, 0x9116, 0x1001});
+
+        then(s.size()).isEqualTo(3);
+        then(s.toArray()).containsExactly(0x1001, 0x1002, 0x9116);
+        then(s.toString()).isEqualTo("[0x1001, 0x1002, 0x9116]");
+    }
+
+    @Test
+    public void bulk_queries() {
+        CodeSet s = new CodeSet(new int[] {0x9110, 0x9116, 0x9128});
+
+        then(s.containsAll(0x9116, 0x9110)).isTrue();
+        then(s.containsAll(0x9116, 0x9127)).isFalse();
+        then(s.missing(0x9127, 0x9116, 0x1001)).containsExactly(0x9127, 0x1001);
+        then(s.missing()).isEmpty();
+    }
+
+    @Test
+    public void empty_set() {
+        then(CodeSet.EMPTY.contains(0)).isFalse();
+        then(CodeSet.EMPTY.contains(0x1001)).isFalse();
+        then(CodeSet.EMPTY.size()).isZero();
+
+        try {
+            new CodeSet(null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("codes can not be null");
+        }
+    }
+}
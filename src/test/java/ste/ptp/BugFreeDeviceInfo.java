@@ -0,0 +1,76 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeDeviceInfo {
+
+    @Test
+    public void supported_codes_are_indexed() {
+        Buffer b = new Buffer(new byte[512], 0);
+
+        b.offset = Data.HDR_LEN;
+        b.put16(100);                     // standard version
+        b.put32(11);                      // vendor extension id
+        b.put16(100);                     // vendor extension version
+        b.putString("canon.com: 1.0");
+        b.put16(0);                       // functional mode
+        array(b, Command.GetDeviceInfo, Command.OpenSession, Command.EosGetEvent, Command.EosSetEventMode);
+        array(b, Event.ObjectAdded);
+        array(b, DevicePropDesc.BatteryLevel, 0xD101);
+        array(b, ObjectInfo.EXIF_JPEG);
+        array(b, ObjectInfo.EXIF_JPEG, ObjectInfo.JFIF);
+        b.putString("Canon Inc.");
+        b.putString("Canon EOS 5D");
+        b.putString("3-1.1.0");
+        b.putString("0123456789");
+
+        DeviceInfo info = new DeviceInfo(new NameFactory());
+        then(info.supportsOperation(Command.OpenSession)).isFalse();
+
+        info.data = b.data; info.length = b.offset;
+        info.parse();
+
+        then(info.supportsOperation(Command.OpenSession)).isTrue();
+        then(info.supportsOperation(Command.EosGetEvent)).isTrue();
+        then(info.supportsOperation(Command.EosRemoteRelease)).isFalse();
+        then(info.supportsEvent(Event.ObjectAdded)).isTrue();
+        then(info.supportsProperty(0xD101)).isTrue();
+        then(info.supportsCaptureFormat(ObjectInfo.JFIF)).isFalse();
+        then(info.supportsImageFormat(ObjectInfo.JFIF)).isTrue();
+
+        then(info.getSupportedOperations().size()).isEqualTo(4);
+        then(info.getSupportedOperations().missing(Command.EosSetEventMode, Command.EosKeepDeviceOn))
+            .containsExactly(Command.EosKeepDeviceOn);
+        then(info.getSupportedImageFormats().toArray()).containsExactly(ObjectInfo.EXIF_JPEG, ObjectInfo.JFIF);
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void array(Buffer b, int... codes) {
+        b.put32(codes.length);
+        for (int c: codes) {
+            b.put16(c);
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeDevicePropDesc {
+
+    private static final NameFactory F = new NameFactory();
+
+    @Test
+    public void range() {
+        Buffer b = header(DevicePropDesc.ExposureBiasCompensation, DevicePropValue.s16);
+        b.put16(0); b.put16(-3);              // default, current
+        b.put8(1);                            // range
+        b.put16(-9); b.put16(9); b.put16(3);
+
+        DevicePropDesc d = parse(b);
+        then(d.getPropertyCode()).isEqualTo(DevicePropDesc.ExposureBiasCompensation);
+        then(d.getIntValue()).isEqualTo(-3);
+        then(d.getIntDefault()).isZero();
+
+        DevicePropDesc.Range r = d.getRange();
+        then(r.getMin()).isEqualTo(-9);
+        then(r.getMax()).isEqualTo(9);
+        then(r.getStep()).isEqualTo(3);
+        then(r.getMinimum()).isEqualTo(-9);
+        then(r.getIncrement()).isEqualTo(3);
+
+        then(d.isAllowed(-9)).isTrue();
+        then(d.isAllowed(6)).isTrue();
+        then(d.isAllowed(5)).isFalse();
+        then(d.isAllowed(12)).isFalse();
+        then((Object)d.getEnumeration()).isNull();
+        then(d.getLongEnumeration()).isNull();
+    }
+
+    @Test
+    public void enumeration() {
+        Buffer b = header(DevicePropDesc.ExposureIndex, DevicePropValue.u32);
+        b.put32(100); b.put32(400);
+        b.put8(2);                             // enumeration
+        b.put16(4);
+        b.put32(3200); b.put32(100); b.put32(0xFFFFFFFF); b.put32(400);
+
+        DevicePropDesc d = parse(b);
+        then(d.getLongValue()).isEqualTo(400);
+        then(d.currentValue).isNull();
+        then(d.getValue()).isEqualTo(400L);
+
+        then(d.getLongEnumeration()).containsExactly(3200, 100, 0xFFFFFFFFL, 400);
+        then(d.getIntEnumeration()).containsExactly(3200, 100, -1, 400);
+        then(d.isAllowed(100)).isTrue();
+        then(d.isAllowed(0xFFFFFFFFL)).isTrue();
+        then(d.isAllowed(200)).isFalse();
+        then(d.getRange()).isNull();
+
+        then(d.getEnumeration().toArray()).containsExactly(3200L, 100L, 0xFFFFFFFFL, 400L);
+        then((Object)d.getEnumeration()).isSameAs(d.getEnumeration());
+    }
+
+    @Test
+    public void no_constraints() {
+        Buffer b = header(DevicePropDesc.BatteryLevel, DevicePropValue.u8);
+        b.put8(100); b.put8(50);
+        b.put8(0);
+
+        DevicePropDesc d = parse(b);
+        then(d.getIntValue()).isEqualTo(50);
+        then(d.isAllowed(1234)).isTrue();
+    }
+
+    @Test
+    public void string_properties() {
+        Buffer b = header(DevicePropDesc.Artist, DevicePropValue.string);
+        b.putString(null); b.putString("ste");
+        b.put8(0);
+
+        DevicePropDesc d = parse(b);
+        then(d.getValue()).isEqualTo("ste");
+        then(d.getDefault()).isNull();
+        try {
+            d.isAllowed(0);
+            fail("string checked as integer");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("not an integer property (string)");
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private Buffer header(int code, int type) {
+        Buffer b = new Buffer(new byte[128], 0);
+
+        b.offset = Data.HDR_LEN;
+        b.put16(code);
+        b.put16(type);
+        b.put8(1);  // writable
+
+        return b;
+    }
+
+    private DevicePropDesc parse(Buffer b) {
+        DevicePropDesc d = new DevicePropDesc(F);
+        d.data = b.data; d.length = b.offset;
+        d.parse();
+
+        return d;
+    }
+}
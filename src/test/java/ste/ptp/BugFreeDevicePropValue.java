@@ -0,0 +1,82 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeDevicePropValue {
+
+    private static final NameFactory F = new NameFactory();
+
+    @Test
+    public void integers_are_primitives() {
+        DevicePropValue v = value(DevicePropValue.u16, 0xFFFE);
+
+        then(v.getInt()).isEqualTo(0xFFFE);
+        then(v.getLong()).isEqualTo(0xFFFEL);
+        then(v.value).isNull();
+        then(v.getValue()).isEqualTo(0xFFFE);
+
+        v = value(DevicePropValue.u32, 0xFFFFFFFE);
+        then(v.getLong()).isEqualTo(0xFFFFFFFEL);
+        then(v.getInt()).isEqualTo(-2);
+        then(v.getValue()).isEqualTo(0xFFFFFFFEL);
+
+        v = value(DevicePropValue.s8, 0xFF);
+        then(v.getInt()).isEqualTo(-1);
+        then(v.getValue()).isEqualTo(-1);
+    }
+
+    @Test
+    public void strings_are_not_integers() {
+        Buffer b = new Buffer(new byte[64], 0);
+        b.offset = Data.HDR_LEN;
+        b.putString("hello");
+
+        DevicePropValue v = new DevicePropValue(DevicePropValue.string, F);
+        v.data = b.data; v.length = b.offset;
+        v.parse();
+
+        then(v.getValue()).isEqualTo("hello");
+        try {
+            v.getInt();
+            fail("string returned as integer");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("not an integer value (string)");
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private DevicePropValue value(int type, int value) {
+        Buffer b = new Buffer(new byte[Data.HDR_LEN + 4]);
+        b.offset = Data.HDR_LEN;
+        b.put32(value);
+
+        DevicePropValue v = new DevicePropValue(type, F);
+        v.data = b.data; v.length = b.data.length;
+        v.parse();
+
+        return v;
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeLatencyHistogram {
+
+    @Test
+    public void empty_histogram() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        then(h.getCount()).isZero();
+        then(h.getMin()).isZero();
+        then(h.getMax()).isZero();
+        then(h.getMean()).isZero();
+        then(h.getPercentile(99)).isZero();
+    }
+
+    @Test
+    public void percentiles_are_accurate_within_a_bucket() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        for (long i=1; i<=1000; ++i) {
+            h.record(i * 1000000);  // 1..1000 ms
+        }
+
+        then(h.getCount()).isEqualTo(1000);
+        then(h.getMin()).isEqualTo(1000000);
+        then(h.getMax()).isEqualTo(1000000000);
+        then(h.getMean()).isEqualTo(500500000);
+        for (double p: new double[] {1, 50, 90, 99, 99.9}) {
+            long expected = (long)(p * 10) * 1000000;
+            then(h.getPercentile(p)).isBetween(expected, (long)(expected * 1.07));
+        }
+        then(h.getPercentile(100)).isEqualTo(1000000000);
+        then(h.getPercentile(0)).isEqualTo(1000000);
+    }
+
+    @Test
+    public void small_and_negative_values() {
+        LatencyHistogram h = new LatencyHistogram();
+
+        h.record(-5); h.record(3); h.record(3); h.record(15);
+
+        then(h.getMin()).isZero();
+        then(h.getPercentile(50)).isEqualTo(3);
+        then(h.getPercentile(100)).isEqualTo(15);
+
+        h.reset();
+        then(h.getCount()).isZero();
+        then(h.getMax()).isZero();
+    }
+
+    @Test
+    public void invalid_percentile() {
+        try {
+            new LatencyHistogram().getPercentile(101);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("percentile must be in 0-100");
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeObjectInfo {
+
+    private static final NameFactory F = new NameFactory();
+
+    @Test
+    public void eager_and_lazy_parsing_give_the_same_fields() {
+        byte[] dataset = dataset(0x91900001, "IMG_0001.CR2");
+
+        ObjectInfo eager = parse(new ObjectInfo(0x91900001, F), dataset);
+        ObjectInfo lazy = parse(new ObjectInfo(0x91900001, F, true), dataset);
+
+        for (ObjectInfo i: new ObjectInfo[] {eager, lazy}) {
+            then(i.getHandle()).isEqualTo(0x91900001);
+            then(i.getStorageId()).isEqualTo(0x00020001);
+            then(i.getObjectFormatCode()).isEqualTo(0xB103);
+            then(i.getProtectionStatus()).isEqualTo(0);
+            then(i.getObjectCompressedSize()).isEqualTo(0x00880BE5);
+            then(i.getThumbFormat()).isEqualTo(ObjectInfo.JFIF);
+            then(i.getThumbCompressedSize()).isEqualTo(8192);
+            then(i.getThumbPixWidth()).isEqualTo(160);
+            then(i.getThumbPixHeight()).isEqualTo(120);
+            then(i.getImagePixWidth()).isEqualTo(6000);
+            then(i.getImagePixHeight()).isEqualTo(4000);
+            then(i.getImageBitDepth()).isEqualTo(24);
+            then(i.getParentObject()).isEqualTo(0x91900000);
+            then(i.getAssociationType()).isEqualTo(0);
+            then(i.getAssociationDesc()).isEqualTo(0);
+            then(i.getSequenceNumber()).isEqualTo(7);
+            then(i.getFilename()).isEqualTo("IMG_0001.CR2");
+            then(i.getCaptureDate()).isEqualTo("20190224T101010");
+            then(i.getModificationDate()).isEqualTo("20190224T101011");
+            then(i.getKeywords()).isNull();
+        }
+    }
+
+    @Test
+    public void lazy_strings_are_decoded_on_demand() {
+        ObjectInfo i = parse(new ObjectInfo(1, F, true), dataset(1, "IMG_0002.CR2"));
+
+        then(i.filename).isNull();
+        then(i.getObjectCompressedSize()).isEqualTo(0x00880BE5);
+        then(i.filename).isNull();
+        then(i.captureDate).isNull();
+
+        then(i.getModificationDate()).isEqualTo("20190224T101011");
+        then(i.filename).isNull();
+        then(i.getFilename()).isEqualTo("IMG_0002.CR2");
+        then(i.getFilename()).isSameAs(i.filename);
+    }
+
+    @Test
+    public void lazy_parsing_keeps_just_the_dataset() {
+        byte[] dataset = dataset(1, "IMG_0003.CR2");
+        byte[] packet = new byte[512];
+        System.arraycopy(dataset, 0, packet, 0, dataset.length);
+
+        ObjectInfo i = new ObjectInfo(1, F, true);
+        i.data = packet; i.length = dataset.length;
+        i.parse();
+
+        then(i.getData()).hasSize(dataset.length);
+        then(i.getFilename()).isEqualTo("IMG_0003.CR2");
+
+        //
+        // a reparse (e.g. a reused object) forgets the decoded strings
+        //
+        i.data = dataset(1, "IMG_0004.CR2"); i.length = i.data.length;
+        i.parse();
+        then(i.getFilename()).isEqualTo("IMG_0004.CR2");
+    }
+
+    @Test
+    public void dump_labels() {
+        ObjectInfo i = parse(new ObjectInfo(1, F), dataset(1, "IMG_0005.CR2"));
+        i.protectionStatus = 5;
+        i.keywords = "sky";
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        i.dump(new PrintStream(out, true));
+
+        then(out.toString())
+            .contains("StorageID: 0x20001, reserved protectionStatus 0x5")
+            .contains("Filename IMG_0005.CR2")
+            .contains("keywords: sky");
+    }
+
+    @Test
+    public void lazy_images() {
+        ObjectInfo cr2 = parse(new ObjectInfo(1, F, true), dataset(1, "IMG_0006.CR2"));
+        ObjectInfo jpg = parse(
+            new ObjectInfo(2, F, true),
+            dataset(2, "IMG_0006.JPG", "20190224T101010", ObjectInfo.EXIF_JPEG)
+        );
+
+        then(cr2.isImage()).isFalse();
+        then(jpg.isImage()).isTrue();
+        then(jpg.isVideo()).isFalse();
+    }
+
+    @Test
+    public void lazy_videos() {
+        ObjectInfo avi = parse(
+            new ObjectInfo(1, F, true),
+            dataset(1, "MVI_0007.AVI", "20190224T101010", ObjectInfo.AVI)
+        );
+        ObjectInfo mov = parse(
+            new ObjectInfo(2, F, true),
+            dataset(2, "MVI_0008.MOV", "20190224T101010", ObjectInfo.QuickTime)
+        );
+
+        then(avi.isVideo()).isTrue();
+        then(mov.isVideo()).isTrue();
+        then(avi.isImage()).isFalse();
+    }
+
+    // ------------------------------------------------------- Protected methods
+
+    static byte[] dataset(int handle, String filename) {
+        return dataset(handle, filename, "20190224T101010");
+    }
+
+    static byte[] dataset(int handle, String filename, String captureDate) {
+        return dataset(handle, filename, captureDate, 0xB103);
+    }
+
+    static byte[] dataset(int handle, String filename, String captureDate, int format) {
+        Buffer b = new Buffer(new byte[1024], 0);
+
+        b.offset = Data.HDR_LEN;
+        b.put32(0x00020001);             // storage id
+        b.put16(format);                 // format (e.g. EOS CR2)
+        b.put16(0);                      // protection status
+        b.put32(0x00880BE5);             // size
+        b.put16(ObjectInfo.JFIF);        // thumb format
+        b.put32(8192);                   // thumb size
+        b.put32(160); b.put32(120);      // thumb size
+        b.put32(6000); b.put32(4000);    // image size
+        b.put32(24);                     // bit depth
+        b.put32(0x91900000);             // parent
+        b.put16(0);                      // association type
+        b.put32(0);                      // association desc
+        b.put32(7);                      // sequence number
+        b.putString(filename);
+        b.putString(captureDate);
+        b.putString("20190224T101011");
+        b.putString(null);
+
+        int len = b.offset;
+        b.offset = 0;
+        b.put32(len); b.put16(2); b.put16(Command.GetObjectInfo); b.put32(handle);
+
+        byte[] dataset = new byte[len];
+        System.arraycopy(b.data, 0, dataset, 0, len);
+
+        return dataset;
+    }
+
+    static ObjectInfo parse(ObjectInfo info, byte[] dataset) {
+        info.data = dataset;
+        info.length = dataset.length;
+        info.parse();
+
+        return info;
+    }
+}
@@ -0,0 +1,93 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.nio.charset.StandardCharsets;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeStringCodec {
+
+    private static final byte[] IMG = "xIMG_0001.CR2".getBytes(StandardCharsets.UTF_16LE);
+    private static final byte[] DCIM = "DCIM\u00e8\u0100".getBytes(StandardCharsets.UTF_16LE);
+
+    @Test
+    public void decode_utf16le() {
+        StringCodec c = new StringCodec();
+
+        then(c.decodeUTF16LE(IMG, 2, 12)).isEqualTo("IMG_0001.CR2");
+        then(c.decodeUTF16LE(DCIM, 0, 6)).isEqualTo("DCIM\u00e8\u0100");
+        then(c.decodeUTF16LE(DCIM, 0, 0)).isEmpty();
+    }
+
+    @Test
+    public void decode_ascii() {
+        StringCodec c = new StringCodec();
+        byte[] buf = "..IMG_0001.CR2\0\u00e8".getBytes(StandardCharsets.ISO_8859_1);
+
+        then(c.decodeASCII(buf, 2, 12)).isEqualTo("IMG_0001.CR2");
+        then(c.decodeASCII(buf, 15, 1)).isEqualTo("\u00e8");
+        then(c.decodeASCII(buf, 0, 0)).isEmpty();
+    }
+
+    @Test
+    public void without_cache_strings_are_not_interned() {
+        StringCodec c = new StringCodec();
+
+        then(c.decodeUTF16LE(IMG, 2, 12)).isNotSameAs(c.decodeUTF16LE(IMG, 2, 12));
+        then(c.getHits()).isZero();
+        then(c.getMisses()).isZero();
+    }
+
+    @Test
+    public void repeated_strings_are_interned() {
+        StringCodec c = new StringCodec(16, 32);
+
+        String s1 = c.decodeUTF16LE(IMG, 2, 12);
+        then(c.decodeUTF16LE(IMG, 2, 12)).isSameAs(s1);
+        then(c.decodeASCII("IMG_0001.CR2".getBytes(StandardCharsets.ISO_8859_1), 0, 12)).isSameAs(s1);
+
+        then(c.decodeUTF16LE(IMG, 2, 4)).isEqualTo("IMG_");
+        then(c.decodeUTF16LE(DCIM, 0, 4)).isEqualTo("DCIM");
+
+        then(c.getHits()).isEqualTo(2);
+        then(c.getMisses()).isEqualTo(3);
+    }
+
+    @Test
+    public void long_strings_are_not_interned() {
+        StringCodec c = new StringCodec(16, 4);
+
+        then(c.decodeUTF16LE(IMG, 2, 4)).isSameAs(c.decodeUTF16LE(IMG, 2, 4));
+        then(c.decodeUTF16LE(IMG, 2, 5)).isNotSameAs(c.decodeUTF16LE(IMG, 2, 5));
+    }
+
+    @Test
+    public void cache_size() {
+        try {
+            new StringCodec(0, 10);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("slots must be greater than 0");
+        }
+    }
+}
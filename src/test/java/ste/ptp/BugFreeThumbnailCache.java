@@ -0,0 +1,229 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeThumbnailCache {
+
+    private static final int THUMB = 1000;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void repeated_requests_are_served_from_memory() throws Exception {
+        ThumbDevice d = new ThumbDevice();
+        ThumbnailCache cache = new ThumbnailCache(d);
+
+        byte[] t1 = cache.get(1);
+        then(t1).isEqualTo(ThumbDevice.thumb(1));
+        then(cache.get(1)).isSameAs(t1);
+        then(cache.get(1)).isSameAs(t1);
+        then(cache.get(2)).isEqualTo(ThumbDevice.thumb(2));
+
+        then(d.thumbs.get()).isEqualTo(2);
+        then(d.infos.get()).isZero();
+        then(cache.getRequests()).isEqualTo(4);
+        then(cache.getMemoryHits()).isEqualTo(2);
+        then(cache.getTransfers()).isEqualTo(2);
+        then(cache.getHitRatio()).isEqualTo(0.5);
+        then(cache.getBytesSaved()).isEqualTo(2 * THUMB);
+        then(cache.getBytesTransferred()).isEqualTo(2 * THUMB);
+        then(cache.getMemoryBytes()).isEqualTo(2 * THUMB);
+
+        cache.remove(1);
+        then(cache.getMemoryBytes()).isEqualTo(THUMB);
+        cache.get(1);
+        then(d.thumbs.get()).isEqualTo(3);
+    }
+
+    @Test
+    public void least_recently_used_are_evicted_to_disk() throws Exception {
+        File dir = folder.newFolder("thumbs");
+        ThumbDevice d = new ThumbDevice();
+        ThumbnailCache cache = new ThumbnailCache(d, 2 * THUMB, dir);
+
+        cache.get(1); cache.get(2); cache.get(1);
+        cache.get(3);  // evicts 2
+        then(cache.getMemoryBytes()).isEqualTo(2 * THUMB);
+        then(cache.getSpilled()).isEqualTo(1);
+        then(dir.list()).containsExactly("SN_0042-00000002-8915941-20190224T101010.thumb");
+
+        then(cache.get(2)).isEqualTo(ThumbDevice.thumb(2));  // evicts 1
+        then(cache.getDiskHits()).isEqualTo(1);
+        then(d.thumbs.get()).isEqualTo(3);
+        then(cache.getSpilled()).isEqualTo(2);
+
+        //
+        // the disk cache survives the session, but it is not used for a
+        // different object with the same handle
+        //
+        ThumbnailCache other = new ThumbnailCache(d, 2 * THUMB, dir);
+        then(other.get(1)).isEqualTo(ThumbDevice.thumb(1));
+        then(other.getDiskHits()).isEqualTo(1);
+
+        d.captureDate = "20190225T080000";
+        then(other.get(2, d.getObjectInfo(2))).isEqualTo(ThumbDevice.thumb(2));
+        then(other.getDiskHits()).isEqualTo(1);
+        then(other.getTransfers()).isEqualTo(1);
+    }
+
+    @Test
+    public void concurrent_requests_are_coalesced() throws Exception {
+        ThumbDevice d = new ThumbDevice();
+        ThumbnailCache cache = new ThumbnailCache(d);
+        d.gate = new CountDownLatch(1);
+
+        final int N = 8;
+        final byte[][] thumbs = new byte[N][];
+        final AtomicReference<PTPException> error = new AtomicReference<>();
+        Thread[] threads = new Thread[N];
+        for (int i=0; i<N; ++i) {
+            final int t = i;
+            threads[i] = new Thread(() -> {
+                try {
+                    thumbs[t] = cache.get(5);
+                } catch (PTPException x) {
+                    error.compareAndSet(null, x);
+                }
+            });
+            threads[i].start();
+        }
+
+        //
+        // all requests wait for the transfer in progress
+        //
+        long deadline = System.currentTimeMillis() + 5000;
+        while (cache.getRequests() < N) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("requests not issued in time");
+            }
+            Thread.sleep(5);
+        }
+        d.gate.countDown();
+        for (Thread t: threads) {
+            t.join();
+        }
+        then(error.get()).isNull();
+
+        then(d.thumbs.get()).isEqualTo(1);
+        for (byte[] thumb: thumbs) {
+            then(thumb).isEqualTo(ThumbDevice.thumb(5));
+        }
+        then(cache.getCoalesced() + cache.getMemoryHits()).isEqualTo(N - 1);
+        then(cache.getHitRatio()).isEqualTo((N - 1) / (double)N);
+    }
+
+    @Test
+    public void errors_are_not_cached() throws Exception {
+        ThumbDevice d = new ThumbDevice();
+        ThumbnailCache cache = new ThumbnailCache(d);
+
+        d.error = true;
+        try {
+            cache.get(1);
+            fail("error not propagated");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("no thumbnail");
+        }
+
+        d.error = false;
+        then(cache.get(1)).isEqualTo(ThumbDevice.thumb(1));
+        then(cache.getTransfers()).isEqualTo(1);
+    }
+
+    @Test
+    public void sanity_checks() throws Exception {
+        try {
+            new ThumbnailCache(null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("initiator can not be null");
+        }
+        try {
+            new ThumbnailCache(new ThumbDevice(), -1, null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("maxBytes can not be negative");
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    //
+    // A device returning thumbnails and object infos without any transport
+    //
+    private static class ThumbDevice extends BaselineInitiator {
+
+        final AtomicInteger thumbs = new AtomicInteger(), infos = new AtomicInteger();
+        volatile CountDownLatch gate;
+        volatile boolean error;
+        volatile String captureDate = "20190224T101010";
+
+        ThumbDevice() {
+            super(512);
+            info = new DeviceInfo(this);
+            info.serialNumber = "SN:0042";
+        }
+
+        @Override
+        public byte[] getThumb(int handle) throws PTPException {
+            if (gate != null) {
+                try {
+                    gate.await();
+                } catch (InterruptedException x) {
+                    throw new PTPException("interrupted", x);
+                }
+            }
+            if (error) {
+                throw new PTPException("no thumbnail", Response.GeneralError);
+            }
+            thumbs.incrementAndGet();
+            return thumb(handle);
+        }
+
+        @Override
+        public ObjectInfo getObjectInfo(int handle) {
+            infos.incrementAndGet();
+            return BugFreeObjectInfo.parse(
+                new ObjectInfo(handle, this, true),
+                BugFreeObjectInfo.dataset(handle, "IMG_0001.CR2", captureDate)
+            );
+        }
+
+        static byte[] thumb(int handle) {
+            byte[] thumb = new byte[THUMB];
+            for (int i=0; i<THUMB; ++i) {
+                thumb[i] = (byte)(handle * 7 + i);
+            }
+            return thumb;
+        }
+    }
+}
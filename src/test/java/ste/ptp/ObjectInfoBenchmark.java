@@ -0,0 +1,113 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Compares eager and lazy ObjectInfo parsing when building a catalog of a
+ * large card, where only size and format of each object are needed. It
+ * reports time and allocated bytes per object and the heap retained by the
+ * catalog. It is not part of the test suite; run it with:
+ *
+ * <pre>
+ * mvn test-compile
+ * java -cp target/classes:target/test-classes ste.ptp.ObjectInfoBenchmark [objects]
+ * </pre>
+ *
+ * @author ste
+ */
+public class ObjectInfoBenchmark {
+
+    private static final int OBJECTS = 30000;
+    private static final int PACKET = 512;
+
+    private static final com.sun.management.ThreadMXBean MX =
+        (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] args) {
+        int n = (args.length > 0) ? Integer.parseInt(args[0]) : OBJECTS;
+
+        byte[][] datasets = new byte[n][];
+        for (int i=0; i<n; ++i) {
+            datasets[i] = BugFreeObjectInfo.dataset(i, String.format("IMG_%04d.CR2", i % 10000));
+        }
+
+        for (int warmup=0; warmup<5; ++warmup) {
+            catalog(datasets, false);
+            catalog(datasets, true);
+        }
+
+        run("eager", datasets, false);
+        run("lazy ", datasets, true);
+    }
+
+    private static void run(String label, byte[][] datasets, boolean lazy) {
+        long id = Thread.currentThread().getId();
+        long used = used();
+
+        long allocated = MX.getThreadAllocatedBytes(id);
+        long start = System.nanoTime();
+        ObjectInfo[] catalog = catalog(datasets, lazy);
+        long time = System.nanoTime() - start;
+        allocated = MX.getThreadAllocatedBytes(id) - allocated;
+
+        long retained = used() - used;
+
+        System.out.println(String.format(
+            "%s - %,d objects: %,d ns/object, %,d bytes allocated/object, %,d bytes retained/object (%d)",
+            label, catalog.length, time / catalog.length,
+            allocated / catalog.length, retained / catalog.length,
+            catalog[catalog.length-1].getObjectFormatCode() & 1
+        ));
+    }
+
+    private static ObjectInfo[] catalog(byte[][] datasets, boolean lazy) {
+        ObjectInfo[] catalog = new ObjectInfo[datasets.length];
+        long total = 0;
+
+        for (int i=0; i<datasets.length; ++i) {
+            //
+            // small datasets are received in a buffer of the size of a
+            // bulk packet
+            //
+            ObjectInfo info = new ObjectInfo(i, null, lazy);
+            info.data = new byte[PACKET];
+            info.length = datasets[i].length;
+            System.arraycopy(datasets[i], 0, info.data, 0, info.length);
+            info.parse();
+
+            if (info.getObjectFormatCode() != 0) {
+                total += info.getObjectCompressedSize();
+            }
+            catalog[i] = info;
+        }
+        if (total == 0) {
+            throw new IllegalStateException();
+        }
+
+        return catalog;
+    }
+
+    private static long used() {
+        Runtime r = Runtime.getRuntime();
+        for (int i=0; i<3; ++i) {
+            System.gc();
+        }
+        return r.totalMemory() - r.freeMemory();
+    }
+}
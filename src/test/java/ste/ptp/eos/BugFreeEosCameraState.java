@@ -0,0 +1,159 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosCameraState implements EosEventConstants {
+
+    @Test
+    public void fold_property_changes() {
+        EosCameraState state = new EosCameraState();
+
+        then(state.getVersion()).isZero();
+        then(state.get(EosPropAperture, -1)).isEqualTo(-1);
+
+        state.onPropValueChanged(EosPropAperture, 0x28);
+        state.onPropValueChanged(EosPropISOSpeed, 0x48);
+        state.onPropValueChanged(EosPropAperture, 0x30);
+
+        then(state.getVersion()).isEqualTo(3);
+        then(state.get(EosPropAperture, -1)).isEqualTo(0x30);
+        then(state.get(EosPropISOSpeed, -1)).isEqualTo(0x48);
+        then(state.snapshot().size()).isEqualTo(2);
+        then(state.snapshot().getProperties()).containsExactly(EosPropAperture, EosPropISOSpeed);
+
+        //
+        // same value, no change
+        //
+        state.onPropValueChanged(EosPropISOSpeed, 0x48);
+        then(state.getVersion()).isEqualTo(3);
+    }
+
+    @Test
+    public void changed_since() {
+        EosCameraState state = new EosCameraState();
+
+        state.set(EosPropAperture, 0x28);
+        state.set(EosPropISOSpeed, 0x48);
+        long v = state.getVersion();
+        then(state.hasChangedSince(v)).isFalse();
+        then(state.snapshot().changedSince(v)).isEmpty();
+
+        state.set(EosPropShutterSpeed, 0x6D);
+        state.set(EosPropAperture, 0x30);
+
+        then(state.hasChangedSince(v)).isTrue();
+        then(state.snapshot().changedSince(v)).containsExactly(EosPropAperture, EosPropShutterSpeed);
+        then(state.snapshot().getVersion(EosPropISOSpeed)).isEqualTo(2);
+        then(state.snapshot().getVersion(EosPropAperture)).isEqualTo(4);
+        then(state.snapshot().getVersion(EosPropWhiteBalance)).isZero();
+    }
+
+    @Test
+    public void snapshots_do_not_change() {
+        EosCameraState state = new EosCameraState();
+
+        for (int i=0; i<100; ++i) {
+            state.set(0xD100 + i, i);
+        }
+        EosCameraState.Snapshot s = state.snapshot();
+        for (int i=0; i<100; ++i) {
+            state.set(0xD100 + i, i + 1000);
+        }
+
+        then(s.getVersion()).isEqualTo(100);
+        then(s.size()).isEqualTo(100);
+        for (int i=0; i<100; ++i) {
+            then(s.get(0xD100 + i, -1)).isEqualTo(i);
+            then(state.get(0xD100 + i, -1)).isEqualTo(i + 1000);
+        }
+        then(s.contains(0xD200)).isFalse();
+        then(state.getVersion()).isEqualTo(200);
+    }
+
+    @Test
+    public void allowed_values() {
+        EosCameraState state = new EosCameraState();
+
+        then(state.getAllowedValues(EosPropAperture)).isNull();
+        then(state.isAllowed(EosPropAperture, 0x99)).isTrue();
+        then(state.nearestAllowed(EosPropAperture, 0x99)).isEqualTo(0x99);
+
+        int[] values = {0x30, 0x28, 0x38, 0x20, 0x00};
+        state.onAvailListChanged(EosPropAperture, values, 4);
+        values[0] = 0;  // the list is copied
+
+        then(state.getAllowedValues(EosPropAperture)).containsExactly(0x20, 0x28, 0x30, 0x38);
+        then(state.isAllowed(EosPropAperture, 0x28)).isTrue();
+        then(state.isAllowed(EosPropAperture, 0x2B)).isFalse();
+        then(state.isAllowed(EosPropAperture, 0x00)).isFalse();
+        then(state.isAllowed(EosPropISOSpeed, 0x48)).isTrue();
+
+        then(state.nearestAllowed(EosPropAperture, 0x28)).isEqualTo(0x28);
+        then(state.nearestAllowed(EosPropAperture, 0x2B)).isEqualTo(0x28);
+        then(state.nearestAllowed(EosPropAperture, 0x2C)).isEqualTo(0x28);
+        then(state.nearestAllowed(EosPropAperture, 0x2D)).isEqualTo(0x30);
+        then(state.nearestAllowed(EosPropAperture, 0x01)).isEqualTo(0x20);
+        then(state.nearestAllowed(EosPropAperture, 0x99)).isEqualTo(0x38);
+
+        //
+        // a new list replaces the old one
+        //
+        state.onAvailListChanged(EosPropAperture, new int[] {0x50}, 1);
+        then(state.isAllowed(EosPropAperture, 0x28)).isFalse();
+        then(state.nearestAllowed(EosPropAperture, 0x28)).isEqualTo(0x50);
+    }
+
+    @Test
+    public void property_0_is_not_allowed() {
+        try {
+            new EosCameraState().set(0, 1);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("property can not be 0");
+        }
+    }
+
+    @Test
+    public void property_0_from_the_camera_is_ignored() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(0, 0x28));
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(EosPropISOSpeed, 0x48));
+
+        then(camera.checkEvents()).hasSize(2);
+        then(camera.getCameraState().get(0, -1)).isEqualTo(-1);
+        then(camera.getCameraState().get(EosPropISOSpeed, -1)).isEqualTo(0x48);
+    }
+
+    @Test
+    public void initiator_folds_the_received_events() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(EosPropAperture, 0x28));
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(EosPropISOSpeed, 0x48));
+
+        then(camera.checkEvents()).hasSize(2);
+        then(camera.getCameraState().get(EosPropAperture, -1)).isEqualTo(0x28);
+        then(camera.getCameraState().get(EosPropISOSpeed, -1)).isEqualTo(0x48);
+    }
+}
@@ -0,0 +1,283 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ste.ptp.PTPException;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosCapturePipeline {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void burst_downloads_all_objects() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 100000;
+        MemorySink sink = new MemorySink(camera);
+
+        EosCapturePipeline pipeline = new EosCapturePipeline(camera, sink, 32 * 1024);
+        pipeline.burst(5, 0, TimeUnit.MILLISECONDS);
+
+        then(camera.releases).isEqualTo(5);
+        then(camera.transferred).isEqualTo(5);
+        then(camera.partialReads).isEqualTo(5 * 4);
+        then(sink.names).containsExactly(
+            "IMG_0001.CR2", "IMG_0002.CR2", "IMG_0003.CR2", "IMG_0004.CR2", "IMG_0005.CR2"
+        );
+        for (int i=0; i<5; ++i) {
+            byte[] content = sink.objects.get(i);
+            then(content).hasSize(100000);
+            for (int j=0; j<content.length; ++j) {
+                if (content[j] != SimulatedEosCamera.content(SimulatedEosCamera.FIRST_OBJECT + i, j)) {
+                    fail("wrong content of object " + i + " at " + j);
+                }
+            }
+        }
+
+        then(pipeline.getFrames()).isEqualTo(5);
+        then(pipeline.getBytes()).isEqualTo(5 * 100000);
+        then(pipeline.getLatency().getCount()).isEqualTo(5);
+        then(pipeline.getLatency().getMax()).isPositive();
+        then(pipeline.getFramesPerMinute()).isPositive();
+    }
+
+    @Test
+    public void releases_do_not_wait_for_downloads() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 400000;
+        camera.bytesPerSecond = 4000000;  // 100 ms per object
+        MemorySink sink = new MemorySink(camera);
+
+        EosCapturePipeline pipeline = new EosCapturePipeline(camera, sink, 50000);
+        pipeline.burst(4, 10, TimeUnit.MILLISECONDS);
+
+        then(sink.names).hasSize(4);
+        //
+        // all shots have been taken while the first object was downloaded
+        //
+        then(sink.releasesAtEnd.get(0)).isEqualTo(4);
+        then(camera.transferred).isEqualTo(4);
+    }
+
+    @Test
+    public void objects_created_before_the_burst_are_ignored() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.queueEvent(SimulatedEosCamera.objectAdded(0x91800001, 0xB103, 100, "IMG_9999.CR2"));
+        MemorySink sink = new MemorySink(camera);
+
+        new EosCapturePipeline(camera, sink).burst(1, 0, TimeUnit.MILLISECONDS);
+
+        then(sink.names).containsExactly("IMG_0001.CR2");
+    }
+
+    @Test
+    public void raw_and_jpeg() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 1000;
+        camera.jpegDelay = TimeUnit.MILLISECONDS.toNanos(30);
+        MemorySink sink = new MemorySink(camera);
+
+        EosCapturePipeline pipeline = new EosCapturePipeline(camera, sink);
+        pipeline.setObjectsPerShot(2);
+        pipeline.setPollInterval(1, TimeUnit.MILLISECONDS);
+        pipeline.burst(2, 10, TimeUnit.MILLISECONDS);
+
+        //
+        // the burst waits for the last JPEG
+        //
+        then(sink.names).containsExactly(
+            "IMG_0001.CR2", "IMG_0002.CR2", "IMG_0001.JPG", "IMG_0002.JPG"
+        );
+        then(camera.transferred).isEqualTo(4);
+
+        //
+        // each JPEG is associated to its own release, not to the last one
+        //
+        then(pipeline.getLatency().getCount()).isEqualTo(4);
+        then(pipeline.getLatency().getPercentile(75)).isGreaterThanOrEqualTo(
+            TimeUnit.MILLISECONDS.toNanos(30)
+        );
+    }
+
+    @Test
+    public void the_event_poller_is_paused_during_the_burst() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 1000;
+        MemorySink sink = new MemorySink(camera);
+        EosEventPoller poller = camera.getEventPoller();
+
+        camera.arm();
+        poller.start();
+        try {
+            new EosCapturePipeline(camera, sink).burst(5, 10, TimeUnit.MILLISECONDS);
+
+            then(sink.names).hasSize(5);
+            then(camera.transferred).isEqualTo(5);
+            then(poller.isPaused()).isFalse();
+            then(poller.isRunning()).isTrue();
+        } finally {
+            poller.stop();
+        }
+    }
+
+    @Test
+    public void write_objects_to_a_directory() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 1000;
+        File dir = folder.newFolder();
+
+        new EosCapturePipeline(camera, new EosDirectorySink(dir)).burst(2, 0, TimeUnit.MILLISECONDS);
+
+        then(new File(dir, "IMG_0001.CR2")).hasBinaryContent(content(SimulatedEosCamera.FIRST_OBJECT, 1000));
+        then(Files.size(new File(dir, "IMG_0002.CR2").toPath())).isEqualTo(1000);
+    }
+
+    @Test
+    public void objects_are_not_written_outside_the_directory() throws Exception {
+        File dir = folder.newFolder();
+        EosDirectorySink sink = new EosDirectorySink(dir);
+
+        for (String name: new String[] {
+            "../IMG_0001.CR2", "..", "DCIM/IMG_0001.CR2", "DCIM\\IMG_0001.CR2",
+            new File(folder.getRoot(), "IMG_0001.CR2").getAbsolutePath(), ""
+        }) {
+            try {
+                sink.begin(1, name, 10);
+                fail("name " + name + " not rejected");
+            } catch (IOException x) {
+                then(x).hasMessage("invalid object name: " + name);
+            }
+        }
+        then(folder.getRoot().list()).containsExactly(dir.getName());
+    }
+
+    @Test
+    public void objects_not_received_in_time() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.captureDelay = TimeUnit.SECONDS.toNanos(10);
+
+        EosCapturePipeline pipeline = new EosCapturePipeline(camera, new MemorySink(camera));
+        pipeline.setObjectTimeout(100, TimeUnit.MILLISECONDS);
+        try {
+            pipeline.burst(2, 0, TimeUnit.MILLISECONDS);
+            fail("timeout not detected");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("2 objects not received in 100 ms");
+        }
+    }
+
+    @Test
+    public void truncated_objects() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 100000;
+        camera.truncatedSize = 70000;
+
+        EosCapturePipeline pipeline = new EosCapturePipeline(camera, new MemorySink(camera), 32 * 1024);
+        try {
+            pipeline.burst(1, 0, TimeUnit.MILLISECONDS);
+            fail("truncated object not detected");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("object 0x91900001 truncated at 70000 of 100000 bytes");
+        }
+        then(camera.transferred).isZero();
+        then(pipeline.getFrames()).isZero();
+    }
+
+    @Test
+    public void sanity_checks() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        try {
+            new EosCapturePipeline(null, new MemorySink(camera));
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("camera can not be null");
+        }
+        try {
+            new EosCapturePipeline(camera, null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("sink can not be null");
+        }
+        try {
+            new EosCapturePipeline(camera, new MemorySink(camera), 0);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("chunkSize must be greater than 0");
+        }
+        try {
+            new EosCapturePipeline(camera, new MemorySink(camera)).setObjectsPerShot(0);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("objectsPerShot must be greater than 0");
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    static byte[] content(int oid, int size) {
+        byte[] content = new byte[size];
+        for (int i=0; i<size; ++i) {
+            content[i] = SimulatedEosCamera.content(oid, i);
+        }
+        return content;
+    }
+
+    static class MemorySink implements EosObjectSink {
+        final SimulatedEosCamera camera;
+        final List<String> names = new ArrayList<>();
+        final List<byte[]> objects = new ArrayList<>();
+        final List<Integer> releasesAtEnd = new ArrayList<>();
+        ByteArrayOutputStream current;
+
+        MemorySink(SimulatedEosCamera camera) {
+            this.camera = camera;
+        }
+
+        @Override
+        public void begin(int objectId, String name, long size) {
+            names.add(name);
+            current = new ByteArrayOutputStream();
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) {
+            current.write(buf, offset, length);
+        }
+
+        @Override
+        public void end(int objectId) {
+            objects.add(current.toByteArray());
+            releasesAtEnd.add(camera.releases);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosCaptureScheduler {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void timelapse_does_not_drift() throws Exception {
+        final long INTERVAL = 40 * MS;
+
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosCaptureScheduler scheduler = new EosCaptureScheduler(camera);
+
+        //
+        // the third release takes longer than two intervals
+        //
+        camera.releaseDelay = 100 * MS;
+        camera.delayedRelease = 2;
+        scheduler.timelapse(8, 40, TimeUnit.MILLISECONDS);
+
+        then(camera.isArmed()).isTrue();
+        then(camera.releases).isEqualTo(8);
+        then(scheduler.getShots()).isEqualTo(8);
+        then(scheduler.getTimingError().getCount()).isEqualTo(8);
+        then(scheduler.getLate()).isGreaterThanOrEqualTo(2);
+
+        //
+        // the late shot does not delay the following ones: once caught up
+        // they are taken at their planned offsets, while a drift would move
+        // them by the whole delay
+        //
+        for (int i=5; i<8; ++i) {
+            then(camera.releaseTimes[i] - camera.releaseTimes[0] - i * INTERVAL)
+                .isLessThan(camera.releaseDelay / 2);
+        }
+    }
+
+    @Test
+    public void bulb_ramp() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosCaptureScheduler scheduler = new EosCaptureScheduler(camera);
+
+        scheduler.ramp(3, 10, 30, 60, TimeUnit.MILLISECONDS);
+
+        then(camera.bulbs).isEqualTo(3);
+        then(camera.releases).isEqualTo(3);
+        //
+        // exposures and intervals are never shorter than planned
+        //
+        for (int i=0; i<3; ++i) {
+            then(camera.bulbEnds[i] - camera.bulbStarts[i])
+                .isGreaterThanOrEqualTo((10 + 10*i - 1) * MS);
+        }
+        then(camera.bulbStarts[2] - camera.bulbStarts[0]).isGreaterThanOrEqualTo(119 * MS);
+        then(scheduler.getExposureError().getCount()).isEqualTo(3);
+
+        then(EosCaptureScheduler.exposure(0, 5, 100, 500)).isEqualTo(100);
+        then(EosCaptureScheduler.exposure(2, 5, 100, 500)).isEqualTo(300);
+        then(EosCaptureScheduler.exposure(4, 5, 100, 500)).isEqualTo(500);
+        then(EosCaptureScheduler.exposure(0, 1, 100, 500)).isEqualTo(100);
+    }
+
+    @Test
+    public void bulb_is_closed_if_the_exposure_fails() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosCaptureScheduler scheduler = new EosCaptureScheduler(camera);
+
+        camera.arm();
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(0xD102, 0x70));
+        scheduler.setEventVisitor(new EosEventVisitor() {
+            @Override
+            public void onPropValueChanged(int property, int value) {
+                throw new IllegalStateException("event failure");
+            }
+        });
+        try {
+            scheduler.bulb(2, 100, 200, TimeUnit.MILLISECONDS);
+            fail("failure not propagated");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("event failure");
+        }
+
+        then(camera.bulbs).isEqualTo(1);
+        then(scheduler.getExposureError().getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void events_are_drained_between_shots() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosCaptureScheduler scheduler = new EosCaptureScheduler(camera);
+        EosEventPoller poller = camera.getEventPoller();
+
+        camera.arm();
+        poller.start();
+        try {
+            camera.queueEvent(SimulatedEosCamera.propValueChanged(0xD102, 0x70));
+            final boolean[] paused = new boolean[1];
+            scheduler.setEventVisitor(new EosEventVisitor() {
+                @Override
+                public void onPropValueChanged(int property, int value) {
+                    paused[0] = poller.isPaused();
+                }
+            });
+            scheduler.timelapse(4, 60, TimeUnit.MILLISECONDS);
+
+            then(scheduler.getDrains()).isPositive();
+            then(camera.getCameraState().get(0xD102, -1)).isEqualTo(0x70);
+            if (poller.getEvents() == 0) {
+                then(paused[0]).isTrue();
+            }
+            then(poller.isPaused()).isFalse();
+            then(poller.isRunning()).isTrue();
+        } finally {
+            poller.stop();
+        }
+    }
+
+    @Test
+    public void invalid_sequences() throws Exception {
+        EosCaptureScheduler scheduler = new EosCaptureScheduler(new SimulatedEosCamera());
+
+        try {
+            scheduler.bulb(3, 100, 100, TimeUnit.MILLISECONDS);
+            fail("exposure not checked");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("exposure must be shorter than the interval");
+        }
+        try {
+            scheduler.timelapse(0, 100, TimeUnit.MILLISECONDS);
+            fail("shots not checked");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("shots must be greater than 0");
+        }
+        try {
+            scheduler.timelapse(1, 0, TimeUnit.MILLISECONDS);
+            fail("interval not checked");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("interval must be greater than 0");
+        }
+        try {
+            new EosCaptureScheduler(null);
+            fail("camera not checked");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("camera can not be null");
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.concurrent.TimeUnit;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+import ste.ptp.LatencyHistogram;
+import ste.ptp.eos.BugFreeEosCapturePipeline.MemorySink;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosCaptureTrace {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final int MIB = 1024 * 1024;
+
+    @Test
+    public void phases_are_correlated_to_releases() {
+        EosCaptureTrace trace = new EosCaptureTrace();
+
+        trace.release(1000 * MS);
+        trace.release(1100 * MS);
+        trace.objectAdded(1, 2 * MIB, 1000 * MS, 1040 * MS);
+        trace.objectAdded(2, 2 * MIB, 1100 * MS, 1150 * MS);
+        trace.objectAdded(3, MIB, 1100 * MS, 1160 * MS);  // JPEG of the second release
+
+        trace.chunk(1, MIB, 1045 * MS, 1050 * MS);
+        trace.chunk(1, MIB, 1050 * MS, 1055 * MS);
+        trace.written(1, 1060 * MS);
+        trace.transferComplete(1, 1061 * MS);
+
+        trace.chunk(2, MIB, 1160 * MS, 1170 * MS);
+        trace.chunk(2, MIB, 1170 * MS, 1180 * MS);
+        trace.written(2, 1181 * MS);
+        trace.transferComplete(2, 1182 * MS);
+
+        trace.chunk(3, MIB, 1182 * MS, 1202 * MS);
+        trace.written(3, 1203 * MS);
+        trace.transferComplete(3, 1204 * MS);
+
+        thenHistogram(trace.getReleaseToEvent(), 3, 40 * MS, 60 * MS);
+        thenHistogram(trace.getEventToFirstByte(), 3, 10 * MS, 42 * MS);
+        thenHistogram(trace.getShutterToDisk(), 3, 60 * MS, 103 * MS);
+        thenHistogram(trace.getTransferTimePerMiB(), 3, 5 * MS, 20 * MS);
+
+        //
+        // 50, 100 and 200 MiB/s
+        //
+        then(trace.getThroughput(100)).isBetween(190.0 * MIB, 210.0 * MIB);
+        then(trace.getThroughput(50)).isBetween(90.0 * MIB, 110.0 * MIB);
+        then(trace.getThroughput(0)).isBetween(45.0 * MIB, 55.0 * MIB);
+        then(trace.getRecords()).isEqualTo(2 + 3 + 5 + 3 * 2);
+        then(trace.toString()).contains("release to event: ");
+    }
+
+    @Test
+    public void dump() throws Exception {
+        EosCaptureTrace trace = new EosCaptureTrace(4);
+
+        trace.release(1000);
+        trace.objectAdded(7, 100, 1000, 1500);
+        trace.chunk(7, 60, 1600, 1700);
+        trace.chunk(7, 40, 1700, 1800);
+        trace.written(7, 1900);
+        trace.transferComplete(7, 2000);
+
+        then(trace.getRecords()).isEqualTo(6);
+        then(trace.getDropped()).isEqualTo(2);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        trace.dump(out);
+        then(out.size()).isEqualTo(10 + 4 * EosCaptureTrace.RECORD_SIZE);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        then(in.readInt()).isEqualTo(EosCaptureTrace.MAGIC);
+        then(in.readShort()).isEqualTo((short)EosCaptureTrace.VERSION);
+        then(in.readInt()).isEqualTo(4);
+
+        long[][] expected = {
+            {EosCaptureTrace.CHUNK, 7, 0, 60},
+            {EosCaptureTrace.CHUNK, 7, 100, 40},
+            {EosCaptureTrace.WRITTEN, 7, 200, 100},
+            {EosCaptureTrace.TRANSFER_COMPLETE, 7, 300, 0}
+        };
+        for (long[] r: expected) {
+            then(in.readByte()).isEqualTo((byte)r[0]);
+            then(in.readInt()).isEqualTo((int)r[1]);
+            then(in.readLong()).isEqualTo(r[2]);
+            then(in.readLong()).isEqualTo(r[3]);
+        }
+        then(in.read()).isEqualTo(-1);
+
+        trace.reset();
+        then(trace.getRecords()).isZero();
+        then(trace.getShutterToDisk().getCount()).isZero();
+    }
+
+    @Test
+    public void trace_a_burst() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 100000;
+        camera.captureDelay = 5 * MS;
+        EosCaptureTrace trace = new EosCaptureTrace();
+
+        EosCapturePipeline pipeline = new EosCapturePipeline(camera, new MemorySink(camera), 32 * 1024);
+        pipeline.setTrace(trace);
+        pipeline.burst(3, 0, TimeUnit.MILLISECONDS);
+
+        then(trace.getReleaseToEvent().getCount()).isEqualTo(3);
+        then(trace.getReleaseToEvent().getMin()).isGreaterThanOrEqualTo(5 * MS);
+        then(trace.getEventToFirstByte().getCount()).isEqualTo(3);
+        then(trace.getShutterToDisk().getCount()).isEqualTo(3);
+        then(trace.getThroughput(50)).isPositive();
+        then(trace.getRecords()).isEqualTo(3 * (1 + 1 + 4 + 2));
+    }
+
+    @Test
+    public void sanity_checks() throws Exception {
+        try {
+            new EosCaptureTrace(0);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("capacity must be greater than 0");
+        }
+        try {
+            new EosCaptureTrace().getThroughput(101);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("percentile must be in 0-100");
+        }
+        try {
+            new EosCaptureTrace().dump(null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("out can not be null");
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static void thenHistogram(LatencyHistogram h, long count, long min, long max) {
+        then(h.getCount()).isEqualTo(count);
+        then(h.getMin()).isEqualTo(min);
+        then(h.getMax()).isEqualTo(max);
+    }
+}
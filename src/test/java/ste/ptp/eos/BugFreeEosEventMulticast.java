@@ -0,0 +1,88 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosEventMulticast {
+
+    @Test
+    public void events_are_notified_to_all_targets_in_order() {
+        List<String> calls = new ArrayList<>();
+        EosEventMulticast multicast = new EosEventMulticast(visitor("a", calls), null);
+
+        multicast.onPropValueChanged(0xD102, 1);
+        multicast.set(1, visitor("b", calls));
+        multicast.onObjectAdded64(1, 2, 3, 0x100000000L, 4, "MVI_0001.MP4");
+        multicast.set(1, null);
+        multicast.onAfResult(0);
+
+        then(calls).containsExactly(
+            "a prop 1", "a object 4294967296", "b object 4294967296", "a af"
+        );
+    }
+
+    @Test
+    public void add_and_remove_targets() {
+        List<String> calls = new ArrayList<>();
+        EosEventVisitor a = visitor("a", calls), b = visitor("b", calls);
+        EosEventMulticast multicast = new EosEventMulticast();
+
+        multicast.onAfResult(0);
+        multicast.add(a);
+        multicast.add(b);
+        multicast.onAfResult(0);
+        multicast.remove(a);
+        multicast.onAfResult(0);
+        multicast.remove(a);
+        multicast.remove(b);
+        multicast.onAfResult(0);
+
+        then(calls).containsExactly("a af", "b af", "b af");
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static EosEventVisitor visitor(final String name, final List<String> calls) {
+        return new EosEventVisitor() {
+            @Override
+            public void onPropValueChanged(int property, int value) {
+                calls.add(name + " prop " + value);
+            }
+
+            @Override
+            public void onObjectAdded(
+                int objectId, int storageId, int format, long size, int parentId,
+                CharSequence n
+            ) {
+                calls.add(name + " object " + size);
+            }
+
+            @Override
+            public void onAfResult(int result) {
+                calls.add(name + " af");
+            }
+        };
+    }
+}
@@ -10,6 +10,7 @@ import java.lang.reflect.Method;
 import static junit.framework.TestCase.fail;
 import static org.assertj.core.api.BDDAssertions.then;
 import org.junit.Test;
+import ste.ptp.AllocationMeter;
 import ste.ptp.PTPUnsupportedException;
 
 /**
@@ -47,6 +48,34 @@ public class BugFreeEosEventParser {
       (byte)0x6D, (byte)0x00, (byte)0x00, (byte)0x00
     };
 
+    private static final byte[] OBJECT_ADDED_EX = {
+      (byte)0x3C, (byte)0x00, (byte)0x00, (byte)0x00,
+      (byte)0x81, (byte)0xC1, (byte)0x00, (byte)0x00,
+      // object ID
+      (byte)0xB1, (byte)0x7B, (byte)0x90, (byte)0x91,
+      // storage ID
+      (byte)0x01, (byte)0x00, (byte)0x02, (byte)0x00,
+      // format
+      (byte)0x03, (byte)0xB1,
+      // unknown
+      (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+      (byte)0x00, (byte)0x00, (byte)0x20, (byte)0x00,
+      (byte)0x00, (byte)0x00,
+      // object size
+      (byte)0xE5, (byte)0x0B, (byte)0x88, (byte)0x00,
+      // parent obejct id
+      (byte)0x00, (byte)0x00, (byte)0x90, (byte)0x91,
+      // unknown (it looks like an ID)
+      (byte)0xB0, (byte)0x7B, (byte)0x90, (byte)0x91,
+      // filename (IMG_1979.CR2)
+      (byte)0x49, (byte)0x4D, (byte)0x47, (byte)0x5F,
+      (byte)0x31, (byte)0x39, (byte)0x37, (byte)0x39,
+      (byte)0x2E, (byte)0x43, (byte)0x52, (byte)0x32,
+      (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
+      // unknown
+      (byte)0x2E, (byte)0x30, (byte)0x1E, (byte)0x4D
+    };
+
     @Test
     public void constructor_with_valid_id() {
         new EosEventParser(new ByteArrayInputStream(new byte[0]));
@@ -93,19 +122,19 @@ public class BugFreeEosEventParser {
           (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00
         };
 
-        Method m = EosEventParser.class.getDeclaredMethod("getNextString");
+        Method m = EosEventParser.class.getDeclaredMethod("getNextAscii");
         m.setAccessible(true);
 
         EosEventParser p = new EosEventParser(
                                new ByteArrayInputStream(BUF1)
                            );
 
-        then(m.invoke(p)).isEqualTo("");
+        then(m.invoke(p).toString()).isEqualTo("");
 
         p = new EosEventParser(
                 new ByteArrayInputStream(BUF2)
             );
-        then(m.invoke(p)).isEqualTo("IMG_1979.CR2");
+        then(m.invoke(p).toString()).isEqualTo("IMG_1979.CR2");
     }
 
     @Test
@@ -399,36 +428,8 @@ public class BugFreeEosEventParser {
 
     @Test
     public void event_EosEventObjectAddedEx() throws Exception {
-        final byte[] BUF = {
-          (byte)0x3C, (byte)0x00, (byte)0x00, (byte)0x00,
-          (byte)0x81, (byte)0xC1, (byte)0x00, (byte)0x00,
-          // object ID
-          (byte)0xB1, (byte)0x7B, (byte)0x90, (byte)0x91,
-          // storage ID
-          (byte)0x01, (byte)0x00, (byte)0x02, (byte)0x00,
-          // format
-          (byte)0x03, (byte)0xB1,
-          // unknown
-          (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
-          (byte)0x00, (byte)0x00, (byte)0x20, (byte)0x00,
-          (byte)0x00, (byte)0x00,
-          // object size
-          (byte)0xE5, (byte)0x0B, (byte)0x88, (byte)0x00,
-          // parent obejct id
-          (byte)0x00, (byte)0x00, (byte)0x90, (byte)0x91,
-          // unknown (it looks like an ID)
-          (byte)0xB0, (byte)0x7B, (byte)0x90, (byte)0x91,
-          // filename (IMG_1979.CR2)
-          (byte)0x49, (byte)0x4D, (byte)0x47, (byte)0x5F,
-          (byte)0x31, (byte)0x39, (byte)0x37, (byte)0x39,
-          (byte)0x2E, (byte)0x43, (byte)0x52, (byte)0x32,
-          (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
-          // unknown
-          (byte)0x2E, (byte)0x30, (byte)0x1E, (byte)0x4D
-        };
-
         EosEventParser parser = new EosEventParser(
-                                    new ByteArrayInputStream(BUF)
+                                    new ByteArrayInputStream(OBJECT_ADDED_EX)
                                 );
 
         EosEvent e = parser.getNextEvent();
@@ -442,4 +443,370 @@ public class BugFreeEosEventParser {
         then(e.getStringParam(6)).isEqualTo("IMG_1979.CR2"); // fiel name
     }
 
+    @Test
+    public void parse_events_in_place() throws Exception {
+        //
+        // the events are in the middle of a bigger buffer (e.g. after the
+        // container header of the received data)
+        //
+        byte[] buf = new byte[12 + EOS_PROP_VALUE_CHANGED.length + SHUTDOWN_TIMER_UPDATED.length + 8];
+        System.arraycopy(EOS_PROP_VALUE_CHANGED, 0, buf, 12, EOS_PROP_VALUE_CHANGED.length);
+        System.arraycopy(
+            SHUTDOWN_TIMER_UPDATED, 0,
+            buf, 12 + EOS_PROP_VALUE_CHANGED.length, SHUTDOWN_TIMER_UPDATED.length
+        );
+        buf[buf.length-8] = (byte)0xFF;
+
+        EosEventParser parser = new EosEventParser(
+            buf, 12, EOS_PROP_VALUE_CHANGED.length + SHUTDOWN_TIMER_UPDATED.length
+        );
+
+        EosEvent e = parser.getNextEvent();
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventPropValueChanged);
+        then(e.getIntParam(1)).isEqualTo(EosEventConstants.EosPropShutterSpeed);
+        then(e.getIntParam(2)).isEqualTo(0x006D);
+
+        e = parser.getNextEvent();
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventShutdownTimerUpdated);
+
+        then(parser.hasEvents()).isFalse();
+    }
+
+    @Test
+    public void records_are_skipped_by_length() throws Exception {
+        //
+        // a property change with more data than we decode
+        //
+        byte[] buf = new byte[0x14 + SHUTDOWN_TIMER_UPDATED.length];
+        System.arraycopy(EOS_PROP_VALUE_CHANGED, 0, buf, 0, EOS_PROP_VALUE_CHANGED.length);
+        buf[0] = 0x14; buf[0x10] = (byte)0xAA;
+        System.arraycopy(SHUTDOWN_TIMER_UPDATED, 0, buf, 0x14, SHUTDOWN_TIMER_UPDATED.length);
+
+        EosEventParser parser = new EosEventParser(buf, 0, buf.length);
+
+        then(parser.getNextEvent().getCode()).isEqualTo(EosEventConstants.EosEventPropValueChanged);
+        then(parser.getNextEvent().getCode()).isEqualTo(EosEventConstants.EosEventShutdownTimerUpdated);
+        then(parser.hasEvents()).isFalse();
+    }
+
+    @Test
+    public void invalid_buffer_range() {
+        try {
+            new EosEventParser(null, 0, 0);
+            fail("buffer is not checked");
+        } catch (IllegalArgumentException e) {
+            then(e).hasMessage("The buffer cannot be null");
+        }
+
+        try {
+            new EosEventParser(new byte[16], 12, 8);
+            fail("range is not checked");
+        } catch (IllegalArgumentException e) {
+            then(e).hasMessage("invalid range 12+8 for a buffer of 16 bytes");
+        }
+    }
+
+    @Test
+    public void visit_events() throws Exception {
+        byte[] buf = concat(EOS_PROP_VALUE_CHANGED, UNSUPPORTED_EVENT, OBJECT_ADDED_EX, SHUTDOWN_TIMER_UPDATED);
+        final StringBuilder sb = new StringBuilder();
+
+        new EosEventParser(buf, 0, buf.length).accept(new EosEventVisitor() {
+            @Override
+            public void onPropValueChanged(int property, int value) {
+                sb.append(String.format("prop %x=%x;", property, value));
+            }
+
+            @Override
+            public void onObjectAdded(
+                int objectId, int storageId, int format, long size, int parentId,
+                CharSequence name
+            ) {
+                sb.append(String.format(
+                    "object %x %x %x %d %x %s (%d);",
+                    objectId, storageId, format, size, parentId, name, name.length()
+                ));
+            }
+        });
+
+        then(sb.toString()).isEqualTo(
+            "prop d102=6d;object 91907bb1 20001 b103 8915941 91900000 IMG_1979.CR2 (12);"
+        );
+    }
+
+    @Test
+    public void visiting_events_does_not_allocate() throws Exception {
+        byte[] buf = concat(EOS_PROP_VALUE_CHANGED, OBJECT_ADDED_EX, SHUTDOWN_TIMER_UPDATED);
+        EosEventParser parser = new EosEventParser(buf, 0, 0);
+        CountingVisitor visitor = new CountingVisitor();
+
+        long allocated = AllocationMeter.allocated(() -> {
+            parser.reset(buf, 0, buf.length);
+            parser.accept(visitor);
+        });
+
+        then(allocated).isZero();
+        then(visitor.events).isGreaterThanOrEqualTo(3*21000);
+        then(visitor.chars).isEqualTo(12*visitor.events/3);
+    }
+
+    @Test
+    public void unsupported_events_are_skipped_and_counted() throws Exception {
+        byte[] storage = {
+            (byte)0x10, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x85, (byte)0xC1, (byte)0x00, (byte)0x00,
+            (byte)0x02, (byte)0xD1, (byte)0x00, (byte)0x00,
+            (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00
+        };
+        byte[] terminator = {
+            (byte)0x08, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00
+        };
+        byte[] buf = concat(storage, UNSUPPORTED_EVENT, storage, SHUTDOWN_TIMER_UPDATED, terminator);
+        CountingVisitor visitor = new CountingVisitor();
+
+        EosEventParser parser = new EosEventParser(buf, 0, buf.length);
+        parser.accept(visitor);
+
+        then(visitor.events).isEqualTo(1);
+        then(parser.getSkipped(EosEventConstants.EosEventStorageInfoChanged)).isEqualTo(2);
+        then(parser.getSkipped(0x2088)).isZero();
+        then(parser.getSkipped(EosEventConstants.EosEventShutdownTimerUpdated)).isZero();
+        then(parser.getSkippedTotal()).isEqualTo(3);
+
+        parser.reset(storage, 0, storage.length);
+        then(parser.visitNextEvent(visitor)).isFalse();
+        then(parser.hasEvents()).isFalse();
+        then(parser.getSkipped(EosEventConstants.EosEventStorageInfoChanged)).isEqualTo(3);
+    }
+
+    @Test
+    public void object_removed_storage_bulb_and_af_events() throws Exception {
+        byte[] buf = {
+            (byte)0x0C, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x82, (byte)0xC1, (byte)0x00, (byte)0x00,
+            (byte)0xB1, (byte)0x7B, (byte)0x90, (byte)0x91,
+
+            (byte)0x10, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x84, (byte)0xC1, (byte)0x00, (byte)0x00,
+            (byte)0x01, (byte)0x00, (byte)0x02, (byte)0x00,
+            (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x00,
+
+            (byte)0x0C, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x94, (byte)0xC1, (byte)0x00, (byte)0x00,
+            (byte)0x1E, (byte)0x00, (byte)0x00, (byte)0x00,
+
+            (byte)0x0C, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0xA3, (byte)0xC1, (byte)0x00, (byte)0x00,
+            (byte)0x02, (byte)0x00, (byte)0x00, (byte)0x00
+        };
+
+        EosEventCollector collector = new EosEventCollector();
+        new EosEventParser(buf, 0, buf.length).accept(collector);
+
+        then(collector.getEvents()).hasSize(4);
+
+        EosEvent e = collector.getEvents().get(0);
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventObjectRemoved);
+        then(e.getIntParam(1)).isEqualTo(0x91907BB1);
+
+        e = collector.getEvents().get(1);
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventStorageStatusChanged);
+        then(e.getIntParam(1)).isEqualTo(0x00020001);
+        then(e.getIntParam(2)).isEqualTo(1);
+
+        e = collector.getEvents().get(2);
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventBulbExposureTime);
+        then(e.getIntParam(1)).isEqualTo(30);
+
+        e = collector.getEvents().get(3);
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventAfResult);
+        then(e.getIntParam(1)).isEqualTo(2);
+    }
+
+    @Test
+    public void event_EosEventAvailListChanged() throws Exception {
+        byte[] buf = {
+            (byte)0x24, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x8A, (byte)0xC1, (byte)0x00, (byte)0x00,
+            // property (aperture)
+            (byte)0x01, (byte)0xD1, (byte)0x00, (byte)0x00,
+            // form type (enumeration)
+            (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x00,
+            // count (more than the record holds)
+            (byte)0x05, (byte)0x00, (byte)0x00, (byte)0x00,
+            // values, 4 bytes each whatever the data type of the property
+            (byte)0x28, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x30, (byte)0x80, (byte)0x00, (byte)0x00,
+            (byte)0x20, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0xFF, (byte)0xFF, (byte)0xFF, (byte)0xFF,
+
+            (byte)0x08, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x8E, (byte)0xC1, (byte)0x00, (byte)0x00
+        };
+
+        EosEventCollector collector = new EosEventCollector();
+        new EosEventParser(buf, 0, buf.length).accept(collector);
+
+        then(collector.getEvents()).hasSize(2);
+        EosEvent e = collector.getEvents().get(0);
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventAvailListChanged);
+        then(e.getIntParam(1)).isEqualTo(EosEventConstants.EosPropAperture);
+        then((int[])e.getParam(2)).containsExactly(0x28, 0x8030, 0x20, 0xFFFFFFFF);
+        then(collector.getEvents().get(1).getCode()).isEqualTo(EosEventConstants.EosEventShutdownTimerUpdated);
+    }
+
+    @Test
+    public void event_EosEventAvailListChanged_unknown_form() throws Exception {
+        byte[] buf = {
+            (byte)0x18, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x8A, (byte)0xC1, (byte)0x00, (byte)0x00,
+            // property (aperture)
+            (byte)0x01, (byte)0xD1, (byte)0x00, (byte)0x00,
+            // form type (not an enumeration)
+            (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x00,
+            // count
+            (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x28, (byte)0x00, (byte)0x00, (byte)0x00,
+
+            (byte)0x08, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x8E, (byte)0xC1, (byte)0x00, (byte)0x00
+        };
+
+        EosEventCollector collector = new EosEventCollector();
+        EosEventParser parser = new EosEventParser(buf, 0, buf.length);
+
+        then(parser.accept(collector)).isEqualTo(2);
+        then(collector.getEvents()).extracting("code").containsExactly(
+            EosEventConstants.EosEventShutdownTimerUpdated
+        );
+        then(parser.getSkipped(EosEventConstants.EosEventAvailListChanged)).isEqualTo(1);
+    }
+
+    @Test
+    public void event_EosEventAvailListChanged_image_format() throws Exception {
+        byte[] buf = {
+            (byte)0x18, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x8A, (byte)0xC1, (byte)0x00, (byte)0x00,
+            // property (image format)
+            (byte)0x20, (byte)0xD1, (byte)0x00, (byte)0x00,
+            // form type (enumeration)
+            (byte)0x03, (byte)0x00, (byte)0x00, (byte)0x00,
+            // count
+            (byte)0x01, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x10, (byte)0x00, (byte)0x00, (byte)0x00,
+
+            (byte)0x08, (byte)0x00, (byte)0x00, (byte)0x00,
+            (byte)0x8E, (byte)0xC1, (byte)0x00, (byte)0x00
+        };
+
+        EosEventCollector collector = new EosEventCollector();
+        EosEventParser parser = new EosEventParser(buf, 0, buf.length);
+
+        then(parser.visitNextEvent(collector)).isFalse();
+        then(parser.visitNextEvent(collector)).isTrue();
+        then(collector.getEvents()).extracting("code").containsExactly(
+            EosEventConstants.EosEventShutdownTimerUpdated
+        );
+        then(parser.getSkipped(EosEventConstants.EosEventAvailListChanged)).isEqualTo(1);
+        then(parser.getSkippedTotal()).isEqualTo(1);
+    }
+
+    @Test
+    public void event_EosEventObjectAddedEx64() throws Exception {
+        byte[] buf = concat(
+            SimulatedEosCamera.objectAdded64(0x91900042, 0xB982, 0x240000123L, "MVI_0042.MP4"),
+            SimulatedEosCamera.objectAdded(0x91900043, 0xB103, 0xF0000000, "IMG_0043.CR2")
+        );
+
+        final long[] sizes = new long[2];
+        final String[] names = new String[2];
+        int n = new EosEventParser(buf, 0, buf.length).accept(new EosEventVisitor() {
+            int i = 0;
+
+            @Override
+            public void onObjectAdded(
+                int objectId, int storageId, int format, long size, int parentId,
+                CharSequence name
+            ) {
+                then(storageId).isEqualTo(0x00020001);
+                then(parentId).isEqualTo(0x91900000);
+                sizes[i] = size;
+                names[i++] = name.toString();
+            }
+        });
+
+        then(n).isEqualTo(2);
+        then(sizes).containsExactly(0x240000123L, 0xF0000000L);
+        then(names).containsExactly("MVI_0042.MP4", "IMG_0043.CR2");
+
+        //
+        // with the list based API, sizes that do not fit in an int are Long
+        //
+        EosEventParser parser = new EosEventParser(buf, 0, buf.length);
+        EosEvent e = parser.getNextEvent();
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventObjectAddedEx64);
+        then(e.getParam(5)).isEqualTo(0x240000123L);
+        then(EosEventFormat.format(e)).contains("Size(bytes): 9663676707");
+
+        e = parser.getNextEvent();
+        then(e.getCode()).isEqualTo(EosEventConstants.EosEventObjectAddedEx);
+        then(e.getParam(5)).isEqualTo(0xF0000000L);
+    }
+
+    @Test
+    public void event_EosEventWillSoonShutdown() throws Exception {
+        byte[] buf = concat(
+            SimulatedEosCamera.event(EosEventConstants.EosEventShutdownTimerUpdated),
+            SimulatedEosCamera.event(EosEventConstants.EosEventWillSoonShutdown)
+        );
+
+        EosEventCollector collector = new EosEventCollector();
+        then(new EosEventParser(buf, 0, buf.length).accept(collector)).isEqualTo(2);
+        then(collector.getEvents()).extracting("code").containsExactly(
+            EosEventConstants.EosEventShutdownTimerUpdated,
+            EosEventConstants.EosEventWillSoonShutdown
+        );
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static byte[] concat(byte[]... records) {
+        int len = 0;
+        for (byte[] r: records) {
+            len += r.length;
+        }
+        byte[] buf = new byte[len];
+        len = 0;
+        for (byte[] r: records) {
+            System.arraycopy(r, 0, buf, len, r.length);
+            len += r.length;
+        }
+        return buf;
+    }
+
+    private static class CountingVisitor implements EosEventVisitor {
+        long events, chars;
+
+        @Override
+        public void onPropValueChanged(int property, int value) {
+            ++events;
+        }
+
+        @Override
+        public void onObjectAdded(
+            int objectId, int storageId, int format, long size, int parentId,
+            CharSequence name
+        ) {
+            ++events;
+            for (int i=0; i<name.length(); ++i) {
+                chars += (name.charAt(i) == 0) ? 0 : 1;
+            }
+        }
+
+        @Override
+        public void onShutdownTimerUpdated() {
+            ++events;
+        }
+    }
 }
@@ -0,0 +1,187 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosEventPoller implements EosEventConstants {
+
+    private EosEventPoller poller;
+
+    @After
+    public void after() {
+        if (poller != null) {
+            poller.stop();
+        }
+    }
+
+    @Test
+    public void events_are_delivered_to_listeners() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        final BlockingQueue<String> received = new LinkedBlockingQueue<>();
+
+        poller = new EosEventPoller(camera, 1, 10, TimeUnit.MILLISECONDS);
+        poller.addListener(new EosEventVisitor() {
+            @Override
+            public void onPropValueChanged(int property, int value) {
+                received.add(String.format("%x=%d", property, value));
+            }
+        });
+        poller.start();
+
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(EosPropISOSpeed, 0x48));
+        then(received.poll(5, TimeUnit.SECONDS)).isEqualTo("d103=72");
+
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(EosPropAperture, 0x28));
+        then(received.poll(5, TimeUnit.SECONDS)).isEqualTo("d101=40");
+
+        //
+        // the event mode is set just once
+        //
+        then(camera.setEventModes).isEqualTo(1);
+        then(camera.getEvents).isGreaterThanOrEqualTo(2);
+        waitFor(() -> poller.getEvents() == 2);
+        then(poller.getErrors()).isZero();
+    }
+
+    @Test
+    public void back_off_when_idle_and_speed_up_on_activity() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        final BlockingQueue<Integer> received = new LinkedBlockingQueue<>();
+
+        poller = new EosEventPoller(camera, 1, 50, TimeUnit.MILLISECONDS);
+        poller.addListener(new EosEventVisitor() {
+            @Override
+            public void onCameraStatus(int status) {
+                received.add(status);
+            }
+        });
+        poller.start();
+
+        waitFor(() -> poller.getInterval(TimeUnit.MILLISECONDS) == 50);
+        then(poller.getEmptyPolls()).isGreaterThanOrEqualTo(6);
+
+        //
+        // once idle, the camera is polled about every 50 ms
+        //
+        long polls = poller.getPolls();
+        Thread.sleep(500);
+        then(poller.getPolls() - polls).isBetween(2L, 20L);
+
+        byte[] status = new byte[12];
+        SimulatedEosCamera.put32(status, 0, 12);
+        SimulatedEosCamera.put32(status, 4, EosEventCameraStatusChanged);
+        SimulatedEosCamera.put32(status, 8, 1);
+        camera.queueEvent(status);
+        then(received.poll(5, TimeUnit.SECONDS)).isEqualTo(1);
+
+        //
+        // listeners are notified before the poll ends and the interval
+        // is updated
+        //
+        waitFor(() -> poller.getInterval(TimeUnit.MILLISECONDS) < 50);
+
+        //
+        // polling fast, e.g. while capturing
+        //
+        waitFor(() -> poller.getInterval(TimeUnit.MILLISECONDS) == 50);
+        poller.pollFastFor(300, TimeUnit.MILLISECONDS);
+        polls = poller.getPolls();
+        Thread.sleep(200);
+        then(poller.getPolls() - polls).isGreaterThan(10);
+        then(poller.getPollRate()).isGreaterThan(0);
+    }
+
+    @Test
+    public void start_and_stop() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+
+        poller = camera.getEventPoller();
+        then(camera.getEventPoller()).isSameAs(poller);
+        then(poller.isRunning()).isFalse();
+
+        poller.start();
+        then(poller.isRunning()).isTrue();
+        try {
+            poller.start();
+            fail("poller started twice");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("poller already running");
+        }
+
+        camera.close();
+        then(poller.isRunning()).isFalse();
+        long polls = poller.getPolls();
+        Thread.sleep(50);
+        then(poller.getPolls()).isEqualTo(polls);
+
+        poller.stop();  // no effect
+    }
+
+    @Test
+    public void invalid_intervals() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        try {
+            new EosEventPoller(camera, 10, 5, TimeUnit.MILLISECONDS);
+            fail("intervals not checked");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("invalid intervals (min: 10, max: 5)");
+        }
+    }
+
+    @Test
+    public void pause_and_resume() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+
+        poller = new EosEventPoller(camera, 1, 1, TimeUnit.MILLISECONDS);
+        poller.start();
+        waitFor(() -> poller.getPolls() > 2);
+
+        poller.pause();
+        then(poller.isPaused()).isTrue();
+        int polls = camera.getEvents;
+        Thread.sleep(50);
+        then(camera.getEvents).isEqualTo(polls);
+
+        poller.resume();
+        then(poller.isPaused()).isFalse();
+        waitFor(() -> camera.getEvents > polls + 2);
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static void waitFor(java.util.function.BooleanSupplier condition)
+    throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("condition not met in time");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
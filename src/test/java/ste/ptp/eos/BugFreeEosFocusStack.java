@@ -0,0 +1,196 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+import ste.ptp.PTPException;
+import static ste.ptp.eos.BugFreeEosCapturePipeline.content;
+import ste.ptp.eos.BugFreeEosCapturePipeline.MemorySink;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosFocusStack {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void shoot_a_stack() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        MemorySink sink = new MemorySink(camera);
+        EosFocusStack stack = new EosFocusStack(camera, sink, 10000);
+
+        camera.lensDelay = 2 * MS;
+        stack.setStep(EosInitiator.DRIVE_LENS_FAR_2, 2);
+        stack.run(10);
+
+        then(camera.isArmed()).isTrue();
+        then(camera.liveView).isFalse();
+        then(camera.lensDrives).isEqualTo(18);
+        then(camera.releases).isEqualTo(10);
+        then(camera.transferred).isEqualTo(10);
+        then(stack.getFrames()).isEqualTo(10);
+        then(stack.getDownloaded()).isEqualTo(10);
+        then(stack.getLensTimeouts()).isZero();
+
+        then(sink.objects).hasSize(10);
+        for (int i=0; i<10; ++i) {
+            then(sink.names.get(i)).isEqualTo(String.format("IMG_%04d.CR2", i + 1));
+            then(sink.objects.get(i)).isEqualTo(
+                content(SimulatedEosCamera.FIRST_OBJECT + i, (int)camera.objectSize)
+            );
+        }
+
+        then(stack.getLensTime().getCount()).isEqualTo(18);
+        then(stack.getLensTime().getPercentile(50)).isGreaterThanOrEqualTo(2 * MS);
+        then(stack.getReleaseTime().getCount()).isEqualTo(10);
+        then(stack.getCaptureTime().getCount()).isEqualTo(10);
+        then(stack.getDownloadTime().getCount()).isEqualTo(10);
+    }
+
+    @Test
+    public void downloads_overlap_the_next_frames() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosFocusStack stack = new EosFocusStack(camera, new MemorySink(camera), 16 * 1024);
+
+        camera.objectSize = 256 * 1024;
+        camera.bytesPerSecond = 16 * 1024 * 1024;  // ~16 ms per object
+        camera.lensDelay = 10 * MS;
+        camera.captureDelay = 5 * MS;
+        stack.run(8);
+
+        long sum = stack.getDownloadTime().getPercentile(50) * 8
+                 + stack.getLensTime().getPercentile(50) * 7
+                 + stack.getCaptureTime().getPercentile(50) * 8;
+        then(stack.getDownloaded()).isEqualTo(8);
+        then(stack.getTotalTime(TimeUnit.NANOSECONDS)).isLessThan(sum);
+    }
+
+    @Test
+    public void lens_without_events() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosFocusStack stack = new EosFocusStack(camera, new MemorySink(camera));
+
+        camera.lensEvents = false;
+        stack.setLensTimeout(5, TimeUnit.MILLISECONDS);
+        stack.setLiveView(false);
+        stack.run(3);
+
+        then(camera.liveView).isFalse();
+        then(camera.lensDrives).isEqualTo(2);
+        then(stack.getLensTimeouts()).isEqualTo(2);
+        then(stack.getLensTime().getPercentile(50)).isGreaterThanOrEqualTo(5 * MS);
+        then(stack.getDownloaded()).isEqualTo(3);
+    }
+
+    @Test
+    public void missing_frame() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosFocusStack stack = new EosFocusStack(camera, new MemorySink(camera));
+
+        camera.captureDelay = TimeUnit.SECONDS.toNanos(10);
+        stack.setObjectTimeout(20, TimeUnit.MILLISECONDS);
+        try {
+            stack.run(2);
+            fail("frame not detected as missing");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("frame 1 not received in 20 ms");
+        }
+        then(camera.liveView).isFalse();
+    }
+
+    @Test
+    public void truncated_frame() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosFocusStack stack = new EosFocusStack(camera, new MemorySink(camera), 10000);
+
+        camera.objectSize = 30000;
+        camera.truncatedSize = 25000;
+        try {
+            stack.run(1);
+            fail("truncated frame not detected");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("object 0x91900001 truncated at 25000 of 30000 bytes");
+        }
+        then(camera.transferred).isZero();
+        then(stack.getDownloaded()).isZero();
+    }
+
+    @Test
+    public void download_errors_are_not_reported_as_timeouts() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosFocusStack stack = new EosFocusStack(camera, new EosObjectSink() {
+            @Override
+            public void begin(int objectId, String name, long size) throws IOException {
+                LockSupport.parkNanos(20 * MS);
+                throw new IOException("disk full");
+            }
+
+            @Override
+            public void write(byte[] buf, int offset, int length) {
+            }
+
+            @Override
+            public void end(int objectId) {
+            }
+        });
+
+        //
+        // the stack waits for the lens while the download fails
+        //
+        camera.lensEvents = false;
+        stack.setLensTimeout(5, TimeUnit.SECONDS);
+        try {
+            stack.run(3);
+            fail("download error not reported");
+        } catch (IOException x) {
+            then(x).hasMessage("disk full");
+        }
+        then(stack.getLensTimeouts()).isZero();
+        then(stack.getDownloaded()).isZero();
+    }
+
+    @Test
+    public void sanity_checks() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+
+        try {
+            new EosFocusStack(null, new MemorySink(camera));
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("camera can not be null");
+        }
+        try {
+            new EosFocusStack(camera, null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("sink can not be null");
+        }
+        try {
+            new EosFocusStack(camera, new MemorySink(camera)).setStep(1, 0);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("stepsPerFrame must be greater than 0");
+        }
+    }
+}
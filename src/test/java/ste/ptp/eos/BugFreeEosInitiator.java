@@ -0,0 +1,233 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.File;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import ste.ptp.Command;
+import ste.ptp.Data;
+import ste.ptp.PTPException;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosInitiator {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void armed_triggers_issue_just_the_release() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.queueEvent(SimulatedEosCamera.propValueChanged(0xD101, 0x58));
+
+        camera.arm();
+        then(camera.isArmed()).isTrue();
+        then(camera.remoteMode).isEqualTo(1);
+        then(camera.setEventModes).isEqualTo(1);
+        then(camera.getEvents).isEqualTo(1);
+        then(camera.getCameraState().get(0xD101, -1)).isEqualTo(0x58);
+
+        int commands = camera.commands;
+        for (int i=0; i<3; ++i) {
+            camera.trigger();
+        }
+        then(camera.commands - commands).isEqualTo(3);
+        then(camera.releases).isEqualTo(3);
+        then(camera.getTriggerLatency().getCount()).isEqualTo(3);
+        then(camera.getTriggerLatency().getMax()).isPositive();
+    }
+
+    @Test
+    public void initiate_capture_arms_once() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+
+        camera.initiateCapture(0, 0);
+        camera.initiateCapture(0, 0);
+        camera.initiateCapture(0, 0);
+
+        then(camera.releases).isEqualTo(3);
+        then(camera.setRemoteModes).isEqualTo(1);
+        then(camera.setEventModes).isEqualTo(1);
+        then(camera.getEvents).isEqualTo(1);
+    }
+
+    @Test
+    public void trigger_requires_an_armed_camera() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+
+        try {
+            camera.trigger();
+            fail("camera not armed");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("camera not armed");
+        }
+
+        camera.arm();
+        camera.setRemoteMode(0);
+        then(camera.isArmed()).isFalse();
+
+        camera.arm();
+        camera.disarm();
+        then(camera.isArmed()).isFalse();
+        then(camera.remoteMode).isEqualTo(0);
+
+        try {
+            camera.preFocus();
+            fail("camera not armed");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("camera not armed");
+        }
+        then(camera.releases).isZero();
+    }
+
+    @Test
+    public void pre_focus_half_presses_the_shutter_button() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.arm();
+
+        camera.preFocus();
+        camera.preFocus();  // already half pressed
+        then(camera.buttonOn).isEqualTo(1);
+        then(camera.releases).isZero();
+
+        camera.trigger();
+        then(camera.buttonOn).isEqualTo(2);
+        then(camera.buttonOff).isEqualTo(2);
+        then(camera.releases).isEqualTo(1);
+        then(camera.getTriggerLatency().getCount()).isEqualTo(1);
+
+        //
+        // the next trigger does not wait for the focus
+        //
+        camera.trigger();
+        then(camera.buttonOn).isEqualTo(2);
+        then(camera.releases).isEqualTo(2);
+
+        camera.preFocus();
+        camera.cancelFocus();
+        then(camera.buttonOn).isEqualTo(3);
+        then(camera.buttonOff).isEqualTo(3);
+        then(camera.releases).isEqualTo(2);
+    }
+
+    @Test
+    public void partial_reads_beyond_4GB() throws Exception {
+        final long SIZE = 0x240000000L;  // 9GB
+        final long OFFSET = 0x100000010L;
+        final int OID = SimulatedEosCamera.FIRST_OBJECT;
+
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = SIZE;
+
+        then(camera.getObjectSize64(OID)).isEqualTo(SIZE);
+
+        Data data = new Data(true, new byte[12 + 1000], camera);
+        camera.getPartialObject64(OID, OFFSET, 1000, data);
+        then(data.getLength()).isEqualTo(12 + 1000);
+        for (int i=0; i<1000; ++i) {
+            if (data.getData()[12 + i] != SimulatedEosCamera.content(OID, OFFSET + i)) {
+                fail("wrong content at " + (OFFSET + i));
+            }
+        }
+
+        //
+        // the last chunk is cut at the end of the object
+        //
+        camera.getPartialObject64(OID, SIZE - 10, 1000, data);
+        then(data.getLength()).isEqualTo(12 + 10);
+        then(data.getData()[12]).isEqualTo(SimulatedEosCamera.content(OID, SIZE - 10));
+    }
+
+    @Test
+    public void object_chunks() throws Exception {
+        final int OID = SimulatedEosCamera.FIRST_OBJECT;
+
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 2500;
+
+        Data data = new Data(true, new byte[12 + 1000], camera);
+        then(camera.getObjectChunk(OID, 0, 2500, 1000, data)).isEqualTo(1000);
+        then(data.getData()[12 + 999]).isEqualTo(SimulatedEosCamera.content(OID, 999));
+        then(camera.getObjectChunk(OID, 2000, 2500, 1000, data)).isEqualTo(500);
+        then(data.getData()[12]).isEqualTo(SimulatedEosCamera.content(OID, 2000));
+        then(camera.getObjectChunk(OID, 2500, 2500, 1000, data)).isZero();
+        then(camera.partialReads).isEqualTo(2);
+
+        camera.truncatedSize = 1500;
+        try {
+            camera.getObjectChunk(OID, 1500, 2500, 1000, data);
+            fail("object truncated not detected");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("object 0x91900001 truncated at 1500 of 2500 bytes");
+        }
+    }
+
+    @Test
+    public void download_into_a_file_channel() throws Exception {
+        final int OID = SimulatedEosCamera.FIRST_OBJECT + 1;
+
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = 300001;
+
+        File file = folder.newFile("MVI_0002.MP4");
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            then(camera.getObject64(OID, -1, channel, 64 * 1024)).isEqualTo(300001);
+        }
+        then(camera.partialReads).isEqualTo(5);
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        then(content).hasSize(300001);
+        for (int i=0; i<content.length; ++i) {
+            if (content[i] != SimulatedEosCamera.content(OID, i)) {
+                fail("wrong content at " + i);
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            camera.getObject64(OID, 400000, channel, 64 * 1024);
+            fail("object truncated not detected");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("object 0x91900002 truncated at 300001 of 400000 bytes");
+        }
+    }
+
+    @Test
+    public void thumbnails_are_read_with_get_thumb_ex() throws Exception {
+        final int OID = SimulatedEosCamera.FIRST_OBJECT;
+
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.thumbSize = 1000;  // more than a packet
+
+        byte[] thumb = camera.getThumb(OID);
+        then(camera.thumbCode).isEqualTo(Command.EosGetThumbEx);
+        then(thumb).hasSize(1000);
+        for (int i=0; i<thumb.length; ++i) {
+            if (thumb[i] != SimulatedEosCamera.content(~OID, i)) {
+                fail("wrong content at " + i);
+            }
+        }
+    }
+}
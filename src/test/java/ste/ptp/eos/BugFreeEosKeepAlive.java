@@ -0,0 +1,134 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosKeepAlive implements EosEventConstants {
+
+    @Test
+    public void keep_alive_when_idle() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosKeepAlive keepAlive = new EosKeepAlive(camera, 30, TimeUnit.MILLISECONDS);
+
+        keepAlive.start();
+        try {
+            Thread.sleep(100);
+            waitFor(() -> keepAlive.getKeepAlives() >= 2);
+        } finally {
+            keepAlive.stop();
+        }
+        then(keepAlive.isRunning()).isFalse();
+        then(camera.keepAlives).isEqualTo((int)keepAlive.getKeepAlives());
+        then(keepAlive.getKeepAlives()).isBetween(2L, 6L);
+        then(keepAlive.getAvoidedShutdowns()).isZero();
+    }
+
+    @Test
+    public void no_keep_alive_while_the_camera_is_used() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosKeepAlive keepAlive = new EosKeepAlive(camera, 200, TimeUnit.MILLISECONDS);
+
+        keepAlive.start();
+        try {
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(500);
+            while (System.nanoTime() < end) {
+                keepAlive.onShutdownTimerUpdated();
+                Thread.sleep(20);
+            }
+            then(camera.keepAlives).isZero();
+            then(keepAlive.getPostponed()).isPositive();
+        } finally {
+            keepAlive.stop();
+        }
+    }
+
+    @Test
+    public void shutdown_warnings_are_answered_at_once() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosKeepAlive keepAlive = camera.getKeepAlive();
+        EosEventPoller poller = camera.getEventPoller();
+
+        then(camera.getKeepAlive()).isSameAs(keepAlive);
+
+        poller.start();
+        keepAlive.start();
+        try {
+            camera.queueEvent(SimulatedEosCamera.event(EosEventWillSoonShutdown));
+            poller.pollFastFor(1, TimeUnit.SECONDS);
+
+            waitFor(() -> keepAlive.getAvoidedShutdowns() == 1);
+            then(keepAlive.getWarnings()).isEqualTo(1);
+            then(camera.keepAlives).isEqualTo(1);
+            then(keepAlive.getErrors()).isZero();
+        } finally {
+            camera.close();
+        }
+        then(keepAlive.isRunning()).isFalse();
+        then(poller.isRunning()).isFalse();
+    }
+
+    @Test
+    public void sanity_checks() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+
+        try {
+            new EosKeepAlive(null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("initiator can not be null");
+        }
+        try {
+            new EosKeepAlive(camera, 0, TimeUnit.SECONDS);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("interval must be greater than 0");
+        }
+
+        EosKeepAlive keepAlive = new EosKeepAlive(camera, 1, TimeUnit.SECONDS);
+        keepAlive.start();
+        try {
+            keepAlive.start();
+            fail("missing sanity check");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("keep-alive already running");
+        } finally {
+            keepAlive.stop();
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static void waitFor(BooleanSupplier condition)
+    throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("condition not met in time");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
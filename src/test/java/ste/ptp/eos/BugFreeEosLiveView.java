@@ -0,0 +1,149 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+import ste.ptp.AllocationMeter;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosLiveView {
+
+    @Test
+    public void frames_flow_through_the_ring() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.frameDelay = TimeUnit.MILLISECONDS.toNanos(2);
+        EosLiveView live = new EosLiveView(camera, 4, 1024);
+
+        live.start();
+        then(camera.liveView).isTrue();
+        try {
+            live.start();
+            fail("already running not detected");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("live view already running");
+        }
+
+        long last = 0;
+        for (int i=0; i<10; ++i) {
+            EosFrame frame = live.getRing().take(1, TimeUnit.SECONDS);
+            then(frame).isNotNull();
+            then(frame.getSequence()).isGreaterThan(last);
+            then(frame.getLength()).isEqualTo(camera.frameSize);
+            then(frame.getData()[frame.getOffset()]).isEqualTo((byte)0xFF);
+            then(frame.getData()[frame.getOffset() + 1]).isEqualTo((byte)0xD8);
+            then(frame.getData()[frame.getOffset() + frame.getLength() - 1]).isEqualTo((byte)0xD9);
+            then(frame.getLatency()).isPositive();
+            last = frame.getSequence();
+            live.getRing().release(frame);
+        }
+        live.stop();
+
+        then(camera.liveView).isFalse();
+        then(live.isRunning()).isFalse();
+        then(live.getFrames()).isGreaterThanOrEqualTo(10);
+        then(live.getLatency().getCount()).isEqualTo(live.getFrames());
+        then(live.getFps()).isPositive();
+        then(live.getErrors()).isZero();
+    }
+
+    @Test
+    public void slow_consumers_get_the_latest_frames() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.liveView = true;
+        EosLiveView live = new EosLiveView(camera, 3, 1024);
+
+        for (int i=0; i<10; ++i) {
+            then(live.step()).isTrue();
+        }
+        then(live.getFrames()).isEqualTo(10);
+        then(live.getDropped()).isEqualTo(7);
+
+        EosFrameRing ring = live.getRing();
+        then(ring.size()).isEqualTo(3);
+        EosFrame f1 = ring.poll(), f2 = ring.poll(), f3 = ring.poll();
+        then(ring.poll()).isNull();
+        then(new long[] {f1.getSequence(), f2.getSequence(), f3.getSequence()})
+            .containsExactly(8, 9, 10);
+
+        //
+        // all frames held by the consumer: the camera is not read
+        //
+        int commands = camera.commands;
+        then(live.step()).isFalse();
+        then(live.getStalls()).isEqualTo(1);
+        then(camera.commands).isEqualTo(commands);
+
+        ring.release(f1);
+        then(live.step()).isTrue();
+        then(ring.poll().getSequence()).isEqualTo(11);
+    }
+
+    @Test
+    public void frames_not_ready_are_skipped() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.liveView = true;
+        camera.notReady = 3;
+        EosLiveView live = new EosLiveView(camera, 2, 1024);
+
+        for (int i=0; i<3; ++i) {
+            then(live.step()).isFalse();
+        }
+        then(live.step()).isTrue();
+
+        then(live.getNotReady()).isEqualTo(3);
+        then(live.getFrames()).isEqualTo(1);
+        then(live.getRing().poll().getSequence()).isEqualTo(1);
+    }
+
+    @Test
+    public void image_without_image_record() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosFrame frame = new EosFrame(64, camera);
+        byte[] buf = frame.getData();
+        SimulatedEosCamera.put32(buf, 0, 40);
+        buf[20] = (byte)0xFF; buf[21] = (byte)0xD8;
+
+        then(EosLiveView.locateImage(frame)).isTrue();
+        then(frame.getOffset()).isEqualTo(20);
+        then(frame.getLength()).isEqualTo(20);
+
+        buf[20] = 0;
+        then(EosLiveView.locateImage(frame)).isFalse();
+    }
+
+    @Test
+    public void streaming_does_not_allocate() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.liveView = true;
+        EosLiveView live = new EosLiveView(camera, 4, 1024);
+        EosFrameRing ring = live.getRing();
+
+        long allocated = AllocationMeter.allocated(() -> {
+            live.step();
+            ring.release(ring.poll());
+        });
+
+        then(allocated).isZero();
+        then(live.getFrames()).isGreaterThanOrEqualTo(21000);
+    }
+}
@@ -0,0 +1,218 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosLiveViewHub {
+
+    @Test
+    public void frames_are_shared_without_copies() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.liveView = true;
+        EosLiveView live = new EosLiveView(camera, 6, 1024);
+        EosLiveViewHub hub = new EosLiveViewHub(live);
+        EosFrameRing ring = live.getRing();
+
+        EosLiveViewHub.Subscriber a = hub.subscribe("a"), b = hub.subscribe("b");
+        then(hub.getSubscribers()).containsExactly(a, b);
+
+        then(live.step()).isTrue();
+        then(hub.dispatch(0, TimeUnit.SECONDS)).isTrue();
+        then(hub.dispatch(0, TimeUnit.SECONDS)).isFalse();
+
+        EosFrame fa = a.take(0, TimeUnit.SECONDS), fb = b.take(0, TimeUnit.SECONDS);
+        then(fa).isSameAs(fb);
+        then(fa.getSequence()).isEqualTo(1);
+
+        ByteBuffer image = fa.getImage();
+        then(image.isReadOnly()).isTrue();
+        then(image.remaining()).isEqualTo(camera.frameSize);
+        then(image.get(0)).isEqualTo((byte)0xFF);
+        then(image.get(1)).isEqualTo((byte)0xD8);
+
+        a.release(fa);
+        then(ring.getFree()).isEqualTo(5);
+        b.release(fb);
+        then(ring.getFree()).isEqualTo(6);
+
+        try {
+            b.release(fb);
+            fail("double release not detected");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("frame not taken");
+        }
+    }
+
+    @Test
+    public void slow_subscribers_skip_frames() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.liveView = true;
+        EosLiveView live = new EosLiveView(camera, 6, 1024);
+        EosLiveViewHub hub = new EosLiveViewHub(live);
+
+        EosLiveViewHub.Subscriber fast = hub.subscribe("fast"), slow = hub.subscribe("slow");
+
+        for (int i=1; i<=3; ++i) {
+            live.step();
+            hub.dispatch(0, TimeUnit.SECONDS);
+            EosFrame frame = fast.take(0, TimeUnit.SECONDS);
+            then(frame.getSequence()).isEqualTo(i);
+            fast.release(frame);
+        }
+        then(fast.getDelivered()).isEqualTo(3);
+        then(fast.getSkipped()).isZero();
+        then(fast.getLag()).isZero();
+
+        then(slow.getSkipped()).isEqualTo(2);
+        EosFrame frame = slow.take(0, TimeUnit.SECONDS);
+        then(frame.getSequence()).isEqualTo(3);
+        slow.release(frame);
+        then(slow.take(0, TimeUnit.SECONDS)).isNull();
+
+        //
+        // fast falls behind too
+        //
+        live.step(); hub.dispatch(0, TimeUnit.SECONDS);
+        live.step(); hub.dispatch(0, TimeUnit.SECONDS);
+        frame = fast.take(0, TimeUnit.SECONDS);
+        then(frame.getSequence()).isEqualTo(5);
+        fast.release(frame);
+        then(fast.getSkipped()).isEqualTo(1);
+        then(slow.getLag()).isEqualTo(2);
+        then(slow.toString()).startsWith("slow: delivered 1, skipped 3, lag 2 frames");
+
+        hub.unsubscribe(slow);
+        then(hub.getSubscribers()).containsExactly(fast);
+        then(live.getRing().getFree()).isEqualTo(6);
+        then(live.getStalls()).isZero();
+    }
+
+    @Test
+    public void subscribers_are_limited_by_the_ring() throws Exception {
+        EosLiveViewHub hub = new EosLiveViewHub(new EosLiveView(new SimulatedEosCamera(), 6, 1024));
+
+        then(hub.getMaxSubscribers()).isEqualTo(2);
+        EosLiveViewHub.Subscriber a = hub.subscribe("a");
+        hub.subscribe("b");
+        try {
+            hub.subscribe("c");
+            fail("too many subscribers accepted");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("a ring of 6 frames can not serve more than 2 subscribers");
+        }
+        hub.unsubscribe(a);
+        hub.subscribe("c");
+        then(hub.getSubscribers()).extracting("name").containsExactly("b", "c");
+
+        then(new EosLiveViewHub(new EosLiveView(new SimulatedEosCamera())).getMaxSubscribers())
+            .isEqualTo(1);
+    }
+
+    @Test
+    public void mjpeg_clients_beyond_the_ring_are_rejected() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        EosLiveViewHub hub = new EosLiveViewHub(new EosLiveView(camera, 4, 1024));
+        EosMjpegServer server = new EosMjpegServer(hub, new InetSocketAddress("127.0.0.1", 0));
+
+        hub.start();
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            HttpURLConnection first = (HttpURLConnection)url.openConnection();
+            then(first.getResponseCode()).isEqualTo(200);
+
+            HttpURLConnection second = (HttpURLConnection)url.openConnection();
+            then(second.getResponseCode()).isEqualTo(503);
+            then(server.getClients()).isEqualTo(1);
+
+            first.disconnect();
+            second.disconnect();
+        } finally {
+            server.stop();
+            hub.stop();
+        }
+    }
+
+    @Test
+    public void mjpeg_stream() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.frameDelay = TimeUnit.MILLISECONDS.toNanos(2);
+        EosLiveViewHub hub = new EosLiveViewHub(new EosLiveView(camera, 8, 1024));
+        EosMjpegServer server = new EosMjpegServer(hub, new InetSocketAddress("127.0.0.1", 0));
+
+        hub.start();
+        server.start();
+        try {
+            URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            HttpURLConnection c = (HttpURLConnection)url.openConnection();
+            then(c.getResponseCode()).isEqualTo(200);
+            then(c.getContentType()).isEqualTo("multipart/x-mixed-replace; boundary=" + EosMjpegServer.BOUNDARY);
+
+            DataInputStream in = new DataInputStream(c.getInputStream());
+            for (int i=0; i<3; ++i) {
+                then(line(in)).isEqualTo("--" + EosMjpegServer.BOUNDARY);
+                then(line(in)).isEqualTo("Content-Type: image/jpeg");
+                then(line(in)).isEqualTo("Content-Length: " + camera.frameSize);
+                then(line(in)).isEmpty();
+                byte[] image = new byte[camera.frameSize];
+                in.readFully(image);
+                then(image[0]).isEqualTo((byte)0xFF);
+                then(image[1]).isEqualTo((byte)0xD8);
+                then(image[image.length-1]).isEqualTo((byte)0xD9);
+                then(line(in)).isEmpty();
+            }
+            then(server.getClients()).isEqualTo(1);
+            then(hub.getSubscribers()).hasSize(1);
+            c.disconnect();
+        } finally {
+            server.stop();
+            hub.stop();
+        }
+        then(camera.liveView).isFalse();
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static String line(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != '\n') {
+            if (c < 0) {
+                fail("unexpected end of stream");
+            }
+            if (c != '\r') {
+                sb.append((char)c);
+            }
+        }
+        return sb.toString();
+    }
+}
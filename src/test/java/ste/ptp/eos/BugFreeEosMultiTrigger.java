@@ -0,0 +1,187 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import static org.assertj.core.api.Assertions.fail;
+import static org.assertj.core.api.BDDAssertions.then;
+import org.junit.Test;
+import ste.ptp.PTPException;
+
+/**
+ *
+ * @author ste
+ */
+public class BugFreeEosMultiTrigger {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void cameras_are_released_together() throws Exception {
+        List<SimulatedEosCamera> cameras = cameras(4);
+        EosMultiTrigger trigger = new EosMultiTrigger(cameras);
+
+        //
+        // a generous lead, as the tests run in parallel
+        //
+        trigger.setLead(20, TimeUnit.MILLISECONDS);
+        trigger.start();
+        try {
+            for (SimulatedEosCamera c: cameras) {
+                then(c.isArmed()).isTrue();
+                c.releaseDelay = 10 * MS;
+            }
+
+            for (int round=0; round<5; ++round) {
+                EosMultiTrigger.Round r = trigger.fire();
+
+                then(r.size()).isEqualTo(4);
+                long first = Long.MAX_VALUE, last = Long.MIN_VALUE;
+                for (int i=0; i<4; ++i) {
+                    then(r.getError(i)).isNull();
+                    then(r.getSubmitted(i)).isGreaterThanOrEqualTo(0);
+                    then(r.getAnswered(i) - r.getSubmitted(i)).isGreaterThanOrEqualTo(10 * MS);
+                    first = Math.min(first, cameras.get(i).releaseTimes[round]);
+                    last = Math.max(last, cameras.get(i).releaseTimes[round]);
+                }
+
+                //
+                // one after another the last camera would release 30 ms
+                // after the first one
+                //
+                then(last - first).isLessThan(15 * MS);
+                then(r.getSubmitSkew()).isLessThan(15 * MS);
+            }
+        } finally {
+            trigger.stop();
+        }
+
+        then(trigger.isRunning()).isFalse();
+        for (SimulatedEosCamera c: cameras) {
+            then(c.releases).isEqualTo(5);
+        }
+        then(trigger.getRounds()).isEqualTo(5);
+        then(trigger.getSubmitSkew().getCount()).isEqualTo(5);
+        then(trigger.getResponseSkew().getCount()).isEqualTo(5);
+        then(trigger.getLastRound().toString()).contains("camera 3: submitted");
+    }
+
+    @Test
+    public void errors_are_reported_per_camera() throws Exception {
+        List<SimulatedEosCamera> cameras = cameras(2);
+        cameras.add(new SimulatedEosCamera() {
+            @Override
+            public void trigger() throws PTPException {
+                throw new PTPException("busy");
+            }
+        });
+        EosMultiTrigger trigger = new EosMultiTrigger(cameras);
+
+        trigger.start();
+        try {
+            trigger.fire();
+            fail("error not reported");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("camera 2 did not release");
+            then(x.getCause()).hasMessageEndingWith("busy");
+        } finally {
+            trigger.stop();
+        }
+
+        EosMultiTrigger.Round r = trigger.getLastRound();
+        then(r.getError(0)).isNull();
+        then(r.getError(2)).hasMessageEndingWith("busy");
+        then(cameras.get(0).releases).isEqualTo(1);
+        then(cameras.get(1).releases).isEqualTo(1);
+    }
+
+    @Test
+    public void a_camera_that_does_not_answer_does_not_hang_the_trigger() throws Exception {
+        final CountDownLatch answer = new CountDownLatch(1);
+        List<SimulatedEosCamera> cameras = cameras(1);
+        cameras.add(new SimulatedEosCamera() {
+            @Override
+            public void trigger() throws PTPException {
+                //
+                // stuck in the USB call, whatever the interrupts
+                //
+                while (answer.getCount() > 0) {
+                    LockSupport.parkNanos(MS);
+                }
+            }
+        });
+        EosMultiTrigger trigger = new EosMultiTrigger(cameras);
+        trigger.setTimeout(100, TimeUnit.MILLISECONDS);
+
+        trigger.start();
+        long start = System.nanoTime();
+        try {
+            trigger.fire();
+            fail("hung camera not detected");
+        } catch (PTPException x) {
+            then(x).hasMessageEndingWith("cameras did not answer in time");
+        } finally {
+            answer.countDown();
+        }
+
+        then(System.nanoTime() - start).isLessThan(TimeUnit.SECONDS.toNanos(2));
+        then(trigger.isRunning()).isFalse();
+    }
+
+    @Test
+    public void sanity_checks() throws Exception {
+        try {
+            new EosMultiTrigger(null);
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("cameras can not be null");
+        }
+        try {
+            new EosMultiTrigger(new ArrayList<EosInitiator>());
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("cameras can not be empty");
+        }
+        try {
+            new EosMultiTrigger(Arrays.asList(new SimulatedEosCamera(), null));
+            fail("missing sanity check");
+        } catch (IllegalArgumentException x) {
+            then(x).hasMessage("cameras can not contain null");
+        }
+        try {
+            new EosMultiTrigger(cameras(1)).fire();
+            fail("missing sanity check");
+        } catch (IllegalStateException x) {
+            then(x).hasMessage("multi trigger not running");
+        }
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static List<SimulatedEosCamera> cameras(int n) throws PTPException {
+        List<SimulatedEosCamera> cameras = new ArrayList<>();
+        for (int i=0; i<n; ++i) {
+            cameras.add(new SimulatedEosCamera());
+        }
+        return cameras;
+    }
+}
@@ -0,0 +1,137 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import ste.ptp.Data;
+import ste.ptp.LatencyHistogram;
+
+/**
+ * Compares a serial tethered burst (release, wait for the object, download
+ * it, release again...) with {@link EosCapturePipeline} on a simulated
+ * camera with a realistic processing delay and transfer speed. It reports
+ * frames per minute and shutter to disk latencies. It is not part of the
+ * test suite; run it with:
+ *
+ * <pre>
+ * mvn test-compile
+ * CP=$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout)
+ * java -cp target/classes:target/test-classes:$CP ste.ptp.eos.EosCapturePipelineBenchmark [shots]
+ * </pre>
+ *
+ * @author ste
+ */
+public class EosCapturePipelineBenchmark {
+
+    private static final int SHOTS = 100;
+    private static final int OBJECT_SIZE = 4 * 1024 * 1024;
+    private static final long CAPTURE_DELAY = TimeUnit.MILLISECONDS.toNanos(150);
+    private static final long BYTES_PER_SECOND = 40L * 1024 * 1024;
+    private static final long INTERVAL = 100;  // ms, 10 frames per second
+
+    public static void main(String[] args) throws Exception {
+        int shots = (args.length > 0) ? Integer.parseInt(args[0]) : SHOTS;
+
+        serial(camera(), 5, new LatencyHistogram());
+        new EosCapturePipeline(camera(), new NullSink()).burst(5, INTERVAL, TimeUnit.MILLISECONDS);
+
+        LatencyHistogram latency = new LatencyHistogram();
+        long start = System.nanoTime();
+        serial(camera(), shots, latency);
+        report("serial   ", shots, System.nanoTime() - start, latency);
+
+        EosCapturePipeline pipeline = new EosCapturePipeline(camera(), new NullSink());
+        start = System.nanoTime();
+        pipeline.burst(shots, INTERVAL, TimeUnit.MILLISECONDS);
+        report("pipelined", (int)pipeline.getFrames(), System.nanoTime() - start, pipeline.getLatency());
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private static SimulatedEosCamera camera() throws Exception {
+        SimulatedEosCamera camera = new SimulatedEosCamera();
+        camera.objectSize = OBJECT_SIZE;
+        camera.captureDelay = CAPTURE_DELAY;
+        camera.bytesPerSecond = BYTES_PER_SECOND;
+
+        return camera;
+    }
+
+    //
+    // what a tethering application does without the pipeline
+    //
+    private static void serial(SimulatedEosCamera camera, int shots, LatencyHistogram latency)
+    throws Exception {
+        final int[] object = new int[2];
+        EosEventVisitor visitor = new EosEventVisitor() {
+            @Override
+            public void onObjectAdded(
+                int objectId, int storageId, int format, long size, int parentId,
+                CharSequence name
+            ) {
+                object[0] = objectId;
+                object[1] = (int)size;
+            }
+        };
+        Data chunk = new Data(true, new byte[12 + EosCapturePipeline.DEFAULT_CHUNK_SIZE], camera);
+
+        camera.setRemoteMode(1);
+        camera.setEventMode(1);
+        for (int i=0; i<shots; ++i) {
+            long released = System.nanoTime();
+            camera.remoteRelease();
+
+            object[0] = 0;
+            while (object[0] == 0) {
+                camera.getEvents(visitor);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+            }
+            for (int offset=0; offset<object[1]; offset+=EosCapturePipeline.DEFAULT_CHUNK_SIZE) {
+                camera.getPartialObject(
+                    object[0], offset,
+                    Math.min(EosCapturePipeline.DEFAULT_CHUNK_SIZE, object[1] - offset), chunk
+                );
+            }
+            camera.transferComplete(object[0]);
+            latency.record(System.nanoTime() - released);
+
+            long next = released + TimeUnit.MILLISECONDS.toNanos(INTERVAL) - System.nanoTime();
+            if (next > 0) {
+                LockSupport.parkNanos(next);
+            }
+        }
+    }
+
+    private static void report(String label, int frames, long elapsed, LatencyHistogram latency) {
+        System.out.println(String.format(
+            "%s - %d frames, %.1f frames/minute, shutter to disk: %s",
+            label, frames, frames * 60e9 / elapsed, latency
+        ));
+    }
+
+    private static class NullSink implements EosObjectSink {
+        @Override
+        public void begin(int objectId, String name, long size) {}
+
+        @Override
+        public void write(byte[] buf, int offset, int length) {}
+
+        @Override
+        public void end(int objectId) {}
+    }
+}
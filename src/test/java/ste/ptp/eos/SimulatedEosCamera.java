@@ -0,0 +1,417 @@
+/* Copyright 2019 by Stefano Fornari
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+package ste.ptp.eos;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import ste.ptp.Command;
+import ste.ptp.PTPException;
+import ste.ptp.Response;
+
+/**
+ * An EOS camera simulated in memory: it answers OK to every command and
+ * returns the queued event records at each EosGetEvent. Each release
+ * (EosRemoteRelease, the full press of the shutter button or the end of a
+ * bulb exposure) creates a new object of {@link #objectSize} bytes, notified with
+ * EosEventObjectAddedEx (EosEventObjectAddedEx64 if larger than 4GB)
+ * {@link #captureDelay} nanoseconds later, and, if {@link #jpegDelay} is not
+ * negative, its JPEG, notified that many nanoseconds after the RAW
+ * object; EosRemoteRelease is answered
+ * {@link #releaseDelay} nanoseconds after the release (only the release
+ * number {@link #delayedRelease}, 0 based, if not negative). Objects can be read with
+ * EosGetPartialObject and EosGetPartialObject64 (only up to
+ * {@link #truncatedSize} bytes, if given) and their size with
+ * EosGetObjectInfo64. While the live view is on, EosGetViewFinderData
+ * returns a frame of {@link #frameSize} bytes, taking {@link #frameDelay}
+ * nanoseconds, unless {@link #notReady} is greater than 0. Thumbnails
+ * (GetThumb and EosGetThumbEx) are {@link #thumbSize} bytes. Each EosDriveLens
+ * is notified with EosEventAfResult {@link #lensDelay} nanoseconds later,
+ * unless {@link #lensEvents} is false. If {@link #bytesPerSecond} is given,
+ * data transfers take the time they would take at that speed.
+ *
+ * @author ste
+ */
+class SimulatedEosCamera extends EosInitiator {
+
+    static final int PACKET = 512;
+    static final int FIRST_OBJECT = 0x91900001;
+
+    volatile long objectSize = 64 * 1024;
+    volatile long captureDelay = 0;
+    volatile long releaseDelay = 0;
+    volatile int delayedRelease = -1;
+    volatile long bytesPerSecond = 0;
+    volatile long truncatedSize = -1;
+    volatile long jpegDelay = -1;
+
+    private final List<byte[]> pendingEvents = new ArrayList<>();
+    private final List<long[]> captures = new ArrayList<>();  // {due, oid, shot, format}
+    private final List<Long> lensMoves = new ArrayList<>();   // due
+
+    private byte[] data = new byte[PACKET];
+    private int dataLength, dataOffset;
+    private boolean dataPending;
+    private final byte[] responsePacket = new byte[12];
+    private int nextObject = FIRST_OBJECT;
+
+    volatile int commands, setEventModes, setRemoteModes, getEvents, releases, transferred;
+    volatile int buttonOn, buttonOff, autofocus;
+    volatile int remoteMode;
+
+    volatile int frameSize = 20000;
+    volatile long frameDelay = 0;
+    volatile int notReady;
+    volatile boolean liveView;
+    volatile int viewFinderFrames;
+
+    final long[] releaseTimes = new long[1024];
+    final long[] bulbStarts = new long[1024], bulbEnds = new long[1024];
+    volatile int bulbs;
+    volatile long lensDelay = 0;
+    volatile boolean lensEvents = true;
+    volatile int lensDrives;
+    volatile int keepAlives;
+    volatile int thumbSize = 8000;
+    volatile int thumbs, thumbCode;
+    volatile long partialReads, bytesRead;
+
+    SimulatedEosCamera() throws PTPException {
+        super(PACKET);
+        openSession();
+    }
+
+    /**
+     * Queues an event to be returned at the next EosGetEvent
+     *
+     * @param record the event record
+     */
+    void queueEvent(byte[] record) {
+        synchronized (pendingEvents) {
+            pendingEvents.add(record);
+        }
+    }
+
+    /**
+     * @return an EosEventPropValueChanged record
+     */
+    static byte[] propValueChanged(int property, int value) {
+        byte[] record = new byte[16];
+        put32(record, 0, record.length);
+        put32(record, 4, EosEventConstants.EosEventPropValueChanged);
+        put32(record, 8, property);
+        put32(record, 12, value);
+
+        return record;
+    }
+
+    /**
+     * @return a record of an event without parameters
+     */
+    static byte[] event(int code) {
+        byte[] record = new byte[8];
+        put32(record, 0, record.length);
+        put32(record, 4, code);
+
+        return record;
+    }
+
+    /**
+     * @return an EosEventAfResult record
+     */
+    static byte[] afResult(int result) {
+        byte[] record = new byte[12];
+        put32(record, 0, record.length);
+        put32(record, 4, EosEventConstants.EosEventAfResult);
+        put32(record, 8, result);
+
+        return record;
+    }
+
+    /**
+     * @return an EosEventObjectAddedEx record
+     */
+    static byte[] objectAdded(int oid, int format, int size, String name) {
+        byte[] record = new byte[48 + name.length()];
+        put32(record, 0, record.length);
+        put32(record, 4, EosEventConstants.EosEventObjectAddedEx);
+        put32(record, 8, oid);
+        put32(record, 12, 0x00020001);        // storage
+        record[16] = (byte)format; record[17] = (byte)(format >> 8);
+        put32(record, 28, size);
+        put32(record, 32, 0x91900000);        // parent
+        for (int i=0; i<name.length(); ++i) {
+            record[40 + i] = (byte)name.charAt(i);
+        }
+
+        return record;
+    }
+
+    /**
+     * @return an EosEventObjectAddedEx64 record
+     */
+    static byte[] objectAdded64(int oid, int format, long size, String name) {
+        byte[] record = new byte[52 + name.length()];
+        put32(record, 0, record.length);
+        put32(record, 4, EosEventConstants.EosEventObjectAddedEx64);
+        put32(record, 8, oid);
+        put32(record, 12, 0x00020001);        // storage
+        record[16] = (byte)format; record[17] = (byte)(format >> 8);
+        put32(record, 28, (int)size);
+        put32(record, 32, (int)(size >>> 32));
+        put32(record, 36, 0x91900000);        // parent
+        for (int i=0; i<name.length(); ++i) {
+            record[44 + i] = (byte)name.charAt(i);
+        }
+
+        return record;
+    }
+
+    /**
+     * @return the byte at the given offset of any object
+     */
+    static byte content(int oid, long offset) {
+        return (byte)(oid + offset * 31);
+    }
+
+    @Override
+    protected synchronized void send(byte[] buf) {
+        if (buf.length == 0 || u16(buf, 4) != 1 /* command */) {
+            return;
+        }
+        int code = u16(buf, 6);
+        int xid = s32(buf, 8);
+
+        dataPending = false;
+        ++commands;
+        int ret = Response.OK;
+        if (code == Command.EosSetEventMode) {
+            ++setEventModes;
+        } else if (code == Command.EosSetRemoteMode) {
+            ++setRemoteModes;
+            remoteMode = s32(buf, 12);
+        } else if (code == Command.EosGetEvent) {
+            ++getEvents;
+            events(code, xid);
+        } else if (code == Command.EosRemoteRelease) {
+            capture();
+            if (releaseDelay > 0 && (delayedRelease < 0 || delayedRelease == releases - 1)) {
+                LockSupport.parkNanos(releaseDelay);
+            }
+        } else if (code == Command.EosRemoeReleaseOn) {
+            ++buttonOn;
+            if (s32(buf, 12) == 2) {
+                capture();
+            }
+        } else if (code == Command.EosRemoeReleaseOff) {
+            ++buttonOff;
+        } else if (code == Command.EosDoAF) {
+            ++autofocus;
+        } else if (code == Command.EosBulbStart) {
+            bulbStarts[bulbs % bulbStarts.length] = System.nanoTime();
+        } else if (code == Command.EosBulbEnd) {
+            bulbEnds[bulbs++ % bulbEnds.length] = System.nanoTime();
+            capture();
+        } else if (code == Command.EosGetPartialObject) {
+            partialObject(code, xid, s32(buf, 12), s32(buf, 16) & 0xFFFFFFFFL, s32(buf, 20));
+        } else if (code == Command.EosGetPartialObject64 || code == Command.EosGetPartialObjectEX64) {
+            partialObject(
+                code, xid, s32(buf, 12),
+                (s32(buf, 16) & 0xFFFFFFFFL) | ((long)s32(buf, 20) << 32), s32(buf, 24)
+            );
+        } else if (code == Command.EosGetObjectInfo64) {
+            packet(code, xid, 12 + 64);
+            Arrays.fill(data, 12, 12 + 64, (byte)0);
+            put32(data, 12, 0x00020001);          // storage
+            data[16] = (byte)0x03; data[17] = (byte)0xB1;
+            put32(data, 20, (int)objectSize);
+            put32(data, 24, (int)(objectSize >>> 32));
+        } else if (code == Command.EosTransferComplete) {
+            ++transferred;
+        } else if (code == Command.GetThumb || code == Command.EosGetThumbEx) {
+            ++thumbs;
+            thumbCode = code;
+            int oid = s32(buf, 12);
+            packet(code, xid, 12 + thumbSize);
+            for (int i=0; i<thumbSize; ++i) {
+                data[12 + i] = content(~oid, i);
+            }
+        } else if (code == Command.EosKeepDeviceOn) {
+            ++keepAlives;
+        } else if (code == Command.EosDriveLens) {
+            ++lensDrives;
+            if (lensEvents) {
+                synchronized (pendingEvents) {
+                    lensMoves.add(System.nanoTime() + lensDelay);
+                }
+            }
+        } else if (code == Command.EosInitiateViewFinder) {
+            liveView = true;
+        } else if (code == Command.EosTerminateViewFinder) {
+            liveView = false;
+        } else if (code == Command.EosGetViewFinderData) {
+            if (!liveView || notReady > 0) {
+                notReady = Math.max(0, notReady - 1);
+                ret = EosInitiator.VIEWFINDER_NOT_READY;
+            } else {
+                viewFinder(code, xid);
+            }
+        }
+        header(responsePacket, responsePacket.length, 3, ret, xid);
+    }
+
+    @Override
+    protected synchronized int receive(byte[] buf) {
+        if (!dataPending) {
+            System.arraycopy(responsePacket, 0, buf, 0, responsePacket.length);
+            return responsePacket.length;
+        }
+        return receive(buf, 0, buf.length);
+    }
+
+    @Override
+    protected synchronized int receive(byte[] buf, int offset, int len) {
+        int n = Math.min(len, dataLength - dataOffset);
+        System.arraycopy(data, dataOffset, buf, offset, n);
+        dataOffset += n;
+        if (dataOffset == dataLength) {
+            dataPending = false;
+        }
+        if (bytesPerSecond > 0) {
+            LockSupport.parkNanos(n * 1000000000L / bytesPerSecond);
+        }
+
+        return n;
+    }
+
+    // --------------------------------------------------------- Private methods
+
+    private void capture() {
+        releaseTimes[releases % releaseTimes.length] = System.nanoTime();
+        ++releases;
+        synchronized (pendingEvents) {
+            long due = System.nanoTime() + captureDelay;
+            captures.add(new long[] {due, nextObject++, releases, 0xB103});
+            if (jpegDelay >= 0) {
+                captures.add(new long[] {due + jpegDelay, nextObject++, releases, 0x3801});
+            }
+        }
+    }
+
+    private void events(int code, int xid) {
+        synchronized (pendingEvents) {
+            long now = System.nanoTime();
+            for (Iterator<long[]> i = captures.iterator(); i.hasNext(); ) {
+                long[] c = i.next();
+                if (c[0] <= now) {
+                    String name = String.format(
+                        (c[3] == 0x3801) ? "IMG_%04d.JPG" : "IMG_%04d.CR2", c[2]
+                    );
+                    pendingEvents.add((objectSize > 0xFFFFFFFFL)
+                        ? objectAdded64((int)c[1], (int)c[3], objectSize, name)
+                        : objectAdded((int)c[1], (int)c[3], (int)objectSize, name)
+                    );
+                    i.remove();
+                }
+            }
+            for (Iterator<Long> i = lensMoves.iterator(); i.hasNext(); ) {
+                if (i.next() <= now) {
+                    pendingEvents.add(afResult(0));
+                    i.remove();
+                }
+            }
+
+            int len = 12 + 8;
+            for (byte[] e: pendingEvents) {
+                len += e.length;
+            }
+
+            packet(code, xid, len);
+            int offset = 12;
+            for (byte[] e: pendingEvents) {
+                System.arraycopy(e, 0, data, offset, e.length);
+                offset += e.length;
+            }
+            put32(data, offset, 8);  // terminator
+            put32(data, offset + 4, 0);
+            pendingEvents.clear();
+        }
+    }
+
+    //
+    // a metadata record followed by the image record; the image starts with
+    // the start of image marker followed by the frame number
+    //
+    private void viewFinder(int code, int xid) {
+        if (frameDelay > 0) {
+            LockSupport.parkNanos(frameDelay);
+        }
+        int image = frameSize;
+        packet(code, xid, 12 + 16 + 8 + image);
+        put32(data, 12, 16);
+        put32(data, 16, 4);
+        put32(data, 28, 8 + image);
+        put32(data, 32, 1);
+        data[36] = (byte)0xFF; data[37] = (byte)0xD8;
+        put32(data, 38, ++viewFinderFrames);
+        data[36 + image - 2] = (byte)0xFF; data[36 + image - 1] = (byte)0xD9;
+    }
+
+    private void partialObject(int code, int xid, int oid, long offset, int size) {
+        long available = (truncatedSize >= 0) ? Math.min(objectSize, truncatedSize) : objectSize;
+        int n = (int)Math.max(0, Math.min(size, available - offset));
+
+        packet(code, xid, 12 + n);
+        for (int i=0; i<n; ++i) {
+            data[12 + i] = content(oid, offset + i);
+        }
+        ++partialReads;
+        bytesRead += n;
+    }
+
+    private void packet(int code, int xid, int len) {
+        if (data.length < len) {
+            data = new byte[len];
+        }
+        header(data, len, 2, code, xid);
+        dataLength = len;
+        dataOffset = 0;
+        dataPending = true;
+    }
+
+    private static void header(byte[] packet, int len, int type, int code, int xid) {
+        put32(packet, 0, len);
+        packet[4] = (byte)type; packet[5] = 0;
+        packet[6] = (byte)code; packet[7] = (byte)(code >> 8);
+        put32(packet, 8, xid);
+    }
+
+    static void put32(byte[] buf, int i, int value) {
+        buf[i] = (byte)value; buf[i+1] = (byte)(value >> 8);
+        buf[i+2] = (byte)(value >> 16); buf[i+3] = (byte)(value >> 24);
+    }
+
+    private static int u16(byte[] buf, int i) {
+        return (buf[i] & 0xff) | ((buf[i+1] & 0xff) << 8);
+    }
+
+    private static int s32(byte[] buf, int i) {
+        return u16(buf, i) | (u16(buf, i+2) << 16);
+    }
+}